@@ -127,7 +127,7 @@ for i in range(num_customers_to_add):
     # all customers start with a NumFraudReversals of 0
     # both the balance and overdraftbalance columns represent the total dollar amount as pennies instead of dollars.
     insert_customer_sql = '''
-    INSERT INTO Customers
+    INSERT INTO Customers (CustomerID, FirstName, LastName, Balance, OverdraftBalance, NumFraudReversals)
     VALUES  ({0},{1},{2},{3},{4},{5});
     '''.format("'" + customer_id + "'",
                 "'" + customer_first_name + "'",
@@ -144,7 +144,17 @@ for i in range(num_customers_to_add):
     '''.format("'" + customer_id + "'",
                 "'" + customer_password + "'")
     cursor.execute(insert_password_sql)
-    
+
+    # open the customer's ledger with their starting balances, so the ledger and Customers table agree.
+    # the LedgerEvents table is created by the app's Flyway migrations.
+    insert_opening_ledger_event_sql = '''
+    INSERT INTO LedgerEvents (CustomerID, Timestamp, EventType, BalanceDelta, OverdraftDelta)
+    VALUES  ({0},NOW(),'Opening',{1},{2});
+    '''.format("'" + customer_id + "'",
+                customer_balance,
+                0)
+    cursor.execute(insert_opening_ledger_event_sql)
+
     # add this customer's randomly-generated ID to the set
     # to ensure this ID is not re-used by accident.
     ids_just_added.add(customer_id)
@@ -0,0 +1,171 @@
+package net.testudobank.benchmarks;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import javax.script.ScriptException;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.delegate.DatabaseDelegate;
+import org.testcontainers.ext.ScriptUtils;
+import org.testcontainers.jdbc.JdbcDatabaseDelegate;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import net.testudobank.AccountPartitions;
+import net.testudobank.CryptoPriceClient;
+import net.testudobank.CryptoPriceSnapshot;
+import net.testudobank.MvcController;
+import net.testudobank.User;
+import net.testudobank.helpers.MvcControllerIntegTestHelpers;
+
+/**
+ * Measures how deposit/withdraw/transfer throughput scales with the number of {@link AccountPartitions},
+ * from 1 up to the number of cores, against the current handlers running every mutation on its request thread.
+ * <p>
+ * The same mixed workload (deposits, withdraws, and transfers between random customers) is driven by a fixed
+ * number of client threads in every configuration, so only the number of partitions changes.
+ *
+ * Run with: ./mvnw test -Pbenchmark -Dtest=AccountPartitionsBenchmark
+ */
+@Testcontainers
+public class AccountPartitionsBenchmark {
+  private static final int NUM_CORES = Runtime.getRuntime().availableProcessors();
+  private static final int NUM_CLIENT_THREADS = 2 * NUM_CORES;
+  private static final int NUM_CUSTOMERS = 64;
+  private static final int NUM_WARMUP_OPERATIONS_PER_THREAD = 50;
+  private static final int NUM_MEASURED_OPERATIONS_PER_THREAD = 250;
+  private static final String CUSTOMER_PASSWORD = "password";
+  private static final double AMOUNT = 0.01;
+
+  @Container
+  public static MySQLContainer db = new MySQLContainer<>("mysql:5.7.37")
+    .withUsername("root")
+    .withPassword("db_password")
+    .withDatabaseName("testudo_bank");
+
+  private static HikariDataSource dataSource;
+  private static JdbcTemplate jdbcTemplate;
+  private static DatabaseDelegate dbDelegate;
+  private static CryptoPriceClient cryptoPriceClient;
+
+  @BeforeAll
+  public static void init() throws SQLException, ScriptException {
+    dbDelegate = new JdbcDatabaseDelegate(db, "");
+    ScriptUtils.runInitScript(dbDelegate, "createDB.sql");
+
+    HikariConfig hikariConfig = new HikariConfig();
+    hikariConfig.setJdbcUrl(db.getJdbcUrl());
+    hikariConfig.setUsername(db.getUsername());
+    hikariConfig.setPassword(db.getPassword());
+    // enough connections for every client thread and every partition, so the pool is never the bottleneck
+    hikariConfig.setMaximumPoolSize(NUM_CLIENT_THREADS + NUM_CORES + 2);
+    hikariConfig.addDataSourceProperty("cachePrepStmts", "true");
+    hikariConfig.addDataSourceProperty("prepStmtCacheSize", "250");
+    hikariConfig.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+    hikariConfig.addDataSourceProperty("useServerPrepStmts", "true");
+    hikariConfig.addDataSourceProperty("rewriteBatchedStatements", "true");
+    dataSource = new HikariDataSource(hikariConfig);
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    MvcControllerIntegTestHelpers.migrateDB(dataSource);
+
+    // the account info page fetches crypto prices, which shouldn't hit the network during a benchmark
+    cryptoPriceClient = mock(CryptoPriceClient.class);
+    when(cryptoPriceClient.getPriceSnapshot()).thenReturn(new CryptoPriceSnapshot(MvcController.SUPPORTED_CRYPTOCURRENCIES.stream().collect(Collectors.toMap(cryptoName -> cryptoName, cryptoName -> 1000.0)), Instant.now()));
+
+    // large enough balances that no operation in the benchmark ever touches the overdraft logic
+    for (int customerNum = 0; customerNum < NUM_CUSTOMERS; customerNum++) {
+      MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, customerID(customerNum), CUSTOMER_PASSWORD, "Foo", "Bar", 100000000);
+    }
+  }
+
+  @AfterAll
+  public static void closeDataSource() throws ScriptException {
+    ScriptUtils.runInitScript(dbDelegate, "clearDB.sql");
+    dataSource.close();
+  }
+
+  @Test
+  public void benchmarkPartitionScaling() throws Exception {
+    List<Integer> partitionCounts = new ArrayList<>();
+    partitionCounts.add(0);
+    for (int numPartitions = 1; numPartitions < NUM_CORES; numPartitions *= 2) {
+      partitionCounts.add(numPartitions);
+    }
+    partitionCounts.add(NUM_CORES);
+
+    System.out.println("Mixed deposit/withdraw/transfer operations (" + NUM_CLIENT_THREADS + " client threads, " + NUM_CUSTOMERS + " customers):");
+    double requestThreadOperationsPerSecond = 0;
+    for (int numPartitions : partitionCounts) {
+      MvcController controller = new MvcController(jdbcTemplate, cryptoPriceClient, numPartitions);
+      runOperations(controller, NUM_WARMUP_OPERATIONS_PER_THREAD);
+
+      long startTimeInNanos = System.nanoTime();
+      runOperations(controller, NUM_MEASURED_OPERATIONS_PER_THREAD);
+      long elapsedTimeInNanos = System.nanoTime() - startTimeInNanos;
+      double operationsPerSecond = NUM_CLIENT_THREADS * NUM_MEASURED_OPERATIONS_PER_THREAD / (elapsedTimeInNanos / 1_000_000_000.0);
+
+      if (numPartitions == 0) {
+        requestThreadOperationsPerSecond = operationsPerSecond;
+        System.out.printf("  request threads (no partitions): %10.1f ops/s%n", operationsPerSecond);
+      } else {
+        System.out.printf("  %3d partition(s):                %10.1f ops/s (%.2fx)%n", numPartitions, operationsPerSecond, operationsPerSecond / requestThreadOperationsPerSecond);
+      }
+    }
+  }
+
+  // Each client thread cycles through deposit, withdraw, and transfer, walking the customers with a thread-specific stride
+  private static void runOperations(MvcController controller, int numOperationsPerThread) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(NUM_CLIENT_THREADS);
+    List<Future<?>> results = new ArrayList<>();
+    for (int threadNum = 0; threadNum < NUM_CLIENT_THREADS; threadNum++) {
+      int clientNum = threadNum;
+      results.add(executor.submit(() -> {
+        for (int operationNum = 0; operationNum < numOperationsPerThread; operationNum++) {
+          int customerNum = (clientNum + operationNum * (2 * clientNum + 1)) % NUM_CUSTOMERS;
+          User user = new User();
+          user.setUsername(customerID(customerNum));
+          user.setPassword(CUSTOMER_PASSWORD);
+          switch (operationNum % 3) {
+            case 0:
+              user.setAmountToDeposit(AMOUNT);
+              controller.submitDeposit(user);
+              break;
+            case 1:
+              user.setAmountToWithdraw(AMOUNT);
+              controller.submitWithdraw(user);
+              break;
+            default:
+              user.setTransferRecipientID(customerID((customerNum + 1) % NUM_CUSTOMERS));
+              user.setAmountToTransfer(AMOUNT);
+              controller.submitTransfer(user);
+          }
+        }
+      }));
+    }
+    for (Future<?> result : results) {
+      result.get();
+    }
+    executor.shutdown();
+  }
+
+  private static String customerID(int customerNum) {
+    return String.format("%09d", 100000000 + customerNum);
+  }
+}
@@ -0,0 +1,96 @@
+package net.testudobank.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import net.testudobank.CryptoPriceHistory;
+import net.testudobank.MvcController;
+import net.testudobank.SimulatedCryptoPriceSource;
+
+/**
+ * Measures how fast a {@link CryptoPriceHistory} ingests ticks from the {@link SimulatedCryptoPriceSource},
+ * and the latency of point lookups (price at a random instant) and range scans over the ingested ticks.
+ * <p>
+ * The simulated feed is drawn up front, so only the appends to the memory-mapped file are timed.
+ *
+ * Run with: ./mvnw test -Pbenchmark -Dtest=CryptoPriceHistoryBenchmark
+ */
+public class CryptoPriceHistoryBenchmark {
+  private static final int NUM_TICKS = 5_000_000;
+  private static final int NUM_LOOKUPS = 1_000_000;
+  private static final int NUM_SCANS = 1000;
+  private static final int TICKS_PER_SCAN = 10_000;
+  private static final long START_EPOCH_MILLIS = 1640995200000L;
+  private static final long SEED = 42;
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  public void benchmarkCryptoPriceHistory() throws IOException {
+    List<String> cryptoNames = new ArrayList<>(new TreeSet<>(MvcController.SUPPORTED_CRYPTOCURRENCIES));
+    double[][] feed = simulatedFeed(cryptoNames);
+
+    try (CryptoPriceHistory priceHistory = new CryptoPriceHistory(tempDir.resolve("prices.bin"), cryptoNames)) {
+      long ingestElapsedTimeInNanos = timeInNanos(() -> {
+        for (int tickNum = 0; tickNum < NUM_TICKS; tickNum++) {
+          priceHistory.append(START_EPOCH_MILLIS + tickNum, feed[tickNum]);
+        }
+      });
+
+      Random random = new Random(SEED);
+      double[] checksum = new double[1];
+      // warm up the lookup path before measuring
+      for (int lookupNum = 0; lookupNum < NUM_LOOKUPS; lookupNum++) {
+        checksum[0] += priceHistory.getPriceAt(cryptoNames.get(0), START_EPOCH_MILLIS + random.nextInt(NUM_TICKS));
+      }
+      long lookupElapsedTimeInNanos = timeInNanos(() -> {
+        for (int lookupNum = 0; lookupNum < NUM_LOOKUPS; lookupNum++) {
+          checksum[0] += priceHistory.getPriceAt(cryptoNames.get(0), START_EPOCH_MILLIS + random.nextInt(NUM_TICKS));
+        }
+      });
+
+      long scanElapsedTimeInNanos = timeInNanos(() -> {
+        for (int scanNum = 0; scanNum < NUM_SCANS; scanNum++) {
+          long fromEpochMillis = START_EPOCH_MILLIS + random.nextInt(NUM_TICKS - TICKS_PER_SCAN);
+          priceHistory.scan(Instant.ofEpochMilli(fromEpochMillis), Instant.ofEpochMilli(fromEpochMillis + TICKS_PER_SCAN),
+                            tick -> checksum[0] += tick.getPrice(0));
+        }
+      });
+
+      System.out.println("Crypto price history (" + NUM_TICKS + " ticks of " + cryptoNames + ", checksum " + checksum[0] + "):");
+      System.out.printf("  Ingest:       %12.0f ticks/s%n", NUM_TICKS / (ingestElapsedTimeInNanos / 1_000_000_000.0));
+      System.out.printf("  Point lookup: %12.3f us/lookup%n", lookupElapsedTimeInNanos / 1000.0 / NUM_LOOKUPS);
+      System.out.printf("  Range scan:   %12.0f ticks/s%n", (double) NUM_SCANS * TICKS_PER_SCAN / (scanElapsedTimeInNanos / 1_000_000_000.0));
+    }
+  }
+
+  // One batch of prices per tick, in the order of `cryptoNames`
+  private static double[][] simulatedFeed(List<String> cryptoNames) {
+    SimulatedCryptoPriceSource priceSource = new SimulatedCryptoPriceSource(SEED);
+    double[][] feed = new double[NUM_TICKS][];
+    for (int tickNum = 0; tickNum < NUM_TICKS; tickNum++) {
+      Map<String, Double> prices = priceSource.fetchPrices(MvcController.SUPPORTED_CRYPTOCURRENCIES);
+      feed[tickNum] = new double[cryptoNames.size()];
+      for (int cryptoIndex = 0; cryptoIndex < cryptoNames.size(); cryptoIndex++) {
+        feed[tickNum][cryptoIndex] = prices.get(cryptoNames.get(cryptoIndex));
+      }
+    }
+    return feed;
+  }
+
+  private static long timeInNanos(Runnable operations) {
+    long startTimeInNanos = System.nanoTime();
+    operations.run();
+    return System.nanoTime() - startTimeInNanos;
+  }
+}
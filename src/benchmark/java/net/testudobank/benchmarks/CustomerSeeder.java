@@ -0,0 +1,429 @@
+package net.testudobank.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mysql.cj.jdbc.JdbcStatement;
+
+import net.testudobank.AccountState;
+import net.testudobank.MvcController;
+
+/**
+ * Seeds a DB with a production-sized population: customers with passwords and balances, and a year of transaction,
+ * transfer, overdraft, and crypto history for each of them. Replaces python-sql-scripts/addCustomers.py, which adds
+ * 100 customers one INSERT at a time.
+ * <p>
+ * Customers are split into chunks that a pool of threads generate and load in parallel, each on its own connection.
+ * Rows are buffered per table and loaded with either:
+ * <ul>
+ *   <li>"batch": JDBC batches, which the MySQL driver rewrites into multi-row INSERTs (rewriteBatchedStatements)</li>
+ *   <li>"load-data": LOAD DATA LOCAL INFILE, streamed from an in-memory tab-separated buffer instead of a file</li>
+ * </ul>
+ * Each buffer is committed when it is loaded, and the rows per second loaded so far are reported as the seeder runs.
+ * <p>
+ * Every customer's history is replayed through {@link AccountState}, so their balances, overdraft balances,
+ * overdraft repayment logs, and crypto holdings follow from it. A transfer is logged on both sides like the app
+ * does, but only moves the sender's balance. Each customer's ledger is opened with their final balances, like
+ * the V3 migration does for existing customers.
+ * <p>
+ * The tables must already exist (createDB.sql, migrated by the app's Flyway migrations). Customer IDs are
+ * 9-digit numbers counting up from "seeder.first-customer-id", so they must not be in use yet.
+ *
+ * Run with:
+ * ./mvnw test-compile exec:java -Pbenchmark -Dexec.classpathScope=test -Dexec.mainClass=net.testudobank.benchmarks.CustomerSeeder
+ *   -Dseeder.jdbc-url=jdbc:mysql://localhost:3306/testudo_bank -Dseeder.jdbc-password=... -Dseeder.customers=10000000
+ * and any of the other "seeder." properties in {@link Config}. See {@link CustomerSeederBenchmark} for a self-contained run.
+ */
+public class CustomerSeeder {
+  private static final DateTimeFormatter SQL_DATETIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+  private static final int HISTORY_DAYS = 365;
+  private static final long PROGRESS_REPORT_INTERVAL_IN_SECONDS = 5;
+  private static final String[] FIRST_NAMES = {"James", "Mary", "Robert", "Patricia", "John", "Jennifer", "Michael", "Linda", "David", "Elizabeth",
+                                               "William", "Barbara", "Richard", "Susan", "Joseph", "Jessica", "Thomas", "Sarah", "Wei", "Priya"};
+  private static final String[] LAST_NAMES = {"Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis", "Rodriguez", "Martinez",
+                                              "Hernandez", "Lopez", "Gonzalez", "Wilson", "Anderson", "Thomas", "Taylor", "Moore", "Chen", "Patel"};
+  private static final String PASSWORD_CHARACTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+  private static final String[] CRYPTO_NAMES = {"ETH", "SOL"};
+  private static final double[] CRYPTO_BASE_PRICES = {2000, 100};
+
+  /**
+   * How rows are sent to MySQL.
+   */
+  public enum LoadMethod {
+    BATCH, LOAD_DATA
+  }
+
+  /**
+   * Tables the seeder writes, and the columns it fills in. Auto-increment IDs and defaulted columns are left to MySQL.
+   */
+  public enum Table {
+    CUSTOMERS("Customers", "CustomerID", "FirstName", "LastName", "Balance", "OverdraftBalance", "NumFraudReversals"),
+    PASSWORDS("Passwords", "CustomerID", "Password"),
+    TRANSACTION_HISTORY("TransactionHistory", "CustomerID", "Timestamp", "Action", "Amount"),
+    TRANSFER_HISTORY("TransferHistory", "TransferFrom", "TransferTo", "Timestamp", "Amount"),
+    OVERDRAFT_LOGS("OverdraftLogs", "CustomerID", "Timestamp", "DepositAmt", "OldOverBalance", "NewOverBalance"),
+    CRYPTO_HOLDINGS("CryptoHoldings", "CustomerID", "CryptoName", "CryptoAmount"),
+    CRYPTO_HISTORY("CryptoHistory", "CustomerID", "Timestamp", "Action", "CryptoName", "CryptoAmount"),
+    LEDGER_EVENTS("LedgerEvents", "CustomerID", "Timestamp", "EventType", "BalanceDelta", "OverdraftDelta");
+
+    private final String tableName;
+    private final String[] columns;
+
+    Table(String tableName, String... columns) {
+      this.tableName = tableName;
+      this.columns = columns;
+    }
+
+    String insertSql() {
+      String[] placeholders = new String[columns.length];
+      Arrays.fill(placeholders, "?");
+      return "INSERT INTO " + tableName + " (" + String.join(", ", columns) + ") VALUES (" + String.join(", ", placeholders) + ")";
+    }
+
+    // The stream name is ignored, the rows come from the stream set on the statement
+    String loadDataSql() {
+      return "LOAD DATA LOCAL INFILE 'rows.tsv' INTO TABLE " + tableName + " FIELDS TERMINATED BY '\\t' LINES TERMINATED BY '\\n' (" + String.join(", ", columns) + ")";
+    }
+  }
+
+  /**
+   * Settings of a run. {@link #fromSystemProperties()} reads each one from the "seeder." property named in its comment.
+   */
+  public static class Config {
+    // seeder.jdbc-url, seeder.jdbc-username, seeder.jdbc-password
+    public String jdbcUrl = "jdbc:mysql://localhost:3306/testudo_bank";
+    public String jdbcUsername = "root";
+    public String jdbcPassword = "";
+    // seeder.customers
+    public int numCustomers = 100000;
+    // seeder.first-customer-id
+    public int firstCustomerID = 100000000;
+    // seeder.history-events-per-customer: average number of deposits, withdraws, transfers, and crypto trades per customer
+    public int avgHistoryEventsPerCustomer = 20;
+    // seeder.threads
+    public int numThreads = Runtime.getRuntime().availableProcessors();
+    // seeder.customers-per-chunk: unit of work handed to a thread
+    public int customersPerChunk = 1000;
+    // seeder.rows-per-load: rows buffered per table before they are loaded and committed
+    public int rowsPerLoad = 5000;
+    // seeder.load-method: "batch" or "load-data"
+    public LoadMethod loadMethod = LoadMethod.BATCH;
+
+    public static Config fromSystemProperties() {
+      Config config = new Config();
+      config.jdbcUrl = System.getProperty("seeder.jdbc-url", config.jdbcUrl);
+      config.jdbcUsername = System.getProperty("seeder.jdbc-username", config.jdbcUsername);
+      config.jdbcPassword = System.getProperty("seeder.jdbc-password", config.jdbcPassword);
+      config.numCustomers = Integer.getInteger("seeder.customers", config.numCustomers);
+      config.firstCustomerID = Integer.getInteger("seeder.first-customer-id", config.firstCustomerID);
+      config.avgHistoryEventsPerCustomer = Integer.getInteger("seeder.history-events-per-customer", config.avgHistoryEventsPerCustomer);
+      config.numThreads = Integer.getInteger("seeder.threads", config.numThreads);
+      config.customersPerChunk = Integer.getInteger("seeder.customers-per-chunk", config.customersPerChunk);
+      config.rowsPerLoad = Integer.getInteger("seeder.rows-per-load", config.rowsPerLoad);
+      if (System.getProperty("seeder.load-method") != null) {
+        config.loadMethod = LoadMethod.valueOf(System.getProperty("seeder.load-method").toUpperCase().replace('-', '_'));
+      }
+      return config;
+    }
+  }
+
+  /**
+   * Rows loaded into each table, and how long it took.
+   */
+  public static class Report {
+    private final Map<Table, Long> numRowsByTable;
+    private final long elapsedTimeInNanos;
+
+    Report(Map<Table, Long> numRowsByTable, long elapsedTimeInNanos) {
+      this.numRowsByTable = numRowsByTable;
+      this.elapsedTimeInNanos = elapsedTimeInNanos;
+    }
+
+    public Map<Table, Long> getNumRowsByTable() {
+      return numRowsByTable;
+    }
+
+    public long getNumRows() {
+      return numRowsByTable.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    public double getRowsPerSecond() {
+      return getNumRows() / (elapsedTimeInNanos / 1e9);
+    }
+
+    public void print() {
+      for (Map.Entry<Table, Long> numRows : numRowsByTable.entrySet()) {
+        System.out.printf("  %-18s %,14d rows%n", numRows.getKey().tableName, numRows.getValue());
+      }
+      System.out.printf("  %-18s %,14d rows in %.1f s, %,.0f rows/s%n", "total", getNumRows(), elapsedTimeInNanos / 1e9, getRowsPerSecond());
+    }
+  }
+
+  private final Config config;
+  private final Map<Table, LongAdder> numRowsByTable = new EnumMap<>(Table.class);
+  private final AtomicInteger nextChunk = new AtomicInteger();
+  // The ledger opens with every customer's balances as of the end of the seeded history
+  private final String openingTimestamp = SQL_DATETIME_FORMATTER.format(LocalDateTime.now());
+
+  public CustomerSeeder(Config config) {
+    this.config = config;
+    for (Table table : Table.values()) {
+      numRowsByTable.put(table, new LongAdder());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Config config = Config.fromSystemProperties();
+    System.out.println("Seeding " + config.numCustomers + " customers on " + config.numThreads + " threads with " + config.loadMethod + ":");
+    new CustomerSeeder(config).run().print();
+  }
+
+  /**
+   * Generates and loads every customer, and reports the rows per second loaded so far every few seconds.
+   */
+  public Report run() throws Exception {
+    long startTimeInNanos = System.nanoTime();
+    ScheduledExecutorService progressReporter = Executors.newSingleThreadScheduledExecutor();
+    progressReporter.scheduleAtFixedRate(() -> {
+      long numRows = numRowsByTable.values().stream().mapToLong(LongAdder::sum).sum();
+      System.out.printf("  %,d rows loaded, %,.0f rows/s%n", numRows, numRows / ((System.nanoTime() - startTimeInNanos) / 1e9));
+    }, PROGRESS_REPORT_INTERVAL_IN_SECONDS, PROGRESS_REPORT_INTERVAL_IN_SECONDS, TimeUnit.SECONDS);
+
+    ExecutorService workers = Executors.newFixedThreadPool(config.numThreads);
+    try {
+      List<Future<Void>> results = new ArrayList<>();
+      for (int workerNum = 0; workerNum < config.numThreads; workerNum++) {
+        results.add(workers.submit(() -> {
+          seedChunks();
+          return null;
+        }));
+      }
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } finally {
+      workers.shutdownNow();
+      progressReporter.shutdownNow();
+    }
+
+    Map<Table, Long> numRows = new EnumMap<>(Table.class);
+    for (Map.Entry<Table, LongAdder> numTableRows : numRowsByTable.entrySet()) {
+      numRows.put(numTableRows.getKey(), numTableRows.getValue().sum());
+    }
+    return new Report(numRows, System.nanoTime() - startTimeInNanos);
+  }
+
+  // Takes chunks of customers until none are left
+  private void seedChunks() throws SQLException, IOException {
+    int numChunks = (config.numCustomers + config.customersPerChunk - 1) / config.customersPerChunk;
+    try (Connection connection = DriverManager.getConnection(connectionUrl(), config.jdbcUsername, config.jdbcPassword)) {
+      connection.setAutoCommit(false);
+      Map<Table, List<Object[]>> rowsByTable = new EnumMap<>(Table.class);
+      for (Table table : Table.values()) {
+        rowsByTable.put(table, new ArrayList<>(config.rowsPerLoad));
+      }
+
+      for (int chunk = nextChunk.getAndIncrement(); chunk < numChunks; chunk = nextChunk.getAndIncrement()) {
+        // seeded by chunk, so a run generates the same data regardless of the number of threads
+        Random random = new Random(chunk);
+        int firstCustomerNum = chunk * config.customersPerChunk;
+        int lastCustomerNum = Math.min(firstCustomerNum + config.customersPerChunk, config.numCustomers);
+        for (int customerNum = firstCustomerNum; customerNum < lastCustomerNum; customerNum++) {
+          generateCustomer(customerNum, random, rowsByTable);
+          for (Map.Entry<Table, List<Object[]>> rows : rowsByTable.entrySet()) {
+            if (rows.getValue().size() >= config.rowsPerLoad) {
+              load(connection, rows.getKey(), rows.getValue());
+            }
+          }
+        }
+      }
+
+      for (Map.Entry<Table, List<Object[]>> rows : rowsByTable.entrySet()) {
+        load(connection, rows.getKey(), rows.getValue());
+      }
+    }
+  }
+
+  private String connectionUrl() {
+    String separator = config.jdbcUrl.contains("?") ? "&" : "?";
+    if (config.loadMethod == LoadMethod.LOAD_DATA) {
+      return config.jdbcUrl + separator + "allowLoadLocalInfile=true";
+    }
+    return config.jdbcUrl + separator + "rewriteBatchedStatements=true";
+  }
+
+  //// GENERATING ROWS ////
+
+  private String customerID(int customerNum) {
+    return String.valueOf(config.firstCustomerID + customerNum);
+  }
+
+  // Replays a year of random operations on the customer's account, in time order
+  private void generateCustomer(int customerNum, Random random, Map<Table, List<Object[]>> rowsByTable) {
+    String customerID = customerID(customerNum);
+    // a starting balance between $100 and $10000, in whole dollars like addCustomers.py
+    AccountState accountState = new AccountState((100 + random.nextInt(9901)) * 100, 0, 0, 0);
+    double[] cryptoHoldings = new double[CRYPTO_NAMES.length];
+
+    int numHistoryEvents = random.nextInt(2 * config.avgHistoryEventsPerCustomer + 1);
+    LocalDateTime timestamp = LocalDateTime.now().minusDays(HISTORY_DAYS);
+    long avgSecondsBetweenEvents = TimeUnit.DAYS.toSeconds(HISTORY_DAYS) / Math.max(numHistoryEvents, 1);
+    for (int eventNum = 0; eventNum < numHistoryEvents; eventNum++) {
+      timestamp = timestamp.plusSeconds(1 + (long) (random.nextDouble() * 2 * avgSecondsBetweenEvents));
+      String sqlTimestamp = SQL_DATETIME_FORMATTER.format(timestamp);
+      int eventType = random.nextInt(100);
+      if (eventType < 35) {
+        int depositAmtInPennies = randomAmountInPennies(random, 2000);
+        AccountState newAccountState = accountState.afterDeposit(depositAmtInPennies);
+        if (accountState.getOverdraftBalanceInPennies() > 0) {
+          rowsByTable.get(Table.OVERDRAFT_LOGS).add(new Object[] {customerID, sqlTimestamp, depositAmtInPennies, accountState.getOverdraftBalanceInPennies(), newAccountState.getOverdraftBalanceInPennies()});
+        }
+        rowsByTable.get(Table.TRANSACTION_HISTORY).add(new Object[] {customerID, sqlTimestamp, MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, depositAmtInPennies});
+        accountState = newAccountState;
+      } else if (eventType < 65) {
+        int withdrawAmtInPennies = randomAmountInPennies(random, 1500);
+        AccountState newAccountState = accountState.afterWithdraw(withdrawAmtInPennies);
+        if (!newAccountState.exceedsOverdraftLimit()) {
+          rowsByTable.get(Table.TRANSACTION_HISTORY).add(new Object[] {customerID, sqlTimestamp, MvcController.TRANSACTION_HISTORY_WITHDRAW_ACTION, withdrawAmtInPennies});
+          accountState = newAccountState;
+        }
+      } else if (eventType < 85) {
+        int transferAmtInPennies = randomAmountInPennies(random, 500);
+        String recipientID = customerID(random.nextInt(config.numCustomers));
+        AccountState newAccountState = accountState.afterWithdraw(transferAmtInPennies);
+        if (!recipientID.equals(customerID) && !newAccountState.exceedsOverdraftLimit()) {
+          rowsByTable.get(Table.TRANSFER_HISTORY).add(new Object[] {customerID, recipientID, sqlTimestamp, transferAmtInPennies});
+          rowsByTable.get(Table.TRANSACTION_HISTORY).add(new Object[] {customerID, sqlTimestamp, MvcController.TRANSACTION_HISTORY_TRANSFER_SEND_ACTION, transferAmtInPennies});
+          rowsByTable.get(Table.TRANSACTION_HISTORY).add(new Object[] {recipientID, sqlTimestamp, MvcController.TRANSACTION_HISTORY_TRANSFER_RECEIVE_ACTION, transferAmtInPennies});
+          accountState = newAccountState;
+        }
+      } else {
+        int cryptoNum = random.nextInt(CRYPTO_NAMES.length);
+        // prices wander within 20% of the base price
+        double cryptoPrice = CRYPTO_BASE_PRICES[cryptoNum] * (0.8 + 0.4 * random.nextDouble());
+        boolean isBuy = eventType < 95 || cryptoHoldings[cryptoNum] == 0;
+        double cryptoAmount = isBuy ? randomAmountInPennies(random, 500) / 100.0 / cryptoPrice : cryptoHoldings[cryptoNum] * random.nextDouble();
+        int cryptoValueInPennies = (int) (cryptoAmount * cryptoPrice * 100);
+        if (cryptoValueInPennies == 0 || (isBuy && cryptoValueInPennies > accountState.getBalanceInPennies())) {
+          continue;
+        }
+        if (isBuy) {
+          accountState = accountState.afterWithdraw(cryptoValueInPennies);
+          cryptoHoldings[cryptoNum] += cryptoAmount;
+        } else {
+          accountState = accountState.afterDeposit(cryptoValueInPennies);
+          cryptoHoldings[cryptoNum] -= cryptoAmount;
+        }
+        rowsByTable.get(Table.CRYPTO_HISTORY).add(new Object[] {customerID, sqlTimestamp, isBuy ? MvcController.CRYPTO_HISTORY_BUY_ACTION : MvcController.CRYPTO_HISTORY_SELL_ACTION,
+                                                                CRYPTO_NAMES[cryptoNum], cryptoAmountOf(cryptoAmount)});
+        rowsByTable.get(Table.TRANSACTION_HISTORY).add(new Object[] {customerID, sqlTimestamp, isBuy ? MvcController.TRANSACTION_HISTORY_CRYPTO_BUY_ACTION : MvcController.TRANSACTION_HISTORY_CRYPTO_SELL_ACTION,
+                                                                     cryptoValueInPennies});
+      }
+    }
+
+    rowsByTable.get(Table.CUSTOMERS).add(new Object[] {customerID, FIRST_NAMES[random.nextInt(FIRST_NAMES.length)], LAST_NAMES[random.nextInt(LAST_NAMES.length)],
+                                                       accountState.getBalanceInPennies(), accountState.getOverdraftBalanceInPennies(), 0});
+    rowsByTable.get(Table.PASSWORDS).add(new Object[] {customerID, randomPassword(random)});
+    for (int cryptoNum = 0; cryptoNum < CRYPTO_NAMES.length; cryptoNum++) {
+      if (cryptoHoldings[cryptoNum] > 0) {
+        rowsByTable.get(Table.CRYPTO_HOLDINGS).add(new Object[] {customerID, CRYPTO_NAMES[cryptoNum], cryptoAmountOf(cryptoHoldings[cryptoNum])});
+      }
+    }
+    rowsByTable.get(Table.LEDGER_EVENTS).add(new Object[] {customerID, openingTimestamp, "Opening", accountState.getBalanceInPennies(), accountState.getOverdraftBalanceInPennies()});
+  }
+
+  // Between $0.01 and the max, skewed towards small amounts
+  private static int randomAmountInPennies(Random random, int maxDollars) {
+    double skewed = random.nextDouble() * random.nextDouble();
+    return 1 + (int) (skewed * maxDollars * 100);
+  }
+
+  // Same precision as the decimal(30,18) crypto columns
+  private static BigDecimal cryptoAmountOf(double cryptoAmount) {
+    return BigDecimal.valueOf(cryptoAmount).setScale(18, RoundingMode.DOWN);
+  }
+
+  // Random 9-character password, like addCustomers.py
+  private static String randomPassword(Random random) {
+    char[] password = new char[9];
+    for (int i = 0; i < password.length; i++) {
+      password[i] = PASSWORD_CHARACTERS.charAt(random.nextInt(PASSWORD_CHARACTERS.length()));
+    }
+    return new String(password);
+  }
+
+  //// LOADING ROWS ////
+
+  // Loads and commits the buffered rows of a table, and empties the buffer
+  private void load(Connection connection, Table table, List<Object[]> rows) throws SQLException, IOException {
+    if (rows.isEmpty()) {
+      return;
+    }
+    if (config.loadMethod == LoadMethod.LOAD_DATA) {
+      loadData(connection, table, rows);
+    } else {
+      insertBatch(connection, table, rows);
+    }
+    connection.commit();
+    numRowsByTable.get(table).add(rows.size());
+    rows.clear();
+  }
+
+  private static void insertBatch(Connection connection, Table table, List<Object[]> rows) throws SQLException {
+    try (PreparedStatement statement = connection.prepareStatement(table.insertSql())) {
+      for (Object[] row : rows) {
+        for (int columnNum = 0; columnNum < row.length; columnNum++) {
+          statement.setObject(columnNum + 1, row[columnNum]);
+        }
+        statement.addBatch();
+      }
+      statement.executeBatch();
+    }
+  }
+
+  // None of the generated values contain tabs, newlines, or backslashes, so they need no escaping
+  private static void loadData(Connection connection, Table table, List<Object[]> rows) throws SQLException, IOException {
+    ByteArrayOutputStream tsv = new ByteArrayOutputStream(rows.size() * 64);
+    try (Writer writer = new OutputStreamWriter(tsv, StandardCharsets.UTF_8)) {
+      for (Object[] row : rows) {
+        for (int columnNum = 0; columnNum < row.length; columnNum++) {
+          if (columnNum > 0) {
+            writer.write('\t');
+          }
+          writer.write(row[columnNum] instanceof BigDecimal ? ((BigDecimal) row[columnNum]).toPlainString() : String.valueOf(row[columnNum]));
+        }
+        writer.write('\n');
+      }
+    }
+    try (Statement statement = connection.createStatement()) {
+      statement.unwrap(JdbcStatement.class).setLocalInfileInputStream(new ByteArrayInputStream(tsv.toByteArray()));
+      statement.execute(table.loadDataSql());
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package net.testudobank.benchmarks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.sql.SQLException;
+
+import javax.script.ScriptException;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.ext.ScriptUtils;
+import org.testcontainers.jdbc.JdbcDatabaseDelegate;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import net.testudobank.helpers.MvcControllerIntegTestHelpers;
+
+/**
+ * Compares rows per second of the two {@link CustomerSeeder} load methods against a MySQL Testcontainer,
+ * and checks that each seeded customer's ledger opens with their balances.
+ *
+ * Run with: ./mvnw test -Pbenchmark -Dtest=CustomerSeederBenchmark
+ */
+@Testcontainers
+public class CustomerSeederBenchmark {
+  private static final int NUM_CUSTOMERS = 50000;
+
+  @Container
+  public static MySQLContainer db = new MySQLContainer<>("mysql:5.7.37")
+    .withUsername("root")
+    .withPassword("db_password")
+    .withDatabaseName("testudo_bank");
+
+  private static JdbcTemplate jdbcTemplate;
+
+  @BeforeAll
+  public static void init() throws SQLException, ScriptException {
+    ScriptUtils.runInitScript(new JdbcDatabaseDelegate(db, ""), "createDB.sql");
+    jdbcTemplate = new JdbcTemplate(MvcControllerIntegTestHelpers.dataSource(db));
+    MvcControllerIntegTestHelpers.migrateDB(jdbcTemplate.getDataSource());
+  }
+
+  @Test
+  public void benchmarkLoadMethods() throws Exception {
+    // each load method seeds its own range of customer IDs
+    seed(CustomerSeeder.LoadMethod.BATCH, 100000000);
+    seed(CustomerSeeder.LoadMethod.LOAD_DATA, 200000000);
+  }
+
+  private static void seed(CustomerSeeder.LoadMethod loadMethod, int firstCustomerID) throws Exception {
+    CustomerSeeder.Config config = new CustomerSeeder.Config();
+    config.jdbcUrl = db.getJdbcUrl();
+    config.jdbcUsername = db.getUsername();
+    config.jdbcPassword = db.getPassword();
+    config.numCustomers = NUM_CUSTOMERS;
+    config.firstCustomerID = firstCustomerID;
+    config.loadMethod = loadMethod;
+
+    System.out.println(loadMethod + ":");
+    CustomerSeeder.Report report = new CustomerSeeder(config).run();
+    report.print();
+
+    String firstCustomer = String.valueOf(firstCustomerID);
+    String lastCustomer = String.valueOf(firstCustomerID + NUM_CUSTOMERS - 1);
+    assertEquals(NUM_CUSTOMERS, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM Customers WHERE CustomerID BETWEEN ? AND ?", Integer.class, firstCustomer, lastCustomer));
+    int numCustomersNotMatchingLedger = jdbcTemplate.queryForObject(
+      "SELECT COUNT(*) FROM Customers c JOIN LedgerEvents l ON c.CustomerID = l.CustomerID " +
+      "WHERE c.CustomerID BETWEEN ? AND ? AND (c.Balance <> l.BalanceDelta OR c.OverdraftBalance <> l.OverdraftDelta)",
+      Integer.class, firstCustomer, lastCustomer);
+    assertEquals(0, numCustomersNotMatchingLedger);
+  }
+}
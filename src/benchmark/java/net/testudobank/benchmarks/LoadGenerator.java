@@ -0,0 +1,515 @@
+package net.testudobank.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import net.testudobank.MvcController;
+
+/**
+ * Closed-loop load generator that drives a running instance of the app through its JSON API with a population of
+ * seeded customers, to find how much load the app takes before latency or errors climb.
+ * <p>
+ * Before the run, N customers are seeded straight into the app's DB (with an opening ledger event, like any other
+ * customer). Each of M virtual users then logs in as a random customer and loops until the run ends: it picks an
+ * operation from the configured mix, sends it, waits for the response, and thinks for a while before the next one.
+ * A virtual user re-logs in as another customer whenever "login" is picked.
+ * <p>
+ * At the end it reports, per endpoint, the throughput, p50/p95/p99/max latency, and the share of requests that were
+ * rejected (422, e.g. insufficient funds) or failed (anything else that isn't a 2xx), and checks that:
+ * <ul>
+ *   <li>the total money held by the seeded customers (balances minus overdraft balances) matches their ledgers,
+ *       in total and customer by customer</li>
+ *   <li>every transfer the app acknowledged was logged and credited to its recipient exactly once</li>
+ *   <li>no balance ended up negative or past the overdraft limit, and no customer reversed more than the max disputes</li>
+ * </ul>
+ *
+ * Run against an app started with "crypto.price-source=simulated" (so crypto trades don't hit Yahoo Finance) with:
+ * ./mvnw test-compile exec:java -Pbenchmark -Dexec.classpathScope=test -Dexec.mainClass=net.testudobank.benchmarks.LoadGenerator
+ *   -Dloadgen.base-url=http://localhost:8080 -Dloadgen.jdbc-url=jdbc:mysql://localhost:3306/testudo_bank -Dloadgen.jdbc-password=...
+ * and any of the other "loadgen." properties in {@link Config}. See {@link LoadGeneratorBenchmark} for a self-contained run.
+ */
+public class LoadGenerator {
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+  private static final int HTTP_UNPROCESSABLE_ENTITY = 422;
+  private static final String[] CRYPTO_NAMES = {"ETH", "SOL"};
+  private static final double SEEDED_ETH_BALANCE = 1;
+  private static final double SEEDED_SOL_BALANCE = 10;
+
+  /**
+   * Operations a virtual user can send, and the JSON API endpoint each one goes to.
+   */
+  public enum Operation {
+    LOGIN("login"),
+    DEPOSIT("deposit"),
+    WITHDRAW("withdraw"),
+    TRANSFER("transfer"),
+    DISPUTE("dispute"),
+    BUY_CRYPTO("buycrypto"),
+    SELL_CRYPTO("sellcrypto");
+
+    private final String endpoint;
+
+    Operation(String endpoint) {
+      this.endpoint = endpoint;
+    }
+
+    public String getPath() {
+      return MvcController.API_PATH_PREFIX + "/" + endpoint;
+    }
+
+    public static Operation fromEndpoint(String endpoint) {
+      for (Operation operation : values()) {
+        if (operation.endpoint.equals(endpoint)) {
+          return operation;
+        }
+      }
+      throw new IllegalArgumentException("Unknown operation: " + endpoint);
+    }
+  }
+
+  /**
+   * Settings of a run. {@link #fromSystemProperties()} reads each one from the "loadgen." property named in its comment.
+   */
+  public static class Config {
+    // loadgen.base-url
+    public String baseUrl = "http://localhost:8080";
+    // loadgen.jdbc-url, loadgen.jdbc-username, loadgen.jdbc-password: the app's DB, for seeding and the invariant checks
+    public String jdbcUrl = "jdbc:mysql://localhost:3306/testudo_bank";
+    public String jdbcUsername = "root";
+    public String jdbcPassword = "";
+    // loadgen.customers
+    public int numCustomers = 1000;
+    // loadgen.virtual-users
+    public int numVirtualUsers = 50;
+    // loadgen.warmup-seconds: requests sent during the warmup aren't reported (but are still checked by the invariants)
+    public int warmupSeconds = 10;
+    // loadgen.duration-seconds: measured part of the run, after the warmup
+    public int durationSeconds = 60;
+    // loadgen.think-time-millis: max pause between a virtual user's requests (each pause is uniformly random up to it)
+    public int maxThinkTimeMillis = 100;
+    // loadgen.starting-balance-pennies
+    public int startingBalanceInPennies = 100000;
+    // loadgen.mix: relative weight of each operation
+    public Map<Operation, Integer> mix = parseMix("login=5,deposit=30,withdraw=25,transfer=25,dispute=3,buycrypto=7,sellcrypto=5");
+
+    public static Config fromSystemProperties() {
+      Config config = new Config();
+      config.baseUrl = System.getProperty("loadgen.base-url", config.baseUrl);
+      config.jdbcUrl = System.getProperty("loadgen.jdbc-url", config.jdbcUrl);
+      config.jdbcUsername = System.getProperty("loadgen.jdbc-username", config.jdbcUsername);
+      config.jdbcPassword = System.getProperty("loadgen.jdbc-password", config.jdbcPassword);
+      config.numCustomers = Integer.getInteger("loadgen.customers", config.numCustomers);
+      config.numVirtualUsers = Integer.getInteger("loadgen.virtual-users", config.numVirtualUsers);
+      config.warmupSeconds = Integer.getInteger("loadgen.warmup-seconds", config.warmupSeconds);
+      config.durationSeconds = Integer.getInteger("loadgen.duration-seconds", config.durationSeconds);
+      config.maxThinkTimeMillis = Integer.getInteger("loadgen.think-time-millis", config.maxThinkTimeMillis);
+      config.startingBalanceInPennies = Integer.getInteger("loadgen.starting-balance-pennies", config.startingBalanceInPennies);
+      if (System.getProperty("loadgen.mix") != null) {
+        config.mix = parseMix(System.getProperty("loadgen.mix"));
+      }
+      return config;
+    }
+
+    // "deposit=3,withdraw=1" -> {DEPOSIT=3, WITHDRAW=1}
+    public static Map<Operation, Integer> parseMix(String mix) {
+      Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+      for (String entry : mix.split(",")) {
+        String[] endpointAndWeight = entry.trim().split("=");
+        weights.put(Operation.fromEndpoint(endpointAndWeight[0].trim()), Integer.parseInt(endpointAndWeight[1].trim()));
+      }
+      return weights;
+    }
+  }
+
+  /**
+   * Latencies and outcomes of the requests sent to one endpoint. Each virtual user keeps its own, merged at the end.
+   */
+  public static class EndpointStats {
+    private long[] latenciesInNanos = new long[1024];
+    private int numRequests;
+    private int numRejected;
+    private int numFailed;
+
+    void record(long latencyInNanos, int statusCode) {
+      if (numRequests == latenciesInNanos.length) {
+        latenciesInNanos = Arrays.copyOf(latenciesInNanos, numRequests * 2);
+      }
+      latenciesInNanos[numRequests++] = latencyInNanos;
+      if (statusCode == HTTP_UNPROCESSABLE_ENTITY) {
+        numRejected++;
+      } else if (statusCode < 200 || statusCode >= 300) {
+        numFailed++;
+      }
+    }
+
+    void merge(EndpointStats other) {
+      for (int i = 0; i < other.numRequests; i++) {
+        record(other.latenciesInNanos[i], 200);
+      }
+      numRejected += other.numRejected;
+      numFailed += other.numFailed;
+    }
+
+    public int getNumRequests() {
+      return numRequests;
+    }
+
+    public int getNumRejected() {
+      return numRejected;
+    }
+
+    public int getNumFailed() {
+      return numFailed;
+    }
+
+    // Nearest-rank percentile, e.g. 0.99 for p99
+    public double getLatencyInMillis(double percentile) {
+      if (numRequests == 0) {
+        return 0;
+      }
+      long[] sortedLatenciesInNanos = Arrays.copyOf(latenciesInNanos, numRequests);
+      Arrays.sort(sortedLatenciesInNanos);
+      int rank = (int) Math.ceil(percentile * numRequests);
+      return sortedLatenciesInNanos[Math.max(rank, 1) - 1] / 1_000_000.0;
+    }
+  }
+
+  /**
+   * What a run measured, and every invariant it found broken.
+   */
+  public static class Report {
+    private final Map<Operation, EndpointStats> statsByOperation;
+    private final int durationSeconds;
+    private final List<String> invariantViolations;
+
+    Report(Map<Operation, EndpointStats> statsByOperation, int durationSeconds, List<String> invariantViolations) {
+      this.statsByOperation = statsByOperation;
+      this.durationSeconds = durationSeconds;
+      this.invariantViolations = invariantViolations;
+    }
+
+    public Map<Operation, EndpointStats> getStatsByOperation() {
+      return statsByOperation;
+    }
+
+    public List<String> getInvariantViolations() {
+      return invariantViolations;
+    }
+
+    public void print() {
+      System.out.printf("%-11s %9s %9s %9s %9s %9s %9s %9s %9s%n", "endpoint", "requests", "req/s", "p50 ms", "p95 ms", "p99 ms", "max ms", "rejected", "errors");
+      EndpointStats total = new EndpointStats();
+      for (Map.Entry<Operation, EndpointStats> entry : statsByOperation.entrySet()) {
+        printRow(entry.getKey().endpoint, entry.getValue());
+        total.merge(entry.getValue());
+      }
+      printRow("total", total);
+
+      if (invariantViolations.isEmpty()) {
+        System.out.println("All invariants hold.");
+      }
+      for (String invariantViolation : invariantViolations) {
+        System.out.println("INVARIANT VIOLATED: " + invariantViolation);
+      }
+    }
+
+    private void printRow(String endpoint, EndpointStats stats) {
+      System.out.printf("%-11s %9d %9.1f %9.1f %9.1f %9.1f %9.1f %8.2f%% %8.2f%%%n",
+                        endpoint, stats.getNumRequests(), stats.getNumRequests() / (double) durationSeconds,
+                        stats.getLatencyInMillis(0.50), stats.getLatencyInMillis(0.95), stats.getLatencyInMillis(0.99), stats.getLatencyInMillis(1.0),
+                        percentOf(stats.getNumRejected(), stats.getNumRequests()), percentOf(stats.getNumFailed(), stats.getNumRequests()));
+    }
+
+    private static double percentOf(int count, int total) {
+      return total == 0 ? 0 : 100.0 * count / total;
+    }
+  }
+
+  private final Config config;
+  private final JdbcTemplate jdbcTemplate;
+  // Seeded customers of this run share a prefix, so runs against the same DB don't mix up their customers
+  private final String customerIDPrefix;
+  private final List<Operation> operationsByWeight = new ArrayList<>();
+
+  // Transfers the app acknowledged, checked against what it logged and credited
+  private final AtomicInteger numAcknowledgedTransfers = new AtomicInteger();
+  private final AtomicLong acknowledgedTransferTotalInPennies = new AtomicLong();
+
+  public LoadGenerator(Config config) {
+    this.config = config;
+    this.jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource(config.jdbcUrl, config.jdbcUsername, config.jdbcPassword));
+    this.customerIDPrefix = "lg" + Long.toString(System.currentTimeMillis(), 36) + "-";
+    for (Map.Entry<Operation, Integer> weight : config.mix.entrySet()) {
+      for (int i = 0; i < weight.getValue(); i++) {
+        operationsByWeight.add(weight.getKey());
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Report report = new LoadGenerator(Config.fromSystemProperties()).run();
+    report.print();
+    System.exit(report.getInvariantViolations().isEmpty() ? 0 : 1);
+  }
+
+  /**
+   * Seeds the customers, runs the virtual users through the warmup and the measured part of the run, and checks the invariants.
+   */
+  public Report run() throws Exception {
+    seedCustomers();
+
+    long startTimeInNanos = System.nanoTime();
+    long measureFromInNanos = startTimeInNanos + TimeUnit.SECONDS.toNanos(config.warmupSeconds);
+    long endTimeInNanos = measureFromInNanos + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+
+    ExecutorService virtualUsers = Executors.newFixedThreadPool(config.numVirtualUsers);
+    List<Future<Map<Operation, EndpointStats>>> results = new ArrayList<>();
+    for (int virtualUserNum = 0; virtualUserNum < config.numVirtualUsers; virtualUserNum++) {
+      long seed = virtualUserNum;
+      results.add(virtualUsers.submit(() -> runVirtualUser(new Random(seed), measureFromInNanos, endTimeInNanos)));
+    }
+
+    Map<Operation, EndpointStats> statsByOperation = new EnumMap<>(Operation.class);
+    for (Future<Map<Operation, EndpointStats>> result : results) {
+      for (Map.Entry<Operation, EndpointStats> stats : result.get().entrySet()) {
+        statsByOperation.computeIfAbsent(stats.getKey(), unused -> new EndpointStats()).merge(stats.getValue());
+      }
+    }
+    virtualUsers.shutdown();
+
+    return new Report(statsByOperation, config.durationSeconds, checkInvariants());
+  }
+
+  //// SEEDING ////
+
+  private String customerID(int customerNum) {
+    return customerIDPrefix + customerNum;
+  }
+
+  // Same rows as a customer added by MvcControllerIntegTestHelpers.addCustomerToDB(), in batches
+  private void seedCustomers() {
+    List<Object[]> customers = new ArrayList<>();
+    List<Object[]> passwords = new ArrayList<>();
+    List<Object[]> openingEvents = new ArrayList<>();
+    List<Object[]> cryptoHoldings = new ArrayList<>();
+    for (int customerNum = 0; customerNum < config.numCustomers; customerNum++) {
+      String customerID = customerID(customerNum);
+      customers.add(new Object[] {customerID, "Load", "Customer" + customerNum, config.startingBalanceInPennies});
+      passwords.add(new Object[] {customerID, password(customerID)});
+      openingEvents.add(new Object[] {customerID, config.startingBalanceInPennies});
+      cryptoHoldings.add(new Object[] {customerID, "ETH", SEEDED_ETH_BALANCE});
+      cryptoHoldings.add(new Object[] {customerID, "SOL", SEEDED_SOL_BALANCE});
+    }
+    jdbcTemplate.batchUpdate("INSERT INTO Customers (CustomerID, FirstName, LastName, Balance, OverdraftBalance, NumFraudReversals) VALUES (?, ?, ?, ?, 0, 0)", customers);
+    jdbcTemplate.batchUpdate("INSERT INTO Passwords (CustomerID, Password) VALUES (?, ?)", passwords);
+    jdbcTemplate.batchUpdate("INSERT INTO LedgerEvents (CustomerID, Timestamp, EventType, BalanceDelta, OverdraftDelta) VALUES (?, NOW(), 'Opening', ?, 0)", openingEvents);
+    jdbcTemplate.batchUpdate("INSERT INTO CryptoHoldings (CustomerID, CryptoName, CryptoAmount) VALUES (?, ?, ?)", cryptoHoldings);
+  }
+
+  private static String password(String customerID) {
+    return "pw-" + customerID;
+  }
+
+  //// VIRTUAL USERS ////
+
+  private Map<Operation, EndpointStats> runVirtualUser(Random random, long measureFromInNanos, long endTimeInNanos) throws Exception {
+    Map<Operation, EndpointStats> statsByOperation = new EnumMap<>(Operation.class);
+    String customerID = null;
+    String sessionToken = null;
+    while (System.nanoTime() < endTimeInNanos) {
+      Operation operation = sessionToken == null ? Operation.LOGIN : operationsByWeight.get(random.nextInt(operationsByWeight.size()));
+      if (operation == Operation.LOGIN) {
+        customerID = customerID(random.nextInt(config.numCustomers));
+      }
+
+      Map<String, Object> body = requestBody(operation, customerID, random);
+      long startTimeInNanos = System.nanoTime();
+      int statusCode;
+      String responseBody;
+      try {
+        HttpURLConnection connection = post(config.baseUrl + operation.getPath(), body, sessionToken);
+        statusCode = connection.getResponseCode();
+        responseBody = readFully(connection, statusCode);
+      } catch (IOException e) {
+        statusCode = -1;
+        responseBody = null;
+      }
+      long latencyInNanos = System.nanoTime() - startTimeInNanos;
+      if (startTimeInNanos >= measureFromInNanos) {
+        statsByOperation.computeIfAbsent(operation, unused -> new EndpointStats()).record(latencyInNanos, statusCode);
+      }
+
+      if (operation == Operation.LOGIN) {
+        sessionToken = statusCode == 200 ? OBJECT_MAPPER.readTree(responseBody).get("sessionToken").asText() : null;
+      } else if (statusCode == HttpURLConnection.HTTP_UNAUTHORIZED) {
+        // the session expired, log in again
+        sessionToken = null;
+      } else if (operation == Operation.TRANSFER && statusCode == 200) {
+        numAcknowledgedTransfers.incrementAndGet();
+        acknowledgedTransferTotalInPennies.addAndGet(convertDollarsToPennies((double) body.get("amountToTransfer")));
+      }
+
+      if (config.maxThinkTimeMillis > 0) {
+        Thread.sleep(random.nextInt(config.maxThinkTimeMillis + 1));
+      }
+    }
+    return statsByOperation;
+  }
+
+  // Amounts stay small next to the starting balance, so most requests succeed and some run into the overdraft limit
+  private Map<String, Object> requestBody(Operation operation, String customerID, Random random) {
+    Map<String, Object> body = new HashMap<>();
+    switch (operation) {
+      case LOGIN:
+        body.put("username", customerID);
+        body.put("password", password(customerID));
+        break;
+      case DEPOSIT:
+        body.put("amountToDeposit", randomDollarAmount(random, 500));
+        break;
+      case WITHDRAW:
+        body.put("amountToWithdraw", randomDollarAmount(random, 500));
+        break;
+      case TRANSFER:
+        String recipientID = customerID;
+        while (recipientID.equals(customerID) && config.numCustomers > 1) {
+          recipientID = customerID(random.nextInt(config.numCustomers));
+        }
+        body.put("transferRecipientID", recipientID);
+        body.put("amountToTransfer", randomDollarAmount(random, 250));
+        break;
+      case DISPUTE:
+        body.put("numTransactionsAgo", 1 + random.nextInt(3));
+        break;
+      case BUY_CRYPTO:
+        body.put("whichCryptoToBuy", CRYPTO_NAMES[random.nextInt(CRYPTO_NAMES.length)]);
+        body.put("amountToBuyCrypto", 0.01 * (1 + random.nextInt(10)));
+        break;
+      case SELL_CRYPTO:
+        // the sell form also names its crypto with whichCryptoToBuy
+        body.put("whichCryptoToBuy", CRYPTO_NAMES[random.nextInt(CRYPTO_NAMES.length)]);
+        body.put("amountToSellCrypto", 0.01 * (1 + random.nextInt(10)));
+        break;
+    }
+    return body;
+  }
+
+  // A whole number of cents from $0.01 up to the max
+  private static double randomDollarAmount(Random random, int maxDollars) {
+    return (1 + random.nextInt(maxDollars * 100)) / 100.0;
+  }
+
+  // Same conversion as MvcController, so acknowledged amounts match what it logged
+  private static int convertDollarsToPennies(double dollarAmount) {
+    return (int) (dollarAmount * 100);
+  }
+
+  private static HttpURLConnection post(String url, Map<String, Object> body, String sessionToken) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "application/json");
+    if (sessionToken != null) {
+      connection.setRequestProperty("Cookie", MvcController.SESSION_TOKEN_COOKIE_NAME + "=" + sessionToken);
+    }
+    try (OutputStream requestBody = connection.getOutputStream()) {
+      OBJECT_MAPPER.writeValue(requestBody, body);
+    }
+    return connection;
+  }
+
+  // Reads the whole response, so the connection can be reused
+  private static String readFully(HttpURLConnection connection, int statusCode) throws IOException {
+    try (InputStream body = statusCode < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+      if (body == null) {
+        return null;
+      }
+      StringBuilder response = new StringBuilder();
+      byte[] buffer = new byte[8192];
+      int numBytesRead;
+      while ((numBytesRead = body.read(buffer)) != -1) {
+        response.append(new String(buffer, 0, numBytesRead, "UTF-8"));
+      }
+      return response.toString();
+    }
+  }
+
+  //// INVARIANTS ////
+
+  // Every request has its response by now, and the app only responds once its ledger events are committed
+  private List<String> checkInvariants() {
+    List<String> violations = new ArrayList<>();
+    String customerIDPattern = customerIDPrefix + "%";
+
+    Map<String, Object> totalMoney = jdbcTemplate.queryForMap(
+      "SELECT (SELECT COALESCE(SUM(Balance - OverdraftBalance), 0) FROM Customers WHERE CustomerID LIKE ?) AS CustomersTotal, " +
+      "(SELECT COALESCE(SUM(BalanceDelta - OverdraftDelta), 0) FROM LedgerEvents WHERE CustomerID LIKE ?) AS LedgerTotal",
+      customerIDPattern, customerIDPattern);
+    long customersTotalInPennies = ((Number) totalMoney.get("CustomersTotal")).longValue();
+    long ledgerTotalInPennies = ((Number) totalMoney.get("LedgerTotal")).longValue();
+    if (customersTotalInPennies != ledgerTotalInPennies) {
+      violations.add(String.format("total money held by customers is %d pennies, but their ledgers add up to %d pennies", customersTotalInPennies, ledgerTotalInPennies));
+    }
+
+    List<String> customersNotMatchingLedger = jdbcTemplate.queryForList(
+      "SELECT c.CustomerID FROM Customers c " +
+      "JOIN (SELECT CustomerID, SUM(BalanceDelta) AS Balance, SUM(OverdraftDelta) AS OverdraftBalance FROM LedgerEvents WHERE CustomerID LIKE ? GROUP BY CustomerID) l " +
+      "ON c.CustomerID = l.CustomerID WHERE c.Balance <> l.Balance OR c.OverdraftBalance <> l.OverdraftBalance",
+      String.class, customerIDPattern);
+    if (!customersNotMatchingLedger.isEmpty()) {
+      violations.add(customersNotMatchingLedger.size() + " customers' balances don't match their ledgers, e.g. " + customersNotMatchingLedger.get(0));
+    }
+
+    Map<String, Object> loggedTransfers = jdbcTemplate.queryForMap(
+      "SELECT COUNT(*) AS NumTransfers, COALESCE(SUM(Amount), 0) AS TotalAmount FROM TransferHistory WHERE TransferFrom LIKE ?", customerIDPattern);
+    long numLoggedTransfers = ((Number) loggedTransfers.get("NumTransfers")).longValue();
+    long loggedTransferTotalInPennies = ((Number) loggedTransfers.get("TotalAmount")).longValue();
+    if (numLoggedTransfers != numAcknowledgedTransfers.get() || loggedTransferTotalInPennies != acknowledgedTransferTotalInPennies.get()) {
+      violations.add(String.format("the app acknowledged %d transfers of %d pennies in total, but logged %d transfers of %d pennies",
+                                   numAcknowledgedTransfers.get(), acknowledgedTransferTotalInPennies.get(), numLoggedTransfers, loggedTransferTotalInPennies));
+    }
+    long creditedTransferTotalInPennies = jdbcTemplate.queryForObject(
+      "SELECT COALESCE(SUM(BalanceDelta - OverdraftDelta), 0) FROM LedgerEvents WHERE CustomerID LIKE ? AND EventType = ?",
+      Long.class, customerIDPattern, MvcController.TRANSACTION_HISTORY_TRANSFER_RECEIVE_ACTION);
+    if (creditedTransferTotalInPennies != loggedTransferTotalInPennies) {
+      violations.add(String.format("recipients were credited %d pennies, but %d pennies of transfers were logged", creditedTransferTotalInPennies, loggedTransferTotalInPennies));
+    }
+
+    Map<String, String> outOfBoundsChecks = new LinkedHashMap<>();
+    outOfBoundsChecks.put("negative balance", "SELECT COUNT(*) FROM Customers WHERE CustomerID LIKE ? AND Balance < 0");
+    outOfBoundsChecks.put("overdraft balance outside [0, max overdraft]", "SELECT COUNT(*) FROM Customers WHERE CustomerID LIKE ? AND (OverdraftBalance < 0 OR OverdraftBalance > " + MvcController.MAX_OVERDRAFT_IN_PENNIES + ")");
+    outOfBoundsChecks.put("both a balance and an overdraft balance", "SELECT COUNT(*) FROM Customers WHERE CustomerID LIKE ? AND Balance > 0 AND OverdraftBalance > 0");
+    outOfBoundsChecks.put("more than the max disputes", "SELECT COUNT(*) FROM Customers WHERE CustomerID LIKE ? AND NumFraudReversals > " + MvcController.MAX_DISPUTES);
+    outOfBoundsChecks.put("negative crypto holdings", "SELECT COUNT(DISTINCT CustomerID) FROM CryptoHoldings WHERE CustomerID LIKE ? AND CryptoAmount < 0");
+    for (Map.Entry<String, String> check : outOfBoundsChecks.entrySet()) {
+      int numCustomers = jdbcTemplate.queryForObject(check.getValue(), Integer.class, customerIDPattern);
+      if (numCustomers > 0) {
+        violations.add(numCustomers + " customers have " + check.getKey());
+      }
+    }
+    return Collections.unmodifiableList(violations);
+  }
+}
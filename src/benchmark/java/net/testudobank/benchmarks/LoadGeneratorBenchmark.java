@@ -0,0 +1,69 @@
+package net.testudobank.benchmarks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.sql.SQLException;
+import java.util.Collections;
+
+import javax.script.ScriptException;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.ext.ScriptUtils;
+import org.testcontainers.jdbc.JdbcDatabaseDelegate;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import net.testudobank.TestudoBankApplication;
+
+/**
+ * Runs the {@link LoadGenerator} against the full app and a MySQL Testcontainer, and fails if any invariant was broken.
+ * The "loadgen." system properties override the size of the run, e.g. -Dloadgen.virtual-users=200 -Dloadgen.duration-seconds=120
+ * (the base URL and DB settings always point at the app and container started here).
+ *
+ * Run with: ./mvnw test -Pbenchmark -Dtest=LoadGeneratorBenchmark
+ */
+@Testcontainers
+public class LoadGeneratorBenchmark {
+  @Container
+  public static MySQLContainer db = new MySQLContainer<>("mysql:5.7.37")
+    .withUsername("root")
+    .withPassword("db_password")
+    .withDatabaseName("testudo_bank");
+
+  @BeforeAll
+  public static void init() throws SQLException, ScriptException {
+    // the app's own Flyway run migrates the DB at startup
+    ScriptUtils.runInitScript(new JdbcDatabaseDelegate(db, ""), "createDB.sql");
+  }
+
+  @Test
+  public void benchmarkCustomerPopulation() throws Exception {
+    ConfigurableApplicationContext context = new SpringApplicationBuilder(TestudoBankApplication.class)
+      .properties("server.port=0",
+                  "management.server.port=0",
+                  "spring.datasource.url=" + db.getJdbcUrl(),
+                  "spring.datasource.username=" + db.getUsername(),
+                  "spring.datasource.password=" + db.getPassword(),
+                  "crypto.price-source=simulated")
+      .run();
+    try {
+      LoadGenerator.Config config = LoadGenerator.Config.fromSystemProperties();
+      config.baseUrl = "http://localhost:" + ((ServletWebServerApplicationContext) context).getWebServer().getPort();
+      config.jdbcUrl = db.getJdbcUrl();
+      config.jdbcUsername = db.getUsername();
+      config.jdbcPassword = db.getPassword();
+
+      LoadGenerator.Report report = new LoadGenerator(config).run();
+      System.out.println(config.numVirtualUsers + " virtual users, " + config.numCustomers + " customers, " + config.durationSeconds + "s measured:");
+      report.print();
+      assertEquals(Collections.emptyList(), report.getInvariantViolations());
+    } finally {
+      context.close();
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package net.testudobank.benchmarks;
+
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks in {@link MvcControllerOperations} and reports, for each MvcController operation:
+ * <ul>
+ *   <li>throughput (ops/s)</li>
+ *   <li>allocation rate, from the GC profiler (gc.alloc.rate in MB/s, and gc.alloc.rate.norm in bytes/op)</li>
+ * </ul>
+ * Results are also written to target/jmh-result.json so that runs can be compared.
+ *
+ * Run with: ./mvnw test -Pbenchmark -Dtest=MvcControllerBenchmark
+ * A subset of operations can be selected with a regex, e.g. -Djmh.include=deposit|withdraw
+ */
+public class MvcControllerBenchmark {
+  private static final int NUM_WARMUP_ITERATIONS = 3;
+  private static final int NUM_MEASUREMENT_ITERATIONS = 5;
+
+  @Test
+  public void benchmarkMvcControllerOperations() throws RunnerException {
+    String operationsToInclude = System.getProperty("jmh.include", ".*");
+    Options options = new OptionsBuilder()
+      .include(MvcControllerOperations.class.getName() + "\\.(" + operationsToInclude + ")$")
+      .warmupIterations(NUM_WARMUP_ITERATIONS)
+      .measurementIterations(NUM_MEASUREMENT_ITERATIONS)
+      .forks(1)
+      .shouldFailOnError(true)
+      .addProfiler(GCProfiler.class)
+      .resultFormat(ResultFormatType.JSON)
+      .result("target/jmh-result.json")
+      .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,174 @@
+package net.testudobank.benchmarks;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.script.ScriptException;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.delegate.DatabaseDelegate;
+import org.testcontainers.ext.ScriptUtils;
+import org.testcontainers.jdbc.JdbcDatabaseDelegate;
+
+import net.testudobank.CryptoPriceClient;
+import net.testudobank.MvcController;
+import net.testudobank.TestudoBankRepository;
+import net.testudobank.User;
+import net.testudobank.helpers.MvcControllerIntegTestHelpers;
+
+/**
+ * JMH benchmarks for each POST handler in {@link MvcController}, run against a MySQL Testcontainer
+ * with {@link CryptoPriceClient} serving a fixed price.
+ * <p>
+ * Every benchmark submits the same form inputs as a customer would, with the username + password
+ * (no session token), so each one measures the full handler including the account info page render.
+ * Launched by {@link MvcControllerBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MvcControllerOperations {
+  private static final String CUSTOMER_ID = "123456789";
+  private static final String RECIPIENT_ID = "987654321";
+  private static final String DISPUTE_CUSTOMER_ID = "111111111";
+  private static final String PASSWORD = "password";
+  // large enough that no benchmark ever runs out of money or crypto, or goes into overdraft
+  private static final int STARTING_BALANCE_IN_PENNIES = 1000000000;
+  private static final double STARTING_CRYPTO_BALANCE = 1000000;
+  private static final double CRYPTO_PRICE = 1000;
+
+  private MySQLContainer<?> db;
+  private HikariDataSource dataSource;
+  private JdbcTemplate jdbcTemplate;
+  private MvcController controller;
+
+  @Setup(Level.Trial)
+  public void startDB() throws ScriptException {
+    db = new MySQLContainer<>("mysql:5.7.37")
+      .withUsername("root")
+      .withPassword("db_password")
+      .withDatabaseName("testudo_bank");
+    db.start();
+
+    DatabaseDelegate dbDelegate = new JdbcDatabaseDelegate(db, "");
+    ScriptUtils.runInitScript(dbDelegate, "createDB.sql");
+
+    HikariConfig hikariConfig = new HikariConfig();
+    hikariConfig.setJdbcUrl(db.getJdbcUrl());
+    hikariConfig.setUsername(db.getUsername());
+    hikariConfig.setPassword(db.getPassword());
+    hikariConfig.addDataSourceProperty("cachePrepStmts", "true");
+    hikariConfig.addDataSourceProperty("prepStmtCacheSize", "250");
+    hikariConfig.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+    hikariConfig.addDataSourceProperty("useServerPrepStmts", "true");
+    hikariConfig.addDataSourceProperty("rewriteBatchedStatements", "true");
+    dataSource = new HikariDataSource(hikariConfig);
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    MvcControllerIntegTestHelpers.migrateDB(dataSource);
+    // always returns the same price instead of calling Yahoo Finance, and the frozen clock keeps that price from going stale
+    CryptoPriceClient cryptoPriceClient = new CryptoPriceClient(cryptoNames -> cryptoNames.stream().collect(Collectors.toMap(cryptoName -> cryptoName, cryptoName -> CRYPTO_PRICE)), Clock.fixed(Instant.now(), ZoneOffset.UTC));
+    cryptoPriceClient.refreshPrices();
+    controller = new MvcController(jdbcTemplate, cryptoPriceClient);
+
+    for (String customerID : new String[] {CUSTOMER_ID, RECIPIENT_ID, DISPUTE_CUSTOMER_ID}) {
+      MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, customerID, PASSWORD, "Foo", "Bar", STARTING_BALANCE_IN_PENNIES);
+    }
+    for (String cryptoName : MvcController.SUPPORTED_CRYPTOCURRENCIES) {
+      MvcControllerIntegTestHelpers.setCryptoBalance(dbDelegate, CUSTOMER_ID, cryptoName, STARTING_CRYPTO_BALANCE);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void stopDB() {
+    dataSource.close();
+    db.stop();
+  }
+
+  // A reversal can't be disputed, and each transaction can only be reversed once, so every dispute needs a fresh
+  // deposit to reverse. The reversal count is reset too, to keep the account from being frozen.
+  // Kept in its own state so that only the dispute benchmark pays for it.
+  @State(Scope.Benchmark)
+  public static class DisputableDeposit {
+    // Level.Invocation is acceptable here because a dispute takes milliseconds, not nanoseconds.
+    @Setup(Level.Invocation)
+    public void deposit(MvcControllerOperations operations) {
+      User depositFormInputs = newFormInputs(DISPUTE_CUSTOMER_ID);
+      depositFormInputs.setAmountToDeposit(1);
+      operations.controller.submitDeposit(depositFormInputs);
+      TestudoBankRepository.setCustomerNumFraudReversals(operations.jdbcTemplate, DISPUTE_CUSTOMER_ID, 0);
+    }
+  }
+
+  private static User newFormInputs(String customerID) {
+    User formInputs = new User();
+    formInputs.setUsername(customerID);
+    formInputs.setPassword(PASSWORD);
+    return formInputs;
+  }
+
+  @Benchmark
+  public String login() {
+    return controller.submitLoginForm(newFormInputs(CUSTOMER_ID));
+  }
+
+  @Benchmark
+  public String deposit() {
+    User depositFormInputs = newFormInputs(CUSTOMER_ID);
+    depositFormInputs.setAmountToDeposit(0.01);
+    return controller.submitDeposit(depositFormInputs);
+  }
+
+  @Benchmark
+  public String withdraw() {
+    User withdrawFormInputs = newFormInputs(CUSTOMER_ID);
+    withdrawFormInputs.setAmountToWithdraw(0.01);
+    return controller.submitWithdraw(withdrawFormInputs);
+  }
+
+  @Benchmark
+  public String dispute(DisputableDeposit disputableDeposit) {
+    User disputeFormInputs = newFormInputs(DISPUTE_CUSTOMER_ID);
+    disputeFormInputs.setNumTransactionsAgo(1);
+    return controller.submitDispute(disputeFormInputs);
+  }
+
+  @Benchmark
+  public String transfer() {
+    User transferFormInputs = newFormInputs(CUSTOMER_ID);
+    transferFormInputs.setTransferRecipientID(RECIPIENT_ID);
+    transferFormInputs.setAmountToTransfer(0.01);
+    return controller.submitTransfer(transferFormInputs);
+  }
+
+  @Benchmark
+  public String buyCrypto() {
+    User buyCryptoFormInputs = newFormInputs(CUSTOMER_ID);
+    buyCryptoFormInputs.setWhichCryptoToBuy("ETH");
+    buyCryptoFormInputs.setAmountToBuyCrypto(0.00001);
+    return controller.buyCrypto(buyCryptoFormInputs);
+  }
+
+  @Benchmark
+  public String sellCrypto() {
+    User sellCryptoFormInputs = newFormInputs(CUSTOMER_ID);
+    sellCryptoFormInputs.setWhichCryptoToBuy("ETH");
+    sellCryptoFormInputs.setAmountToSellCrypto(0.00001);
+    return controller.sellCrypto(sellCryptoFormInputs);
+  }
+}
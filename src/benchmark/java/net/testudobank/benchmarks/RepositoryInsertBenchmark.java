@@ -0,0 +1,142 @@
+package net.testudobank.benchmarks;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.script.ScriptException;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.delegate.DatabaseDelegate;
+import org.testcontainers.ext.ScriptUtils;
+import org.testcontainers.jdbc.JdbcDatabaseDelegate;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import net.testudobank.MvcController;
+import net.testudobank.TestudoBankRepository;
+import net.testudobank.TestudoBankRepository.TransactionHistoryRow;
+import net.testudobank.helpers.MvcControllerIntegTestHelpers;
+
+/**
+ * Compares TransactionHistory insert throughput of:
+ * <ul>
+ *   <li>the old path, which built a new literal SQL String with String.format() for every row</li>
+ *   <li>the parameterized single-row path ({@link TestudoBankRepository#insertRowToTransactionHistoryTable})</li>
+ *   <li>the JDBC batch path ({@link TestudoBankRepository#insertRowsToTransactionHistoryTable})</li>
+ * </ul>
+ * The DataSource is configured with the same statement caching properties as application.properties.
+ *
+ * Run with: ./mvnw test -Pbenchmark -Dtest=RepositoryInsertBenchmark
+ */
+@Testcontainers
+public class RepositoryInsertBenchmark {
+  private static final int NUM_WARMUP_ROWS = 2000;
+  private static final int NUM_MEASURED_ROWS = 10000;
+  private static final int BATCH_SIZE = 500;
+  private static final String CUSTOMER_ID = "123456789";
+  private static final String TIMESTAMP = "2022-01-01 12:00:00";
+
+  @Container
+  public static MySQLContainer db = new MySQLContainer<>("mysql:5.7.37")
+    .withUsername("root")
+    .withPassword("db_password")
+    .withDatabaseName("testudo_bank");
+
+  private static HikariDataSource dataSource;
+  private static JdbcTemplate jdbcTemplate;
+  private static DatabaseDelegate dbDelegate;
+
+  @BeforeAll
+  public static void init() throws SQLException {
+    dbDelegate = new JdbcDatabaseDelegate(db, "");
+    ScriptUtils.runInitScript(dbDelegate, "createDB.sql");
+
+    HikariConfig hikariConfig = new HikariConfig();
+    hikariConfig.setJdbcUrl(db.getJdbcUrl());
+    hikariConfig.setUsername(db.getUsername());
+    hikariConfig.setPassword(db.getPassword());
+    hikariConfig.addDataSourceProperty("cachePrepStmts", "true");
+    hikariConfig.addDataSourceProperty("prepStmtCacheSize", "250");
+    hikariConfig.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+    hikariConfig.addDataSourceProperty("useServerPrepStmts", "true");
+    hikariConfig.addDataSourceProperty("rewriteBatchedStatements", "true");
+    dataSource = new HikariDataSource(hikariConfig);
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    MvcControllerIntegTestHelpers.migrateDB(dataSource);
+  }
+
+  @AfterAll
+  public static void closeDataSource() {
+    dataSource.close();
+  }
+
+  @AfterEach
+  public void clearDB() throws ScriptException {
+    ScriptUtils.runInitScript(dbDelegate, "clearDB.sql");
+  }
+
+  @Test
+  public void benchmarkTransactionHistoryInserts() {
+    // warm up the JIT, the connection pool, and the statement caches for every path before measuring
+    insertStringFormatted(NUM_WARMUP_ROWS);
+    insertPrepared(NUM_WARMUP_ROWS);
+    insertBatched(NUM_WARMUP_ROWS);
+
+    double stringFormattedRowsPerSecond = measureRowsPerSecond(() -> insertStringFormatted(NUM_MEASURED_ROWS));
+    double preparedRowsPerSecond = measureRowsPerSecond(() -> insertPrepared(NUM_MEASURED_ROWS));
+    double batchedRowsPerSecond = measureRowsPerSecond(() -> insertBatched(NUM_MEASURED_ROWS));
+
+    System.out.println("TransactionHistory inserts (" + NUM_MEASURED_ROWS + " rows per path):");
+    System.out.printf("  String.format() literal SQL: %10.1f rows/s%n", stringFormattedRowsPerSecond);
+    System.out.printf("  PreparedStatement:           %10.1f rows/s (%.2fx)%n", preparedRowsPerSecond, preparedRowsPerSecond / stringFormattedRowsPerSecond);
+    System.out.printf("  PreparedStatement batch(%d): %10.1f rows/s (%.2fx)%n", BATCH_SIZE, batchedRowsPerSecond, batchedRowsPerSecond / stringFormattedRowsPerSecond);
+  }
+
+  // The insert as TestudoBankRepository used to build it, with the values inlined into a fresh SQL String
+  private static void insertStringFormatted(int numRows) {
+    for (int i = 0; i < numRows; i++) {
+      String insertRowToTransactionHistorySql = String.format("INSERT INTO TransactionHistory (CustomerID, Timestamp, Action, Amount) VALUES ('%s', '%s', '%s', %d);",
+                                                                CUSTOMER_ID,
+                                                                TIMESTAMP,
+                                                                MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION,
+                                                                i);
+      jdbcTemplate.update(insertRowToTransactionHistorySql);
+    }
+  }
+
+  private static void insertPrepared(int numRows) {
+    for (int i = 0; i < numRows; i++) {
+      TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, CUSTOMER_ID, TIMESTAMP, MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, i);
+    }
+  }
+
+  private static void insertBatched(int numRows) {
+    List<TransactionHistoryRow> batch = new ArrayList<>(BATCH_SIZE);
+    for (int i = 0; i < numRows; i++) {
+      batch.add(new TransactionHistoryRow(CUSTOMER_ID, TIMESTAMP, MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, i));
+      if (batch.size() == BATCH_SIZE) {
+        TestudoBankRepository.insertRowsToTransactionHistoryTable(jdbcTemplate, batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      TestudoBankRepository.insertRowsToTransactionHistoryTable(jdbcTemplate, batch);
+    }
+  }
+
+  private static double measureRowsPerSecond(Runnable insertRows) {
+    long startTimeInNanos = System.nanoTime();
+    insertRows.run();
+    long elapsedTimeInNanos = System.nanoTime() - startTimeInNanos;
+    return NUM_MEASURED_ROWS / (elapsedTimeInNanos / 1_000_000_000.0);
+  }
+}
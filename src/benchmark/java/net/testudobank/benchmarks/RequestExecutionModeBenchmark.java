@@ -0,0 +1,217 @@
+package net.testudobank.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.script.ScriptException;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.delegate.DatabaseDelegate;
+import org.testcontainers.ext.ScriptUtils;
+import org.testcontainers.jdbc.JdbcDatabaseDelegate;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import net.testudobank.MvcController;
+import net.testudobank.TestudoBankApplication;
+import net.testudobank.helpers.MvcControllerIntegTestHelpers;
+
+/**
+ * Load test comparing the two request execution modes of the full app over HTTP:
+ * <ul>
+ *   <li>Tomcat's pool of platform threads (the default, 200 threads)</li>
+ *   <li>a virtual thread per request ("request.virtual-threads=true"), which needs a Java 21+ runtime</li>
+ * </ul>
+ * Many more clients than platform threads hammer the transaction history (JSON) and Deposit (HTML) handlers,
+ * and the max number of requests in flight inside the app and the p99 latency seen by clients are reported.
+ *
+ * Run with: ./mvnw test -Pbenchmark -Dtest=RequestExecutionModeBenchmark
+ */
+@Testcontainers
+public class RequestExecutionModeBenchmark {
+  private static final int NUM_CLIENTS = 1000;
+  private static final int NUM_WARMUP_REQUESTS_PER_CLIENT = 5;
+  private static final int NUM_MEASURED_REQUESTS_PER_CLIENT = 20;
+  private static final String CUSTOMER_ID = "123456789";
+  private static final String CUSTOMER_PASSWORD = "password";
+
+  @Container
+  public static MySQLContainer db = new MySQLContainer<>("mysql:5.7.37")
+    .withUsername("root")
+    .withPassword("db_password")
+    .withDatabaseName("testudo_bank");
+
+  private static DatabaseDelegate dbDelegate;
+
+  /**
+   * Counts requests that are inside the app (past Tomcat's queue), and remembers the max.
+   */
+  public static class InFlightRequestFilter extends OncePerRequestFilter {
+    private final AtomicInteger numInFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+      maxInFlight.accumulateAndGet(numInFlight.incrementAndGet(), Math::max);
+      try {
+        filterChain.doFilter(request, response);
+      } finally {
+        numInFlight.decrementAndGet();
+      }
+    }
+
+    public void resetMaxInFlight() {
+      maxInFlight.set(0);
+    }
+
+    public int getMaxInFlight() {
+      return maxInFlight.get();
+    }
+  }
+
+  @BeforeAll
+  public static void init() throws SQLException, ScriptException {
+    dbDelegate = new JdbcDatabaseDelegate(db, "");
+    ScriptUtils.runInitScript(dbDelegate, "createDB.sql");
+    // the app's own Flyway run migrates the DB at startup
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER_ID, CUSTOMER_PASSWORD, "Foo", "Bar", 100000000);
+  }
+
+  @AfterAll
+  public static void clearDB() throws ScriptException {
+    ScriptUtils.runInitScript(dbDelegate, "clearDB.sql");
+  }
+
+  @Test
+  public void benchmarkRequestExecutionModes() throws Exception {
+    System.out.println("Requests from " + NUM_CLIENTS + " concurrent clients (" + NUM_MEASURED_REQUESTS_PER_CLIENT + " each):");
+    runMode("platform threads", false);
+    // "1.8" on Java 8, "21" on Java 21
+    int javaVersion = Integer.parseInt(System.getProperty("java.specification.version").replaceFirst("^1\\.", ""));
+    if (javaVersion >= 21) {
+      runMode("virtual threads ", true);
+    } else {
+      System.out.println("  virtual threads: skipped, needs a Java 21+ runtime (this is Java " + javaVersion + ")");
+    }
+  }
+
+  private static void runMode(String modeName, boolean virtualThreads) throws Exception {
+    ConfigurableApplicationContext context = new SpringApplicationBuilder(TestudoBankApplication.class, InFlightRequestFilter.class)
+      .properties("server.port=0",
+                  "spring.datasource.url=" + db.getJdbcUrl(),
+                  "spring.datasource.username=" + db.getUsername(),
+                  "spring.datasource.password=" + db.getPassword(),
+                  "crypto.price-source=simulated",
+                  "request.virtual-threads=" + virtualThreads)
+      .run();
+    try {
+      String baseUrl = "http://localhost:" + ((ServletWebServerApplicationContext) context).getWebServer().getPort();
+      String sessionToken = login(baseUrl);
+      InFlightRequestFilter inFlightRequestFilter = context.getBean(InFlightRequestFilter.class);
+
+      runClients(baseUrl, sessionToken, NUM_WARMUP_REQUESTS_PER_CLIENT);
+      inFlightRequestFilter.resetMaxInFlight();
+      long[] latenciesInNanos = runClients(baseUrl, sessionToken, NUM_MEASURED_REQUESTS_PER_CLIENT);
+
+      Arrays.sort(latenciesInNanos);
+      double p99LatencyInMillis = latenciesInNanos[(int) (latenciesInNanos.length * 0.99)] / 1_000_000.0;
+      System.out.printf("  %s: max in flight %5d, p99 latency %8.1f ms%n", modeName, inFlightRequestFilter.getMaxInFlight(), p99LatencyInMillis);
+    } finally {
+      context.close();
+    }
+  }
+
+  // Each client alternates between a transaction history page and a $0.01 deposit, and records each request's latency
+  private static long[] runClients(String baseUrl, String sessionToken, int numRequestsPerClient) throws Exception {
+    ExecutorService clients = Executors.newFixedThreadPool(NUM_CLIENTS);
+    List<Future<long[]>> results = new ArrayList<>();
+    for (int clientNum = 0; clientNum < NUM_CLIENTS; clientNum++) {
+      results.add(clients.submit(() -> {
+        long[] latenciesInNanos = new long[numRequestsPerClient];
+        for (int requestNum = 0; requestNum < numRequestsPerClient; requestNum++) {
+          long startTimeInNanos = System.nanoTime();
+          if (requestNum % 2 == 0) {
+            HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + "/history/transactions").openConnection();
+            connection.setRequestProperty("Cookie", MvcController.SESSION_TOKEN_COOKIE_NAME + "=" + sessionToken);
+            readFully(connection);
+          } else {
+            HttpURLConnection connection = post(baseUrl + "/deposit", "username=" + CUSTOMER_ID + "&sessionToken=" + URLEncoder.encode(sessionToken, "UTF-8") + "&amountToDeposit=0.01");
+            readFully(connection);
+          }
+          latenciesInNanos[requestNum] = System.nanoTime() - startTimeInNanos;
+        }
+        return latenciesInNanos;
+      }));
+    }
+
+    long[] allLatenciesInNanos = new long[NUM_CLIENTS * numRequestsPerClient];
+    int numLatencies = 0;
+    for (Future<long[]> result : results) {
+      for (long latencyInNanos : result.get()) {
+        allLatenciesInNanos[numLatencies++] = latencyInNanos;
+      }
+    }
+    clients.shutdown();
+    return allLatenciesInNanos;
+  }
+
+  private static String login(String baseUrl) throws IOException {
+    HttpURLConnection connection = post(baseUrl + "/login", "username=" + CUSTOMER_ID + "&password=" + CUSTOMER_PASSWORD);
+    readFully(connection);
+    for (String cookie : connection.getHeaderFields().get("Set-Cookie")) {
+      if (cookie.startsWith(MvcController.SESSION_TOKEN_COOKIE_NAME + "=")) {
+        return cookie.substring(cookie.indexOf('=') + 1).split(";")[0];
+      }
+    }
+    throw new IllegalStateException("Login did not set a session token cookie");
+  }
+
+  private static HttpURLConnection post(String url, String formBody) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+    try (OutputStream body = connection.getOutputStream()) {
+      body.write(formBody.getBytes(StandardCharsets.UTF_8));
+    }
+    return connection;
+  }
+
+  // Reads and discards the response, so the connection can be reused
+  private static void readFully(HttpURLConnection connection) throws IOException {
+    int statusCode = connection.getResponseCode();
+    try (InputStream body = statusCode < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+      if (body == null) {
+        return;
+      }
+      byte[] buffer = new byte[8192];
+      while (body.read(buffer) != -1) {
+        // discard
+      }
+    }
+  }
+}
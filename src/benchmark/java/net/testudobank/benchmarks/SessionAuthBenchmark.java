@@ -0,0 +1,132 @@
+package net.testudobank.benchmarks;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.stream.Collectors;
+
+import javax.script.ScriptException;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.delegate.DatabaseDelegate;
+import org.testcontainers.ext.ScriptUtils;
+import org.testcontainers.jdbc.JdbcDatabaseDelegate;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import net.testudobank.CryptoPriceClient;
+import net.testudobank.CryptoPriceSnapshot;
+import net.testudobank.MvcController;
+import net.testudobank.TestudoBankRepository;
+import net.testudobank.User;
+import net.testudobank.helpers.MvcControllerIntegTestHelpers;
+import net.testudobank.helpers.QueryCountingJdbcTemplate;
+
+/**
+ * Compares DB queries per operation and operations per second for deposits authenticated with:
+ * <ul>
+ *   <li>the username + password, which looks up the password in the Passwords table on every request</li>
+ *   <li>a session token issued at login, which is validated in memory</li>
+ * </ul>
+ *
+ * Run with: ./mvnw test -Pbenchmark -Dtest=SessionAuthBenchmark
+ */
+@Testcontainers
+public class SessionAuthBenchmark {
+  private static final int NUM_WARMUP_OPERATIONS = 200;
+  private static final int NUM_MEASURED_OPERATIONS = 2000;
+  private static final String CUSTOMER_ID = "123456789";
+  private static final String CUSTOMER_PASSWORD = "password";
+  private static final double DEPOSIT_AMOUNT = 0.01;
+
+  @Container
+  public static MySQLContainer db = new MySQLContainer<>("mysql:5.7.37")
+    .withUsername("root")
+    .withPassword("db_password")
+    .withDatabaseName("testudo_bank");
+
+  private static QueryCountingJdbcTemplate jdbcTemplate;
+  private static DatabaseDelegate dbDelegate;
+  private static MvcController controller;
+  private static String sessionToken;
+
+  @BeforeAll
+  public static void init() throws SQLException, ScriptException {
+    dbDelegate = new JdbcDatabaseDelegate(db, "");
+    ScriptUtils.runInitScript(dbDelegate, "createDB.sql");
+    jdbcTemplate = new QueryCountingJdbcTemplate(MvcControllerIntegTestHelpers.dataSource(db));
+    MvcControllerIntegTestHelpers.migrateDB(jdbcTemplate.getDataSource());
+
+    // the account info page fetches crypto prices, which shouldn't hit the network during a benchmark
+    CryptoPriceClient cryptoPriceClient = mock(CryptoPriceClient.class);
+    when(cryptoPriceClient.getPriceSnapshot()).thenReturn(new CryptoPriceSnapshot(MvcController.SUPPORTED_CRYPTOCURRENCIES.stream().collect(Collectors.toMap(cryptoName -> cryptoName, cryptoName -> 1000.0)), Instant.now()));
+    controller = new MvcController(jdbcTemplate, cryptoPriceClient);
+
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER_ID, CUSTOMER_PASSWORD, "Foo", "Bar", 0);
+    User loginFormInputs = new User();
+    loginFormInputs.setUsername(CUSTOMER_ID);
+    loginFormInputs.setPassword(CUSTOMER_PASSWORD);
+    controller.submitLoginForm(loginFormInputs);
+    sessionToken = loginFormInputs.getSessionToken();
+  }
+
+  @AfterAll
+  public static void clearDB() throws ScriptException {
+    ScriptUtils.runInitScript(dbDelegate, "clearDB.sql");
+    TestudoBankRepository.getAccountStateCache().invalidateAll();
+  }
+
+  @Test
+  public void benchmarkDepositAuthentication() {
+    // warm up the JIT and the caches for both paths before measuring
+    depositWithPassword(NUM_WARMUP_OPERATIONS);
+    depositWithSessionToken(NUM_WARMUP_OPERATIONS);
+
+    jdbcTemplate.resetNumQueriesExecuted();
+    long passwordElapsedTimeInNanos = timeInNanos(() -> depositWithPassword(NUM_MEASURED_OPERATIONS));
+    double passwordQueriesPerOperation = jdbcTemplate.getNumQueriesExecuted() / (double) NUM_MEASURED_OPERATIONS;
+
+    jdbcTemplate.resetNumQueriesExecuted();
+    long sessionTokenElapsedTimeInNanos = timeInNanos(() -> depositWithSessionToken(NUM_MEASURED_OPERATIONS));
+    double sessionTokenQueriesPerOperation = jdbcTemplate.getNumQueriesExecuted() / (double) NUM_MEASURED_OPERATIONS;
+
+    System.out.println("Deposits (" + NUM_MEASURED_OPERATIONS + " per path):");
+    System.out.printf("  Password:      %5.2f queries/op, %10.1f ops/s%n", passwordQueriesPerOperation, operationsPerSecond(passwordElapsedTimeInNanos));
+    System.out.printf("  Session token: %5.2f queries/op, %10.1f ops/s%n", sessionTokenQueriesPerOperation, operationsPerSecond(sessionTokenElapsedTimeInNanos));
+  }
+
+  private static void depositWithPassword(int numOperations) {
+    for (int i = 0; i < numOperations; i++) {
+      User depositFormInputs = new User();
+      depositFormInputs.setUsername(CUSTOMER_ID);
+      depositFormInputs.setPassword(CUSTOMER_PASSWORD);
+      depositFormInputs.setAmountToDeposit(DEPOSIT_AMOUNT);
+      controller.submitDeposit(depositFormInputs);
+    }
+  }
+
+  private static void depositWithSessionToken(int numOperations) {
+    for (int i = 0; i < numOperations; i++) {
+      User depositFormInputs = new User();
+      depositFormInputs.setUsername(CUSTOMER_ID);
+      depositFormInputs.setSessionToken(sessionToken);
+      depositFormInputs.setAmountToDeposit(DEPOSIT_AMOUNT);
+      controller.submitDeposit(depositFormInputs);
+    }
+  }
+
+  private static long timeInNanos(Runnable operations) {
+    long startTimeInNanos = System.nanoTime();
+    operations.run();
+    return System.nanoTime() - startTimeInNanos;
+  }
+
+  private static double operationsPerSecond(long elapsedTimeInNanos) {
+    return NUM_MEASURED_OPERATIONS / (elapsedTimeInNanos / 1_000_000_000.0);
+  }
+}
@@ -0,0 +1,130 @@
+package net.testudobank.benchmarks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.YearMonth;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.script.ScriptException;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.ext.ScriptUtils;
+import org.testcontainers.jdbc.JdbcDatabaseDelegate;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import net.testudobank.StatementBatchJob;
+import net.testudobank.StatementBatchJob.BatchResult;
+import net.testudobank.helpers.MvcControllerIntegTestHelpers;
+
+/**
+ * Measures customers per second of the {@link StatementBatchJob} against a MySQL Testcontainer seeded by the
+ * {@link CustomerSeeder}, at growing numbers of customers, along with the peak live heap of each run.
+ * The peak live heap should stay flat as the number of customers grows, since the job streams every table.
+ * <p>
+ * The live heap is sampled by forcing a full GC every {@value #HEAP_SAMPLE_INTERVAL_IN_MILLIS} ms, which would slow
+ * the job down, so each volume is run once for throughput and once more for the heap.
+ *
+ * Run with: ./mvnw test -Pbenchmark -Dtest=StatementBatchJobBenchmark
+ */
+@Testcontainers
+public class StatementBatchJobBenchmark {
+  private static final int[] NUM_CUSTOMERS_PER_VOLUME = {10000, 40000, 160000};
+  private static final int FIRST_CUSTOMER_ID = 100000000;
+  // about 10 rows per customer per month
+  private static final int AVG_HISTORY_EVENTS_PER_CUSTOMER = 120;
+  private static final int NUM_WRITER_THREADS = 4;
+  private static final int QUEUE_CAPACITY = 1000;
+  private static final long HEAP_SAMPLE_INTERVAL_IN_MILLIS = 200;
+
+  @Container
+  public static MySQLContainer db = new MySQLContainer<>("mysql:5.7.37")
+    .withUsername("root")
+    .withPassword("db_password")
+    .withDatabaseName("testudo_bank");
+
+  private static JdbcTemplate jdbcTemplate;
+
+  @TempDir
+  Path outputDir;
+
+  @BeforeAll
+  public static void init() throws SQLException, ScriptException {
+    ScriptUtils.runInitScript(new JdbcDatabaseDelegate(db, ""), "createDB.sql");
+    jdbcTemplate = new JdbcTemplate(MvcControllerIntegTestHelpers.dataSource(db));
+    MvcControllerIntegTestHelpers.migrateDB(jdbcTemplate.getDataSource());
+  }
+
+  @Test
+  public void benchmarkStatementBatchJob() throws Exception {
+    // the seeder writes a year of history ending now, so last month is covered for every customer
+    YearMonth statementMonth = YearMonth.now().minusMonths(1);
+    StatementBatchJob statementBatchJob = new StatementBatchJob(jdbcTemplate, outputDir, NUM_WRITER_THREADS, QUEUE_CAPACITY);
+
+    int numCustomersSeeded = 0;
+    System.out.println("Statement batch job (" + statementMonth + ", " + NUM_WRITER_THREADS + " writer threads):");
+    System.out.printf("  %10s %12s %14s %16s%n", "customers", "lines", "customers/s", "peak live heap");
+    for (int numCustomers : NUM_CUSTOMERS_PER_VOLUME) {
+      seed(FIRST_CUSTOMER_ID + numCustomersSeeded, numCustomers - numCustomersSeeded);
+      numCustomersSeeded = numCustomers;
+
+      BatchResult result = statementBatchJob.run(statementMonth);
+      assertEquals(numCustomers, result.getNumCustomers());
+      long peakLiveHeapInBytes = peakLiveHeapInBytes(() -> statementBatchJob.run(statementMonth));
+
+      System.out.printf("  %10d %12d %14.0f %13.1f MB%n", result.getNumCustomers(), result.getNumLines(), result.getCustomersPerSecond(),
+                        peakLiveHeapInBytes / 1024.0 / 1024.0);
+    }
+  }
+
+  private static void seed(int firstCustomerID, int numCustomers) throws Exception {
+    CustomerSeeder.Config config = new CustomerSeeder.Config();
+    config.jdbcUrl = db.getJdbcUrl();
+    config.jdbcUsername = db.getUsername();
+    config.jdbcPassword = db.getPassword();
+    config.numCustomers = numCustomers;
+    config.firstCustomerID = firstCustomerID;
+    config.avgHistoryEventsPerCustomer = AVG_HISTORY_EVENTS_PER_CUSTOMER;
+    new CustomerSeeder(config).run();
+  }
+
+  private interface Run {
+    void run() throws Exception;
+  }
+
+  // Runs `run` while sampling the heap left in use after a full GC, and returns the most it sampled
+  private static long peakLiveHeapInBytes(Run run) throws Exception {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    AtomicLong peakLiveHeapInBytes = new AtomicLong();
+    AtomicBoolean running = new AtomicBoolean(true);
+    Thread sampler = new Thread(() -> {
+      while (running.get()) {
+        System.gc();
+        peakLiveHeapInBytes.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+        try {
+          Thread.sleep(HEAP_SAMPLE_INTERVAL_IN_MILLIS);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    });
+    sampler.start();
+    try {
+      run.run();
+    } finally {
+      running.set(false);
+      sampler.interrupt();
+      sampler.join();
+    }
+    return peakLiveHeapInBytes.get();
+  }
+}
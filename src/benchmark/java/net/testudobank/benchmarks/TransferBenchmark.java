@@ -0,0 +1,149 @@
+package net.testudobank.benchmarks;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.stream.Collectors;
+
+import javax.script.ScriptException;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.delegate.DatabaseDelegate;
+import org.testcontainers.ext.ScriptUtils;
+import org.testcontainers.jdbc.JdbcDatabaseDelegate;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import net.testudobank.CryptoPriceClient;
+import net.testudobank.CryptoPriceSnapshot;
+import net.testudobank.MvcController;
+import net.testudobank.TestudoBankRepository;
+import net.testudobank.TransferEngine;
+import net.testudobank.User;
+import net.testudobank.helpers.MvcControllerIntegTestHelpers;
+
+/**
+ * Compares transfers per second of:
+ * <ul>
+ *   <li>the old path, which chained the Withdraw and Deposit handlers (each auto-committing its own updates and
+ *       re-rendering the account info page) and then inserted the TransferHistory row</li>
+ *   <li>the {@link TransferEngine}, which debits, credits, and logs in one DB transaction</li>
+ * </ul>
+ *
+ * Run with: ./mvnw test -Pbenchmark -Dtest=TransferBenchmark
+ */
+@Testcontainers
+public class TransferBenchmark {
+  private static final int NUM_WARMUP_TRANSFERS = 200;
+  private static final int NUM_MEASURED_TRANSFERS = 2000;
+  private static final int TRANSFER_AMOUNT_IN_PENNIES = 1;
+  private static final String SENDER_ID = "123456789";
+  private static final String SENDER_PASSWORD = "password";
+  private static final String RECIPIENT_ID = "987654321";
+  private static final String RECIPIENT_PASSWORD = "password";
+  private static final String TIMESTAMP = "2022-01-01 12:00:00";
+
+  @Container
+  public static MySQLContainer db = new MySQLContainer<>("mysql:5.7.37")
+    .withUsername("root")
+    .withPassword("db_password")
+    .withDatabaseName("testudo_bank");
+
+  private static HikariDataSource dataSource;
+  private static JdbcTemplate jdbcTemplate;
+  private static DatabaseDelegate dbDelegate;
+  private static MvcController controller;
+  private static TransferEngine transferEngine;
+
+  @BeforeAll
+  public static void init() throws SQLException, ScriptException {
+    dbDelegate = new JdbcDatabaseDelegate(db, "");
+    ScriptUtils.runInitScript(dbDelegate, "createDB.sql");
+
+    HikariConfig hikariConfig = new HikariConfig();
+    hikariConfig.setJdbcUrl(db.getJdbcUrl());
+    hikariConfig.setUsername(db.getUsername());
+    hikariConfig.setPassword(db.getPassword());
+    hikariConfig.addDataSourceProperty("cachePrepStmts", "true");
+    hikariConfig.addDataSourceProperty("prepStmtCacheSize", "250");
+    hikariConfig.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+    hikariConfig.addDataSourceProperty("useServerPrepStmts", "true");
+    dataSource = new HikariDataSource(hikariConfig);
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    MvcControllerIntegTestHelpers.migrateDB(dataSource);
+
+    // the account info page fetches crypto prices, which shouldn't hit the network during a benchmark
+    CryptoPriceClient cryptoPriceClient = mock(CryptoPriceClient.class);
+    when(cryptoPriceClient.getPriceSnapshot()).thenReturn(new CryptoPriceSnapshot(MvcController.SUPPORTED_CRYPTOCURRENCIES.stream().collect(Collectors.toMap(cryptoName -> cryptoName, cryptoName -> 1000.0)), Instant.now()));
+    controller = new MvcController(jdbcTemplate, cryptoPriceClient);
+    transferEngine = new TransferEngine(jdbcTemplate);
+
+    // large enough balances that no transfer in the benchmark ever touches the overdraft logic
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, SENDER_ID, SENDER_PASSWORD, "Foo", "Bar", 100000000);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, RECIPIENT_ID, RECIPIENT_PASSWORD, "Foo1", "Bar1", 100000000);
+  }
+
+  @AfterAll
+  public static void closeDataSource() throws ScriptException {
+    ScriptUtils.runInitScript(dbDelegate, "clearDB.sql");
+    dataSource.close();
+  }
+
+  @Test
+  public void benchmarkTransfers() {
+    // warm up the JIT, the connection pool, and the statement caches for both paths before measuring
+    transferChained(NUM_WARMUP_TRANSFERS);
+    transferWithEngine(NUM_WARMUP_TRANSFERS);
+
+    double chainedTransfersPerSecond = measureTransfersPerSecond(() -> transferChained(NUM_MEASURED_TRANSFERS));
+    double engineTransfersPerSecond = measureTransfersPerSecond(() -> transferWithEngine(NUM_MEASURED_TRANSFERS));
+
+    System.out.println("Transfers (" + NUM_MEASURED_TRANSFERS + " per path):");
+    System.out.printf("  submitWithdraw + submitDeposit chain: %10.1f transfers/s%n", chainedTransfersPerSecond);
+    System.out.printf("  TransferEngine:                       %10.1f transfers/s (%.2fx)%n", engineTransfersPerSecond, engineTransfersPerSecond / chainedTransfersPerSecond);
+  }
+
+  // The transfer exactly as MvcController#submitTransfer used to run it
+  private static void transferChained(int numTransfers) {
+    double transferAmount = TRANSFER_AMOUNT_IN_PENNIES / 100.0;
+    for (int i = 0; i < numTransfers; i++) {
+      User sender = new User();
+      sender.setUsername(SENDER_ID);
+      sender.setPassword(SENDER_PASSWORD);
+      sender.setTransfer(true);
+      sender.setAmountToWithdraw(transferAmount);
+      controller.submitWithdraw(sender);
+
+      User recipient = new User();
+      recipient.setUsername(RECIPIENT_ID);
+      recipient.setPassword(TestudoBankRepository.getCustomerPassword(jdbcTemplate, RECIPIENT_ID));
+      recipient.setTransfer(true);
+      recipient.setAmountToDeposit(transferAmount);
+      controller.submitDeposit(recipient);
+
+      TestudoBankRepository.insertRowToTransferLogsTable(jdbcTemplate, SENDER_ID, RECIPIENT_ID, TIMESTAMP, TRANSFER_AMOUNT_IN_PENNIES);
+    }
+  }
+
+  private static void transferWithEngine(int numTransfers) {
+    for (int i = 0; i < numTransfers; i++) {
+      transferEngine.transfer(SENDER_ID, RECIPIENT_ID, TRANSFER_AMOUNT_IN_PENNIES, TIMESTAMP);
+    }
+  }
+
+  private static double measureTransfersPerSecond(Runnable runTransfers) {
+    long startTimeInNanos = System.nanoTime();
+    runTransfers.run();
+    long elapsedTimeInNanos = System.nanoTime() - startTimeInNanos;
+    return NUM_MEASURED_TRANSFERS / (elapsedTimeInNanos / 1_000_000_000.0);
+  }
+}
@@ -0,0 +1,121 @@
+package net.testudobank;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Runs account mutations on a fixed set of single-threaded partition workers, chosen by hashing the CustomerID.
+ * <p>
+ * Every mutation of an account runs on the same worker, one at a time, so the read-compute-write of a deposit or
+ * withdraw can never interleave with another mutation of the same account, without taking any DB locks.
+ * Accounts on different partitions are mutated in parallel, so there should be about one partition per core.
+ * <p>
+ * A mutation that is already running on the account's partition (e.g. a dispute that re-uses the Withdraw handler)
+ * runs inline instead of queueing behind itself. With 0 partitions, every mutation runs inline on the calling thread.
+ * <p>
+ * The statements a mutation sends from its partition worker are counted in the caller's {@link RequestQueryStats},
+ * as if the caller had sent them itself.
+ */
+public class AccountPartitions {
+  private final ExecutorService[] partitionWorkers;
+
+  // Index of the partition whose worker is the current thread, or null on any other thread
+  private final ThreadLocal<Integer> currentPartition = new ThreadLocal<>();
+
+  public AccountPartitions(int numPartitions) {
+    this.partitionWorkers = new ExecutorService[numPartitions];
+    for (int partition = 0; partition < numPartitions; partition++) {
+      int workerPartition = partition;
+      partitionWorkers[partition] = Executors.newSingleThreadExecutor(runnable -> {
+        Thread workerThread = new Thread(() -> {
+          currentPartition.set(workerPartition);
+          runnable.run();
+        }, "account-partition-" + workerPartition);
+        workerThread.setDaemon(true);
+        return workerThread;
+      });
+    }
+  }
+
+  public int getNumPartitions() {
+    return partitionWorkers.length;
+  }
+
+  /**
+   * @return the partition that owns the customer's account
+   */
+  public int partitionOf(String customerID) {
+    return Math.floorMod(customerID.hashCode(), partitionWorkers.length);
+  }
+
+  /**
+   * Runs the mutation on the customer's partition, and waits for its result.
+   * An exception thrown by the mutation is rethrown to the caller.
+   * The mutation's statements are counted in the caller's {@link RequestQueryStats}.
+   */
+  public <T> T call(String customerID, Supplier<T> mutation) {
+    if (partitionWorkers.length == 0) {
+      return mutation.get();
+    }
+    int partition = partitionOf(customerID);
+    Integer callerPartition = currentPartition.get();
+    if (callerPartition != null && callerPartition == partition) {
+      return mutation.get();
+    }
+
+    // the caller waits for the result, so only one thread at a time records into its stats
+    RequestQueryStats callerStats = RequestQueryStats.current();
+    Future<T> result = partitionWorkers[partition].submit(() -> RequestQueryStats.callWith(callerStats, mutation));
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for an account mutation", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Same as {@link #call(String, Supplier)}, for a mutation with no result.
+   */
+  public void execute(String customerID, Runnable mutation) {
+    call(customerID, () -> {
+      mutation.run();
+      return null;
+    });
+  }
+
+  /**
+   * Stops every partition worker once its queued mutations have run. Mutations submitted after this are rejected
+   * with a {@link java.util.concurrent.RejectedExecutionException}.
+   */
+  public void shutdown() {
+    for (ExecutorService partitionWorker : partitionWorkers) {
+      partitionWorker.shutdown();
+    }
+  }
+
+  /**
+   * Waits for every partition worker to run its queued mutations and stop, after {@link #shutdown()}.
+   *
+   * @return true if every worker stopped within the timeout
+   */
+  public boolean awaitTermination(Duration timeout) throws InterruptedException {
+    long deadline = System.nanoTime() + timeout.toNanos();
+    for (ExecutorService partitionWorker : partitionWorkers) {
+      if (!partitionWorker.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
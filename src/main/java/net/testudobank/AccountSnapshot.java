@@ -0,0 +1,45 @@
+package net.testudobank;
+
+import java.util.List;
+import java.util.Map;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Immutable view of everything the "account_info" page needs for a single customer.
+ * <p>
+ * Loaded in a small, fixed number of queries by {@link TestudoBankRepository#getAccountSnapshot}
+ * so that rendering the page does not cost one query per history table and per cryptocurrency.
+ */
+@Getter
+@AllArgsConstructor
+public class AccountSnapshot {
+  private final String firstName;
+
+  private final String lastName;
+
+  private final int balanceInPennies;
+
+  private final int overdraftBalanceInPennies;
+
+  private final int numFraudReversals;
+
+  // CryptoName -> amount of that cryptocurrency held. Coins the customer never bought are absent.
+  private final Map<String, Double> cryptoHoldings;
+
+  private final List<Map<String,Object>> overdraftLogs;
+
+  private final List<Map<String,Object>> transactionLogs;
+
+  private final List<Map<String,Object>> transferLogs;
+
+  private final List<Map<String,Object>> cryptoLogs;
+
+  /**
+   * @return the amount of the given cryptocurrency held by the customer, or 0 if they have never bought it
+   */
+  public double getCryptoBalance(String cryptoName) {
+    return cryptoHoldings.getOrDefault(cryptoName, 0.0);
+  }
+}
@@ -0,0 +1,92 @@
+package net.testudobank;
+
+import lombok.Value;
+import lombok.With;
+
+/**
+ * The balance-related columns of a single row in the Customers table.
+ * <p>
+ * Also holds the deposit/withdraw balance rules, so that code paths which compute new balances
+ * in Java (instead of issuing one UPDATE per column) apply the same overdraft and interest logic
+ * as the Deposit and Withdraw handlers in {@link MvcController}.
+ */
+@Value
+@With
+public class AccountState {
+  int balanceInPennies;
+
+  int overdraftBalanceInPennies;
+
+  int numFraudReversals;
+
+  // Version of the Customers row this state was read from. Carried unchanged through afterWithdraw/afterDeposit,
+  // so that the new state can be written only if the row is still at this version.
+  long version;
+
+  /**
+   * @return true if the customer has reached the maximum number of disputes and their account is frozen
+   */
+  public boolean isFrozen() {
+    return numFraudReversals >= MvcController.MAX_DISPUTES;
+  }
+
+  /**
+   * @return true if the overdraft balance is above the maximum allowed overdraft balance
+   */
+  public boolean exceedsOverdraftLimit() {
+    return overdraftBalanceInPennies > MvcController.MAX_OVERDRAFT_IN_PENNIES;
+  }
+
+  /**
+   * Applies a withdraw. If the withdraw amount exceeds the main balance, the main balance is set to 0
+   * and the excess (with interest applied) is added to the overdraft balance.
+   * <p>
+   * The overdraft limit is NOT checked here. See {@link #exceedsOverdraftLimit()}.
+   *
+   * @return the account state after the withdraw
+   */
+  public AccountState afterWithdraw(int withdrawAmtInPennies) {
+    if (withdrawAmtInPennies > balanceInPennies) {
+      int excessWithdrawAmtInPennies = withdrawAmtInPennies - balanceInPennies;
+      int overdraftIncreaseAmtAfterInterestInPennies = (int)(excessWithdrawAmtInPennies * MvcController.INTEREST_RATE);
+      return new AccountState(0, overdraftBalanceInPennies + overdraftIncreaseAmtAfterInterestInPennies, numFraudReversals, version);
+    } else {
+      return new AccountState(balanceInPennies - withdrawAmtInPennies, overdraftBalanceInPennies, numFraudReversals, version);
+    }
+  }
+
+  /**
+   * Applies a deposit. The deposit pays off any overdraft balance first, and any excess is added to the main balance.
+   *
+   * @return the account state after the deposit
+   */
+  public AccountState afterDeposit(int depositAmtInPennies) {
+    if (overdraftBalanceInPennies > 0) {
+      int newOverdraftBalanceInPennies = Math.max(overdraftBalanceInPennies - depositAmtInPennies, 0);
+      int mainBalanceIncreaseAmtInPennies = Math.max(depositAmtInPennies - overdraftBalanceInPennies, 0);
+      return new AccountState(balanceInPennies + mainBalanceIncreaseAmtInPennies, newOverdraftBalanceInPennies, numFraudReversals, version);
+    } else {
+      return new AccountState(balanceInPennies + depositAmtInPennies, overdraftBalanceInPennies, numFraudReversals, version);
+    }
+  }
+
+  /**
+   * Undoes a deposit. The deposit amount is taken back out of the main balance first, and whatever the main balance
+   * can't cover goes back onto the overdraft balance. The part of that which the deposit had repaid is restored as it was,
+   * and only the rest has interest applied, like a withdraw into overdraft.
+   * <p>
+   * The overdraft limit is NOT checked here. See {@link #exceedsOverdraftLimit()}.
+   *
+   * @param overdraftRepaidInPennies overdraft balance that the deposit paid off
+   * @return the account state after the reversal
+   */
+  public AccountState afterDepositReversal(int depositAmtInPennies, int overdraftRepaidInPennies) {
+    int mainBalanceDecreaseAmtInPennies = Math.min(balanceInPennies, depositAmtInPennies);
+    int excessAmtInPennies = depositAmtInPennies - mainBalanceDecreaseAmtInPennies;
+    int restoredOverdraftAmtInPennies = Math.min(excessAmtInPennies, overdraftRepaidInPennies);
+    int newOverdraftAmtAfterInterestInPennies = (int) ((excessAmtInPennies - restoredOverdraftAmtInPennies) * MvcController.INTEREST_RATE);
+    return new AccountState(balanceInPennies - mainBalanceDecreaseAmtInPennies,
+                            overdraftBalanceInPennies + restoredOverdraftAmtInPennies + newOverdraftAmtAfterInterestInPennies,
+                            numFraudReversals, version);
+  }
+}
@@ -0,0 +1,139 @@
+package net.testudobank;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * Bounded in-process cache of each customer's {@link AccountState}, used by {@link TestudoBankRepository}
+ * so that repeated balance reads for the same customer don't each go to MySQL.
+ * <p>
+ * The repository keeps the cache in sync with its own writes: absolute updates (e.g. "SET Balance = ?")
+ * are written through to the cached entry, and relative updates (e.g. "SET Balance = Balance + ?") invalidate it.
+ * Writes made inside a DB transaction always invalidate, both immediately and again once the transaction
+ * completes, since other threads can re-cache the old committed value until then. The one exception is a
+ * version-checked balance update, which knows the exact state it committed: that state is cached once its
+ * transaction commits (see {@link #putIfNewerAfterCommit}), so the next read of an account that was just
+ * written to is still a hit.
+ * <p>
+ * Entries also expire a few minutes after being loaded, which bounds how long a write made outside of this
+ * application (e.g. the scripts in /python) can go unnoticed.
+ */
+public class AccountStateCache implements MeterBinder {
+  private static final String CACHE_NAME = "accountState";
+  private static final int MAX_CACHED_ACCOUNTS = 10000;
+  private static final long EXPIRE_AFTER_WRITE_IN_MINUTES = 5;
+
+  private final Cache<String, AccountState> cache = Caffeine.newBuilder()
+                                                            .maximumSize(MAX_CACHED_ACCOUNTS)
+                                                            .expireAfterWrite(EXPIRE_AFTER_WRITE_IN_MINUTES, TimeUnit.MINUTES)
+                                                            .recordStats()
+                                                            .build();
+
+  /**
+   * Returns the cached account state for the customer, loading and caching it on a miss.
+   * Inside a DB transaction the cache is bypassed, so the transaction sees its own writes.
+   */
+  public AccountState get(String customerID, Function<String, AccountState> loader) {
+    if (TransactionSynchronizationManager.isActualTransactionActive()) {
+      return loader.apply(customerID);
+    }
+    return cache.get(customerID, loader);
+  }
+
+  /**
+   * Caches an account state that was just read from the DB as part of a larger query, unless the cached entry is
+   * at least as new. The read may have raced with a write that already updated the entry to a higher Version.
+   */
+  public void putIfNewer(String customerID, AccountState accountState) {
+    if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+      merge(customerID, accountState);
+    }
+  }
+
+  /**
+   * Caches the state a version-checked update wrote, unless the cached entry is at least as new. Inside a DB transaction,
+   * the entry is dropped until the transaction completes, and the state is only cached if it commits.
+   * <p>
+   * A relative update (which only invalidates) that commits between this transaction's commit and its completion callback
+   * can leave this older state cached. The next version-checked update of the account then fails and drops it.
+   */
+  public void putIfNewerAfterCommit(String customerID, AccountState accountState) {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      merge(customerID, accountState);
+      return;
+    }
+    cache.invalidate(customerID);
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+      @Override
+      public void afterCompletion(int status) {
+        if (status == STATUS_COMMITTED) {
+          merge(customerID, accountState);
+        } else {
+          cache.invalidate(customerID);
+        }
+      }
+    });
+  }
+
+  private void merge(String customerID, AccountState accountState) {
+    cache.asMap().merge(customerID, accountState, (cachedState, newState) -> newState.getVersion() > cachedState.getVersion() ? newState : cachedState);
+  }
+
+  /**
+   * Applies an absolute update to the cached entry, if there is one.
+   */
+  public void update(String customerID, UnaryOperator<AccountState> update) {
+    if (TransactionSynchronizationManager.isActualTransactionActive()) {
+      invalidate(customerID);
+      return;
+    }
+    cache.asMap().computeIfPresent(customerID, (id, accountState) -> update.apply(accountState));
+  }
+
+  /**
+   * Drops the cached entry for the customer. If called inside a DB transaction, the entry is dropped again
+   * after the transaction commits or rolls back.
+   */
+  public void invalidate(String customerID) {
+    cache.invalidate(customerID);
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+        @Override
+        public void afterCompletion(int status) {
+          cache.invalidate(customerID);
+        }
+      });
+    }
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * @return hit, miss, and eviction counts since the application started
+   */
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  /**
+   * Publishes the hit, miss, and eviction counts and the size of the cache as cache.* metrics, tagged with cache="accountState".
+   */
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    CaffeineCacheMetrics.monitor(registry, cache, CACHE_NAME);
+  }
+}
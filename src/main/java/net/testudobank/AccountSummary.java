@@ -0,0 +1,27 @@
+package net.testudobank;
+
+import java.util.Map;
+
+import lombok.Value;
+
+/**
+ * A customer's name, balances, and crypto holdings, without any history.
+ * <p>
+ * Loaded in a single query by {@link TestudoBankRepository#getAccountSummary}, and served by the JSON API
+ * so that scripted clients don't pay for the history queries of the "account_info" page.
+ */
+@Value
+public class AccountSummary {
+  String firstName;
+
+  String lastName;
+
+  int balanceInPennies;
+
+  int overdraftBalanceInPennies;
+
+  int numFraudReversals;
+
+  // CryptoName -> amount of that cryptocurrency held. Coins the customer never bought are absent.
+  Map<String, Double> cryptoHoldings;
+}
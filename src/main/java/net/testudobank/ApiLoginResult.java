@@ -0,0 +1,12 @@
+package net.testudobank;
+
+import lombok.Value;
+
+/**
+ * Response body of the JSON API's login.
+ */
+@Value
+public class ApiLoginResult {
+  // Authenticates later requests, in the session token cookie or the `sessionToken` field of the request body
+  String sessionToken;
+}
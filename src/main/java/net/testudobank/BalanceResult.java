@@ -0,0 +1,13 @@
+package net.testudobank;
+
+import lombok.Value;
+
+/**
+ * Response body of the JSON API's account operations: the customer's balances after the operation.
+ */
+@Value
+public class BalanceResult {
+  int balanceInPennies;
+
+  int overdraftBalanceInPennies;
+}
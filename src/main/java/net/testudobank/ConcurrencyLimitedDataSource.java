@@ -0,0 +1,89 @@
+package net.testudobank;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+/**
+ * Caps the number of connections that can be checked out of a DataSource at once, queueing every other
+ * caller in FIFO order until a connection is closed.
+ * <p>
+ * Connection pools like Hikari are built for a few dozen waiting threads, and fail a checkout once it
+ * has waited for the connection timeout. With a virtual thread per request, thousands of requests can
+ * reach the DB at once, so they wait here instead, and only as many callers as the pool has connections
+ * ever compete inside it.
+ */
+public class ConcurrencyLimitedDataSource extends DelegatingDataSource {
+  private final Semaphore permits;
+
+  public ConcurrencyLimitedDataSource(DataSource targetDataSource, int maxConcurrentConnections) {
+    super(targetDataSource);
+    this.permits = new Semaphore(maxConcurrentConnections, true);
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    acquirePermit();
+    try {
+      return releasePermitOnClose(super.getConnection());
+    } catch (SQLException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  @Override
+  public Connection getConnection(String username, String password) throws SQLException {
+    acquirePermit();
+    try {
+      return releasePermitOnClose(super.getConnection(username, password));
+    } catch (SQLException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * @return number of callers waiting for a connection
+   */
+  public int getNumWaitingCallers() {
+    return permits.getQueueLength();
+  }
+
+  private void acquirePermit() throws SQLException {
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a DB connection", e);
+    }
+  }
+
+  // Wraps the connection so that the first close() returns its permit
+  private Connection releasePermitOnClose(Connection connection) {
+    AtomicBoolean closed = new AtomicBoolean();
+    return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+      if (method.getName().equals("close") && closed.compareAndSet(false, true)) {
+        try {
+          return method.invoke(connection, args);
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        } finally {
+          permits.release();
+        }
+      }
+      try {
+        return method.invoke(connection, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    });
+  }
+}
@@ -0,0 +1,25 @@
+package net.testudobank;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * Serves the bank-wide crypto exposure on /actuator/cryptoexposure, on the management port, which is kept apart from
+ * customer traffic (see application.properties). Read from memory by the {@link CryptoValuationEngine}, without scanning
+ * the CryptoHoldings table.
+ */
+@Component
+@Endpoint(id = "cryptoexposure")
+public class CryptoExposureEndpoint {
+  private final CryptoValuationEngine cryptoValuationEngine;
+
+  public CryptoExposureEndpoint(MvcController mvcController) {
+    this.cryptoValuationEngine = mvcController.getCryptoValuationEngine();
+  }
+
+  @ReadOperation
+  public CryptoValuationEngine.CryptoExposure cryptoExposure() {
+    return cryptoValuationEngine.getExposure();
+  }
+}
@@ -1,93 +1,187 @@
 package net.testudobank;
 
-import org.springframework.cache.annotation.CacheEvict;
-import org.springframework.cache.annotation.Cacheable;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
-import yahoofinance.YahooFinance;
-
 import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 
 @Component
 public class CryptoPriceClient {
+    // Prices are refreshed well before they are too old to serve, so a single failed fetch never interrupts trading
+    private static final long REFRESH_INTERVAL_IN_MILLISECONDS = 15000;
+    private static final Duration MAX_PRICE_AGE = Duration.ofSeconds(60);
+
+    private final CryptoPriceSource priceSource;
+
+    private final Clock clock;
+
+    // Latency of each fetch from the price source, tagged by whether it produced a new snapshot
+    private final Timer successfulFetchTimer;
+    private final Timer failedFetchTimer;
+
+    // Reads served a fresh snapshot vs. the empty snapshot because the prices were too old. The ratio is the cache hit rate
+    private final Counter freshSnapshotCounter;
+    private final Counter staleSnapshotCounter;
+
+    // Latest complete batch of prices. Replaced wholesale on each successful refresh, never modified in place
+    private volatile CryptoPriceSnapshot latestSnapshot = CryptoPriceSnapshot.EMPTY;
+
+    // Called with every new snapshot, on the refresh thread
+    private final List<Consumer<CryptoPriceSnapshot>> refreshListeners = new CopyOnWriteArrayList<>();
+
+    public CryptoPriceClient(CryptoPriceSource priceSource) {
+        this(priceSource, Clock.systemUTC());
+    }
+
+    @Autowired
+    public CryptoPriceClient(CryptoPriceSource priceSource, MeterRegistry meterRegistry) {
+        this(priceSource, Clock.systemUTC(), meterRegistry);
+    }
+
+    // Tests pass a fixed Clock to control price age
+    public CryptoPriceClient(CryptoPriceSource priceSource, Clock clock) {
+        this(priceSource, clock, Metrics.globalRegistry);
+    }
+
+    public CryptoPriceClient(CryptoPriceSource priceSource, Clock clock, MeterRegistry meterRegistry) {
+        this.priceSource = priceSource;
+        this.clock = clock;
+        this.successfulFetchTimer = fetchTimer(meterRegistry, "success");
+        this.failedFetchTimer = fetchTimer(meterRegistry, "failure");
+        this.freshSnapshotCounter = snapshotCounter(meterRegistry, "fresh");
+        this.staleSnapshotCounter = snapshotCounter(meterRegistry, "stale");
+    }
+
+    /**
+     * Returns the latest prices of every supported Cryptocurrency, all fetched in the same refresh.
+     * A request should capture one snapshot and read all of its prices from it.
+     * <p>
+     * Prices are always served from memory and never block on the price source.
+     * See {@link #refreshPrices()}
+     * <p>
+     * NOTE: If the prices haven't been refreshed for over a minute, an empty snapshot is returned,
+     * which prices every Cryptocurrency at -1
+     *
+     * @return the current price snapshot
+     */
+    public CryptoPriceSnapshot getPriceSnapshot() {
+        CryptoPriceSnapshot snapshot = latestSnapshot;
+        if (snapshot.getFetchedAt().plus(MAX_PRICE_AGE).isBefore(clock.instant())) {
+            staleSnapshotCounter.increment();
+            return CryptoPriceSnapshot.EMPTY;
+        }
+        freshSnapshotCounter.increment();
+        return snapshot;
+    }
+
     /**
      * Method to control which supported Cryptocurrency's price should be returned.
-     * @return
+     * See {@link #getPriceSnapshot()}
+     * <p>
+     * NOTE: If the price is unknown or hasn't been refreshed for over a minute, a value of -1 is returned
+     *
+     * @return the current value of 1 coin in USD
      */
     public double getCurrentCryptoValue(String cryptoName) {
-      if (cryptoName.equals("ETH")) {
-        return getCurrentEthValue();
-      } else if (cryptoName.equals("SOL")) {
-        return getCurrentSolValue();
-      } else {
-        return -1;
-      }
+        return getPriceSnapshot().getPrice(cryptoName);
     }
 
     /**
-     * Method which is used to return the current value of Ethereum
-     * in USD. This method uses a Yahoo Finance Wrapper API (https://github.com/sstrickx/yahoofinance-api).
-     * <p>
-     * To avoid frequent calls to the external service, the value is cached.
-     * See {@link #clearEthPriceCache()}
-     * <p>
-     * NOTE: If the web scraper fails, a value of -1 is returned
+     * Method which is used to return the current value of Ethereum in USD.
+     * See {@link #getCurrentCryptoValue(String)}
      *
      * @return the current value of 1 ETH in USD
      */
-    @Cacheable("eth-value")
     public double getCurrentEthValue() {
-        try {
-            return YahooFinance.get("ETH-USD").getQuote().getPrice().doubleValue();
-        } catch (IOException e1) {
-            // Print Stack Trace for Debugging
-            e1.printStackTrace();
-            return -1;
-        }
+        return getCurrentCryptoValue("ETH");
     }
 
     /**
-     * Method which is used to return the current value of Solana
-     * in USD. This method uses a Yahoo Finance Wrapper API (https://github.com/sstrickx/yahoofinance-api).
-     * <p>
-     * To avoid frequent calls to the external service, the value is cached.
-     * See {@link #clearSolPriceCache()}
-     * <p>
-     * NOTE: If the web scraper fails, a value of -1 is returned
+     * Method which is used to return the current value of Solana in USD.
+     * See {@link #getCurrentCryptoValue(String)}
      *
      * @return the current value of 1 SOL in USD
      */
-    @Cacheable("sol-value")
     public double getCurrentSolValue() {
-        try {
-            return YahooFinance.get("SOL-USD").getQuote().getPrice().doubleValue();
-        } catch (IOException e1) {
-            // Print Stack Trace for Debugging
-            e1.printStackTrace();
-            return -1;
-        }
+        return getCurrentCryptoValue("SOL");
     }
 
-
     /**
-     * Clear the cached price of ethereum.
-     * <p>
-     * This method is scheduled to run every 30 seconds.
+     * Registers a listener that is called with every snapshot published from now on, right after readers can see it.
+     * Listeners run on the refresh thread, so a slow listener delays the next refresh, but never a reader.
+     *
+     * @param refreshListener
      */
-    @Scheduled(fixedRate = 30000)
-    @CacheEvict("sol-value")
-    public void clearSolPriceCache() {
+    public void addRefreshListener(Consumer<CryptoPriceSnapshot> refreshListener) {
+        refreshListeners.add(refreshListener);
     }
 
     /**
-     * Clear the cached price of ethereum.
+     * Fetches the prices of every supported cryptocurrency from the price source in one batch, and publishes them
+     * to readers as a new snapshot. If the fetch fails or is missing a valid price for any cryptocurrency,
+     * the previous snapshot is kept.
      * <p>
-     * This method is scheduled to run every 30 seconds.
+     * This method runs once at startup, then every 15 seconds on the scheduler thread, so readers never wait on the network.
+     * Each new snapshot is then passed to the refresh listeners.
      */
-    @Scheduled(fixedRate = 30000)
-    @CacheEvict("eth-value")
-    public void clearEthPriceCache() {
+    @PostConstruct
+    @Scheduled(fixedRate = REFRESH_INTERVAL_IN_MILLISECONDS, initialDelay = REFRESH_INTERVAL_IN_MILLISECONDS)
+    public void refreshPrices() {
+        Timer.Sample fetchSample = Timer.start();
+        CryptoPriceSnapshot newSnapshot;
+        try {
+            Map<String, Double> prices = priceSource.fetchPrices(MvcController.SUPPORTED_CRYPTOCURRENCIES);
+            for (String cryptoName : MvcController.SUPPORTED_CRYPTOCURRENCIES) {
+                Double price = prices.get(cryptoName);
+                if (price == null || price <= 0) {
+                    throw new IOException("No valid price fetched for " + cryptoName);
+                }
+            }
+            newSnapshot = new CryptoPriceSnapshot(prices, clock.instant());
+            latestSnapshot = newSnapshot;
+            fetchSample.stop(successfulFetchTimer);
+        } catch (IOException | RuntimeException e) {
+            fetchSample.stop(failedFetchTimer);
+            // Print Stack Trace for Debugging
+            e.printStackTrace();
+            return;
+        }
+
+        for (Consumer<CryptoPriceSnapshot> refreshListener : refreshListeners) {
+            try {
+                refreshListener.accept(newSnapshot);
+            } catch (RuntimeException e) {
+                // a failing listener must not keep the others from seeing the new prices
+                e.printStackTrace();
+            }
+        }
     }
 
+    private static Timer fetchTimer(MeterRegistry meterRegistry, String outcome) {
+        return Timer.builder("crypto.price.fetch")
+                    .description("Latency of fetching every supported price from the price source")
+                    .tag("outcome", outcome)
+                    .register(meterRegistry);
+    }
+
+    private static Counter snapshotCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("crypto.price.snapshot.reads")
+                      .description("Price snapshot reads, by whether the prices were fresh enough to serve")
+                      .tag("result", result)
+                      .register(meterRegistry);
+    }
 }
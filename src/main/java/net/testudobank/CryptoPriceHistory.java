@@ -0,0 +1,353 @@
+package net.testudobank;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only history of every crypto price tick, kept in a memory-mapped file so that past prices survive restarts
+ * and can be looked up for trade-time valuation, P&amp;L, and audits.
+ * <p>
+ * Each tick is a fixed-width record: the epoch millis it was fetched at, then one double price per cryptocurrency,
+ * in the order given to the constructor. Ticks are appended in time order, so the price at any instant is found by
+ * binary search over the records, and a range of ticks is scanned in place through a {@link PriceTick} view of the
+ * mapped file, without copying records onto the heap.
+ * <p>
+ * The file is mapped in fixed-size segments, and grows one segment at a time. The number of ticks is kept in the
+ * file header, so a reopened file resumes after its last tick. Writes reach the disk when the OS flushes the mapped
+ * pages, or on {@link #flush()} and {@link #close()}.
+ * <p>
+ * There is a single writer at a time ({@link #append} is synchronized), and any number of concurrent readers.
+ */
+public class CryptoPriceHistory implements Closeable {
+  private static final int MAGIC = 0x54425048; // "TBPH"
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_SIZE = 128;
+  private static final int NUM_TICKS_OFFSET = 12;
+  private static final int CRYPTO_NAMES_OFFSET = 20;
+  private static final int MAX_CRYPTO_NAME_LENGTH = 8;
+  private static final int DEFAULT_SEGMENT_SIZE_IN_BYTES = 64 * 1024 * 1024;
+
+  private final FileChannel fileChannel;
+
+  private final MappedByteBuffer header;
+
+  private final List<String> cryptoNames;
+
+  private final Map<String, Integer> cryptoIndexes = new HashMap<>();
+
+  // Every record is 8 bytes of epoch millis + 8 bytes per cryptocurrency, and no record spans two segments
+  private final int recordSize;
+  private final int ticksPerSegment;
+  private final int segmentSize;
+
+  // Mapped segments, in file order. Replaced (never modified) when a segment is added, before any tick in it is published
+  private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+  // Ticks readers can see. Written after each tick's record (and its segment), so a reader that reads this first
+  // never sees a partial record or a missing segment
+  private volatile long numTicks;
+
+  /**
+   * Called for each tick of a range scan. The tick is a view of the mapped file, and is only valid during the call.
+   */
+  @FunctionalInterface
+  public interface TickVisitor {
+    void visit(PriceTick tick);
+  }
+
+  /**
+   * A view of one tick in the mapped file. See {@link #scan}.
+   */
+  public final class PriceTick {
+    private ByteBuffer segment;
+    private int recordOffset;
+
+    public long getEpochMillis() {
+      return segment.getLong(recordOffset);
+    }
+
+    /**
+     * @return the price of the cryptocurrency at this tick, or -1 if the history has no prices for it
+     */
+    public double getPrice(String cryptoName) {
+      Integer cryptoIndex = cryptoIndexes.get(cryptoName);
+      return cryptoIndex == null ? -1 : getPrice(cryptoIndex);
+    }
+
+    /**
+     * @param cryptoIndex position of the cryptocurrency in {@link CryptoPriceHistory#getCryptoNames()}
+     */
+    public double getPrice(int cryptoIndex) {
+      return segment.getDouble(recordOffset + Long.BYTES + cryptoIndex * Double.BYTES);
+    }
+
+    private PriceTick at(long tickIndex, MappedByteBuffer[] currentSegments) {
+      segment = currentSegments[(int) (tickIndex / ticksPerSegment)];
+      recordOffset = (int) (tickIndex % ticksPerSegment) * recordSize;
+      return this;
+    }
+  }
+
+  public CryptoPriceHistory(Path file, List<String> cryptoNames) throws IOException {
+    this(file, cryptoNames, DEFAULT_SEGMENT_SIZE_IN_BYTES);
+  }
+
+  /**
+   * Opens the history in `file`, creating the file if it doesn't exist.
+   *
+   * @param cryptoNames cryptocurrencies each tick has a price for. An existing file must have been created with the same ones
+   * @param segmentSizeInBytes size of each mapped segment of the file. Tests pass a small size to cross segments quickly
+   * @throws IOException if the file can't be mapped, or holds a different history
+   */
+  public CryptoPriceHistory(Path file, List<String> cryptoNames, int segmentSizeInBytes) throws IOException {
+    if (CRYPTO_NAMES_OFFSET + cryptoNames.size() * MAX_CRYPTO_NAME_LENGTH > HEADER_SIZE
+        || cryptoNames.stream().anyMatch(cryptoName -> cryptoName.length() > MAX_CRYPTO_NAME_LENGTH)) {
+      throw new IllegalArgumentException("Cryptocurrencies don't fit in the file header: " + cryptoNames);
+    }
+    this.cryptoNames = new ArrayList<>(cryptoNames);
+    for (int cryptoIndex = 0; cryptoIndex < cryptoNames.size(); cryptoIndex++) {
+      cryptoIndexes.put(cryptoNames.get(cryptoIndex), cryptoIndex);
+    }
+    this.recordSize = Long.BYTES + cryptoNames.size() * Double.BYTES;
+    this.ticksPerSegment = segmentSizeInBytes / recordSize;
+    this.segmentSize = ticksPerSegment * recordSize;
+    if (ticksPerSegment == 0) {
+      throw new IllegalArgumentException("Segments of " + segmentSizeInBytes + " bytes can't hold a tick of " + recordSize + " bytes");
+    }
+
+    if (file.getParent() != null) {
+      Files.createDirectories(file.getParent());
+    }
+    this.fileChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      boolean isNewFile = fileChannel.size() == 0;
+      this.header = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+      if (isNewFile) {
+        writeHeader();
+      } else {
+        readHeader(file);
+      }
+      long numSegments = (numTicks + ticksPerSegment - 1) / ticksPerSegment;
+      for (int segmentIndex = 0; segmentIndex < numSegments; segmentIndex++) {
+        addSegment();
+      }
+    } catch (IOException | RuntimeException e) {
+      fileChannel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return the cryptocurrencies each tick has a price for, in the order of their prices in a record
+   */
+  public List<String> getCryptoNames() {
+    return cryptoNames;
+  }
+
+  /**
+   * @return the number of ticks in the history
+   */
+  public long size() {
+    return numTicks;
+  }
+
+  /**
+   * Appends the prices of a snapshot as a tick at the instant it was fetched. Suitable as a
+   * {@link CryptoPriceClient#addRefreshListener refresh listener}. A cryptocurrency the snapshot has no price for is stored as -1.
+   *
+   * @return true if the tick was appended, or false if it was older than the last tick and dropped
+   */
+  public boolean append(CryptoPriceSnapshot snapshot) {
+    double[] prices = new double[cryptoNames.size()];
+    for (int cryptoIndex = 0; cryptoIndex < prices.length; cryptoIndex++) {
+      prices[cryptoIndex] = snapshot.getPrice(cryptoNames.get(cryptoIndex));
+    }
+    return append(snapshot.getFetchedAt().toEpochMilli(), prices);
+  }
+
+  /**
+   * Appends a tick. Ticks are kept in time order, so a tick older than the last one is dropped.
+   * Several ticks can share an instant, and the last one wins on lookups.
+   *
+   * @param prices one price per cryptocurrency, in the order of {@link #getCryptoNames()}
+   * @return true if the tick was appended, or false if it was older than the last tick and dropped
+   */
+  public synchronized boolean append(long epochMillis, double[] prices) {
+    if (prices.length != cryptoNames.size()) {
+      throw new IllegalArgumentException("Expected " + cryptoNames.size() + " prices, got " + prices.length);
+    }
+    long tickIndex = numTicks;
+    if (tickIndex > 0 && epochMillis < epochMillisAt(tickIndex - 1, segments)) {
+      return false;
+    }
+
+    int segmentIndex = (int) (tickIndex / ticksPerSegment);
+    if (segmentIndex == segments.length) {
+      try {
+        addSegment();
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to grow the price history", e);
+      }
+    }
+    MappedByteBuffer segment = segments[segmentIndex];
+    int recordOffset = (int) (tickIndex % ticksPerSegment) * recordSize;
+    segment.putLong(recordOffset, epochMillis);
+    for (int cryptoIndex = 0; cryptoIndex < prices.length; cryptoIndex++) {
+      segment.putDouble(recordOffset + Long.BYTES + cryptoIndex * Double.BYTES, prices[cryptoIndex]);
+    }
+    header.putLong(NUM_TICKS_OFFSET, tickIndex + 1);
+    numTicks = tickIndex + 1;
+    return true;
+  }
+
+  /**
+   * Returns the prices of the last tick at or before `time`, found by binary search.
+   *
+   * @return the prices in effect at `time`, fetched at the instant of their tick, or {@link CryptoPriceSnapshot#EMPTY}
+   *         if the history has no tick that old
+   */
+  public CryptoPriceSnapshot getPricesAt(Instant time) {
+    long currentNumTicks = numTicks;
+    MappedByteBuffer[] currentSegments = segments;
+    long tickIndex = lastTickAtOrBefore(time.toEpochMilli(), currentNumTicks, currentSegments);
+    if (tickIndex < 0) {
+      return CryptoPriceSnapshot.EMPTY;
+    }
+    PriceTick tick = new PriceTick().at(tickIndex, currentSegments);
+    Map<String, Double> prices = new HashMap<>();
+    for (int cryptoIndex = 0; cryptoIndex < cryptoNames.size(); cryptoIndex++) {
+      prices.put(cryptoNames.get(cryptoIndex), tick.getPrice(cryptoIndex));
+    }
+    return new CryptoPriceSnapshot(prices, Instant.ofEpochMilli(tick.getEpochMillis()));
+  }
+
+  /**
+   * Same as {@link #getPricesAt}, for a single cryptocurrency, without allocating.
+   *
+   * @return the price of the cryptocurrency at `epochMillis`, or -1 if the history has no tick that old or no prices for it
+   */
+  public double getPriceAt(String cryptoName, long epochMillis) {
+    Integer cryptoIndex = cryptoIndexes.get(cryptoName);
+    long currentNumTicks = numTicks;
+    MappedByteBuffer[] currentSegments = segments;
+    long tickIndex = lastTickAtOrBefore(epochMillis, currentNumTicks, currentSegments);
+    if (cryptoIndex == null || tickIndex < 0) {
+      return -1;
+    }
+    int recordOffset = (int) (tickIndex % ticksPerSegment) * recordSize;
+    return currentSegments[(int) (tickIndex / ticksPerSegment)].getDouble(recordOffset + Long.BYTES + cryptoIndex * Double.BYTES);
+  }
+
+  /**
+   * Visits every tick fetched in [from, to), in time order, straight from the mapped file.
+   * Ticks appended during the scan are not visited.
+   *
+   * @return the number of ticks visited
+   */
+  public long scan(Instant from, Instant to, TickVisitor visitor) {
+    long currentNumTicks = numTicks;
+    MappedByteBuffer[] currentSegments = segments;
+    long toEpochMillis = to.toEpochMilli();
+    // the first tick at or after `from` follows the last tick before it
+    long tickIndex = lastTickAtOrBefore(from.toEpochMilli() - 1, currentNumTicks, currentSegments) + 1;
+    PriceTick tick = new PriceTick();
+    long numTicksVisited = 0;
+    for (; tickIndex < currentNumTicks; tickIndex++) {
+      tick.at(tickIndex, currentSegments);
+      if (tick.getEpochMillis() >= toEpochMillis) {
+        break;
+      }
+      visitor.visit(tick);
+      numTicksVisited++;
+    }
+    return numTicksVisited;
+  }
+
+  /**
+   * Forces every appended tick to the disk.
+   */
+  public synchronized void flush() {
+    for (MappedByteBuffer segment : segments) {
+      segment.force();
+    }
+    header.force();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    flush();
+    fileChannel.close();
+  }
+
+  // Index of the last tick at or before `epochMillis` among the first `currentNumTicks`, or -1 if there is none
+  private long lastTickAtOrBefore(long epochMillis, long currentNumTicks, MappedByteBuffer[] currentSegments) {
+    long low = 0;
+    long high = currentNumTicks - 1;
+    while (low <= high) {
+      long mid = (low + high) >>> 1;
+      if (epochMillisAt(mid, currentSegments) <= epochMillis) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return high;
+  }
+
+  private long epochMillisAt(long tickIndex, MappedByteBuffer[] currentSegments) {
+    return currentSegments[(int) (tickIndex / ticksPerSegment)].getLong((int) (tickIndex % ticksPerSegment) * recordSize);
+  }
+
+  private void addSegment() throws IOException {
+    MappedByteBuffer[] currentSegments = segments;
+    MappedByteBuffer[] newSegments = Arrays.copyOf(currentSegments, currentSegments.length + 1);
+    newSegments[currentSegments.length] = fileChannel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + (long) currentSegments.length * segmentSize, segmentSize);
+    segments = newSegments;
+  }
+
+  private void writeHeader() {
+    header.putInt(0, MAGIC);
+    header.putInt(4, FORMAT_VERSION);
+    header.putInt(8, cryptoNames.size());
+    header.putLong(NUM_TICKS_OFFSET, 0);
+    for (int cryptoIndex = 0; cryptoIndex < cryptoNames.size(); cryptoIndex++) {
+      byte[] cryptoName = Arrays.copyOf(cryptoNames.get(cryptoIndex).getBytes(StandardCharsets.US_ASCII), MAX_CRYPTO_NAME_LENGTH);
+      for (int i = 0; i < MAX_CRYPTO_NAME_LENGTH; i++) {
+        header.put(CRYPTO_NAMES_OFFSET + cryptoIndex * MAX_CRYPTO_NAME_LENGTH + i, cryptoName[i]);
+      }
+    }
+    numTicks = 0;
+  }
+
+  private void readHeader(Path file) throws IOException {
+    if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION) {
+      throw new IOException(file + " is not a price history file");
+    }
+    List<String> fileCryptoNames = new ArrayList<>();
+    for (int cryptoIndex = 0; cryptoIndex < header.getInt(8); cryptoIndex++) {
+      byte[] cryptoName = new byte[MAX_CRYPTO_NAME_LENGTH];
+      for (int i = 0; i < MAX_CRYPTO_NAME_LENGTH; i++) {
+        cryptoName[i] = header.get(CRYPTO_NAMES_OFFSET + cryptoIndex * MAX_CRYPTO_NAME_LENGTH + i);
+      }
+      // names are padded with zero bytes, which trim() removes
+      fileCryptoNames.add(new String(cryptoName, StandardCharsets.US_ASCII).trim());
+    }
+    if (!fileCryptoNames.equals(cryptoNames)) {
+      throw new IOException(file + " has prices for " + fileCryptoNames + ", not " + cryptoNames);
+    }
+    numTicks = header.getLong(NUM_TICKS_OFFSET);
+  }
+}
@@ -0,0 +1,34 @@
+package net.testudobank;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.TreeSet;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Records every price tick fetched by the {@link CryptoPriceClient} in a {@link CryptoPriceHistory}, enabled by setting
+ * "crypto.price-history.path" to the file to keep the history in.
+ */
+@Configuration
+@ConditionalOnProperty(name = "crypto.price-history.path")
+public class CryptoPriceHistoryConfig {
+
+  @Bean(destroyMethod = "close")
+  public CryptoPriceHistory cryptoPriceHistory(@Value("${crypto.price-history.path}") String path, CryptoPriceClient cryptoPriceClient) throws IOException {
+    // sorted, so that the prices in each record keep the same order across restarts
+    CryptoPriceHistory cryptoPriceHistory = new CryptoPriceHistory(Paths.get(path), new ArrayList<>(new TreeSet<>(MvcController.SUPPORTED_CRYPTOCURRENCIES)));
+    cryptoPriceClient.addRefreshListener(cryptoPriceHistory::append);
+    // the prices fetched at startup were published before the listener was registered. If a refresh has
+    // appended newer prices since, these are older than the last tick and dropped
+    CryptoPriceSnapshot latestSnapshot = cryptoPriceClient.getPriceSnapshot();
+    if (latestSnapshot != CryptoPriceSnapshot.EMPTY) {
+      cryptoPriceHistory.append(latestSnapshot);
+    }
+    return cryptoPriceHistory;
+  }
+}
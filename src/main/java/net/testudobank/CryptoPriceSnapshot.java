@@ -0,0 +1,37 @@
+package net.testudobank;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import lombok.Value;
+
+/**
+ * An immutable set of cryptocurrency prices, all fetched together at the same instant.
+ * <p>
+ * A request captures one snapshot from {@link CryptoPriceClient#getPriceSnapshot()} and reads every price
+ * from it, so a page render or a buy/sell never mixes prices from two different refreshes.
+ */
+@Value
+public class CryptoPriceSnapshot {
+  // Snapshot with no prices, served before the first refresh and once the latest prices are too old
+  public static final CryptoPriceSnapshot EMPTY = new CryptoPriceSnapshot(Collections.emptyMap(), Instant.EPOCH);
+
+  Map<String, Double> prices;
+  Instant fetchedAt;
+
+  public CryptoPriceSnapshot(Map<String, Double> prices, Instant fetchedAt) {
+    this.prices = Collections.unmodifiableMap(new HashMap<>(prices));
+    this.fetchedAt = fetchedAt;
+  }
+
+  /**
+   * NOTE: If the snapshot has no price for the cryptocurrency, a value of -1 is returned
+   *
+   * @return the value of 1 coin in USD when this snapshot was fetched
+   */
+  public double getPrice(String cryptoName) {
+    return prices.getOrDefault(cryptoName, -1.0);
+  }
+}
@@ -0,0 +1,23 @@
+package net.testudobank;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A feed of current cryptocurrency prices, polled in the background by {@link CryptoPriceClient}.
+ * <p>
+ * The feed is chosen with the "crypto.price-source" property: "yahoo" (the default) or "simulated".
+ */
+public interface CryptoPriceSource {
+    /**
+     * Fetches the current price of 1 coin of each cryptocurrency in USD, in a single batch. May block on the network.
+     * <p>
+     * A cryptocurrency whose price could not be found is left out of the returned map.
+     *
+     * @param cryptoNames tickers of supported cryptocurrencies, e.g. "ETH"
+     * @return price of each cryptocurrency, keyed by ticker
+     * @throws IOException if the prices could not be fetched
+     */
+    Map<String, Double> fetchPrices(Set<String> cryptoNames) throws IOException;
+}
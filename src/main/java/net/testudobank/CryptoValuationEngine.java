@@ -0,0 +1,222 @@
+package net.testudobank;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import lombok.Value;
+
+/**
+ * Keeps the USD value of every customer's crypto holdings, and the bank-wide exposure to each cryptocurrency, in memory,
+ * so that the "account_info" page and the exposure endpoint read them in O(1) instead of re-valuing holdings per request.
+ * <p>
+ * Holdings are loaded from the CryptoHoldings table in one query, the first time they're needed, and then kept up to date
+ * by {@link #applyTrade} on every buy and sell. On each price refresh, {@link #revalue} re-prices every customer in one
+ * parallel pass over the holdings map, split across the cores of the common ForkJoinPool.
+ * <p>
+ * Holdings are also reloaded periodically by {@link #reload()}, which bounds how long a write made outside of this
+ * application (e.g. the scripts in /python), or a trade that raced with a reload, can go unnoticed.
+ * <p>
+ * Each load of the holdings gets a new version. A trade reads the version before its DB write, and is only applied to
+ * holdings of that same version: holdings loaded since may already have the trade in them, and it must not be counted twice.
+ */
+public class CryptoValuationEngine {
+  // Below this many customers, a revaluation runs on the calling thread instead of being split across cores
+  private static final long PARALLELISM_THRESHOLD = 1000;
+
+  private final JdbcTemplate jdbcTemplate;
+
+  // Every supported cryptocurrency, in the order of the holdings arrays
+  private final List<String> cryptoNames;
+
+  // Prices that every valuation is (or is being) brought up to date with
+  private volatile CryptoPriceSnapshot prices = CryptoPriceSnapshot.EMPTY;
+
+  // null until the holdings are first loaded. Replaced wholesale on each reload
+  private volatile Holdings holdings;
+
+  // Version of the last holdings loaded. Only changed in reload(), under the engine's lock
+  private long lastHoldingsVersion = 0;
+
+  // Every customer with crypto holdings, and the bank-wide totals of each cryptocurrency
+  private static class Holdings {
+    final long version;
+    final ConcurrentHashMap<String, CustomerValuation> customerValuations = new ConcurrentHashMap<>();
+    final DoubleAdder[] totalAmounts;
+
+    Holdings(long version, int numCryptos) {
+      this.version = version;
+      totalAmounts = new DoubleAdder[numCryptos];
+      for (int cryptoIndex = 0; cryptoIndex < numCryptos; cryptoIndex++) {
+        totalAmounts[cryptoIndex] = new DoubleAdder();
+      }
+    }
+  }
+
+  // A customer's holdings and their value at `prices`. Never modified in place
+  @Value
+  private static class CustomerValuation {
+    double[] amounts;
+    double valueInDollars;
+    CryptoPriceSnapshot prices;
+  }
+
+  /**
+   * Bank-wide holdings of each cryptocurrency, and their USD value at the prices fetched at `pricedAt`.
+   * Values are missing until the first price refresh.
+   */
+  @Value
+  public static class CryptoExposure {
+    Instant pricedAt;
+
+    int numCustomers;
+
+    Map<String, Double> cryptoAmounts;
+
+    Map<String, Double> valuesInDollars;
+
+    double totalValueInDollars;
+  }
+
+  public CryptoValuationEngine(JdbcTemplate jdbcTemplate, List<String> cryptoNames) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.cryptoNames = cryptoNames;
+  }
+
+  /**
+   * Re-prices every customer's holdings with a new price snapshot. Loads the holdings first if they haven't been yet.
+   * <p>
+   * Runs on the price refresh thread (see {@link CryptoPriceClient#addRefreshListener}), while trades keep updating holdings.
+   * Each customer is re-priced atomically with respect to their trades, so no valuation is left at older prices.
+   */
+  public void revalue(CryptoPriceSnapshot newPrices) {
+    prices = newPrices;
+    Holdings currentHoldings = loadedHoldings();
+    // trades price their valuation with the `prices` field, so customers that trade during this pass are up to date too
+    currentHoldings.customerValuations.forEachKey(PARALLELISM_THRESHOLD, customerID ->
+      currentHoldings.customerValuations.computeIfPresent(customerID, (id, valuation) -> valuationOf(valuation.getAmounts(), prices)));
+  }
+
+  /**
+   * Returns the version of the holdings currently loaded, or 0 if they haven't been loaded yet.
+   * A trade must read it before writing to the CryptoHoldings table, and pass it to {@link #applyTrade}.
+   */
+  public long getHoldingsVersion() {
+    Holdings currentHoldings = holdings;
+    return currentHoldings == null ? 0 : currentHoldings.version;
+  }
+
+  /**
+   * Applies a buy (positive amount) or sell (negative amount) that was just written to the CryptoHoldings table.
+   * <p>
+   * If the holdings have been (re)loaded since `holdingsVersion` was read, there's nothing to do: the load may have read
+   * the trade from the DB already. If it didn't, the trade is missing until the next reload, rather than counted twice.
+   *
+   * @param holdingsVersion what {@link #getHoldingsVersion} returned before the trade was written to the DB
+   */
+  public void applyTrade(long holdingsVersion, String customerID, String cryptoName, double cryptoAmount) {
+    Holdings currentHoldings = holdings;
+    int cryptoIndex = cryptoNames.indexOf(cryptoName);
+    if (currentHoldings == null || currentHoldings.version != holdingsVersion || cryptoIndex < 0) {
+      return;
+    }
+
+    currentHoldings.customerValuations.compute(customerID, (id, valuation) -> {
+      double[] amounts = valuation == null ? new double[cryptoNames.size()] : valuation.getAmounts().clone();
+      amounts[cryptoIndex] += cryptoAmount;
+      return valuationOf(amounts, prices);
+    });
+    currentHoldings.totalAmounts[cryptoIndex].add(cryptoAmount);
+  }
+
+  /**
+   * Returns the value of a customer's holdings at the given prices, if the engine already has it.
+   * Never loads anything, so a request can fall back to valuing holdings it already read instead of waiting on the DB.
+   *
+   * @return the customer's value, or empty if the holdings aren't loaded yet or haven't been re-priced with `requestPrices`
+   */
+  public OptionalDouble getCustomerValueInDollars(String customerID, CryptoPriceSnapshot requestPrices) {
+    Holdings currentHoldings = holdings;
+    if (currentHoldings == null || requestPrices != prices) {
+      return OptionalDouble.empty();
+    }
+    CustomerValuation valuation = currentHoldings.customerValuations.get(customerID);
+    if (valuation == null) {
+      return OptionalDouble.of(0);
+    }
+    return valuation.getPrices() == requestPrices ? OptionalDouble.of(valuation.getValueInDollars()) : OptionalDouble.empty();
+  }
+
+  /**
+   * Returns the bank-wide exposure to each cryptocurrency, in time proportional to the number of cryptocurrencies.
+   * Loads the holdings first if they haven't been yet.
+   */
+  public CryptoExposure getExposure() {
+    Holdings currentHoldings = loadedHoldings();
+    CryptoPriceSnapshot currentPrices = prices;
+    Map<String, Double> cryptoAmounts = new HashMap<>();
+    Map<String, Double> valuesInDollars = new HashMap<>();
+    double totalValueInDollars = 0;
+    for (int cryptoIndex = 0; cryptoIndex < cryptoNames.size(); cryptoIndex++) {
+      String cryptoName = cryptoNames.get(cryptoIndex);
+      double cryptoAmount = currentHoldings.totalAmounts[cryptoIndex].sum();
+      cryptoAmounts.put(cryptoName, cryptoAmount);
+      double price = currentPrices.getPrice(cryptoName);
+      if (price >= 0) {
+        valuesInDollars.put(cryptoName, cryptoAmount * price);
+        totalValueInDollars += cryptoAmount * price;
+      }
+    }
+    return new CryptoExposure(currentPrices.getFetchedAt(), currentHoldings.customerValuations.size(), cryptoAmounts, valuesInDollars, totalValueInDollars);
+  }
+
+  /**
+   * Reloads every customer's holdings from the CryptoHoldings table in one query, and values them at the latest prices.
+   */
+  public synchronized void reload() {
+    Map<String, double[]> customerAmounts = new HashMap<>();
+    // trades only read this version once the holdings are published below, so none of them is in the query's result
+    Holdings newHoldings = new Holdings(++lastHoldingsVersion, cryptoNames.size());
+    for (Map<String,Object> holdingRow : TestudoBankRepository.getAllCryptoHoldings(jdbcTemplate)) {
+      int cryptoIndex = cryptoNames.indexOf(holdingRow.get("CryptoName"));
+      if (cryptoIndex < 0) {
+        continue;
+      }
+      double cryptoAmount = ((BigDecimal) holdingRow.get("CryptoAmount")).doubleValue();
+      customerAmounts.computeIfAbsent((String) holdingRow.get("CustomerID"), customerID -> new double[cryptoNames.size()])[cryptoIndex] = cryptoAmount;
+      newHoldings.totalAmounts[cryptoIndex].add(cryptoAmount);
+    }
+    for (Map.Entry<String, double[]> amounts : customerAmounts.entrySet()) {
+      newHoldings.customerValuations.put(amounts.getKey(), valuationOf(amounts.getValue(), prices));
+    }
+    holdings = newHoldings;
+  }
+
+  private Holdings loadedHoldings() {
+    Holdings currentHoldings = holdings;
+    if (currentHoldings == null) {
+      synchronized (this) {
+        if (holdings == null) {
+          reload();
+        }
+        currentHoldings = holdings;
+      }
+    }
+    return currentHoldings;
+  }
+
+  private CustomerValuation valuationOf(double[] amounts, CryptoPriceSnapshot prices) {
+    double valueInDollars = 0;
+    for (int cryptoIndex = 0; cryptoIndex < amounts.length; cryptoIndex++) {
+      valueInDollars += amounts[cryptoIndex] * prices.getPrice(cryptoNames.get(cryptoIndex));
+    }
+    return new CustomerValuation(amounts, valueInDollars, prices);
+  }
+}
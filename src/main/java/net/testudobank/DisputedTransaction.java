@@ -0,0 +1,30 @@
+package net.testudobank;
+
+import lombok.Value;
+
+/**
+ * A row of the TransactionHistory table, along with the rows linked to it that a dispute has to take into account.
+ * See {@link TestudoBankRepository#getDisputedTransaction}.
+ */
+@Value
+public class DisputedTransaction {
+  long transactionID;
+
+  String customerID;
+
+  String action;
+
+  int amountInPennies;
+
+  // true if this row was itself written by a dispute
+  boolean reversal;
+
+  // true if a dispute already reversed this row
+  boolean reversed;
+
+  // OverdraftLogID of the overdraft repayment this row made, or null if it made none
+  Long overdraftLogID;
+
+  // Overdraft balance paid off by this row, or 0 if it made no repayment
+  int overdraftRepaidInPennies;
+}
@@ -0,0 +1,53 @@
+package net.testudobank;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import lombok.Value;
+
+/**
+ * One page of rows from a history table, newest first.
+ * <p>
+ * Pages are read with keyset pagination: the cursor is the (Timestamp, ID) of the last row on the page,
+ * and the next page is every row older than it. Unlike an OFFSET, this costs the same no matter how deep
+ * the page is, and rows inserted while a customer is paging don't shift later pages.
+ */
+@Value
+public class HistoryPage {
+  private static final String CURSOR_SEPARATOR = "|";
+
+  List<Map<String,Object>> rows;
+
+  // Opaque cursor to pass back to fetch the next (older) page, or null if this is the last page
+  String nextCursor;
+
+  /**
+   * The decoded form of a cursor: the position of the last row on a page.
+   */
+  @Value
+  public static class Cursor {
+    LocalDateTime timestamp;
+    long id;
+
+    public String encode() {
+      String cursor = timestamp + CURSOR_SEPARATOR + id;
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the cursor was not created by {@link #encode()}
+     */
+    public static Cursor decode(String encodedCursor) {
+      try {
+        String cursor = new String(Base64.getUrlDecoder().decode(encodedCursor), StandardCharsets.UTF_8);
+        int separatorIndex = cursor.lastIndexOf(CURSOR_SEPARATOR);
+        return new Cursor(LocalDateTime.parse(cursor.substring(0, separatorIndex)), Long.parseLong(cursor.substring(separatorIndex + 1)));
+      } catch (RuntimeException e) {
+        throw new IllegalArgumentException("Invalid history cursor: " + encodedCursor, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,213 @@
+package net.testudobank;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import lombok.Value;
+import net.testudobank.MvcController.OperationResult;
+
+/**
+ * Runs each account operation submitted with an idempotency key at most once per key, so that a resubmitted form or a
+ * retried API request gets the outcome of the first request instead of moving the money again.
+ * <p>
+ * Keys are scoped to a customer. Recent keys are held in memory, each with the (possibly still pending) outcome of its
+ * operation, so a replay is answered with one map lookup and never touches the DB. Concurrent requests with the same key
+ * wait for whichever of them claimed it first. Every key is also claimed in the IdempotencyKeys table, whose primary key
+ * lets only one claim succeed, which covers keys that are no longer in memory (evicted, or claimed before a restart).
+ * <p>
+ * Keys expire after the TTL: in memory by themselves, and in the DB once {@link #purgeExpired()} runs.
+ * <p>
+ * The outcome is saved after the operation commits, not in its DB transaction, since operations run on account partition
+ * threads. So a key whose operation failed, or whose request died before saving the outcome, is never run again: it gets
+ * a FAILED outcome instead.
+ */
+public class IdempotencyKeyStore {
+  public static final int MAX_KEY_LENGTH = 64;
+
+  private static final int MAX_CACHED_KEYS = 100000;
+
+  // Every operation completes (or fails) well within this, so a key still in progress after it belongs to a request that died
+  private static final Duration MAX_OPERATION_DURATION = Duration.ofMinutes(5);
+
+  private final JdbcTemplate jdbcTemplate;
+
+  private final Duration ttl;
+
+  private final Cache<Key, Claim> claims;
+
+  private final AtomicLong numReplays = new AtomicLong();
+
+  @Value
+  private static class Key {
+    String customerID;
+    String idempotencyKey;
+  }
+
+  // The operation a key was claimed for, and its outcome once the operation completes
+  @Value
+  private static class Claim {
+    String operationName;
+    CompletableFuture<OperationResult> outcome;
+  }
+
+  public IdempotencyKeyStore(JdbcTemplate jdbcTemplate, Duration ttl) {
+    this(jdbcTemplate, ttl, Ticker.systemTicker());
+  }
+
+  // Tests pass a fake Ticker to control time
+  public IdempotencyKeyStore(JdbcTemplate jdbcTemplate, Duration ttl, Ticker ticker) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.ttl = ttl;
+    this.claims = Caffeine.newBuilder()
+                          .maximumSize(MAX_CACHED_KEYS)
+                          .expireAfterWrite(ttl)
+                          .ticker(ticker)
+                          .build();
+  }
+
+  /**
+   * Runs the operation, unless the customer already submitted an operation with the same key.
+   * <p>
+   * If the operation throws, it may have committed some of its changes before it failed, so running it again could repeat them.
+   * The key is then kept with a FAILED outcome, and the client must check the account before retrying with a new key.
+   * A key is only released if claiming it fails, before the operation runs.
+   *
+   * @param idempotencyKey key chosen by the client, or null to run the operation unconditionally
+   * @return the outcome of the operation, or of the first request with the same key. INVALID_INPUT if the key is too long
+   *         or was claimed for a different operation, and REQUEST_IN_PROGRESS if the key was claimed in the DB
+   *         by a request this store never saw that has not completed yet. FAILED if that request has been in progress
+   *         for longer than any operation runs, since it must have died before saving its outcome.
+   */
+  public OperationResult execute(String customerID, String idempotencyKey, String operationName, Supplier<OperationResult> operation) {
+    if (idempotencyKey == null || idempotencyKey.isEmpty()) {
+      return operation.get();
+    }
+    if (idempotencyKey.length() > MAX_KEY_LENGTH) {
+      return OperationResult.INVALID_INPUT;
+    }
+
+    Key key = new Key(customerID, idempotencyKey);
+    Claim claim = new Claim(operationName, new CompletableFuture<>());
+    Claim existingClaim = claims.asMap().putIfAbsent(key, claim);
+    if (existingClaim != null) {
+      return replay(existingClaim, customerID, idempotencyKey, operationName, operation);
+    }
+
+    boolean claimed;
+    try {
+      claimed = TestudoBankRepository.claimIdempotencyKey(jdbcTemplate, customerID, idempotencyKey, operationName);
+    } catch (RuntimeException e) {
+      // the operation never ran, so the key is released
+      try {
+        TestudoBankRepository.deleteIdempotencyKey(jdbcTemplate, customerID, idempotencyKey);
+      } catch (RuntimeException deleteException) {
+        e.addSuppressed(deleteException);
+      }
+      throw releaseInMemory(key, claim, e);
+    }
+    if (!claimed) {
+      OperationResult storedOutcome;
+      try {
+        storedOutcome = storedOutcome(key, claim, operationName);
+      } catch (RuntimeException e) {
+        // the key was claimed by another request, so it is only released from memory
+        throw releaseInMemory(key, claim, e);
+      }
+      claim.getOutcome().complete(storedOutcome);
+      return storedOutcome;
+    }
+
+    OperationResult outcome;
+    try {
+      outcome = operation.get();
+    } catch (RuntimeException e) {
+      claim.getOutcome().complete(OperationResult.FAILED);
+      try {
+        TestudoBankRepository.setIdempotencyKeyOutcome(jdbcTemplate, customerID, idempotencyKey, OperationResult.FAILED.name());
+      } catch (RuntimeException saveException) {
+        e.addSuppressed(saveException);
+      }
+      throw e;
+    }
+    // completed in memory first, so that even if saving the outcome fails, a retry with the key gets it instead of running the operation again
+    claim.getOutcome().complete(outcome);
+    TestudoBankRepository.setIdempotencyKeyOutcome(jdbcTemplate, customerID, idempotencyKey, outcome.name());
+    return outcome;
+  }
+
+  // Fails the claim in memory, so that requests waiting on it run the operation themselves
+  private RuntimeException releaseInMemory(Key key, Claim claim, RuntimeException e) {
+    claims.asMap().remove(key, claim);
+    claim.getOutcome().completeExceptionally(e);
+    return e;
+  }
+
+  // Waits for the outcome of the request that claimed the key. If that request failed, this one runs the operation instead.
+  private OperationResult replay(Claim existingClaim, String customerID, String idempotencyKey, String operationName, Supplier<OperationResult> operation) {
+    if (!existingClaim.getOperationName().equals(operationName)) {
+      return OperationResult.INVALID_INPUT;
+    }
+    OperationResult outcome;
+    try {
+      outcome = existingClaim.getOutcome().join();
+    } catch (CompletionException e) {
+      return execute(customerID, idempotencyKey, operationName, operation);
+    }
+    numReplays.incrementAndGet();
+    return outcome;
+  }
+
+  // For a key that was already claimed in the DB. Only a completed outcome of the same operation is kept in memory
+  private OperationResult storedOutcome(Key key, Claim claim, String operationName) {
+    Map<String,Object> storedClaim = TestudoBankRepository.getIdempotencyKey(jdbcTemplate, key.getCustomerID(), key.getIdempotencyKey()).orElse(null);
+    if (storedClaim != null && !operationName.equals(storedClaim.get("Operation"))) {
+      claims.asMap().remove(key, claim);
+      return OperationResult.INVALID_INPUT;
+    }
+    // purged right after this request failed to claim it
+    if (storedClaim == null) {
+      claims.asMap().remove(key, claim);
+      return OperationResult.REQUEST_IN_PROGRESS;
+    }
+    if (storedClaim.get("Outcome") == null) {
+      if (((Number) storedClaim.get("AgeInSeconds")).longValue() < MAX_OPERATION_DURATION.getSeconds()) {
+        claims.asMap().remove(key, claim);
+        return OperationResult.REQUEST_IN_PROGRESS;
+      }
+      // the request that claimed the key died before saving its outcome, and its operation may have committed.
+      // If the outcome was saved just now after all, it is read again
+      if (!TestudoBankRepository.failInProgressIdempotencyKey(jdbcTemplate, key.getCustomerID(), key.getIdempotencyKey(), OperationResult.FAILED.name())) {
+        return storedOutcome(key, claim, operationName);
+      }
+      return OperationResult.FAILED;
+    }
+    numReplays.incrementAndGet();
+    return OperationResult.valueOf((String) storedClaim.get("Outcome"));
+  }
+
+  /**
+   * Deletes the keys that were claimed more than the TTL ago from the DB.
+   *
+   * @return the number of keys deleted
+   */
+  public int purgeExpired() {
+    return TestudoBankRepository.deleteExpiredIdempotencyKeys(jdbcTemplate, ttl.getSeconds());
+  }
+
+  /**
+   * @return the number of requests that got the outcome of an earlier request with the same key, instead of running their operation
+   */
+  public long getNumReplays() {
+    return numReplays.get();
+  }
+}
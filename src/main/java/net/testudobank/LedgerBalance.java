@@ -0,0 +1,17 @@
+package net.testudobank;
+
+import lombok.Value;
+
+/**
+ * A customer's balances as derived from the LedgerEvents table: their latest snapshot plus every event after it.
+ * See {@link LedgerProjector}.
+ */
+@Value
+public class LedgerBalance {
+  int balanceInPennies;
+
+  int overdraftBalanceInPennies;
+
+  // ID of the newest event included in these balances, or 0 if the customer has no events
+  long lastEventID;
+}
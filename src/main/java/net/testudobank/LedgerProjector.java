@@ -0,0 +1,134 @@
+package net.testudobank;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Keeps the LedgerEvents table in step with the Balance and OverdraftBalance columns of the Customers table.
+ * <p>
+ * The Customers columns are the source of truth for balances: every handler reads them (through the account state cache)
+ * to check overdraft limits and frozen accounts, and changes them with conditional UPDATEs. LedgerEvents is an audit log
+ * of those changes: every deposit, withdraw, transfer leg, overdraft repayment, crypto buy/sell and reversal records an
+ * event with its balance deltas, in the same DB transaction that applies the deltas to Customers. No request reads a
+ * balance from the ledger.
+ * <p>
+ * Events computed from balances that were read earlier are applied with {@link #applyIfUnchanged}, which only
+ * changes the Customers row if nobody else has since, and are appended right after. An attempt that lost
+ * that race is re-run from a fresh read, and never reaches the ledger. Other events are appended first, then
+ * applied with {@link #apply(List)}.
+ * <p>
+ * Periodic snapshots store each customer's balances as of an event, so deriving a balance from the ledger only
+ * reads the events since the last snapshot instead of the customer's whole history. Comparing that balance with
+ * the Customers row audits it. If a Customers row is known to be wrong (e.g. a write made outside of this application)
+ * and the ledger is known to be right, {@link #rebuildCustomerBalances(String)} overwrites the row with the ledger's balances.
+ */
+public class LedgerProjector {
+  // Events appended less than this long ago are left out of snapshots, so that an event with a lower EventID
+  // in a transaction that hasn't committed yet can never be skipped. Every transaction in this app commits within milliseconds.
+  private static final int DEFAULT_SNAPSHOT_SETTLE_TIME_IN_SECONDS = 60;
+
+  private final JdbcTemplate jdbcTemplate;
+
+  private final TransactionTemplate transactionTemplate;
+
+  private final int snapshotSettleTimeInSeconds;
+
+  public LedgerProjector(JdbcTemplate jdbcTemplate) {
+    this(jdbcTemplate, DEFAULT_SNAPSHOT_SETTLE_TIME_IN_SECONDS);
+  }
+
+  // Tests pass a settle time of 0 to snapshot events right after appending them
+  public LedgerProjector(JdbcTemplate jdbcTemplate, int snapshotSettleTimeInSeconds) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(jdbcTemplate.getDataSource()));
+    this.snapshotSettleTimeInSeconds = snapshotSettleTimeInSeconds;
+  }
+
+  /**
+   * Applies events that were already appended to the ledger to the Customers balance columns,
+   * with one relative UPDATE per customer.
+   */
+  public void apply(List<TestudoBankRepository.LedgerEventRow> events) {
+    // sum the deltas of each customer, keeping the order customers first appear in
+    Map<String, int[]> balanceDeltasByCustomer = new LinkedHashMap<>();
+    for (TestudoBankRepository.LedgerEventRow event : events) {
+      int[] balanceDeltas = balanceDeltasByCustomer.computeIfAbsent(event.getCustomerID(), customerID -> new int[2]);
+      balanceDeltas[0] += event.getBalanceDeltaInPennies();
+      balanceDeltas[1] += event.getOverdraftDeltaInPennies();
+    }
+    for (Map.Entry<String, int[]> balanceDeltas : balanceDeltasByCustomer.entrySet()) {
+      TestudoBankRepository.applyCustomerBalanceDeltas(jdbcTemplate, balanceDeltas.getKey(), balanceDeltas.getValue()[0], balanceDeltas.getValue()[1]);
+    }
+  }
+
+  /**
+   * Applies events of one customer, computed from `expectedState`, to their Customers balance columns in a single
+   * conditional UPDATE. The events must be appended to the ledger by the caller once this returns.
+   *
+   * @throws org.springframework.dao.OptimisticLockingFailureException if the Customers row changed since `expectedState` was read
+   */
+  public void applyIfUnchanged(String customerID, AccountState expectedState, List<TestudoBankRepository.LedgerEventRow> events) {
+    int newBalanceInPennies = expectedState.getBalanceInPennies();
+    int newOverdraftBalanceInPennies = expectedState.getOverdraftBalanceInPennies();
+    for (TestudoBankRepository.LedgerEventRow event : events) {
+      newBalanceInPennies += event.getBalanceDeltaInPennies();
+      newOverdraftBalanceInPennies += event.getOverdraftDeltaInPennies();
+    }
+    TestudoBankRepository.compareAndSetCustomerBalances(jdbcTemplate, customerID, expectedState, newBalanceInPennies, newOverdraftBalanceInPennies);
+  }
+
+  /**
+   * @return the customer's balances as derived from the ledger
+   */
+  public LedgerBalance getLedgerBalance(String customerID) {
+    return TestudoBankRepository.getLedgerBalance(jdbcTemplate, customerID);
+  }
+
+  /**
+   * Saves a new snapshot of the customer's balances, covering every event that is old enough to have settled.
+   */
+  public void snapshot(String customerID) {
+    long lastSettledEventID = TestudoBankRepository.getLastSettledLedgerEventID(jdbcTemplate, customerID, snapshotSettleTimeInSeconds);
+    if (lastSettledEventID == 0) {
+      return;
+    }
+    LedgerBalance ledgerBalance = TestudoBankRepository.getLedgerBalance(jdbcTemplate, customerID, lastSettledEventID);
+    TestudoBankRepository.saveBalanceSnapshot(jdbcTemplate, customerID, ledgerBalance);
+  }
+
+  /**
+   * Snapshots every customer with at least `minNumEvents` events since their last snapshot.
+   *
+   * @return the number of customers that were checked for a new snapshot
+   */
+  public int snapshotCustomersWithEventsSinceSnapshot(int minNumEvents) {
+    List<String> customerIDs = TestudoBankRepository.getCustomersWithEventsSinceSnapshot(jdbcTemplate, minNumEvents);
+    for (String customerID : customerIDs) {
+      snapshot(customerID);
+    }
+    return customerIDs.size();
+  }
+
+  /**
+   * Overwrites the customer's Customers balance columns with the balances derived from the ledger.
+   * The Customers row is locked while the balances are derived, so concurrent transfers wait for the rebuild.
+   *
+   * @return the rebuilt balances, or empty if the customer does not exist
+   */
+  public Optional<LedgerBalance> rebuildCustomerBalances(String customerID) {
+    return transactionTemplate.execute(status -> {
+      if (!TestudoBankRepository.lockCustomerAccountState(jdbcTemplate, customerID).isPresent()) {
+        return Optional.<LedgerBalance>empty();
+      }
+      LedgerBalance ledgerBalance = TestudoBankRepository.getLedgerBalance(jdbcTemplate, customerID);
+      TestudoBankRepository.setCustomerBalances(jdbcTemplate, customerID, ledgerBalance.getBalanceInPennies(), ledgerBalance.getOverdraftBalanceInPennies());
+      return Optional.of(ledgerBalance);
+    });
+  }
+}
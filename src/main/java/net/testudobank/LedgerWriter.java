@@ -0,0 +1,281 @@
+package net.testudobank;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import lombok.Value;
+
+/**
+ * Writes history rows (TransactionHistory, OverdraftLogs, TransferHistory, CryptoHistory, LedgerEvents) with group commit.
+ * <p>
+ * Request threads hand their rows to {@link #write(List)}, which puts them on a bounded queue and blocks until they are committed.
+ * A single writer thread takes everything waiting on the queue (up to the max batch size, waiting at most the max wait for
+ * more rows to arrive), inserts it as one JDBC batch per table, and commits once. Concurrent requests therefore share a
+ * single commit (and fsync) instead of paying for one each, while every request still only returns after its rows are durable.
+ * <p>
+ * When the queue is full, {@link #write(List)} blocks until there is room, so a slow DB pushes back on request threads
+ * instead of letting unwritten history pile up in memory.
+ * <p>
+ * Account operations that move balances hand their conditional Customers update to {@link #write(Runnable, List)} along with
+ * their history and ledger rows. The writer runs the update in the group's transaction right before inserting the rows, so a
+ * balance never changes without its history and ledger rows, and balance updates are group committed too. A write whose update
+ * throws (e.g. a conditional update that lost a race) is rolled back on its own, and the exception is rethrown to its caller.
+ * <p>
+ * {@link #close(Duration)} stops the writer thread once every write queued before it is committed.
+ */
+public class LedgerWriter {
+  private final JdbcTemplate jdbcTemplate;
+
+  private final TransactionTemplate transactionTemplate;
+
+  private final BlockingQueue<PendingWrite> pendingWrites;
+
+  private final int maxBatchSize;
+
+  private final long maxWaitInNanos;
+
+  private final Thread writerThread;
+
+  // Held (shared) by write() while it queues, and (exclusive) by close(), so that nothing is queued after the shutdown marker
+  private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+  // Guarded by closeLock
+  private boolean closed = false;
+
+  // Queued by close(). The writer commits the group it's gathering, and stops
+  private static final PendingWrite SHUTDOWN = new PendingWrite(() -> {}, Collections.emptyList(), null);
+
+  // The update and rows from one call to write(), and the future that completes once they are committed
+  @Value
+  private static class PendingWrite {
+    Runnable update;
+    List<TestudoBankRepository.HistoryRow> rows;
+    CompletableFuture<Void> committed;
+  }
+
+  /**
+   * @param maxBatchSize number of rows after which a group is committed without waiting for more
+   * @param maxWait longest the writer waits for more rows to join a group before committing it
+   * @param queueCapacity number of pending writes that can be queued before {@link #write(List)} blocks
+   */
+  public LedgerWriter(JdbcTemplate jdbcTemplate, int maxBatchSize, Duration maxWait, int queueCapacity) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(jdbcTemplate.getDataSource()));
+    this.pendingWrites = new ArrayBlockingQueue<>(queueCapacity);
+    this.maxBatchSize = maxBatchSize;
+    this.maxWaitInNanos = maxWait.toNanos();
+
+    this.writerThread = new Thread(this::runWriter, "ledger-writer");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /**
+   * Writes the rows, returning only once they are committed to the DB.
+   *
+   * @throws org.springframework.dao.DataAccessException if the rows could not be written
+   * @throws IllegalStateException if the writer is closed, or the caller is in a DB transaction (which the rows would not be part of)
+   */
+  public void write(List<TestudoBankRepository.HistoryRow> rows) {
+    if (rows.isEmpty()) {
+      return;
+    }
+    write(() -> {}, rows);
+  }
+
+  public void write(TestudoBankRepository.HistoryRow row) {
+    write(Collections.singletonList(row));
+  }
+
+  /**
+   * Runs `update` and writes the rows in one DB transaction, returning only once both are committed.
+   * <p>
+   * `update` runs on the writer thread, in the transaction of the group the write is committed with, so it must only
+   * touch the DB through the same DataSource, and must be safe to run again if the group is rolled back and retried.
+   * If it throws, nothing it did is committed, the rows are not written, and the exception is rethrown here.
+   *
+   * @throws org.springframework.dao.DataAccessException if the update failed or the rows could not be written
+   * @throws IllegalStateException if the writer is closed, or the caller is in a DB transaction (which the write would not be part of)
+   */
+  public void write(Runnable update, List<TestudoBankRepository.HistoryRow> rows) {
+    if (TransactionSynchronizationManager.isActualTransactionActive()) {
+      throw new IllegalStateException("The ledger writer commits in its own DB transaction, so it can't be written to from inside another one");
+    }
+
+    PendingWrite pendingWrite = new PendingWrite(update, rows, new CompletableFuture<>());
+    closeLock.readLock().lock();
+    try {
+      if (closed) {
+        throw new IllegalStateException("The ledger writer is closed");
+      }
+      pendingWrites.put(pendingWrite);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while queueing history rows", e);
+    } finally {
+      closeLock.readLock().unlock();
+    }
+
+    try {
+      pendingWrite.getCommitted().join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Stops accepting writes, and waits for every write already queued to be committed before the writer thread stops.
+   *
+   * @return true if the writer thread stopped within the timeout
+   */
+  public boolean close(Duration timeout) throws InterruptedException {
+    closeLock.writeLock().lock();
+    try {
+      if (!closed) {
+        closed = true;
+        pendingWrites.put(SHUTDOWN);
+      }
+    } finally {
+      closeLock.writeLock().unlock();
+    }
+    writerThread.join(timeout.toMillis());
+    return !writerThread.isAlive();
+  }
+
+  private void runWriter() {
+    List<PendingWrite> group = new ArrayList<>();
+    boolean shutdown = false;
+    while (!shutdown) {
+      try {
+        PendingWrite firstWrite = pendingWrites.take();
+        if (firstWrite == SHUTDOWN) {
+          return;
+        }
+        group.add(firstWrite);
+        int numRows = firstWrite.getRows().size();
+
+        // gather more writes until the group is full or the max wait has passed
+        long deadline = System.nanoTime() + maxWaitInNanos;
+        while (numRows < maxBatchSize) {
+          PendingWrite nextWrite = pendingWrites.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (nextWrite == null) {
+            break;
+          }
+          if (nextWrite == SHUTDOWN) {
+            shutdown = true;
+            break;
+          }
+          group.add(nextWrite);
+          numRows += nextWrite.getRows().size();
+        }
+
+        commitGroup(group);
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        group.clear();
+      }
+    }
+  }
+
+  private void commitGroup(List<PendingWrite> group) {
+    try {
+      commit(group);
+      for (PendingWrite pendingWrite : group) {
+        pendingWrite.getCommitted().complete(null);
+      }
+    } catch (RuntimeException e) {
+      if (group.size() == 1) {
+        group.get(0).getCommitted().completeExceptionally(e);
+        return;
+      }
+      // one bad write (or update that lost a race) shouldn't fail every request it was grouped with, so retry each write on its own
+      for (PendingWrite pendingWrite : group) {
+        try {
+          commit(Collections.singletonList(pendingWrite));
+          pendingWrite.getCommitted().complete(null);
+        } catch (RuntimeException retryException) {
+          pendingWrite.getCommitted().completeExceptionally(retryException);
+        }
+      }
+    }
+  }
+
+  // Runs every update of the group, then inserts all of their rows, in one transaction
+  private void commit(List<PendingWrite> group) {
+    List<TestudoBankRepository.HistoryRow> rows = new ArrayList<>();
+    for (PendingWrite pendingWrite : group) {
+      rows.addAll(pendingWrite.getRows());
+    }
+    transactionTemplate.execute(status -> {
+      for (PendingWrite pendingWrite : group) {
+        pendingWrite.getUpdate().run();
+      }
+      insertRows(rows);
+      return null;
+    });
+  }
+
+  // Sorts the rows by table, and inserts each table's rows as one JDBC batch
+  private void insertRows(List<TestudoBankRepository.HistoryRow> rows) {
+    List<TestudoBankRepository.TransactionHistoryRow> transactionHistoryRows = new ArrayList<>();
+    List<TestudoBankRepository.OverdraftLogRow> overdraftLogRows = new ArrayList<>();
+    List<TestudoBankRepository.TransferHistoryRow> transferHistoryRows = new ArrayList<>();
+    List<TestudoBankRepository.CryptoHistoryRow> cryptoHistoryRows = new ArrayList<>();
+    List<TestudoBankRepository.LedgerEventRow> ledgerEventRows = new ArrayList<>();
+    for (TestudoBankRepository.HistoryRow row : rows) {
+      if (row instanceof TestudoBankRepository.TransactionHistoryRow) {
+        transactionHistoryRows.add((TestudoBankRepository.TransactionHistoryRow) row);
+      } else if (row instanceof TestudoBankRepository.OverdraftLogRow) {
+        overdraftLogRows.add((TestudoBankRepository.OverdraftLogRow) row);
+      } else if (row instanceof TestudoBankRepository.TransferHistoryRow) {
+        transferHistoryRows.add((TestudoBankRepository.TransferHistoryRow) row);
+      } else if (row instanceof TestudoBankRepository.CryptoHistoryRow) {
+        cryptoHistoryRows.add((TestudoBankRepository.CryptoHistoryRow) row);
+      } else if (row instanceof TestudoBankRepository.LedgerEventRow) {
+        ledgerEventRows.add((TestudoBankRepository.LedgerEventRow) row);
+      }
+    }
+
+    // Keyed by identity, since two deposits of the same amount in the same second are equal rows.
+    // TransactionHistory goes first, so overdraft logs can be linked to the TransactionID of their deposit.
+    Map<TestudoBankRepository.TransactionHistoryRow, Long> transactionIDs = new IdentityHashMap<>();
+    if (!transactionHistoryRows.isEmpty()) {
+      List<Long> insertedTransactionIDs = TestudoBankRepository.insertRowsToTransactionHistoryTable(jdbcTemplate, transactionHistoryRows);
+      for (int i = 0; i < transactionHistoryRows.size(); i++) {
+        transactionIDs.put(transactionHistoryRows.get(i), insertedTransactionIDs.get(i));
+      }
+    }
+    if (!overdraftLogRows.isEmpty()) {
+      TestudoBankRepository.insertRowsToOverdraftLogsTable(jdbcTemplate, overdraftLogRows, transactionIDs);
+    }
+    if (!transferHistoryRows.isEmpty()) {
+      TestudoBankRepository.insertRowsToTransferLogsTable(jdbcTemplate, transferHistoryRows);
+    }
+    if (!cryptoHistoryRows.isEmpty()) {
+      TestudoBankRepository.insertRowsToCryptoLogsTable(jdbcTemplate, cryptoHistoryRows);
+    }
+    if (!ledgerEventRows.isEmpty()) {
+      TestudoBankRepository.insertRowsToLedgerEventsTable(jdbcTemplate, ledgerEventRows);
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package net.testudobank;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCallback;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.SqlProvider;
+import org.springframework.jdbc.core.StatementCallback;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * JdbcTemplate that times every statement it sends to the DB, tagged by the {@link TestudoBankRepository} method
+ * that issued it (or the first application method on the stack, for statements issued elsewhere).
+ * Each statement is also recorded in the {@link RequestQueryStats} of the request running on the same thread.
+ * <p>
+ * Every query/update method of JdbcTemplate funnels into one of the two execute() overloads below.
+ * Finding the calling method means walking the stack, so it is only done the first time a SQL string is seen,
+ * and the Timer is cached by SQL string. Every repository method has its own SQL, so this is one map lookup per statement.
+ */
+public class MeteredJdbcTemplate extends JdbcTemplate {
+  public static final String METRIC_NAME = "testudobank.repository";
+
+  // Bounds the cache if some caller builds SQL strings with inlined values. Statements past it are tagged "other".
+  private static final int MAX_TIMED_STATEMENTS = 1000;
+
+  private static final String OTHER_METHOD = "other";
+
+  private final MeterRegistry meterRegistry;
+
+  private final Map<String, Timer> timersBySql = new ConcurrentHashMap<>();
+
+  public MeteredJdbcTemplate(DataSource dataSource, MeterRegistry meterRegistry) {
+    super(dataSource);
+    this.meterRegistry = meterRegistry;
+  }
+
+  @Override
+  public <T> T execute(StatementCallback<T> action) throws DataAccessException {
+    String sql = sqlOf(action);
+    long startTime = System.nanoTime();
+    try {
+      return super.execute(action);
+    } finally {
+      record(sql, System.nanoTime() - startTime);
+    }
+  }
+
+  @Override
+  public <T> T execute(PreparedStatementCreator psc, PreparedStatementCallback<T> action) throws DataAccessException {
+    String sql = sqlOf(psc);
+    long startTime = System.nanoTime();
+    try {
+      return super.execute(psc, action);
+    } finally {
+      record(sql, System.nanoTime() - startTime);
+    }
+  }
+
+  private static String sqlOf(Object statement) {
+    return statement instanceof SqlProvider ? ((SqlProvider) statement).getSql() : null;
+  }
+
+  // Also counts the statement against the query budget of the request running on this thread
+  private void record(String sql, long durationInNanos) {
+    timerFor(sql).record(durationInNanos, TimeUnit.NANOSECONDS);
+    RequestQueryStats.record(sql, durationInNanos);
+  }
+
+  private Timer timerFor(String sql) {
+    if (sql == null) {
+      return timer(callingMethod());
+    }
+    Timer timer = timersBySql.get(sql);
+    if (timer != null) {
+      return timer;
+    }
+    if (timersBySql.size() >= MAX_TIMED_STATEMENTS) {
+      return timer(OTHER_METHOD);
+    }
+    return timersBySql.computeIfAbsent(sql, unused -> timer(callingMethod()));
+  }
+
+  private Timer timer(String method) {
+    return Timer.builder(METRIC_NAME)
+                .description("Latency of JDBC statements, by the repository method that issued them")
+                .tag("method", method)
+                .register(meterRegistry);
+  }
+
+  // Prefers the repository method over the application code that called it
+  private static String callingMethod() {
+    StackTraceElement firstApplicationFrame = null;
+    for (StackTraceElement frame : new Throwable().getStackTrace()) {
+      String className = frame.getClassName();
+      if (className.equals(TestudoBankRepository.class.getName())) {
+        return enclosingMethodName(frame);
+      }
+      if (firstApplicationFrame == null && className.startsWith("net.testudobank.") && !className.startsWith(MeteredJdbcTemplate.class.getName())) {
+        firstApplicationFrame = frame;
+      }
+    }
+    if (firstApplicationFrame == null) {
+      return OTHER_METHOD;
+    }
+    String className = firstApplicationFrame.getClassName();
+    return className.substring(className.lastIndexOf('.') + 1) + "." + enclosingMethodName(firstApplicationFrame);
+  }
+
+  // A lambda's frame is named like "lambda$getCustomerAccountState$0"
+  private static String enclosingMethodName(StackTraceElement frame) {
+    String methodName = frame.getMethodName();
+    if (methodName.startsWith("lambda$")) {
+      return methodName.substring("lambda$".length(), methodName.lastIndexOf('$'));
+    }
+    return methodName;
+  }
+}
@@ -0,0 +1,30 @@
+package net.testudobank;
+
+import javax.sql.DataSource;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Metrics that aren't bound by Spring Boot's auto-configuration, which already covers the request handlers
+ * (http.server.requests), the connection pool (hikaricp.connections.*), and the JVM.
+ * Everything is exported on the Prometheus management endpoint (see application.properties).
+ */
+@Configuration
+public class MetricsConfig {
+
+  // Replaces the auto-configured JdbcTemplate, so every statement is timed by the repository method that issued it
+  @Bean
+  public JdbcTemplate jdbcTemplate(DataSource dataSource, MeterRegistry meterRegistry) {
+    return new MeteredJdbcTemplate(dataSource, meterRegistry);
+  }
+
+  @Bean
+  public MeterBinder accountStateCacheMetrics() {
+    return TestudoBankRepository.getAccountStateCache();
+  }
+}
@@ -1,27 +1,51 @@
 package net.testudobank;
 
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
+import org.springframework.web.bind.annotation.CookieValue;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.ModelAttribute;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.jdbc.core.JdbcTemplate;
 
 import java.util.Map;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashSet;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
 import java.util.List;
 
 import java.util.Optional;
+import java.util.OptionalDouble;
 import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
 
+import javax.annotation.PreDestroy;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
 
 @Controller
 public class MvcController {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MvcController.class);
   
   // A simplified JDBC client that is injected with the login credentials
   // specified in /src/main/resources/application.properties
@@ -30,17 +54,82 @@ public class MvcController {
   // Client to get crypto price
   private CryptoPriceClient cryptoPriceClient;
 
-  // Formatter for converting Java Dates to SQL-compatible DATETIME Strings
-  private static java.text.SimpleDateFormat SQL_DATETIME_FORMATTER = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+  // Debits, credits, and logs transfers in a single DB transaction
+  private TransferEngine transferEngine;
+
+  // Session tokens issued at login, so that later requests don't need to re-check the password in the DB
+  private SessionTokenStore sessionTokenStore;
+
+  // Group-commits the balance updates and history rows of concurrent requests
+  private LedgerWriter ledgerWriter;
+
+  // Applies ledger events to the Customers balance columns, and snapshots the ledger
+  private LedgerProjector ledgerProjector;
+
+  // Single-writer partitions that every balance mutation of an account runs on
+  private AccountPartitions accountPartitions;
+
+  // Re-runs deposits, withdraws, and dispute reversals whose conditional balance update lost a race
+  private OptimisticRetryPolicy balanceUpdateRetryPolicy;
+
+  // Counts the outcome of every account operation
+  private MeterRegistry meterRegistry;
+
+  // Outcomes of account operations submitted with an idempotency key, so that resubmitted requests don't run them again
+  private IdempotencyKeyStore idempotencyKeyStore;
+
+  // USD value of every customer's crypto holdings and the bank-wide crypto exposure, re-priced on every price refresh
+  private CryptoValuationEngine cryptoValuationEngine;
+
+  // How far back in a customer's history a transaction can be disputed by its position (numTransactionsAgo)
+  private int maxReversableTransactionsAgo;
+
+  // Formatter for converting Java times to SQL-compatible DATETIME Strings. Immutable, so it is safe to share between request threads
+  private final static DateTimeFormatter SQL_DATETIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
   //// CONSTANT LITERALS ////
   public final static double INTEREST_RATE = 1.02;
-  private final static int MAX_OVERDRAFT_IN_PENNIES = 100000;
+  public final static int MAX_OVERDRAFT_IN_PENNIES = 100000;
   public final static int MAX_DISPUTES = 2;
   private final static int MAX_NUM_TRANSACTIONS_DISPLAYED = 3;
   private final static int MAX_NUM_TRANSFERS_DISPLAYED = 10;
-  private final static int MAX_REVERSABLE_TRANSACTIONS_AGO = 3;
+  private final static int MAX_NUM_LOGS_DISPLAYED = 10;
+  private final static int DEFAULT_HISTORY_PAGE_SIZE = 10;
+  private final static int MAX_HISTORY_PAGE_SIZE = 50;
+  private final static int DEFAULT_MAX_REVERSABLE_TRANSACTIONS_AGO = 3;
   private final static String HTML_LINE_BREAK = "<br/>";
+  public final static String SESSION_TOKEN_COOKIE_NAME = "sessionToken";
+  public final static String API_PATH_PREFIX = "/api/v1";
+  private final static Duration SESSION_TOKEN_TTL = Duration.ofMinutes(15);
+  private final static int LEDGER_MAX_BATCH_SIZE = 200;
+  private final static Duration LEDGER_MAX_WAIT = Duration.ofMillis(2);
+  private final static int LEDGER_QUEUE_CAPACITY = 1000;
+  private final static Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(30);
+  private final static long LEDGER_SNAPSHOT_INTERVAL_IN_MILLISECONDS = 60000;
+  private final static int MIN_LEDGER_EVENTS_PER_SNAPSHOT = 100;
+  private final static int MAX_BALANCE_UPDATE_ATTEMPTS = 10;
+  private final static Duration BALANCE_UPDATE_BASE_BACKOFF = Duration.ofMillis(2);
+  private final static Duration BALANCE_UPDATE_MAX_BACKOFF = Duration.ofMillis(50);
+  private final static Duration IDEMPOTENCY_KEY_TTL = Duration.ofHours(24);
+  private final static long IDEMPOTENCY_KEY_PURGE_INTERVAL_IN_MILLISECONDS = 3600000;
+  private final static long CRYPTO_VALUATION_RELOAD_INTERVAL_IN_MILLISECONDS = 300000;
+  private final static long PENDING_TRANSFER_REFUND_INTERVAL_IN_MILLISECONDS = 60000;
+  // far longer than any credit of a transfer takes, even queued behind a busy partition
+  private final static long STALE_PENDING_TRANSFER_AGE_IN_SECONDS = 300;
+  // Max number of statements each operation should send to the DB (see QueryBudget), not counting the
+  // balance updates and history rows committed by the LedgerWriter. HTML handlers also load the account snapshot for the "account_info" page,
+  // and JSON handlers read the new balances (usually from the account state cache).
+  private final static int ACCOUNT_SNAPSHOT_NUM_QUERIES = 5;
+  private final static int ACCOUNT_SUMMARY_QUERY_BUDGET = 1;
+  private final static int LOGIN_QUERY_BUDGET = 1;
+  private final static int DEPOSIT_QUERY_BUDGET = 5;
+  private final static int WITHDRAW_QUERY_BUDGET = 5;
+  private final static int DISPUTE_QUERY_BUDGET = 10;
+  private final static int TRANSFER_QUERY_BUDGET = 15;
+  private final static int CRYPTO_TRADE_QUERY_BUDGET = 8;
+  private final static int HISTORY_PAGE_QUERY_BUDGET = 1;
+  // Claiming a new idempotency key and saving its outcome. Replays of a key in memory send none
+  private final static int IDEMPOTENCY_KEY_NUM_QUERIES = 2;
   public static String TRANSACTION_HISTORY_DEPOSIT_ACTION = "Deposit";
   public static String TRANSACTION_HISTORY_WITHDRAW_ACTION = "Withdraw";
   public static String TRANSACTION_HISTORY_TRANSFER_SEND_ACTION = "TransferSend";
@@ -49,11 +138,92 @@ public class MvcController {
   public static String TRANSACTION_HISTORY_CRYPTO_BUY_ACTION = "CryptoBuy";
   public static String CRYPTO_HISTORY_SELL_ACTION = "Sell";
   public static String CRYPTO_HISTORY_BUY_ACTION = "Buy";
+  // Ledger events otherwise use the TransactionHistory action of the operation that caused them
+  public static String LEDGER_EVENT_OVERDRAFT_REPAYMENT = "OverdraftRepayment";
+  public static String LEDGER_EVENT_REVERSAL = "Reversal";
   public static Set<String> SUPPORTED_CRYPTOCURRENCIES = new HashSet<>(Arrays.asList("ETH", "SOL"));
 
-  public MvcController(@Autowired JdbcTemplate jdbcTemplate, @Autowired CryptoPriceClient cryptoPriceClient) {
+  public final static String OPERATION_OUTCOMES_METRIC = "testudobank.operations";
+
+  /**
+   * Outcome of an account operation: success, or the reason it was rejected. Counted per operation in {@value #OPERATION_OUTCOMES_METRIC}.
+   */
+  public enum OperationResult {
+    SUCCESS,
+    BAD_CREDENTIALS,
+    INVALID_INPUT,
+    CUSTOMER_NOT_FOUND,
+    FROZEN_ACCOUNT,
+    OVERDRAFT_LIMIT,
+    INSUFFICIENT_FUNDS,
+    PRICE_UNAVAILABLE,
+    REQUEST_IN_PROGRESS,
+    // the operation threw, and may have completed in part. Only replayed for an idempotency key
+    FAILED
+  }
+
+  // Thrown by a crypto sale's holdings update when the holdings no longer cover the sale, which rolls back its deposit
+  private static class InsufficientHoldingsException extends RuntimeException {
+  }
+
+  public MvcController(JdbcTemplate jdbcTemplate, CryptoPriceClient cryptoPriceClient) {
+    this(jdbcTemplate, cryptoPriceClient, 0);
+  }
+
+  public MvcController(JdbcTemplate jdbcTemplate, CryptoPriceClient cryptoPriceClient, int numAccountPartitions) {
+    this(jdbcTemplate, cryptoPriceClient, numAccountPartitions, Metrics.globalRegistry);
+  }
+
+  public MvcController(JdbcTemplate jdbcTemplate, CryptoPriceClient cryptoPriceClient, int numAccountPartitions, MeterRegistry meterRegistry) {
+    this(jdbcTemplate, cryptoPriceClient, numAccountPartitions, meterRegistry, DEFAULT_MAX_REVERSABLE_TRANSACTIONS_AGO);
+  }
+
+  /**
+   * @param numAccountPartitions number of single-writer partitions that account mutations run on.
+   *                             0 runs every mutation on the request thread, relying on DB locks instead.
+   * @param meterRegistry registry that operation outcomes and balance update conflicts are published to
+   * @param maxReversableTransactionsAgo how many transactions back a dispute by position (numTransactionsAgo) can reach.
+   *                                     Disputes by TransactionID are not limited.
+   */
+  @Autowired
+  public MvcController(JdbcTemplate jdbcTemplate, CryptoPriceClient cryptoPriceClient, @Value("${account.partitions:0}") int numAccountPartitions, MeterRegistry meterRegistry,
+                       @Value("${dispute.max-transactions-ago:" + DEFAULT_MAX_REVERSABLE_TRANSACTIONS_AGO + "}") int maxReversableTransactionsAgo) {
     this.jdbcTemplate = jdbcTemplate;
     this.cryptoPriceClient = cryptoPriceClient;
+    this.transferEngine = new TransferEngine(jdbcTemplate);
+    this.sessionTokenStore = new SessionTokenStore(SESSION_TOKEN_TTL);
+    this.ledgerWriter = new LedgerWriter(jdbcTemplate, LEDGER_MAX_BATCH_SIZE, LEDGER_MAX_WAIT, LEDGER_QUEUE_CAPACITY);
+    this.ledgerProjector = new LedgerProjector(jdbcTemplate);
+    this.accountPartitions = new AccountPartitions(numAccountPartitions);
+    this.balanceUpdateRetryPolicy = new OptimisticRetryPolicy(MAX_BALANCE_UPDATE_ATTEMPTS, BALANCE_UPDATE_BASE_BACKOFF, BALANCE_UPDATE_MAX_BACKOFF);
+    this.meterRegistry = meterRegistry;
+    this.maxReversableTransactionsAgo = maxReversableTransactionsAgo;
+    this.idempotencyKeyStore = new IdempotencyKeyStore(jdbcTemplate, IDEMPOTENCY_KEY_TTL);
+    this.cryptoValuationEngine = new CryptoValuationEngine(jdbcTemplate, new ArrayList<>(SUPPORTED_CRYPTOCURRENCIES));
+    cryptoPriceClient.addRefreshListener(cryptoValuationEngine::revalue);
+    FunctionCounter.builder("testudobank.balance.update.conflicts", balanceUpdateRetryPolicy, OptimisticRetryPolicy::getNumConflicts)
+                   .description("Optimistic balance updates that lost a race")
+                   .register(meterRegistry);
+    FunctionCounter.builder("testudobank.balance.update.retries", balanceUpdateRetryPolicy, OptimisticRetryPolicy::getNumRetries)
+                   .description("Optimistic balance updates that were re-run after losing a race")
+                   .register(meterRegistry);
+    FunctionCounter.builder("testudobank.idempotency.replays", idempotencyKeyStore, IdempotencyKeyStore::getNumReplays)
+                   .description("Requests answered with the outcome of an earlier request with the same idempotency key")
+                   .register(meterRegistry);
+  }
+
+  /**
+   * @return the retry policy of optimistic balance updates, which counts how often they conflict and are retried
+   */
+  public OptimisticRetryPolicy getBalanceUpdateRetryPolicy() {
+    return balanceUpdateRetryPolicy;
+  }
+
+  /**
+   * @return the engine that values every customer's crypto holdings, which also serves the bank-wide exposure (see {@link CryptoExposureEndpoint})
+   */
+  public CryptoValuationEngine getCryptoValuationEngine() {
+    return cryptoValuationEngine;
   }
 
   //// HTML GET HANDLERS ////
@@ -90,12 +260,20 @@ public class MvcController {
    * An empty `User` object is also added to the Model as an Attribute to store
    * the user's deposit form input.
    * 
+   * If the user is logged in, the form carries their session's CSRF token, so that
+   * their session token cookie authenticates the submission and the password does not
+   * need to be checked again. The form also gets a new idempotency key, so that
+   * submitting it twice only deposits once.
+   * 
    * @param model
+   * @param sessionToken
    * @return "deposit_form" page
    */
   @GetMapping("/deposit")
-	public String showDepositForm(Model model) {
+	public String showDepositForm(Model model, @CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken) {
     User user = new User();
+    user.setCsrfToken(sessionTokenStore.getCsrfToken(sessionToken).orElse(null));
+    user.setIdempotencyKey(UUID.randomUUID().toString()); // resubmitting the same page reuses the key
 		model.addAttribute("user", user);
 		return "deposit_form";
 	}
@@ -106,11 +284,14 @@ public class MvcController {
    * the user's withdraw form input.
    * 
    * @param model
+   * @param sessionToken
    * @return "withdraw_form" page
    */
   @GetMapping("/withdraw")
-	public String showWithdrawForm(Model model) {
+	public String showWithdrawForm(Model model, @CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken) {
     User user = new User();
+    user.setCsrfToken(sessionTokenStore.getCsrfToken(sessionToken).orElse(null));
+    user.setIdempotencyKey(UUID.randomUUID().toString()); // resubmitting the same page reuses the key
 		model.addAttribute("user", user);
 		return "withdraw_form";
 	}
@@ -121,12 +302,16 @@ public class MvcController {
    * the user's dispute form input.
    * 
    * @param model
+   * @param sessionToken
    * @return "dispute_form" page
    */
   @GetMapping("/dispute")
-	public String showDisputeForm(Model model) {
+	public String showDisputeForm(Model model, @CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken) {
     User user = new User();
+    user.setCsrfToken(sessionTokenStore.getCsrfToken(sessionToken).orElse(null));
+    user.setIdempotencyKey(UUID.randomUUID().toString()); // resubmitting the same page reuses the key
 		model.addAttribute("user", user);
+    model.addAttribute("maxReversableTransactionsAgo", maxReversableTransactionsAgo);
 		return "dispute_form";
 	}
 
@@ -136,11 +321,14 @@ public class MvcController {
    * the user's transfer form input.
    * 
    * @param model
+   * @param sessionToken
    * @return "dispute_form" page
    */
   @GetMapping("/transfer")
-	public String showTransferForm(Model model) {
+	public String showTransferForm(Model model, @CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken) {
     User user = new User();
+    user.setCsrfToken(sessionTokenStore.getCsrfToken(sessionToken).orElse(null));
+    user.setIdempotencyKey(UUID.randomUUID().toString()); // resubmitting the same page reuses the key
 		model.addAttribute("user", user);
 		return "transfer_form";
 	}
@@ -151,13 +339,17 @@ public class MvcController {
    * the user's input for buying cryptocurrency.
    * 
    * @param model
+   * @param sessionToken
    * @return "buycrypto_form" page
    */
   @GetMapping("/buycrypto")
-	public String showBuyCryptoForm(Model model) {
+	public String showBuyCryptoForm(Model model, @CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken) {
     User user = new User();
-    user.setEthPrice(cryptoPriceClient.getCurrentEthValue());
-    user.setSolPrice(cryptoPriceClient.getCurrentSolValue());
+    user.setCsrfToken(sessionTokenStore.getCsrfToken(sessionToken).orElse(null));
+    user.setIdempotencyKey(UUID.randomUUID().toString()); // resubmitting the same page reuses the key
+    CryptoPriceSnapshot cryptoPrices = cryptoPriceClient.getPriceSnapshot();
+    user.setEthPrice(cryptoPrices.getPrice("ETH"));
+    user.setSolPrice(cryptoPrices.getPrice("SOL"));
 		model.addAttribute("user", user);
 		return "buycrypto_form";
 	}
@@ -168,74 +360,277 @@ public class MvcController {
    * the user's input for selling cryptocurrency.
    * 
    * @param model
+   * @param sessionToken
    * @return "sellcrypto_form" page
    */
   @GetMapping("/sellcrypto")
-	public String showSellCryptoForm(Model model) {
+	public String showSellCryptoForm(Model model, @CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken) {
     User user = new User();
-    user.setEthPrice(cryptoPriceClient.getCurrentEthValue());
-    user.setSolPrice(cryptoPriceClient.getCurrentSolValue());
+    user.setCsrfToken(sessionTokenStore.getCsrfToken(sessionToken).orElse(null));
+    user.setIdempotencyKey(UUID.randomUUID().toString()); // resubmitting the same page reuses the key
+    CryptoPriceSnapshot cryptoPrices = cryptoPriceClient.getPriceSnapshot();
+    user.setEthPrice(cryptoPrices.getPrice("ETH"));
+    user.setSolPrice(cryptoPrices.getPrice("SOL"));
 		model.addAttribute("user", user);
 		return "sellcrypto_form";
 	}
 
-  //// HELPER METHODS ////
+  /**
+   * HTML GET request handler that logs the customer out and serves the "welcome" page.
+   * 
+   * The session token is revoked, so it no longer authenticates anything even if a copy of
+   * the cookie is kept, and the cookie is cleared from the browser.
+   * 
+   * @param sessionToken
+   * @param response
+   * @return "welcome" page
+   */
+  @GetMapping("/logout")
+  public String logout(@CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken, HttpServletResponse response) {
+    sessionTokenStore.revoke(sessionToken);
+    Cookie sessionTokenCookie = new Cookie(SESSION_TOKEN_COOKIE_NAME, "");
+    sessionTokenCookie.setHttpOnly(true);
+    sessionTokenCookie.setPath("/");
+    sessionTokenCookie.setMaxAge(0);
+    response.addCookie(sessionTokenCookie);
+    return "welcome";
+  }
+
+  //// JSON HISTORY HANDLERS ////
 
   /**
-   * Helper method that queries the MySQL DB for the customer account info (First Name, Last Name, and Balance)
-   * and adds these values to the `user` Model Attribute so that they can be displayed in the "account_info" page.
+   * Functional interface for the {@link TestudoBankRepository} method that reads one page of a history table.
+   */
+  private interface HistoryPageReader {
+    HistoryPage readPage(JdbcTemplate jdbcTemplate, String customerID, String cursor, int pageSize);
+  }
+
+  /**
+   * JSON GET request handler that serves one page of the logged-in customer's transaction history, newest first.
    * 
-   * @param user
+   * The customer is identified by the session token cookie set at login. Also served under {@value #API_PATH_PREFIX}
+   * alongside the rest of the JSON API.
+   * 
+   * @param sessionToken
+   * @param cursor the nextCursor of the previous page. Omit for the first page.
+   * @param pageSize number of rows per page, capped at {@value #MAX_HISTORY_PAGE_SIZE}
+   * @return the page, 401 if the session token is missing or expired, or 400 if the cursor is invalid
    */
-  private void updateAccountInfo(User user) {
-    List<Map<String,Object>> overdraftLogs = TestudoBankRepository.getOverdraftLogs(jdbcTemplate, user.getUsername());
-    String logs = HTML_LINE_BREAK;
-    for(Map<String, Object> overdraftLog : overdraftLogs){
-      logs += overdraftLog + HTML_LINE_BREAK;
-    }
+  @GetMapping({"/history/transactions", API_PATH_PREFIX + "/history/transactions"})
+  @ResponseBody
+  @QueryBudget(HISTORY_PAGE_QUERY_BUDGET)
+  public ResponseEntity<HistoryPage> getTransactionHistory(@CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken,
+                                                           @RequestParam(required = false) String cursor,
+                                                           @RequestParam(defaultValue = "" + DEFAULT_HISTORY_PAGE_SIZE) int pageSize) {
+    return getHistoryPage(TestudoBankRepository::getTransactionHistoryPage, sessionToken, cursor, pageSize);
+  }
+
+  /**
+   * JSON GET request handler that serves one page of the logged-in customer's sent and received transfers, newest first.
+   * See {@link #getTransactionHistory}.
+   */
+  @GetMapping({"/history/transfers", API_PATH_PREFIX + "/history/transfers"})
+  @ResponseBody
+  @QueryBudget(HISTORY_PAGE_QUERY_BUDGET)
+  public ResponseEntity<HistoryPage> getTransferHistory(@CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken,
+                                                        @RequestParam(required = false) String cursor,
+                                                        @RequestParam(defaultValue = "" + DEFAULT_HISTORY_PAGE_SIZE) int pageSize) {
+    return getHistoryPage(TestudoBankRepository::getTransferLogsPage, sessionToken, cursor, pageSize);
+  }
+
+  /**
+   * JSON GET request handler that serves one page of the logged-in customer's overdraft re-payment logs, newest first.
+   * See {@link #getTransactionHistory}.
+   */
+  @GetMapping({"/history/overdrafts", API_PATH_PREFIX + "/history/overdrafts"})
+  @ResponseBody
+  @QueryBudget(HISTORY_PAGE_QUERY_BUDGET)
+  public ResponseEntity<HistoryPage> getOverdraftHistory(@CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken,
+                                                         @RequestParam(required = false) String cursor,
+                                                         @RequestParam(defaultValue = "" + DEFAULT_HISTORY_PAGE_SIZE) int pageSize) {
+    return getHistoryPage(TestudoBankRepository::getOverdraftLogsPage, sessionToken, cursor, pageSize);
+  }
 
-    List<Map<String,Object>> transactionLogs = TestudoBankRepository.getRecentTransactions(jdbcTemplate, user.getUsername(), MAX_NUM_TRANSACTIONS_DISPLAYED);
-    String transactionHistoryOutput = HTML_LINE_BREAK;
-    for(Map<String, Object> transactionLog : transactionLogs){
-      transactionHistoryOutput += transactionLog + HTML_LINE_BREAK;
+  /**
+   * JSON GET request handler that serves one page of the logged-in customer's crypto buys and sells, newest first.
+   * See {@link #getTransactionHistory}.
+   */
+  @GetMapping({"/history/crypto", API_PATH_PREFIX + "/history/crypto"})
+  @ResponseBody
+  @QueryBudget(HISTORY_PAGE_QUERY_BUDGET)
+  public ResponseEntity<HistoryPage> getCryptoHistory(@CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken,
+                                                      @RequestParam(required = false) String cursor,
+                                                      @RequestParam(defaultValue = "" + DEFAULT_HISTORY_PAGE_SIZE) int pageSize) {
+    return getHistoryPage(TestudoBankRepository::getCryptoLogsPage, sessionToken, cursor, pageSize);
+  }
+
+  //// SCHEDULED TASKS ////
+
+  /**
+   * Snapshots the balances of every customer with many ledger events since their last snapshot,
+   * so that deriving a balance from the ledger never has to read more than about that many events.
+   */
+  @Scheduled(fixedDelay = LEDGER_SNAPSHOT_INTERVAL_IN_MILLISECONDS, initialDelay = LEDGER_SNAPSHOT_INTERVAL_IN_MILLISECONDS)
+  public void snapshotLedger() {
+    ledgerProjector.snapshotCustomersWithEventsSinceSnapshot(MIN_LEDGER_EVENTS_PER_SNAPSHOT);
+  }
+
+  /**
+   * Deletes idempotency keys older than their TTL from the DB. They have already expired from memory by then.
+   */
+  @Scheduled(fixedDelay = IDEMPOTENCY_KEY_PURGE_INTERVAL_IN_MILLISECONDS, initialDelay = IDEMPOTENCY_KEY_PURGE_INTERVAL_IN_MILLISECONDS)
+  public void purgeExpiredIdempotencyKeys() {
+    idempotencyKeyStore.purgeExpired();
+  }
+
+  /**
+   * Reloads every customer's crypto holdings into the valuation engine, which otherwise only sees the trades made by this application.
+   */
+  @Scheduled(fixedDelay = CRYPTO_VALUATION_RELOAD_INTERVAL_IN_MILLISECONDS, initialDelay = CRYPTO_VALUATION_RELOAD_INTERVAL_IN_MILLISECONDS)
+  public void reloadCryptoValuations() {
+    cryptoValuationEngine.reload();
+  }
+
+  /**
+   * Refunds the senders of partitioned transfers that debited them but were never credited or refunded (see TransferEngine).
+   */
+  @Scheduled(fixedDelay = PENDING_TRANSFER_REFUND_INTERVAL_IN_MILLISECONDS, initialDelay = PENDING_TRANSFER_REFUND_INTERVAL_IN_MILLISECONDS)
+  public void refundStalePendingTransfers() {
+    String currentTime = SQL_DATETIME_FORMATTER.format(LocalDateTime.now());
+    transferEngine.refundStalePendingTransfers(accountPartitions, STALE_PENDING_TRANSFER_AGE_IN_SECONDS, currentTime);
+  }
+
+  //// SHUTDOWN ////
+
+  /**
+   * Runs the account mutations still queued on the partition workers and stops them, then commits the history rows
+   * still queued in the LedgerWriter and stops its writer thread. The partitions go first, since their mutations write history.
+   */
+  @PreDestroy
+  public void shutdown() throws InterruptedException {
+    accountPartitions.shutdown();
+    if (!accountPartitions.awaitTermination(SHUTDOWN_TIMEOUT)) {
+      LOGGER.warn("The account partitions did not run their queued mutations within {}", SHUTDOWN_TIMEOUT);
     }
+    if (!ledgerWriter.close(SHUTDOWN_TIMEOUT)) {
+      LOGGER.warn("The ledger writer did not commit its queued history rows within {}", SHUTDOWN_TIMEOUT);
+    }
+  }
+
+  //// HELPER METHODS ////
 
-    List<Map<String,Object>> transferLogs = TestudoBankRepository.getTransferLogs(jdbcTemplate, user.getUsername(), MAX_NUM_TRANSFERS_DISPLAYED);
-    String transferHistoryOutput = HTML_LINE_BREAK;
-    for(Map<String, Object> transferLog : transferLogs){
-      transferHistoryOutput += transferLog + HTML_LINE_BREAK;
+  // Shared by the JSON history handlers: authenticates the session token and bounds the page size
+  private ResponseEntity<HistoryPage> getHistoryPage(HistoryPageReader historyPageReader, String sessionToken, String cursor, int pageSize) {
+    Optional<String> customerID = sessionTokenStore.validate(sessionToken);
+    if (!customerID.isPresent()) {
+      return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
     }
 
-    List<Map<String, Object>> cryptoLogs = TestudoBankRepository.getCryptoLogs(jdbcTemplate, user.getUsername());
-    StringBuilder cryptoHistoryOutput = new StringBuilder(HTML_LINE_BREAK);
-    for (Map<String, Object> cryptoLog : cryptoLogs) {
-      cryptoHistoryOutput.append(cryptoLog).append(HTML_LINE_BREAK);
+    int boundedPageSize = Math.min(Math.max(pageSize, 1), MAX_HISTORY_PAGE_SIZE);
+    try {
+      return ResponseEntity.ok(historyPageReader.readPage(jdbcTemplate, customerID.get(), cursor, boundedPageSize));
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().build();
     }
+  }
+
+  /**
+   * Helper method that loads a snapshot of the customer account info (First Name, Last Name, Balances, Crypto Holdings, and Histories)
+   * and adds these values to the `user` Model Attribute so that they can be displayed in the "account_info" page.
+   *
+   * The whole snapshot is loaded in a small, fixed number of queries (see {@link TestudoBankRepository#getAccountSnapshot}),
+   * and every cryptocurrency is valued with the same price snapshot. The crypto holdings are valued by the
+   * {@link CryptoValuationEngine}, unless it hasn't re-priced them with that snapshot yet.
+   *
+   * @param user
+   */
+  private void updateAccountInfo(User user) {
+    updateAccountInfo(user, cryptoPriceClient.getPriceSnapshot());
+  }
 
-    String getUserNameAndBalanceAndOverDraftBalanceSql = String.format("SELECT FirstName, LastName, Balance, OverdraftBalance FROM Customers WHERE CustomerID='%s';", user.getUsername());
-    List<Map<String,Object>> queryResults = jdbcTemplate.queryForList(getUserNameAndBalanceAndOverDraftBalanceSql);
-    Map<String,Object> userData = queryResults.get(0);
+  /**
+   * Same as {@link #updateAccountInfo(User)}, but values the crypto holdings with prices the caller already captured,
+   * so a buy/sell page shows the prices the trade was made at.
+   *
+   * @param user
+   * @param cryptoPrices
+   */
+  private void updateAccountInfo(User user, CryptoPriceSnapshot cryptoPrices) {
+    AccountSnapshot accountSnapshot = TestudoBankRepository.getAccountSnapshot(jdbcTemplate, user.getUsername(), MAX_NUM_TRANSACTIONS_DISPLAYED, MAX_NUM_TRANSFERS_DISPLAYED, MAX_NUM_LOGS_DISPLAYED);
 
-    // calculate total Crypto holdings balance by summing balance of each supported cryptocurrency
+    // use the valuation engine's value of the Crypto holdings if it's at the same prices
+    OptionalDouble valuedCryptoBalanceInDollars = cryptoValuationEngine.getCustomerValueInDollars(user.getUsername(), cryptoPrices);
     double cryptoBalanceInDollars = 0;
-    for (String cryptoName : MvcController.SUPPORTED_CRYPTOCURRENCIES) {
-      cryptoBalanceInDollars += TestudoBankRepository.getCustomerCryptoBalance(jdbcTemplate, user.getUsername(), cryptoName).orElse(0.0) * cryptoPriceClient.getCurrentCryptoValue(cryptoName);
+    if (valuedCryptoBalanceInDollars.isPresent()) {
+      cryptoBalanceInDollars = valuedCryptoBalanceInDollars.getAsDouble();
+    } else {
+      // otherwise, calculate total Crypto holdings balance by summing balance of each supported cryptocurrency
+      for (String cryptoName : MvcController.SUPPORTED_CRYPTOCURRENCIES) {
+        cryptoBalanceInDollars += accountSnapshot.getCryptoBalance(cryptoName) * cryptoPrices.getPrice(cryptoName);
+      }
     }
 
-    user.setFirstName((String)userData.get("FirstName"));
-    user.setLastName((String)userData.get("LastName"));
-    user.setBalance((int)userData.get("Balance")/100.0);
-    double overDraftBalance = (int)userData.get("OverdraftBalance");
+    user.setFirstName(accountSnapshot.getFirstName());
+    user.setLastName(accountSnapshot.getLastName());
+    user.setBalance(accountSnapshot.getBalanceInPennies()/100.0);
+    double overDraftBalance = accountSnapshot.getOverdraftBalanceInPennies();
     user.setOverDraftBalance(overDraftBalance/100);
     user.setCryptoBalanceUSD(cryptoBalanceInDollars);
-    user.setLogs(logs);
-    user.setTransactionHist(transactionHistoryOutput);
-    user.setTransferHist(transferHistoryOutput);
-    user.setCryptoHist(cryptoHistoryOutput.toString());
-    user.setEthBalance(TestudoBankRepository.getCustomerCryptoBalance(jdbcTemplate, user.getUsername(), "ETH").orElse(0.0));
-    user.setSolBalance(TestudoBankRepository.getCustomerCryptoBalance(jdbcTemplate, user.getUsername(), "SOL").orElse(0.0));
-    user.setEthPrice(cryptoPriceClient.getCurrentEthValue());
-    user.setSolPrice(cryptoPriceClient.getCurrentSolValue());
+    user.setLogs(formatLogsAsHtml(accountSnapshot.getOverdraftLogs()));
+    user.setTransactionHist(formatLogsAsHtml(accountSnapshot.getTransactionLogs()));
+    user.setTransferHist(formatLogsAsHtml(accountSnapshot.getTransferLogs()));
+    user.setCryptoHist(formatLogsAsHtml(accountSnapshot.getCryptoLogs()));
+    user.setEthBalance(accountSnapshot.getCryptoBalance("ETH"));
+    user.setSolBalance(accountSnapshot.getCryptoBalance("SOL"));
+    user.setEthPrice(cryptoPrices.getPrice("ETH"));
+    user.setSolPrice(cryptoPrices.getPrice("SOL"));
+  }
+
+  // Joins each log row onto its own line for display in the "account_info" page
+  private static String formatLogsAsHtml(List<Map<String,Object>> logs) {
+    StringBuilder logsOutput = new StringBuilder(HTML_LINE_BREAK);
+    for (Map<String, Object> log : logs) {
+      logsOutput.append(log).append(HTML_LINE_BREAK);
+    }
+    return logsOutput.toString();
+  }
+
+  /**
+   * Helper method that checks whether the request was made by the customer in the `username` field.
+   * 
+   * If the request carries a session token issued to that customer, it is validated in memory (and its
+   * expiry is extended). Otherwise, the password attempt is compared against the 'passwords' table in the MySQL DB.
+   * 
+   * @param user
+   * @return true if the user is authenticated as `user.getUsername()`
+   */
+  private boolean isAuthenticated(User user) {
+    String userID = user.getUsername();
+    Optional<String> sessionCustomerID = sessionTokenStore.validate(user.getSessionToken());
+    if (sessionCustomerID.isPresent()) {
+      return sessionCustomerID.get().equals(userID);
+    }
+
+    String userPasswordAttempt = user.getPassword();
+    String userPassword = TestudoBankRepository.getCustomerPassword(jdbcTemplate, userID);
+    return userPasswordAttempt != null && userPasswordAttempt.equals(userPassword);
+  }
+
+  // HTML forms never carry the session token itself, which only travels in its HttpOnly cookie. The cookie authenticates
+  // a form only if the form carries the session's CSRF token, so another site can't submit a form with the customer's cookie
+  private void authenticateFormWithCookie(User user, String sessionTokenCookie) {
+    user.setSessionToken(sessionTokenStore.isValidCsrfToken(sessionTokenCookie, user.getCsrfToken()) ? sessionTokenCookie : null);
+  }
+
+  // Runs an account operation at most once per idempotency key of the customer. Requests without a key always run it
+  private OperationResult completeIdempotently(String operationName, User user, Function<User, OperationResult> operation) {
+    return idempotencyKeyStore.execute(user.getUsername(), user.getIdempotencyKey(), operationName, () -> operation.apply(user));
+  }
+
+  // Counts the outcome of an account operation in the operation outcomes metric, and returns it
+  private OperationResult countOutcome(String operationName, OperationResult result) {
+    meterRegistry.counter(OPERATION_OUTCOMES_METRIC, "operation", operationName, "outcome", result.name().toLowerCase()).increment();
+    return result;
   }
 
   // Converts dollar amounts in frontend to penny representation in backend MySQL DB
@@ -243,12 +638,6 @@ public class MvcController {
     return (int) (dollarAmount * 100);
   }
 
-  // Converts LocalDateTime to Date variable
-  private static Date convertLocalDateTimeToDate(LocalDateTime ldt){
-    Date dateTime = Date.from(ldt.atZone(ZoneId.systemDefault()).toInstant());
-    return dateTime;
-  }
-
   // HTML POST HANDLERS ////
 
   /**
@@ -259,19 +648,36 @@ public class MvcController {
    * username ID given by the user. Compares the user's password attempt with the correct
    * password.
    * 
-   * If the password attempt is correct, the "account_info" page is served to the customer
-   * with all account details retrieved from the MySQL DB.
+   * If the password attempt is correct, a new session token is issued and stored in a cookie, and
+   * the "account_info" page is served to the customer with all account details retrieved from the MySQL DB.
    * 
    * If the password attempt is incorrect, the user is redirected to the "welcome" page.
    * 
    * @param user
+   * @param response
    * @return "account_info" page if login successful. Otherwise, redirect to "welcome" page.
    */
   @PostMapping("/login")
-	public String submitLoginForm(@ModelAttribute("user") User user) {
-    // Print user's existing fields for debugging
-		System.out.println(user);
+  @QueryBudget(LOGIN_QUERY_BUDGET + ACCOUNT_SNAPSHOT_NUM_QUERIES)
+	public String submitLoginForm(@ModelAttribute("user") User user, HttpServletResponse response) {
+    String responsePage = submitLoginForm(user);
+    if (user.getSessionToken() != null) {
+      Cookie sessionTokenCookie = new Cookie(SESSION_TOKEN_COOKIE_NAME, user.getSessionToken());
+      sessionTokenCookie.setHttpOnly(true);
+      sessionTokenCookie.setPath("/");
+      response.addCookie(sessionTokenCookie);
+    }
+    return responsePage;
+	}
 
+  /**
+   * Checks the login form input and issues a session token for the customer if the password attempt is correct.
+   * The token is stored in the `sessionToken` field of `user`.
+   * 
+   * @param user
+   * @return "account_info" page if login successful. Otherwise, redirect to "welcome" page.
+   */
+	public String submitLoginForm(User user) {
     String userID = user.getUsername();
     String userPasswordAttempt = user.getPassword();
 
@@ -279,10 +685,13 @@ public class MvcController {
     String userPassword = TestudoBankRepository.getCustomerPassword(jdbcTemplate, userID);
 
     if (userPasswordAttempt.equals(userPassword)) {
+      countOutcome("login", OperationResult.SUCCESS);
+      user.setSessionToken(sessionTokenStore.issue(userID));
       updateAccountInfo(user);
 
       return "account_info";
     } else {
+      countOutcome("login", OperationResult.BAD_CREDENTIALS);
       return "welcome";
     }
 	}
@@ -297,65 +706,31 @@ public class MvcController {
    * and any excess deposit amount is added to the main balance.
    * 
    * @param user
+   * @param sessionToken session token cookie. Only authenticates the form if it carries the session's CSRF token
    * @return "account_info" page if valid deposit request. Otherwise, redirect to "welcome" page.
    */
   @PostMapping("/deposit")
-  public String submitDeposit(@ModelAttribute("user") User user) {
-    String userID = user.getUsername();
-    String userPasswordAttempt = user.getPassword();
-    String userPassword = TestudoBankRepository.getCustomerPassword(jdbcTemplate, userID);
-
-    //// Invalid Input/State Handling ////
+  @QueryBudget(DEPOSIT_QUERY_BUDGET + IDEMPOTENCY_KEY_NUM_QUERIES + ACCOUNT_SNAPSHOT_NUM_QUERIES)
+  public String submitDeposit(@ModelAttribute("user") User user, @CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken) {
+    authenticateFormWithCookie(user, sessionToken);
+    return submitDeposit(user);
+  }
 
+  /**
+   * Same as {@link #submitDeposit(User, String)}, authenticated by the `sessionToken` or `password` field of `user` alone.
+   */
+  public String submitDeposit(User user) {
     // unsuccessful login
-    if (userPasswordAttempt.equals(userPassword) == false) {
-      return "welcome";
-    }
-
-    // If customer already has too many reversals, their account is frozen. Don't complete deposit.
-    int numOfReversals = TestudoBankRepository.getCustomerNumberOfReversals(jdbcTemplate, userID);
-    if (numOfReversals >= MAX_DISPUTES){
+    if (!isAuthenticated(user)) {
+      countOutcome("deposit", OperationResult.BAD_CREDENTIALS);
       return "welcome";
     }
 
-    // Negative deposit amount is not allowed
-    double userDepositAmt = user.getAmountToDeposit();
-    if (userDepositAmt < 0) {
+    if (countOutcome("deposit", completeIdempotently("deposit", user, this::completeDeposit)) != OperationResult.SUCCESS) {
       return "welcome";
     }
-    
-    //// Complete Deposit Transaction ////
-    int userDepositAmtInPennies = convertDollarsToPennies(userDepositAmt); // dollar amounts stored as pennies to avoid floating point errors
-    String currentTime = SQL_DATETIME_FORMATTER.format(new java.util.Date()); // use same timestamp for all logs created by this deposit
-    int userOverdraftBalanceInPennies = TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, userID);
-    if (userOverdraftBalanceInPennies > 0) { // deposit will pay off overdraft first
-      // update overdraft balance in Customers table, and log the repayment in OverdraftLogs table.
-      int newOverdraftBalanceInPennies = Math.max(userOverdraftBalanceInPennies - userDepositAmtInPennies, 0);
-      TestudoBankRepository.setCustomerOverdraftBalance(jdbcTemplate, userID, newOverdraftBalanceInPennies);
-      TestudoBankRepository.insertRowToOverdraftLogsTable(jdbcTemplate, userID, currentTime, userDepositAmtInPennies, userOverdraftBalanceInPennies, newOverdraftBalanceInPennies);
-      
-      // add any excess deposit amount to main balance in Customers table
-      if (userDepositAmtInPennies > userOverdraftBalanceInPennies) {
-        int mainBalanceIncreaseAmtInPennies = userDepositAmtInPennies - userOverdraftBalanceInPennies;
-        TestudoBankRepository.increaseCustomerCashBalance(jdbcTemplate, userID, mainBalanceIncreaseAmtInPennies);
-      }
-
-    } else { // simple deposit case
-      TestudoBankRepository.increaseCustomerCashBalance(jdbcTemplate, userID, userDepositAmtInPennies);
-    }
-
-    // only adds deposit to transaction history if is not transfer
-    if (user.isTransfer()){
-      // Adds transaction recieve to transaction history
-      TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, userID, currentTime, TRANSACTION_HISTORY_TRANSFER_RECEIVE_ACTION, userDepositAmtInPennies);
-    } else if (user.isCryptoTransaction()) {
-      TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, userID, currentTime, TRANSACTION_HISTORY_CRYPTO_SELL_ACTION, userDepositAmtInPennies);
-    } else {
-      // Adds deposit to transaction history
-      TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, userID, currentTime, TRANSACTION_HISTORY_DEPOSIT_ACTION, userDepositAmtInPennies);
-    }
 
-    // update Model so that View can access new main balance, overdraft balance, and logs
+    // update Model so that View can access new main balance, overdraft balance, and logs.
     updateAccountInfo(user);
     return "account_info";
   }
@@ -373,82 +748,40 @@ public class MvcController {
    * to the existing overdraft balance.
    * 
    * @param user
+   * @param sessionToken session token cookie. Only authenticates the form if it carries the session's CSRF token
    * @return "account_info" page if withdraw request is valid. Otherwise, redirect to "welcome" page.
    */
   @PostMapping("/withdraw")
-  public String submitWithdraw(@ModelAttribute("user") User user) {
-    String userID = user.getUsername();
-    String userPasswordAttempt = user.getPassword();
-    String userPassword = TestudoBankRepository.getCustomerPassword(jdbcTemplate, userID);
-
-    //// Invalid Input/State Handling ////
+  @QueryBudget(WITHDRAW_QUERY_BUDGET + IDEMPOTENCY_KEY_NUM_QUERIES + ACCOUNT_SNAPSHOT_NUM_QUERIES)
+  public String submitWithdraw(@ModelAttribute("user") User user, @CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken) {
+    authenticateFormWithCookie(user, sessionToken);
+    return submitWithdraw(user);
+  }
 
+  /**
+   * Same as {@link #submitWithdraw(User, String)}, authenticated by the `sessionToken` or `password` field of `user` alone.
+   */
+  public String submitWithdraw(User user) {
     // unsuccessful login
-    if (userPasswordAttempt.equals(userPassword) == false) {
-      return "welcome";
-    }
-
-    // If customer already has too many reversals, their account is frozen. Don't complete deposit.
-    int numOfReversals = TestudoBankRepository.getCustomerNumberOfReversals(jdbcTemplate, userID);
-    if (numOfReversals >= MAX_DISPUTES){
+    if (!isAuthenticated(user)) {
+      countOutcome("withdraw", OperationResult.BAD_CREDENTIALS);
       return "welcome";
     }
 
-    // Negative deposit amount is not allowed
-    double userWithdrawAmt = user.getAmountToWithdraw();
-    if (userWithdrawAmt < 0) {
+    if (countOutcome("withdraw", completeIdempotently("withdraw", user, this::completeWithdraw)) != OperationResult.SUCCESS) {
       return "welcome";
     }
 
-    //// Complete Withdraw Transaction ////
-    int userWithdrawAmtInPennies = convertDollarsToPennies(userWithdrawAmt); // dollar amounts stored as pennies to avoid floating point errors
-    String currentTime = SQL_DATETIME_FORMATTER.format(new java.util.Date()); // use same timestamp for all logs created by this deposit
-    int userBalanceInPennies = TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, userID);
-    int userOverdraftBalanceInPennies = TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, userID);
-    if (userWithdrawAmtInPennies > userBalanceInPennies) { // if withdraw amount exceeds main balance, withdraw into overdraft with interest fee
-      int excessWithdrawAmtInPennies = userWithdrawAmtInPennies - userBalanceInPennies;
-      int newOverdraftIncreaseAmtAfterInterestInPennies = (int)(excessWithdrawAmtInPennies * INTEREST_RATE);
-      int newOverdraftBalanceInPennies = userOverdraftBalanceInPennies + newOverdraftIncreaseAmtAfterInterestInPennies;
-
-      // abort withdraw transaction if new overdraft balance exceeds max overdraft limit
-      // IMPORTANT: Compare new overdraft balance to max overdraft limit AFTER applying the interest rate!
-      if (newOverdraftBalanceInPennies > MAX_OVERDRAFT_IN_PENNIES) {
-        return "welcome";
-      }
-
-      // this is a valid withdraw into overdraft, so we can set Balance column to 0.
-      // OK to do this even if we were already in overdraft since main balance was already 0 anyways
-      TestudoBankRepository.setCustomerCashBalance(jdbcTemplate, userID, 0);
-
-      // increase overdraft balance by the withdraw amount after interest
-      TestudoBankRepository.setCustomerOverdraftBalance(jdbcTemplate, userID, newOverdraftBalanceInPennies);
-
-    } else { // simple, non-overdraft withdraw case
-      TestudoBankRepository.decreaseCustomerCashBalance(jdbcTemplate, userID, userWithdrawAmtInPennies);
-    }
-
-    // only adds withdraw to transaction history if is not transfer
-    if (user.isTransfer()){
-      // Adds transfer send to transaction history
-      TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, userID, currentTime, TRANSACTION_HISTORY_TRANSFER_SEND_ACTION, userWithdrawAmtInPennies);
-    } else if (user.isCryptoTransaction()) {
-      TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, userID, currentTime, TRANSACTION_HISTORY_CRYPTO_BUY_ACTION, userWithdrawAmtInPennies);
-    } else {
-      // Adds withdraw to transaction history
-      TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, userID, currentTime, TRANSACTION_HISTORY_WITHDRAW_ACTION, userWithdrawAmtInPennies);
-    }
-
-  
-    // update Model so that View can access new main balance, overdraft balance, and logs
+    // update Model so that View can access new main balance, overdraft balance, and logs.
     updateAccountInfo(user);
     return "account_info";
-
   }
 
   /**
    * HTML POST request handler for the Dispute Form page.
    * 
-   * The same username+password handling from the login page is used.
+   * The user is authenticated by their session token if they have one. Otherwise, the same
+   * username+password handling from the login page is used.
    * 
    * If the password attempt is correct, the transaction is reversed and the proper
    * balances are updated
@@ -456,84 +789,29 @@ public class MvcController {
    * If the password attempt is incorrect, the user is redirected to the "welcome" page.
    * 
    * @param user
+   * @param sessionToken session token cookie. Only authenticates the form if it carries the session's CSRF token
    * @return "account_info" page if login successful. Otherwise, redirect to "welcome" page.
    */
   @PostMapping("/dispute")
-  public String submitDispute(@ModelAttribute("user") User user) {
-    // Ensure that requested transaction to reverse is within acceptable range
-    if (user.getNumTransactionsAgo() <= 0 || user.getNumTransactionsAgo() > MAX_REVERSABLE_TRANSACTIONS_AGO) {
-      return "welcome";
-    }
-
-    String userID = user.getUsername();
-    String userPasswordAttempt = user.getPassword();
-    
-    String userPassword = TestudoBankRepository.getCustomerPassword(jdbcTemplate, userID);
+  @QueryBudget(DISPUTE_QUERY_BUDGET + IDEMPOTENCY_KEY_NUM_QUERIES + ACCOUNT_SNAPSHOT_NUM_QUERIES)
+  public String submitDispute(@ModelAttribute("user") User user, @CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken) {
+    authenticateFormWithCookie(user, sessionToken);
+    return submitDispute(user);
+  }
 
+  /**
+   * Same as {@link #submitDispute(User, String)}, authenticated by the `sessionToken` or `password` field of `user` alone.
+   */
+  public String submitDispute(User user) {
     // unsuccessful login
-    if (userPasswordAttempt.equals(userPassword) == false) {
+    if (!isAuthenticated(user)) {
+      countOutcome("dispute", OperationResult.BAD_CREDENTIALS);
       return "welcome";
     }
 
-    // check if customer account is frozen
-    int numOfReversals = TestudoBankRepository.getCustomerNumberOfReversals(jdbcTemplate, userID);
-    if (numOfReversals >= MAX_DISPUTES) {
+    if (countOutcome("dispute", completeIdempotently("dispute", user, this::completeDispute)) != OperationResult.SUCCESS) {
       return "welcome";
     }
-    
-    // Fetch 3 most recent transactions for this customer
-    List<Map<String,Object>> transactionLogs = TestudoBankRepository.getRecentTransactions(jdbcTemplate, userID, MAX_NUM_TRANSACTIONS_DISPLAYED);
-    
-    // Ensure customer has enough transactions to complete the reversal
-    if (user.getNumTransactionsAgo() > transactionLogs.size()) {
-      return "welcome";
-    }
-
-    // Retrieve correct log based on what transaction user wants to reverse
-    Map<String, Object> logToReverse = transactionLogs.get(user.getNumTransactionsAgo() - 1);
-
-    // Get balance and overdraft balance
-    int userBalanceInPennies = TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, userID);
-    int userOverdraftBalanceInPennies = TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, userID);
-
-    int reversalAmountInPennies = (int) logToReverse.get("Amount");
-    double reversalAmount = reversalAmountInPennies / 100.0;
-
-    // If transaction to reverse is a deposit, then withdraw the money out
-    if (((String) logToReverse.get("Action")).toLowerCase().equals("deposit")) {
-      // if withdraw would exceed max overdraft possible, return welcome
-      if (userOverdraftBalanceInPennies + (reversalAmountInPennies - userBalanceInPennies) > MAX_OVERDRAFT_IN_PENNIES) {
-        return "welcome";
-      }
-      user.setAmountToWithdraw(reversalAmount);
-      submitWithdraw(user);
-
-      // If reversing a deposit puts customer back in overdraft
-      if (reversalAmountInPennies > userBalanceInPennies){
-        // check if the reversed deposit helped pay off overdraft balance
-        // if it did, do not re-apply the interest rate after the reversal of the deposit since the customer was already in overdraft
-        String datetimeOfReversedDeposit = SQL_DATETIME_FORMATTER.format(convertLocalDateTimeToDate((LocalDateTime)logToReverse.get("Timestamp")));
-        List<Map<String,Object>> overdraftLogs = TestudoBankRepository.getOverdraftLogs(jdbcTemplate, userID, datetimeOfReversedDeposit);
-
-        // fetch updated overdraft balance with extra interest rate applied
-        double updatedOverdraftBalanceInPennies = TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, userID);
-        // reverse extra application of interest rate since customer was already in overdraft
-        int newOverdraftBalanceInPennies = (int) (updatedOverdraftBalanceInPennies / 1.02);
-
-        if (overdraftLogs.size() != 0) {
-          // remove extra entry from overdraft logs
-          TestudoBankRepository.deleteRowFromOverdraftLogsTable(jdbcTemplate, userID, datetimeOfReversedDeposit);
-          TestudoBankRepository.setCustomerOverdraftBalance(jdbcTemplate, userID, newOverdraftBalanceInPennies);
-        }
-      } 
-    } else { // Case when reversing a withdraw, deposit the money instead
-      user.setAmountToDeposit(reversalAmount);
-      submitDeposit(user);
-    }
-
-    // Adds to number of reversals only after a successful reversal 
-    numOfReversals++;
-    TestudoBankRepository.setCustomerNumFraudReversals(jdbcTemplate, userID, numOfReversals);
 
     updateAccountInfo(user);
 
@@ -543,256 +821,767 @@ public class MvcController {
   /**
    * HTML POST request handler for the Transfer Form page.
    * 
-   * The same username+password handling from the login page is used.
+   * The user is authenticated by their session token if they have one. Otherwise, the same
+   * username+password handling from the login page is used.
    * 
    * If the password attempt is correct, the users transfer successfully goes through
    * if it is a valid transfer. Both customers balances are properly updated.
    * 
    * If the password attempt is incorrect, the user is redirected to the "welcome" page.
    * 
-   * Transfer function is implemented by re-using deposit and withdraw handlers to 
-   * facilitate a transfer between 2 users.
+   * The debit from the sender, the credit to the recipient, and all logs for the transfer
+   * are committed together in one DB transaction by the {@link TransferEngine}. If either
+   * customer doesn't exist, either account is frozen, or the sender would exceed the overdraft
+   * limit, nothing is changed. If account mutations are partitioned, the debit and credit run
+   * on the sender's and recipient's partitions instead, and a rejected credit refunds the debit.
    * 
    * @param user
+   * @param sessionToken session token cookie. Only authenticates the form if it carries the session's CSRF token
    * @return "account_info" page if login successful. Otherwise, redirect to "welcome" page.
    */
   @PostMapping("/transfer")
-  public String submitTransfer(@ModelAttribute("user") User sender) {
+  @QueryBudget(TRANSFER_QUERY_BUDGET + IDEMPOTENCY_KEY_NUM_QUERIES + ACCOUNT_SNAPSHOT_NUM_QUERIES)
+  public String submitTransfer(@ModelAttribute("user") User sender, @CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken) {
+    authenticateFormWithCookie(sender, sessionToken);
+    return submitTransfer(sender);
+  }
 
-    // checks to see the customer you are transfering to exists
-    if (!TestudoBankRepository.doesCustomerExist(jdbcTemplate, sender.getTransferRecipientID())){
+  /**
+   * Same as {@link #submitTransfer(User, String)}, authenticated by the `sessionToken` or `password` field of `sender` alone.
+   */
+  public String submitTransfer(User sender) {
+    // unsuccessful login
+    if (!isAuthenticated(sender)) {
+      countOutcome("transfer", OperationResult.BAD_CREDENTIALS);
       return "welcome";
     }
 
-    String senderUserID = sender.getUsername();
-    String senderPasswordAttempt = sender.getPassword();
-    String senderPassword = TestudoBankRepository.getCustomerPassword(jdbcTemplate, senderUserID);
+    if (countOutcome("transfer", completeIdempotently("transfer", sender, this::completeTransfer)) != OperationResult.SUCCESS) {
+      return "welcome";
+    }
 
-    // creates new user for recipient
-    User recipient = new User();
-    String recipientUserID = sender.getTransferRecipientID();
-    String recipientPassword = TestudoBankRepository.getCustomerPassword(jdbcTemplate, recipientUserID);
-    recipient.setUsername(recipientUserID);
-    recipient.setPassword(recipientPassword);
+    updateAccountInfo(sender);
 
-    // sets isTransfer to true for sender and recipient
-    sender.setTransfer(true);
-    recipient.setTransfer(true);
+    return "account_info";
+  }
 
-    /// Invalid Input/State Handling ///
+  /**
+   * HTML POST request handler for the Buy Crypto Form page.
+   * <p>
+   * The user is authenticated by their session token if they have one. Otherwise, the same
+   * username+password handling from the login page is used.
+   * <p>
+   * If the password attempt is correct, the user is not in overdraft,
+   * and the purchase amount is a valid amount that does not exceed balance,
+   * the cost of the cryptocurrency in cash will be subtracted from the users balance,
+   * and cryptocurrency will be added to the users account
+   * <p>
+   * If the password attempt is incorrect or the amount to purchase is invalid,
+   * the user is redirected to the "welcome" page.
+   * <p>
+   * Crypto purchase function is implemented by re-using the withdraw logic.
+   *
+   * @param user
+   * @param sessionToken session token cookie. Only authenticates the form if it carries the session's CSRF token
+   * @return "account_info" page if buy successful. Otherwise, redirect to "welcome" page.
+   */
+  @PostMapping("/buycrypto")
+  @QueryBudget(CRYPTO_TRADE_QUERY_BUDGET + IDEMPOTENCY_KEY_NUM_QUERIES + ACCOUNT_SNAPSHOT_NUM_QUERIES)
+  public String buyCrypto(@ModelAttribute("user") User user, @CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken) {
+    authenticateFormWithCookie(user, sessionToken);
+    return buyCrypto(user);
+  }
 
+  /**
+   * Same as {@link #buyCrypto(User, String)}, authenticated by the `sessionToken` or `password` field of `user` alone.
+   */
+  public String buyCrypto(User user) {
     // unsuccessful login
-    if (senderPasswordAttempt.equals(senderPassword) == false) {
+    if (!isAuthenticated(user)) {
+      countOutcome("buycrypto", OperationResult.BAD_CREDENTIALS);
       return "welcome";
     }
 
-    // case where customer already has too many reversals
-    int numOfReversals = TestudoBankRepository.getCustomerNumberOfReversals(jdbcTemplate, senderUserID);
-    if (numOfReversals >= MAX_DISPUTES) {
+    CryptoPriceSnapshot cryptoPrices = cryptoPriceClient.getPriceSnapshot();
+    if (countOutcome("buycrypto", completeIdempotently("buycrypto", user, buyer -> completeCryptoBuy(buyer, cryptoPrices))) != OperationResult.SUCCESS) {
       return "welcome";
     }
 
-    // case where customer tries to send money to themselves
-    if (sender.getTransferRecipientID().equals(senderUserID)){
-      return "welcome";
-    }
-
-    // initialize variables for transfer amount
-    double transferAmount = sender.getAmountToTransfer();
-    int transferAmountInPennies = convertDollarsToPennies(transferAmount);
-
-    // negative transfer amount is not allowed
-    if (transferAmount < 0) {
-      return "welcome";
-    } 
-  
-    String currentTime = SQL_DATETIME_FORMATTER.format(new java.util.Date()); // use same timestamp for all logs created by this transfer
-
-    // withdraw transfer amount from sender and deposit into recipient's account
-    sender.setAmountToWithdraw(transferAmount);
-    submitWithdraw(sender);
-
-    recipient.setAmountToDeposit(transferAmount);
-    submitDeposit(recipient);
-
-    // Inserting transfer into transfer history for both customers
-    TestudoBankRepository.insertRowToTransferLogsTable(jdbcTemplate, senderUserID, recipientUserID, currentTime, transferAmountInPennies);
-    updateAccountInfo(sender);
+    // the page shows the prices the trade was made at
+    updateAccountInfo(user, cryptoPrices);
 
     return "account_info";
   }
 
   /**
-   * HTML POST request handler for the Buy Crypto Form page.
+   * HTML POST request handler for the Sell Crypto Form page.
    * <p>
-   * The same username+password handling from the login page is used.
+   * The user is authenticated by their session token if they have one. Otherwise, the same
+   * username+password handling from the login page is used.
    * <p>
-   * If the password attempt is correct, the user is not in overdraft,
-   * and the purchase amount is a valid amount that does not exceed balance,
-   * the cost of the cryptocurrency in cash will be subtracted from the users balance,
-   * and cryptocurrency will be added to the users account
+   * If the password attempt is correct, and the purchase amount is a valid amount
+   * that does not exceed crypto balance, the cost of the cryptocurrency in cash will be
+   * added to the users cash balance, and cryptocurrency will be subtracted from the users account
    * <p>
    * If the password attempt is incorrect or the amount to purchase is invalid,
    * the user is redirected to the "welcome" page.
    * <p>
-   * Crypto purchase function is implemented by re-using withdraw handler.
+   * Crypto purchase function is implemented by re-using the deposit logic.
+   * Logic of deposit (applying to overdraft, adding to balance, etc.) is delegated to it.
    *
    * @param user
-   * @return "account_info" page if buy successful. Otherwise, redirect to "welcome" page.
+   * @param sessionToken session token cookie. Only authenticates the form if it carries the session's CSRF token
+   * @return "account_info" page if sell successful. Otherwise, redirect to "welcome" page.
    */
-  @PostMapping("/buycrypto")
-  public String buyCrypto(@ModelAttribute("user") User user) {
+  @PostMapping("/sellcrypto")
+  @QueryBudget(CRYPTO_TRADE_QUERY_BUDGET + IDEMPOTENCY_KEY_NUM_QUERIES + ACCOUNT_SNAPSHOT_NUM_QUERIES)
+  public String sellCrypto(@ModelAttribute("user") User user, @CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken) {
+    authenticateFormWithCookie(user, sessionToken);
+    return sellCrypto(user);
+  }
 
+  /**
+   * Same as {@link #sellCrypto(User, String)}, authenticated by the `sessionToken` or `password` field of `user` alone.
+   */
+  public String sellCrypto(User user) {
+    // unsuccessful login
+    if (!isAuthenticated(user)) {
+      countOutcome("sellcrypto", OperationResult.BAD_CREDENTIALS);
+      return "welcome";
+    }
+
+    CryptoPriceSnapshot cryptoPrices = cryptoPriceClient.getPriceSnapshot();
+    if (countOutcome("sellcrypto", completeIdempotently("sellcrypto", user, seller -> completeCryptoSell(seller, cryptoPrices))) != OperationResult.SUCCESS) {
+      return "welcome";
+    }
+
+    // the page shows the prices the trade was made at
+    updateAccountInfo(user, cryptoPrices);
+
+    return "account_info";
+  }
+
+  //// JSON API HANDLERS ////
+
+  /**
+   * JSON POST request handler that logs a customer in with the `username` and `password` fields of the request body.
+   * 
+   * Unlike the Login Form, no account details are loaded: the response only carries the new session token,
+   * which is also stored in a cookie. Later JSON requests can send it in that cookie or in the `sessionToken` field.
+   * 
+   * @param user
+   * @param response
+   * @return the session token, or 401 if the password attempt is incorrect
+   */
+  @PostMapping(API_PATH_PREFIX + "/login")
+  @ResponseBody
+  @QueryBudget(LOGIN_QUERY_BUDGET)
+  public ResponseEntity<ApiLoginResult> submitApiLogin(@RequestBody User user, HttpServletResponse response) {
     String userID = user.getUsername();
     String userPasswordAttempt = user.getPassword();
     String userPassword = TestudoBankRepository.getCustomerPassword(jdbcTemplate, userID);
+    if (userPasswordAttempt == null || !userPasswordAttempt.equals(userPassword)) {
+      countOutcome("login", OperationResult.BAD_CREDENTIALS);
+      return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+    }
+    countOutcome("login", OperationResult.SUCCESS);
+
+    String sessionToken = sessionTokenStore.issue(userID);
+    Cookie sessionTokenCookie = new Cookie(SESSION_TOKEN_COOKIE_NAME, sessionToken);
+    sessionTokenCookie.setHttpOnly(true);
+    sessionTokenCookie.setPath("/");
+    response.addCookie(sessionTokenCookie);
+    return ResponseEntity.ok(new ApiLoginResult(sessionToken));
+  }
 
-    //// Invalid Input/State Handling ////
+  /**
+   * JSON GET request handler that serves the logged-in customer's name, balances, and crypto holdings,
+   * read in a single query. The histories are served by the paginated history handlers under {@value #API_PATH_PREFIX}/history.
+   * 
+   * @param sessionToken
+   * @return the account summary, or 401 if the session token is missing or expired
+   */
+  @GetMapping(API_PATH_PREFIX + "/account")
+  @ResponseBody
+  @QueryBudget(ACCOUNT_SUMMARY_QUERY_BUDGET)
+  public ResponseEntity<AccountSummary> getAccountSummary(@CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken) {
+    Optional<String> customerID = sessionTokenStore.validate(sessionToken);
+    if (!customerID.isPresent()) {
+      return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+    }
+    return ResponseEntity.ok(TestudoBankRepository.getAccountSummary(jdbcTemplate, customerID.get()));
+  }
+
+  /**
+   * JSON POST request handler for deposits. The request body has the same fields as the Deposit Form.
+   * See {@link #submitDeposit} for how the deposit is applied.
+   * 
+   * A client that may retry the request should send an `idempotencyKey`: a retry with the same key gets the
+   * outcome of the first request (including a rejection) instead of depositing again. The same goes for every JSON POST handler.
+   * 
+   * @param user
+   * @param sessionToken session token cookie, used if the request body has no `sessionToken` or `password`
+   * @return the new balances, 401 if the request is not authenticated, 422 if the deposit was rejected,
+   *         409 if a request with the same idempotency key is still running on another instance, or 500 if the deposit failed
+   *         (a retry with the same key gets 500 too, since the deposit may have been applied before it failed)
+   */
+  @PostMapping(API_PATH_PREFIX + "/deposit")
+  @ResponseBody
+  @QueryBudget(DEPOSIT_QUERY_BUDGET + IDEMPOTENCY_KEY_NUM_QUERIES + 1)
+  public ResponseEntity<BalanceResult> submitApiDeposit(@RequestBody User user, @CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken) {
+    return completeApiRequest("deposit", user, sessionToken, this::completeDeposit);
+  }
+
+  /**
+   * JSON POST request handler for withdraws. See {@link #submitApiDeposit} and {@link #submitWithdraw}.
+   */
+  @PostMapping(API_PATH_PREFIX + "/withdraw")
+  @ResponseBody
+  @QueryBudget(WITHDRAW_QUERY_BUDGET + IDEMPOTENCY_KEY_NUM_QUERIES + 1)
+  public ResponseEntity<BalanceResult> submitApiWithdraw(@RequestBody User user, @CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken) {
+    return completeApiRequest("withdraw", user, sessionToken, this::completeWithdraw);
+  }
+
+  /**
+   * JSON POST request handler for disputes. See {@link #submitApiDeposit} and {@link #submitDispute}.
+   */
+  @PostMapping(API_PATH_PREFIX + "/dispute")
+  @ResponseBody
+  @QueryBudget(DISPUTE_QUERY_BUDGET + IDEMPOTENCY_KEY_NUM_QUERIES + 1)
+  public ResponseEntity<BalanceResult> submitApiDispute(@RequestBody User user, @CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken) {
+    return completeApiRequest("dispute", user, sessionToken, this::completeDispute);
+  }
+
+  /**
+   * JSON POST request handler for transfers. The sender's new balances are returned.
+   * See {@link #submitApiDeposit} and {@link #submitTransfer}.
+   */
+  @PostMapping(API_PATH_PREFIX + "/transfer")
+  @ResponseBody
+  @QueryBudget(TRANSFER_QUERY_BUDGET + IDEMPOTENCY_KEY_NUM_QUERIES + 1)
+  public ResponseEntity<BalanceResult> submitApiTransfer(@RequestBody User user, @CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken) {
+    return completeApiRequest("transfer", user, sessionToken, this::completeTransfer);
+  }
+
+  /**
+   * JSON POST request handler for crypto purchases. See {@link #submitApiDeposit} and {@link #buyCrypto}.
+   */
+  @PostMapping(API_PATH_PREFIX + "/buycrypto")
+  @ResponseBody
+  @QueryBudget(CRYPTO_TRADE_QUERY_BUDGET + IDEMPOTENCY_KEY_NUM_QUERIES + 1)
+  public ResponseEntity<BalanceResult> submitApiBuyCrypto(@RequestBody User user, @CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken) {
+    return completeApiRequest("buycrypto", user, sessionToken, apiUser -> completeCryptoBuy(apiUser, cryptoPriceClient.getPriceSnapshot()));
+  }
+
+  /**
+   * JSON POST request handler for crypto sales. See {@link #submitApiDeposit} and {@link #sellCrypto}.
+   */
+  @PostMapping(API_PATH_PREFIX + "/sellcrypto")
+  @ResponseBody
+  @QueryBudget(CRYPTO_TRADE_QUERY_BUDGET + IDEMPOTENCY_KEY_NUM_QUERIES + 1)
+  public ResponseEntity<BalanceResult> submitApiSellCrypto(@RequestBody User user, @CookieValue(name = SESSION_TOKEN_COOKIE_NAME, required = false) String sessionToken) {
+    return completeApiRequest("sellcrypto", user, sessionToken, apiUser -> completeCryptoSell(apiUser, cryptoPriceClient.getPriceSnapshot()));
+  }
+
+  // Shared by the JSON POST handlers: authenticates the request, runs the operation, and responds with the customer's new balances
+  private ResponseEntity<BalanceResult> completeApiRequest(String operationName, User user, String sessionTokenCookie, Function<User, OperationResult> operation) {
+    // the session token cookie is only used if the body doesn't carry credentials of its own
+    if (user.getSessionToken() == null && user.getPassword() == null) {
+      user.setSessionToken(sessionTokenCookie);
+    }
+    // a request with a session token doesn't need to repeat the username
+    if (user.getUsername() == null) {
+      user.setUsername(sessionTokenStore.validate(user.getSessionToken()).orElse(null));
+    }
 
     // unsuccessful login
-    if (!userPasswordAttempt.equals(userPassword)) {
-      return "welcome";
+    if (user.getUsername() == null || !isAuthenticated(user)) {
+      countOutcome(operationName, OperationResult.BAD_CREDENTIALS);
+      return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+    }
+
+    OperationResult result = countOutcome(operationName, completeIdempotently(operationName, user, operation));
+    if (result == OperationResult.REQUEST_IN_PROGRESS) {
+      return ResponseEntity.status(HttpStatus.CONFLICT).build();
+    }
+    if (result == OperationResult.FAILED) {
+      return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+    }
+    if (result != OperationResult.SUCCESS) {
+      return ResponseEntity.unprocessableEntity().build();
+    }
+
+    AccountState accountState = TestudoBankRepository.getCustomerAccountState(jdbcTemplate, user.getUsername());
+    return ResponseEntity.ok(new BalanceResult(accountState.getBalanceInPennies(), accountState.getOverdraftBalanceInPennies()));
+  }
+
+  //// ACCOUNT OPERATIONS ////
+  // Validate and complete each operation for a customer who is already authenticated.
+  // Shared by the HTML and JSON handlers, which each render their own response.
+
+  /**
+   * Completes the deposit in the `amountToDeposit` field of `user`. See {@link #submitDeposit}.
+   * 
+   * @param user
+   * @return SUCCESS, or why the deposit was rejected and nothing was changed
+   */
+  private OperationResult completeDeposit(User user) {
+    String userID = user.getUsername();
+
+    //// Invalid Input/State Handling ////
+
+    // If customer already has too many reversals, their account is frozen. Don't complete deposit.
+    int numOfReversals = TestudoBankRepository.getCustomerNumberOfReversals(jdbcTemplate, userID);
+    if (numOfReversals >= MAX_DISPUTES){
+      return OperationResult.FROZEN_ACCOUNT;
+    }
+
+    // Negative deposit amount is not allowed
+    double userDepositAmt = user.getAmountToDeposit();
+    if (userDepositAmt < 0) {
+      return OperationResult.INVALID_INPUT;
+    }
+    
+    //// Complete Deposit Transaction ////
+    // runs on the account's partition, so no other mutation of this account can interleave with it.
+    // The balances are updated optimistically: if anything else updated the Customers row since it was read, the deposit is re-run
+    return accountPartitions.call(userID, () -> balanceUpdateRetryPolicy.call(() -> deposit(user, userID, userDepositAmt, () -> {}, Collections.emptyList())));
+  }
+
+  // The new balances are committed by the LedgerWriter in one DB transaction with the history and ledger rows of the deposit,
+  // and with `otherUpdate` and `otherRows` (the rest of an operation that deposits, e.g. the new holdings and crypto history of a sale)
+  private OperationResult deposit(User user, String userID, double userDepositAmt, Runnable otherUpdate, List<TestudoBankRepository.HistoryRow> otherRows) {
+    int userDepositAmtInPennies = convertDollarsToPennies(userDepositAmt); // dollar amounts stored as pennies to avoid floating point errors
+    String currentTime = SQL_DATETIME_FORMATTER.format(LocalDateTime.now()); // use same timestamp for all logs created by this deposit
+    AccountState accountState = TestudoBankRepository.getCustomerAccountState(jdbcTemplate, userID);
+    int userOverdraftBalanceInPennies = accountState.getOverdraftBalanceInPennies();
+
+    // only adds deposit to transaction history if is not transfer
+    String transactionHistoryAction;
+    if (user.isTransfer()){
+      // Adds transaction recieve to transaction history
+      transactionHistoryAction = TRANSACTION_HISTORY_TRANSFER_RECEIVE_ACTION;
+    } else if (user.isCryptoTransaction()) {
+      transactionHistoryAction = TRANSACTION_HISTORY_CRYPTO_SELL_ACTION;
+    } else {
+      // Adds deposit to transaction history
+      transactionHistoryAction = TRANSACTION_HISTORY_DEPOSIT_ACTION;
+    }
+
+    // balance changes are recorded as ledger events
+    List<TestudoBankRepository.LedgerEventRow> ledgerEvents = new ArrayList<>();
+    List<TestudoBankRepository.HistoryRow> historyRows = new ArrayList<>(); // written together with the ledger events
+    TestudoBankRepository.TransactionHistoryRow transactionHistoryRow = new TestudoBankRepository.TransactionHistoryRow(userID, currentTime, transactionHistoryAction, userDepositAmtInPennies);
+    if (userOverdraftBalanceInPennies > 0) { // deposit will pay off overdraft first
+      // reduce overdraft balance, and log the repayment in OverdraftLogs table, linked to the deposit so that a dispute can find it
+      int newOverdraftBalanceInPennies = Math.max(userOverdraftBalanceInPennies - userDepositAmtInPennies, 0);
+      ledgerEvents.add(new TestudoBankRepository.LedgerEventRow(userID, currentTime, LEDGER_EVENT_OVERDRAFT_REPAYMENT, 0, newOverdraftBalanceInPennies - userOverdraftBalanceInPennies));
+      historyRows.add(new TestudoBankRepository.OverdraftLogRow(userID, currentTime, userDepositAmtInPennies, userOverdraftBalanceInPennies, newOverdraftBalanceInPennies, transactionHistoryRow));
+    
+      // add any excess deposit amount to main balance
+      if (userDepositAmtInPennies > userOverdraftBalanceInPennies) {
+        int mainBalanceIncreaseAmtInPennies = userDepositAmtInPennies - userOverdraftBalanceInPennies;
+        ledgerEvents.add(new TestudoBankRepository.LedgerEventRow(userID, currentTime, transactionHistoryAction, mainBalanceIncreaseAmtInPennies, 0));
+      }
+
+    } else { // simple deposit case
+      ledgerEvents.add(new TestudoBankRepository.LedgerEventRow(userID, currentTime, transactionHistoryAction, userDepositAmtInPennies, 0));
+    }
+    historyRows.add(transactionHistoryRow);
+    historyRows.addAll(ledgerEvents);
+    historyRows.addAll(otherRows);
+
+    // the events are applied to the Customers table only if it is unchanged since it was read
+    ledgerWriter.write(() -> {
+      ledgerProjector.applyIfUnchanged(userID, accountState, ledgerEvents);
+      otherUpdate.run();
+    }, historyRows);
+    return OperationResult.SUCCESS;
+  }
+
+  /**
+   * Completes the withdraw in the `amountToWithdraw` field of `user`. See {@link #submitWithdraw}.
+   * 
+   * @param user
+   * @return SUCCESS, or why the withdraw was rejected and nothing was changed
+   */
+  private OperationResult completeWithdraw(User user) {
+    String userID = user.getUsername();
+
+    //// Invalid Input/State Handling ////
+
+    // If customer already has too many reversals, their account is frozen. Don't complete deposit.
+    int numOfReversals = TestudoBankRepository.getCustomerNumberOfReversals(jdbcTemplate, userID);
+    if (numOfReversals >= MAX_DISPUTES){
+      return OperationResult.FROZEN_ACCOUNT;
+    }
+
+    // Negative deposit amount is not allowed
+    double userWithdrawAmt = user.getAmountToWithdraw();
+    if (userWithdrawAmt < 0) {
+      return OperationResult.INVALID_INPUT;
+    }
+
+    //// Complete Withdraw Transaction ////
+    // runs on the account's partition, so no other mutation of this account can interleave with it.
+    // The balances are updated optimistically: if anything else updated the Customers row since it was read, the withdraw is re-run
+    return accountPartitions.call(userID, () -> balanceUpdateRetryPolicy.call(() -> {
+      AccountState accountState = TestudoBankRepository.getCustomerAccountState(jdbcTemplate, userID);
+      return withdraw(user, userID, userWithdrawAmt, accountState, () -> {}, Collections.emptyList());
+    }));
+  }
+
+  // Withdraws from the customer's balances as of `accountState`. The new balances are committed by the LedgerWriter in one
+  // DB transaction with the history and ledger rows of the withdraw, and with `otherUpdate` and `otherRows` (the rest of an
+  // operation that withdraws, e.g. the new holdings and crypto history of a purchase), only if the balances are still `accountState`
+  private OperationResult withdraw(User user, String userID, double userWithdrawAmt, AccountState accountState, Runnable otherUpdate, List<TestudoBankRepository.HistoryRow> otherRows) {
+    int userWithdrawAmtInPennies = convertDollarsToPennies(userWithdrawAmt); // dollar amounts stored as pennies to avoid floating point errors
+    String currentTime = SQL_DATETIME_FORMATTER.format(LocalDateTime.now()); // use same timestamp for all logs created by this deposit
+    int userBalanceInPennies = accountState.getBalanceInPennies();
+    int userOverdraftBalanceInPennies = accountState.getOverdraftBalanceInPennies();
+
+    // only adds withdraw to transaction history if is not transfer
+    String transactionHistoryAction;
+    if (user.isTransfer()){
+      // Adds transfer send to transaction history
+      transactionHistoryAction = TRANSACTION_HISTORY_TRANSFER_SEND_ACTION;
+    } else if (user.isCryptoTransaction()) {
+      transactionHistoryAction = TRANSACTION_HISTORY_CRYPTO_BUY_ACTION;
+    } else {
+      // Adds withdraw to transaction history
+      transactionHistoryAction = TRANSACTION_HISTORY_WITHDRAW_ACTION;
+    }
+
+    TestudoBankRepository.LedgerEventRow ledgerEvent;
+    if (userWithdrawAmtInPennies > userBalanceInPennies) { // if withdraw amount exceeds main balance, withdraw into overdraft with interest fee
+      int excessWithdrawAmtInPennies = userWithdrawAmtInPennies - userBalanceInPennies;
+      int newOverdraftIncreaseAmtAfterInterestInPennies = (int)(excessWithdrawAmtInPennies * INTEREST_RATE);
+      int newOverdraftBalanceInPennies = userOverdraftBalanceInPennies + newOverdraftIncreaseAmtAfterInterestInPennies;
+
+      // abort withdraw transaction if new overdraft balance exceeds max overdraft limit
+      // IMPORTANT: Compare new overdraft balance to max overdraft limit AFTER applying the interest rate!
+      if (newOverdraftBalanceInPennies > MAX_OVERDRAFT_IN_PENNIES) {
+        return OperationResult.OVERDRAFT_LIMIT;
+      }
+
+      // this is a valid withdraw into overdraft, so the main balance drops to 0.
+      // OK to do this even if we were already in overdraft since main balance was already 0 anyways.
+      // The overdraft balance increases by the withdraw amount after interest
+      ledgerEvent = new TestudoBankRepository.LedgerEventRow(userID, currentTime, transactionHistoryAction, -userBalanceInPennies, newOverdraftIncreaseAmtAfterInterestInPennies);
+
+    } else { // simple, non-overdraft withdraw case
+      ledgerEvent = new TestudoBankRepository.LedgerEventRow(userID, currentTime, transactionHistoryAction, -userWithdrawAmtInPennies, 0);
+    }
+
+    List<TestudoBankRepository.HistoryRow> historyRows = new ArrayList<>();
+    historyRows.add(new TestudoBankRepository.TransactionHistoryRow(userID, currentTime, transactionHistoryAction, userWithdrawAmtInPennies));
+    historyRows.add(ledgerEvent);
+    historyRows.addAll(otherRows);
+
+    // the ledger event is applied to the Customers table only if it is unchanged since it was read
+    ledgerWriter.write(() -> {
+      ledgerProjector.applyIfUnchanged(userID, accountState, Collections.singletonList(ledgerEvent));
+      otherUpdate.run();
+    }, historyRows);
+    return OperationResult.SUCCESS;
+  }
+
+  /**
+   * Reverses the transaction with the TransactionID `transactionIDToReverse` in the history of `user`, or if that is
+   * not set, the transaction `numTransactionsAgo` transactions back (up to the max reversable transactions ago).
+   * See {@link #submitDispute}.
+   * <p>
+   * Only deposits and withdraws can be reversed, and each of them only once. The disputed transaction and the
+   * overdraft repayment it made are loaded by key in one query, and the reversal is written in one DB transaction:
+   * the new balances, the reversal's TransactionHistory row (linked to the reversed row), and the customer's reversal count.
+   * 
+   * @param user
+   * @return SUCCESS if the transaction was reversed, or why the dispute was rejected and nothing was changed
+   */
+  private OperationResult completeDispute(User user) {
+    // Ensure that requested transaction to reverse is within acceptable range
+    boolean byTransactionID = user.getTransactionIDToReverse() != 0;
+    if (!byTransactionID && (user.getNumTransactionsAgo() <= 0 || user.getNumTransactionsAgo() > maxReversableTransactionsAgo)) {
+      return OperationResult.INVALID_INPUT;
+    }
+
+    String userID = user.getUsername();
+
+    // check if customer account is frozen
+    int numOfReversals = TestudoBankRepository.getCustomerNumberOfReversals(jdbcTemplate, userID);
+    if (numOfReversals >= MAX_DISPUTES) {
+      return OperationResult.FROZEN_ACCOUNT;
+    }
+
+    // runs on the account's partition. If anything else updated the Customers row since it was read, the reversal is rolled back and re-run
+    return accountPartitions.call(userID, () -> balanceUpdateRetryPolicy.call(() -> reverseTransaction(user, userID, byTransactionID)));
+  }
+
+  // The reversal is committed by the LedgerWriter in one DB transaction, so it is written all at once or not at all
+  private OperationResult reverseTransaction(User user, String userID, boolean byTransactionID) {
+    Optional<DisputedTransaction> disputedTransaction = byTransactionID
+        ? TestudoBankRepository.getDisputedTransaction(jdbcTemplate, userID, user.getTransactionIDToReverse())
+        : TestudoBankRepository.getDisputedTransactionAgo(jdbcTemplate, userID, user.getNumTransactionsAgo());
+
+    // Ensure the transaction exists, and is a deposit or withdraw that hasn't been reversed yet
+    if (!disputedTransaction.isPresent() || disputedTransaction.get().isReversal() || disputedTransaction.get().isReversed()) {
+      return OperationResult.INVALID_INPUT;
+    }
+    DisputedTransaction transactionToReverse = disputedTransaction.get();
+    boolean isDeposit = transactionToReverse.getAction().equals(TRANSACTION_HISTORY_DEPOSIT_ACTION);
+    if (!isDeposit && !transactionToReverse.getAction().equals(TRANSACTION_HISTORY_WITHDRAW_ACTION)) {
+      return OperationResult.INVALID_INPUT;
+    }
+
+    String currentTime = SQL_DATETIME_FORMATTER.format(LocalDateTime.now()); // use same timestamp for all logs created by this reversal
+    AccountState accountState = TestudoBankRepository.getCustomerAccountState(jdbcTemplate, userID);
+    int reversalAmountInPennies = transactionToReverse.getAmountInPennies();
+
+    List<TestudoBankRepository.LedgerEventRow> ledgerEvents = new ArrayList<>();
+    TestudoBankRepository.TransactionHistoryRow reversalRow;
+    List<TestudoBankRepository.HistoryRow> historyRows = new ArrayList<>();
+    Long overdraftLogIDToDelete = null;
+    if (isDeposit) { // If transaction to reverse is a deposit, then withdraw the money out
+      // the overdraft balance the deposit paid off is restored without re-applying the interest rate, since the customer was already in overdraft
+      AccountState newAccountState = accountState.afterDepositReversal(reversalAmountInPennies, transactionToReverse.getOverdraftRepaidInPennies());
+      if (newAccountState.exceedsOverdraftLimit()) {
+        return OperationResult.OVERDRAFT_LIMIT;
+      }
+      ledgerEvents.add(new TestudoBankRepository.LedgerEventRow(userID, currentTime, LEDGER_EVENT_REVERSAL,
+                                                                newAccountState.getBalanceInPennies() - accountState.getBalanceInPennies(),
+                                                                newAccountState.getOverdraftBalanceInPennies() - accountState.getOverdraftBalanceInPennies()));
+
+      // the repayment no longer happened, so its entry is removed from the overdraft logs
+      if (transactionToReverse.getOverdraftLogID() != null && newAccountState.getOverdraftBalanceInPennies() > accountState.getOverdraftBalanceInPennies()) {
+        overdraftLogIDToDelete = transactionToReverse.getOverdraftLogID();
+      }
+      reversalRow = new TestudoBankRepository.TransactionHistoryRow(userID, currentTime, TRANSACTION_HISTORY_WITHDRAW_ACTION, reversalAmountInPennies, transactionToReverse.getTransactionID());
+
+    } else { // Case when reversing a withdraw, deposit the money instead
+      AccountState newAccountState = accountState.afterDeposit(reversalAmountInPennies);
+      reversalRow = new TestudoBankRepository.TransactionHistoryRow(userID, currentTime, TRANSACTION_HISTORY_DEPOSIT_ACTION, reversalAmountInPennies, transactionToReverse.getTransactionID());
+      int overdraftDeltaInPennies = newAccountState.getOverdraftBalanceInPennies() - accountState.getOverdraftBalanceInPennies();
+      if (overdraftDeltaInPennies != 0) { // the deposit pays off overdraft first, which is logged like any other repayment
+        ledgerEvents.add(new TestudoBankRepository.LedgerEventRow(userID, currentTime, LEDGER_EVENT_OVERDRAFT_REPAYMENT, 0, overdraftDeltaInPennies));
+        historyRows.add(new TestudoBankRepository.OverdraftLogRow(userID, currentTime, reversalAmountInPennies, accountState.getOverdraftBalanceInPennies(),
+                                                                  newAccountState.getOverdraftBalanceInPennies(), reversalRow));
+      }
+      int balanceDeltaInPennies = newAccountState.getBalanceInPennies() - accountState.getBalanceInPennies();
+      if (balanceDeltaInPennies != 0) {
+        ledgerEvents.add(new TestudoBankRepository.LedgerEventRow(userID, currentTime, LEDGER_EVENT_REVERSAL, balanceDeltaInPennies, 0));
+      }
+    }
+    historyRows.add(reversalRow);
+    historyRows.addAll(ledgerEvents);
+
+    // the events are applied to the Customers table only if it is unchanged since it was read,
+    // and the number of reversals is only added to along with them
+    Long reversedOverdraftLogID = overdraftLogIDToDelete;
+    ledgerWriter.write(() -> {
+      ledgerProjector.applyIfUnchanged(userID, accountState, ledgerEvents);
+      if (reversedOverdraftLogID != null) {
+        TestudoBankRepository.deleteRowFromOverdraftLogsTable(jdbcTemplate, reversedOverdraftLogID);
+      }
+      TestudoBankRepository.setCustomerNumFraudReversals(jdbcTemplate, userID, accountState.getNumFraudReversals() + 1);
+    }, historyRows);
+    return OperationResult.SUCCESS;
+  }
+
+  /**
+   * Completes the transfer in the `amountToTransfer` and `transferRecipientID` fields of `sender`. See {@link #submitTransfer}.
+   * 
+   * @param sender
+   * @return SUCCESS, or why the transfer was rejected and nothing was changed
+   */
+  private OperationResult completeTransfer(User sender) {
+    String senderUserID = sender.getUsername();
+    String recipientUserID = sender.getTransferRecipientID();
+
+    /// Invalid Input/State Handling ///
+
+    // case where customer tries to send money to themselves, or to no one
+    if (recipientUserID == null || recipientUserID.equals(senderUserID)){
+      return OperationResult.INVALID_INPUT;
     }
 
+    // initialize variables for transfer amount
+    double transferAmount = sender.getAmountToTransfer();
+    int transferAmountInPennies = convertDollarsToPennies(transferAmount);
+
+    // negative transfer amount is not allowed
+    if (transferAmount < 0) {
+      return OperationResult.INVALID_INPUT;
+    } 
+  
+    String currentTime = SQL_DATETIME_FORMATTER.format(LocalDateTime.now()); // use same timestamp for all logs created by this transfer
+
+    // checks that both customers exist and are not frozen happen inside the transfer, while both rows are locked
+    // (or on the sender's and recipient's partitions, if account mutations are partitioned)
+    TransferEngine.TransferResult transferResult;
+    if (accountPartitions.getNumPartitions() > 0) {
+      transferResult = transferEngine.transfer(accountPartitions, senderUserID, recipientUserID, transferAmountInPennies, currentTime);
+    } else {
+      transferResult = transferEngine.transfer(senderUserID, recipientUserID, transferAmountInPennies, currentTime);
+    }
+    switch (transferResult) {
+      case SUCCESS:
+        return OperationResult.SUCCESS;
+      case SENDER_NOT_FOUND:
+      case RECIPIENT_NOT_FOUND:
+        return OperationResult.CUSTOMER_NOT_FOUND;
+      case SENDER_FROZEN:
+      case RECIPIENT_FROZEN:
+        return OperationResult.FROZEN_ACCOUNT;
+      default:
+        return OperationResult.OVERDRAFT_LIMIT;
+    }
+  }
+
+  /**
+   * Buys the `amountToBuyCrypto` of `whichCryptoToBuy` in `user` at the given prices. See {@link #buyCrypto}.
+   * 
+   * @param user
+   * @param cryptoPrices
+   * @return SUCCESS, or why the purchase was rejected and nothing was changed
+   */
+  private OperationResult completeCryptoBuy(User user, CryptoPriceSnapshot cryptoPrices) {
+    String userID = user.getUsername();
+
+    //// Invalid Input/State Handling ////
+
     // must buy a supported cryptocurrency
     String cryptoToBuy = user.getWhichCryptoToBuy();
     if (MvcController.SUPPORTED_CRYPTOCURRENCIES.contains(cryptoToBuy) == false) {
-      return "welcome";
+      return OperationResult.INVALID_INPUT;
     }
 
     // must buy a positive amount
     double cryptoAmountToBuy = user.getAmountToBuyCrypto();
     if (cryptoAmountToBuy <= 0) {
-      return "welcome";
-    }
-
-    // cannot buy crypto while in overdraft
-    int userOverdraftBalanceInPennies = TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, userID);
-    if (userOverdraftBalanceInPennies > 0) {
-      return "welcome";
+      return OperationResult.INVALID_INPUT;
     }
 
     // calculate how much it will cost to buy currently
-    double costOfCryptoPurchaseInDollars = cryptoPriceClient.getCurrentCryptoValue(cryptoToBuy) * cryptoAmountToBuy;
+    double costOfCryptoPurchaseInDollars = cryptoPrices.getPrice(cryptoToBuy) * cryptoAmountToBuy;
 
     // possible for web scraper to fail and return a negative value, abort if so
     if (costOfCryptoPurchaseInDollars < 0) {
-      return "welcome";
+      return OperationResult.PRICE_UNAVAILABLE;
     }
 
     double costOfCryptoPurchaseInPennies = convertDollarsToPennies(costOfCryptoPurchaseInDollars);
 
-    int userBalanceInPennies = TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, userID);
-
-    // check if balance will cover purchase
-    if (costOfCryptoPurchaseInPennies > userBalanceInPennies) {
-      return "welcome";
-    }
-
-    String currentTime = SQL_DATETIME_FORMATTER.format(new java.util.Date());
-
-    // buy crypto
+    // buy crypto on the account's partition. The account is checked against the same state the withdraw is applied to, so if
+    // anything else updated the Customers row since it was read, the checks are re-run along with the withdraw.
+    // The withdraw, the new holdings and the crypto history commit in one DB transaction, so a trade that fails part way changes nothing
+    long holdingsVersion = cryptoValuationEngine.getHoldingsVersion();
     user.setAmountToWithdraw(costOfCryptoPurchaseInDollars);
     user.setCryptoTransaction(true);
+    OperationResult buyResult = accountPartitions.call(userID, () -> balanceUpdateRetryPolicy.call(() -> {
+      AccountState accountState = TestudoBankRepository.getCustomerAccountState(jdbcTemplate, userID);
 
-    // TODO: I don't like how this is dependent on a string return value. Withdraw logic should probably be extracted
-    String withdrawResponse = submitWithdraw(user);
-
-    if (withdrawResponse.equals("account_info")) {
-
-      // create an entry in CryptoHoldings table if customer is buying this Crypto for the first time.
-      if (!TestudoBankRepository.getCustomerCryptoBalance(jdbcTemplate, userID, cryptoToBuy).isPresent()) {
-        TestudoBankRepository.initCustomerCryptoBalance(jdbcTemplate, userID, cryptoToBuy);
+      // cannot buy crypto while in overdraft
+      if (accountState.getOverdraftBalanceInPennies() > 0) {
+        return OperationResult.INSUFFICIENT_FUNDS;
       }
 
-      TestudoBankRepository.increaseCustomerCryptoBalance(jdbcTemplate, userID, cryptoToBuy, cryptoAmountToBuy);
-      TestudoBankRepository.insertRowToCryptoLogsTable(jdbcTemplate, userID, cryptoToBuy, CRYPTO_HISTORY_BUY_ACTION, currentTime, cryptoAmountToBuy);
+      // check if balance will cover purchase
+      if (costOfCryptoPurchaseInPennies > accountState.getBalanceInPennies()) {
+        return OperationResult.INSUFFICIENT_FUNDS;
+      }
 
-      updateAccountInfo(user);
+      // If customer already has too many reversals, their account is frozen
+      if (accountState.getNumFraudReversals() >= MAX_DISPUTES) {
+        return OperationResult.FROZEN_ACCOUNT;
+      }
 
-      return "account_info";
-    } else {
-      return "welcome";
+      String currentTime = SQL_DATETIME_FORMATTER.format(LocalDateTime.now());
+      return withdraw(user, userID, costOfCryptoPurchaseInDollars, accountState, () -> {
+        // create an entry in CryptoHoldings table if customer is buying this Crypto for the first time.
+        if (!TestudoBankRepository.getCustomerCryptoBalance(jdbcTemplate, userID, cryptoToBuy).isPresent()) {
+          TestudoBankRepository.initCustomerCryptoBalance(jdbcTemplate, userID, cryptoToBuy);
+        }
+        TestudoBankRepository.increaseCustomerCryptoBalance(jdbcTemplate, userID, cryptoToBuy, cryptoAmountToBuy);
+      }, Collections.singletonList(new TestudoBankRepository.CryptoHistoryRow(userID, cryptoToBuy, CRYPTO_HISTORY_BUY_ACTION, currentTime, cryptoAmountToBuy)));
+    }));
+    if (buyResult == OperationResult.SUCCESS) {
+      cryptoValuationEngine.applyTrade(holdingsVersion, userID, cryptoToBuy, cryptoAmountToBuy);
     }
-
+    return buyResult;
   }
 
   /**
-   * HTML POST request handler for the Sell Crypto Form page.
-   * <p>
-   * The same username+password handling from the login page is used.
-   * <p>
-   * If the password attempt is correct, and the purchase amount is a valid amount
-   * that does not exceed crypto balance, the cost of the cryptocurrency in cash will be
-   * added to the users cash balance, and cryptocurrency will be subtracted from the users account
-   * <p>
-   * If the password attempt is incorrect or the amount to purchase is invalid,
-   * the user is redirected to the "welcome" page.
-   * <p>
-   * Crypto purchase function is implemented by re-using deposit handler.
-   * Logic of deposit (applying to overdraft, adding to balance, etc.) is delegated to this handler.
-   *
+   * Sells the `amountToSellCrypto` of `whichCryptoToBuy` in `user` at the given prices. See {@link #sellCrypto}.
+   * 
    * @param user
-   * @return "account_info" page if sell successful. Otherwise, redirect to "welcome" page.
+   * @param cryptoPrices
+   * @return SUCCESS, or why the sale was rejected and nothing was changed
    */
-  @PostMapping("/sellcrypto")
-  public String sellCrypto(@ModelAttribute("user") User user) {
+  private OperationResult completeCryptoSell(User user, CryptoPriceSnapshot cryptoPrices) {
     String userID = user.getUsername();
-    String userPasswordAttempt = user.getPassword();
-    String userPassword = TestudoBankRepository.getCustomerPassword(jdbcTemplate, userID);
 
     //// Invalid Input/State Handling ////
 
-    // unsuccessful login
-    if (!userPasswordAttempt.equals(userPassword)) {
-      return "welcome";
-    }
-
     // must buy a supported cryptocurrency
     String cryptoToBuy = user.getWhichCryptoToBuy();
     if (MvcController.SUPPORTED_CRYPTOCURRENCIES.contains(cryptoToBuy) == false) {
-      return "welcome";
+      return OperationResult.INVALID_INPUT;
     }
 
     // must sell a positive amount
     double cryptoAmountToSell = user.getAmountToSellCrypto();
     if (cryptoAmountToSell <= 0) {
-      return "welcome";
-    }
-
-    // possible for user to not have any crypto
-    Optional<Double> cryptoBalance = TestudoBankRepository.getCustomerCryptoBalance(jdbcTemplate, userID, cryptoToBuy);
-    if (!cryptoBalance.isPresent()) {
-      return "welcome";
+      return OperationResult.INVALID_INPUT;
     }
 
-    // check if user has required crypto balance
-    // TODO: comparing doubles like this is probably not a good idea
-    if (cryptoBalance.get() < cryptoAmountToSell) {
-      return "welcome";
+    // possible for the prices to be too old to trade at, abort if so
+    double cryptoPrice = cryptoPrices.getPrice(cryptoToBuy);
+    if (cryptoPrice < 0) {
+      return OperationResult.PRICE_UNAVAILABLE;
     }
 
-    double cryptoValueInDollars = cryptoPriceClient.getCurrentCryptoValue(cryptoToBuy) * cryptoAmountToSell;
+    double cryptoValueInDollars = cryptoPrice * cryptoAmountToSell;
 
-    String currentTime = SQL_DATETIME_FORMATTER.format(new java.util.Date());
+    // If customer already has too many reversals, their account is frozen
+    int numOfReversals = TestudoBankRepository.getCustomerNumberOfReversals(jdbcTemplate, userID);
+    if (numOfReversals >= MAX_DISPUTES) {
+      return OperationResult.FROZEN_ACCOUNT;
+    }
 
+    // sell crypto on the account's partition. The deposit, the new holdings and the crypto history commit in one DB transaction,
+    // so a trade that fails part way changes nothing. The holdings are only decreased if they still cover the sale when it commits
+    long holdingsVersion = cryptoValuationEngine.getHoldingsVersion();
     user.setAmountToDeposit(cryptoValueInDollars);
     user.setCryptoTransaction(true);
+    OperationResult sellResult;
+    try {
+      sellResult = accountPartitions.call(userID, () -> balanceUpdateRetryPolicy.call(() -> {
+        // possible for user to not have any crypto
+        Optional<Double> cryptoBalance = TestudoBankRepository.getCustomerCryptoBalance(jdbcTemplate, userID, cryptoToBuy);
+        if (!cryptoBalance.isPresent()) {
+          return OperationResult.INSUFFICIENT_FUNDS;
+        }
 
-    // TODO: I don't like how this is dependent on a string return value. Deposit logic should probably be extracted
-    String depositResponse = submitDeposit(user);
-
-    if (depositResponse.equals("account_info")) {
-
-      TestudoBankRepository.decreaseCustomerCryptoBalance(jdbcTemplate, userID, cryptoToBuy, cryptoAmountToSell);
-      TestudoBankRepository.insertRowToCryptoLogsTable(jdbcTemplate, userID, cryptoToBuy, CRYPTO_HISTORY_SELL_ACTION, currentTime, cryptoAmountToSell);
-
-      updateAccountInfo(user);
+        // check if user has required crypto balance
+        // TODO: comparing doubles like this is probably not a good idea
+        if (cryptoBalance.get() < cryptoAmountToSell) {
+          return OperationResult.INSUFFICIENT_FUNDS;
+        }
 
-      return "account_info";
-    } else {
-      return "welcome";
+        String currentTime = SQL_DATETIME_FORMATTER.format(LocalDateTime.now());
+        return deposit(user, userID, cryptoValueInDollars, () -> {
+          if (!TestudoBankRepository.decreaseCustomerCryptoBalance(jdbcTemplate, userID, cryptoToBuy, cryptoAmountToSell)) {
+            throw new InsufficientHoldingsException();
+          }
+        }, Collections.singletonList(new TestudoBankRepository.CryptoHistoryRow(userID, cryptoToBuy, CRYPTO_HISTORY_SELL_ACTION, currentTime, cryptoAmountToSell)));
+      }));
+    } catch (InsufficientHoldingsException e) {
+      sellResult = OperationResult.INSUFFICIENT_FUNDS;
+    }
+    if (sellResult == OperationResult.SUCCESS) {
+      cryptoValuationEngine.applyTrade(holdingsVersion, userID, cryptoToBuy, -cryptoAmountToSell);
     }
+    return sellResult;
   }
 
-}
\ No newline at end of file
+}
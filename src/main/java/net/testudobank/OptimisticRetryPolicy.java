@@ -0,0 +1,99 @@
+package net.testudobank;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.springframework.dao.OptimisticLockingFailureException;
+
+/**
+ * Re-runs an optimistic read-compute-write operation when its conditional update loses a race.
+ * <p>
+ * An operation reads the rows it needs, computes the new values, and writes them with an UPDATE that only
+ * matches if the row is still at the version it read (see {@link TestudoBankRepository#compareAndSetCustomerBalances}),
+ * throwing {@link OptimisticLockingFailureException} otherwise. The whole operation is then re-run from the read,
+ * after a random backoff (full jitter, growing exponentially per attempt) so that colliding requests spread out
+ * instead of colliding again.
+ * <p>
+ * No row lock is held across the operation's round trips, which is cheaper than SELECT ... FOR UPDATE as long as
+ * conflicts are rare. The conflict and retry counts show whether they are.
+ */
+public class OptimisticRetryPolicy {
+  private final int maxAttempts;
+
+  private final long baseBackoffInNanos;
+
+  private final long maxBackoffInNanos;
+
+  private final AtomicLong numConflicts = new AtomicLong();
+
+  private final AtomicLong numRetries = new AtomicLong();
+
+  /**
+   * @param maxAttempts attempts (including the first) before the conflict is rethrown to the caller
+   * @param baseBackoff upper bound of the random backoff before the first retry. Doubles with every retry.
+   * @param maxBackoff cap on the upper bound of the random backoff
+   */
+  public OptimisticRetryPolicy(int maxAttempts, Duration baseBackoff, Duration maxBackoff) {
+    this.maxAttempts = maxAttempts;
+    this.baseBackoffInNanos = baseBackoff.toNanos();
+    this.maxBackoffInNanos = maxBackoff.toNanos();
+  }
+
+  /**
+   * Runs the operation, re-running it whenever it throws {@link OptimisticLockingFailureException}.
+   * The operation must have no side effects before its conditional update, since it may run several times.
+   *
+   * @throws OptimisticLockingFailureException if every attempt conflicted
+   */
+  public <T> T call(Supplier<T> operation) {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return operation.get();
+      } catch (OptimisticLockingFailureException e) {
+        numConflicts.incrementAndGet();
+        if (attempt >= maxAttempts) {
+          throw e;
+        }
+        backOff(attempt, e);
+        numRetries.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Same as {@link #call(Supplier)}, for an operation with no result.
+   */
+  public void execute(Runnable operation) {
+    call(() -> {
+      operation.run();
+      return null;
+    });
+  }
+
+  /**
+   * @return number of attempts that lost a race since the application started
+   */
+  public long getNumConflicts() {
+    return numConflicts.get();
+  }
+
+  /**
+   * @return number of attempts that were re-run after a conflict since the application started
+   */
+  public long getNumRetries() {
+    return numRetries.get();
+  }
+
+  private void backOff(int attempt, OptimisticLockingFailureException conflict) {
+    long backoffBoundInNanos = Math.min(maxBackoffInNanos, baseBackoffInNanos << Math.min(attempt - 1, 30));
+    try {
+      TimeUnit.NANOSECONDS.sleep(ThreadLocalRandom.current().nextLong(backoffBoundInNanos + 1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw conflict;
+    }
+  }
+}
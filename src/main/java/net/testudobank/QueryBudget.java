@@ -0,0 +1,23 @@
+package net.testudobank;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the max number of SQL statements a request handler should send to the DB.
+ * <p>
+ * Handlers with a budget have their statements counted by the {@link QueryBudgetInterceptor}, which logs the handlers
+ * that go over their budget or repeat an identical statement (a likely N+1 query), and fails them in test mode.
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface QueryBudget {
+  /**
+   * @return max number of statements, counting every query, update, and batch as one
+   */
+  int value();
+}
@@ -0,0 +1,31 @@
+package net.testudobank;
+
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.MethodIntrospector;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+
+/**
+ * Checks the {@link QueryBudget} of every request handler. See {@link QueryBudgetInterceptor}.
+ */
+@Configuration
+public class QueryBudgetConfig {
+
+  // static, so the post-processor is registered before the controllers are created
+  @Bean
+  public static BeanPostProcessor queryBudgetPostProcessor(@Value("${query-budget.max-repeated-statements:2}") int maxRepeatedStatements,
+                                                           @Value("${query-budget.fail-on-exceed:false}") boolean failOnExceed) {
+    QueryBudgetInterceptor queryBudgetInterceptor = new QueryBudgetInterceptor(maxRepeatedStatements, failOnExceed);
+    return new BeanPostProcessor() {
+      @Override
+      public Object postProcessAfterInitialization(Object bean, String beanName) {
+        boolean hasQueryBudget = !MethodIntrospector.selectMethods(AopUtils.getTargetClass(bean),
+            (MethodIntrospector.MetadataLookup<QueryBudget>) method -> AnnotatedElementUtils.findMergedAnnotation(method, QueryBudget.class)).isEmpty();
+        return hasQueryBudget ? queryBudgetInterceptor.enforce(bean) : bean;
+      }
+    };
+  }
+}
@@ -0,0 +1,93 @@
+package net.testudobank;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.annotation.AnnotationMatchingPointcut;
+
+/**
+ * Counts the SQL statements of every handler annotated with {@link QueryBudget}, and checks them once the handler returns:
+ * <ul>
+ *   <li>a handler that sent more statements than its budget is logged with its statement count and total DB time</li>
+ *   <li>an identical statement sent more than the max repeated statements times is logged as a likely N+1 query</li>
+ * </ul>
+ * In test mode (fail on exceed), going over the budget also throws a {@link QueryBudgetExceededException} out of the handler.
+ * <p>
+ * Statements are counted by {@link MeteredJdbcTemplate}, so only a controller using one has its statements checked.
+ */
+public class QueryBudgetInterceptor implements MethodInterceptor {
+  private static final Logger LOGGER = LoggerFactory.getLogger(QueryBudgetInterceptor.class);
+
+  private final int maxRepeatedStatements;
+
+  private final boolean failOnExceed;
+
+  /**
+   * Thrown out of a handler that went over its query budget, in test mode.
+   */
+  public static class QueryBudgetExceededException extends RuntimeException {
+    public QueryBudgetExceededException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * @param maxRepeatedStatements number of times a handler can send an identical statement before it is logged
+   * @param failOnExceed throw out of handlers that go over their budget, instead of only logging them
+   */
+  public QueryBudgetInterceptor(int maxRepeatedStatements, boolean failOnExceed) {
+    this.maxRepeatedStatements = maxRepeatedStatements;
+    this.failOnExceed = failOnExceed;
+  }
+
+  /**
+   * Wraps the target in a proxy that checks the query budget of each of its {@link QueryBudget} methods with this interceptor.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T enforce(T target) {
+    ProxyFactory proxyFactory = new ProxyFactory(target);
+    proxyFactory.setProxyTargetClass(true);
+    proxyFactory.addAdvisor(new DefaultPointcutAdvisor(AnnotationMatchingPointcut.forMethodAnnotation(QueryBudget.class), this));
+    return (T) proxyFactory.getProxy();
+  }
+
+  @Override
+  public Object invoke(MethodInvocation invocation) throws Throwable {
+    // a handler called from another handler counts against the outer handler's budget
+    RequestQueryStats stats = RequestQueryStats.start().orElse(null);
+    if (stats == null) {
+      return invocation.proceed();
+    }
+
+    Object result;
+    try {
+      result = invocation.proceed();
+    } finally {
+      RequestQueryStats.finish();
+    }
+    check(invocation.getMethod().getName(), invocation.getMethod().getAnnotation(QueryBudget.class), stats);
+    return result;
+  }
+
+  private void check(String handlerName, QueryBudget queryBudget, RequestQueryStats stats) {
+    for (Map.Entry<String, Integer> repeatedStatement : stats.getRepeatedStatements(maxRepeatedStatements).entrySet()) {
+      LOGGER.warn("{} sent the same statement {} times, possible N+1 query: {}", handlerName, repeatedStatement.getValue(), repeatedStatement.getKey());
+    }
+
+    if (queryBudget == null || stats.getNumStatements() <= queryBudget.value()) {
+      return;
+    }
+    String message = String.format("%s sent %d statements (%d ms in the DB), over its budget of %d",
+                                   handlerName, stats.getNumStatements(), TimeUnit.NANOSECONDS.toMillis(stats.getDbTimeInNanos()), queryBudget.value());
+    if (failOnExceed) {
+      throw new QueryBudgetExceededException(message);
+    }
+    LOGGER.warn(message);
+  }
+}
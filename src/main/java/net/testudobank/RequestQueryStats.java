@@ -0,0 +1,118 @@
+package net.testudobank;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Statements sent to the DB by the current thread while a request handler runs: how many, how long they took in total,
+ * and how many times each SQL string was sent.
+ * <p>
+ * Statements are recorded by {@link MeteredJdbcTemplate}, into the stats started on the same thread. A thread that runs
+ * work the request waits on can count its statements against the request too (see {@link #callWith}), which
+ * {@link AccountPartitions} does. Statements run by the {@link LedgerWriter}, which commits many requests' writes at once,
+ * are not counted against any request.
+ * <p>
+ * Stats are not thread-safe: only one thread at a time may record into them, e.g. a partition worker while the request thread waits on it.
+ */
+public class RequestQueryStats {
+  private static final ThreadLocal<RequestQueryStats> CURRENT = new ThreadLocal<>();
+
+  private int numStatements;
+
+  private long dbTimeInNanos;
+
+  private final Map<String, Integer> numExecutionsBySql = new HashMap<>();
+
+  /**
+   * Starts counting the statements of the current thread.
+   *
+   * @return the new stats, or empty if statements are already being counted (e.g. a handler called from another handler)
+   */
+  public static Optional<RequestQueryStats> start() {
+    if (CURRENT.get() != null) {
+      return Optional.empty();
+    }
+    RequestQueryStats stats = new RequestQueryStats();
+    CURRENT.set(stats);
+    return Optional.of(stats);
+  }
+
+  /**
+   * Stops counting the statements of the current thread.
+   */
+  public static void finish() {
+    CURRENT.remove();
+  }
+
+  /**
+   * @return the stats the current thread's statements are counted into, or null if they aren't being counted
+   */
+  public static RequestQueryStats current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Runs the task with the current thread's statements counted into `stats` (e.g. the stats of the request that handed
+   * the task to this thread, captured with {@link #current()}), then restores what the thread was counting before.
+   *
+   * @param stats null to not count the task's statements
+   */
+  public static <T> T callWith(RequestQueryStats stats, Supplier<T> task) {
+    RequestQueryStats previousStats = CURRENT.get();
+    set(stats);
+    try {
+      return task.get();
+    } finally {
+      set(previousStats);
+    }
+  }
+
+  private static void set(RequestQueryStats stats) {
+    if (stats == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(stats);
+    }
+  }
+
+  /**
+   * Records a statement sent by the current thread, if its statements are being counted.
+   *
+   * @param sql the statement's SQL, or null if it isn't known
+   */
+  public static void record(String sql, long durationInNanos) {
+    RequestQueryStats stats = CURRENT.get();
+    if (stats == null) {
+      return;
+    }
+    stats.numStatements++;
+    stats.dbTimeInNanos += durationInNanos;
+    if (sql != null) {
+      stats.numExecutionsBySql.merge(sql, 1, Integer::sum);
+    }
+  }
+
+  public int getNumStatements() {
+    return numStatements;
+  }
+
+  public long getDbTimeInNanos() {
+    return dbTimeInNanos;
+  }
+
+  /**
+   * @return every SQL string sent more than `maxExecutions` times, with the number of times it was sent
+   */
+  public Map<String, Integer> getRepeatedStatements(int maxExecutions) {
+    Map<String, Integer> repeatedStatements = new LinkedHashMap<>();
+    for (Map.Entry<String, Integer> numExecutions : numExecutionsBySql.entrySet()) {
+      if (numExecutions.getValue() > maxExecutions) {
+        repeatedStatements.put(numExecutions.getKey(), numExecutions.getValue());
+      }
+    }
+    return repeatedStatements;
+  }
+}
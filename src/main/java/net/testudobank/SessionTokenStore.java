@@ -0,0 +1,119 @@
+package net.testudobank;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Optional;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+
+import lombok.Value;
+
+/**
+ * In-memory store of session tokens issued at login, mapping each token to the CustomerID that logged in.
+ * <p>
+ * Tokens expire after a period of inactivity: every successful {@link #validate} resets the token's TTL
+ * (sliding expiry), so an active customer stays logged in while an abandoned session times out.
+ * Validating a token never touches the DB.
+ * <p>
+ * Each session also has a CSRF token, which HTML forms carry instead of the session token. The session token only
+ * travels in its HttpOnly cookie, and a form submission is only authenticated by that cookie if it also carries
+ * the session's CSRF token, which another site can't read.
+ */
+public class SessionTokenStore {
+  private static final int MAX_ACTIVE_SESSIONS = 100000;
+  private static final int TOKEN_LENGTH_IN_BYTES = 32;
+
+  private final SecureRandom secureRandom = new SecureRandom();
+
+  private final Cache<String, Session> sessionsByToken;
+
+  // The customer that logged in, and the CSRF token of their forms
+  @Value
+  private static class Session {
+    String customerID;
+
+    String csrfToken;
+  }
+
+  public SessionTokenStore(Duration ttl) {
+    this(ttl, Ticker.systemTicker());
+  }
+
+  // Tests pass a fake Ticker to control time
+  public SessionTokenStore(Duration ttl, Ticker ticker) {
+    this.sessionsByToken = Caffeine.newBuilder()
+                                   .maximumSize(MAX_ACTIVE_SESSIONS)
+                                   .expireAfterAccess(ttl)
+                                   .ticker(ticker)
+                                   .build();
+  }
+
+  /**
+   * Creates a new session for the customer.
+   *
+   * @return an unguessable, URL-safe token identifying the session
+   */
+  public String issue(String customerID) {
+    String token = newToken();
+    sessionsByToken.put(token, new Session(customerID, newToken()));
+    return token;
+  }
+
+  /**
+   * Looks up the customer that owns the token and extends the session's expiry.
+   *
+   * @return the CustomerID of the session, or empty if the token is unknown or expired
+   */
+  public Optional<String> validate(String token) {
+    return session(token).map(Session::getCustomerID);
+  }
+
+  /**
+   * Looks up the CSRF token of the session, for an HTML form to carry. Also extends the session's expiry.
+   *
+   * @return the session's CSRF token, or empty if the session token is unknown or expired
+   */
+  public Optional<String> getCsrfToken(String token) {
+    return session(token).map(Session::getCsrfToken);
+  }
+
+  /**
+   * Checks that a form submission carried the CSRF token of the session in its cookie.
+   *
+   * @return true if the session exists and `csrfToken` is its CSRF token
+   */
+  public boolean isValidCsrfToken(String token, String csrfToken) {
+    Optional<String> sessionCsrfToken = getCsrfToken(token);
+    // compared in constant time, so the response time doesn't reveal how much of the token was right
+    return csrfToken != null && sessionCsrfToken.isPresent() &&
+           MessageDigest.isEqual(sessionCsrfToken.get().getBytes(StandardCharsets.US_ASCII), csrfToken.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  /**
+   * Ends the session, if it exists.
+   */
+  public void revoke(String token) {
+    if (token != null) {
+      sessionsByToken.invalidate(token);
+    }
+  }
+
+  private Optional<Session> session(String token) {
+    if (token == null) {
+      return Optional.empty();
+    }
+    return Optional.ofNullable(sessionsByToken.getIfPresent(token));
+  }
+
+  // An unguessable, URL-safe random token
+  private String newToken() {
+    byte[] tokenBytes = new byte[TOKEN_LENGTH_IN_BYTES];
+    secureRandom.nextBytes(tokenBytes);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(tokenBytes);
+  }
+}
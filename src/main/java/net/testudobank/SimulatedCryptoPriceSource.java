@@ -0,0 +1,55 @@
+package net.testudobank;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Deterministic local price feed for tests and offline environments.
+ * <p>
+ * Each cryptocurrency starts at a fixed price and takes a small seeded random step (at most
+ * {@value #MAX_STEP_PERCENT}% up or down) every time it is fetched, so the same sequence of fetches
+ * always produces the same prices. Cryptocurrencies without a starting price are left out of each batch.
+ */
+@Component
+@ConditionalOnProperty(name = "crypto.price-source", havingValue = "simulated")
+public class SimulatedCryptoPriceSource implements CryptoPriceSource {
+    private static final long DEFAULT_SEED = 42;
+    private static final double MAX_STEP_PERCENT = 1.0;
+
+    private final Random random;
+    private final Map<String, Double> prices = new HashMap<>();
+
+    public SimulatedCryptoPriceSource() {
+        this(DEFAULT_SEED);
+    }
+
+    public SimulatedCryptoPriceSource(long seed) {
+        this.random = new Random(seed);
+        prices.put("ETH", 3000.0);
+        prices.put("SOL", 100.0);
+    }
+
+    @Override
+    public synchronized Map<String, Double> fetchPrices(Set<String> cryptoNames) {
+        // step in a fixed order so the prices don't depend on the iteration order of the requested set
+        Map<String, Double> fetchedPrices = new TreeMap<>();
+        for (String cryptoName : new TreeSet<>(cryptoNames)) {
+            Double price = prices.get(cryptoName);
+            if (price == null) {
+                continue;
+            }
+            double stepPercent = (random.nextDouble() * 2 - 1) * MAX_STEP_PERCENT;
+            double newPrice = price * (1 + stepPercent / 100);
+            prices.put(cryptoName, newPrice);
+            fetchedPrices.put(cryptoName, newPrice);
+        }
+        return fetchedPrices;
+    }
+}
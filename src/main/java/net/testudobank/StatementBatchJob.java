@@ -0,0 +1,368 @@
+package net.testudobank;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import javax.annotation.PreDestroy;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import net.testudobank.TestudoBankRepository.StatementCustomer;
+import net.testudobank.TestudoBankRepository.StatementLine;
+
+/**
+ * Writes every customer's monthly statement to a CSV file, enabled by setting "statements.output-dir".
+ * <p>
+ * A bank-wide month of history doesn't fit in memory, so nothing here is read with queryForList(). The Customers table
+ * and each history table are streamed from their own connection, ordered by customer, into a bounded queue per stream.
+ * A single merger walks the customers, takes the rows of each customer from every history queue, and hands the
+ * customer's statement to a bounded pool of writer threads. A full queue blocks its stream, and a full writer pool makes
+ * the merger write the statement itself. So the job holds at most `queueCapacity` rows per stream and `queueCapacity`
+ * pending statements, however many customers there are.
+ * <p>
+ * Statements are written to {output dir}/{yyyy-MM}/{CustomerID}.csv, with one line per history row in time order.
+ * Customers with no activity in the month still get a statement, with only its header.
+ * <p>
+ * The scheduled run happens on the job's own thread, so it never holds up the scheduler thread that every other
+ * {@link Scheduled} task (e.g. the crypto price refresh) runs on. It reads through its own connection pool with one
+ * connection per stream, so the request handlers' pool (and jdbc.max-concurrent-connections) never lose connections to it.
+ */
+@Component
+@ConditionalOnProperty(name = "statements.output-dir")
+public class StatementBatchJob {
+  private static final Logger LOGGER = LoggerFactory.getLogger(StatementBatchJob.class);
+
+  private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+  private static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+  private static final String CSV_COLUMNS = "Section,Timestamp,Action,Amount,Details";
+
+  // Streams the rows of one history table in [from, to), ordered by customer
+  private interface HistoryStream {
+    void stream(JdbcTemplate jdbcTemplate, LocalDateTime from, LocalDateTime to, Consumer<StatementLine> lineConsumer);
+  }
+
+  // Rows of a customer at the same time are listed in this order
+  private static final List<HistoryStream> HISTORY_STREAMS = Arrays.asList(TestudoBankRepository::streamStatementTransactions,
+                                                                           TestudoBankRepository::streamStatementTransfersSent,
+                                                                           TestudoBankRepository::streamStatementTransfersReceived,
+                                                                           TestudoBankRepository::streamStatementOverdraftLogs,
+                                                                           TestudoBankRepository::streamStatementCryptoLogs);
+
+  // The Customers table and each history table
+  private static final int NUM_STREAMS = 1 + HISTORY_STREAMS.size();
+
+  // Hikari's minimum. The pool closes its connections this long after a run
+  private static final long POOL_IDLE_TIMEOUT_IN_MILLISECONDS = 10000;
+
+  // Queued after the last row of a stream
+  private static final Object END_OF_STREAM = new Object();
+
+  private final JdbcTemplate jdbcTemplate;
+
+  // The job's own connection pool, or null if it was given a JdbcTemplate to read through
+  private final HikariDataSource ownDataSource;
+
+  // Runs the scheduled job, which can take far longer than any other scheduled task
+  private final ExecutorService jobThread = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "statement-batch-job");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final Path outputDir;
+
+  private final int numWriterThreads;
+
+  private final int queueCapacity;
+
+  /**
+   * @param dataSourceProperties the app's DB settings, which the job's own connection pool connects with
+   * @param outputDir directory that each month's statements are written to a subdirectory of
+   * @param numWriterThreads number of threads writing statement files
+   */
+  @Autowired
+  public StatementBatchJob(DataSourceProperties dataSourceProperties, MeterRegistry meterRegistry, @Value("${statements.output-dir}") String outputDir,
+                           @Value("${statements.writer-threads:4}") int numWriterThreads) {
+    this(newDataSource(dataSourceProperties), meterRegistry, Paths.get(outputDir), numWriterThreads);
+  }
+
+  private StatementBatchJob(HikariDataSource ownDataSource, MeterRegistry meterRegistry, Path outputDir, int numWriterThreads) {
+    this(new MeteredJdbcTemplate(ownDataSource, meterRegistry), ownDataSource, outputDir, numWriterThreads, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  // Tests pass a small queue capacity, so that streams and the merger keep blocking on full queues
+  public StatementBatchJob(JdbcTemplate jdbcTemplate, Path outputDir, int numWriterThreads, int queueCapacity) {
+    this(jdbcTemplate, null, outputDir, numWriterThreads, queueCapacity);
+  }
+
+  private StatementBatchJob(JdbcTemplate jdbcTemplate, HikariDataSource ownDataSource, Path outputDir, int numWriterThreads, int queueCapacity) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.ownDataSource = ownDataSource;
+    this.outputDir = outputDir;
+    this.numWriterThreads = numWriterThreads;
+    this.queueCapacity = queueCapacity;
+  }
+
+  // One connection per stream, only kept open while a run streams
+  private static HikariDataSource newDataSource(DataSourceProperties dataSourceProperties) {
+    HikariDataSource dataSource = dataSourceProperties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+    dataSource.setPoolName("statements");
+    dataSource.setMaximumPoolSize(NUM_STREAMS);
+    dataSource.setMinimumIdle(0);
+    dataSource.setIdleTimeout(POOL_IDLE_TIMEOUT_IN_MILLISECONDS);
+    return dataSource;
+  }
+
+  @lombok.Value
+  public static class BatchResult {
+    YearMonth month;
+    int numCustomers;
+    long numLines;
+    long elapsedTimeInNanos;
+
+    public double getCustomersPerSecond() {
+      return numCustomers / (elapsedTimeInNanos / 1_000_000_000.0);
+    }
+  }
+
+  /**
+   * Starts writing the statements of the month that just ended on the job's thread, early on the 1st of every month.
+   */
+  @Scheduled(cron = "0 0 2 1 * *")
+  public void writeLastMonthStatements() {
+    YearMonth lastMonth = YearMonth.now().minusMonths(1);
+    jobThread.execute(() -> {
+      try {
+        run(lastMonth);
+      } catch (IOException | RuntimeException e) {
+        LOGGER.error("Failed to write the statements of {}", lastMonth, e);
+      }
+    });
+  }
+
+  /**
+   * Interrupts a run that is still going, and closes the job's connection pool.
+   */
+  @PreDestroy
+  public void shutdown() {
+    jobThread.shutdownNow();
+    if (ownDataSource != null) {
+      ownDataSource.close();
+    }
+  }
+
+  /**
+   * Writes the statement of every customer for `month`, replacing statements written by an earlier run.
+   * Uses one DB connection per stream (the Customers table and each of HISTORY_STREAMS) until every row is read.
+   *
+   * @throws IOException if a statement could not be written. Statements of other customers may have been written.
+   */
+  public BatchResult run(YearMonth month) throws IOException {
+    long startTimeInNanos = System.nanoTime();
+    LocalDateTime from = month.atDay(1).atStartOfDay();
+    LocalDateTime to = month.plusMonths(1).atDay(1).atStartOfDay();
+    Path monthDir = Files.createDirectories(outputDir.resolve(month.toString()));
+
+    StreamQueue<StatementCustomer> customers = new StreamQueue<>(queueCapacity);
+    List<StreamQueue<StatementLine>> histories = new ArrayList<>();
+    for (int streamNum = 0; streamNum < HISTORY_STREAMS.size(); streamNum++) {
+      histories.add(new StreamQueue<>(queueCapacity));
+    }
+    ExecutorService streamThreads = Executors.newFixedThreadPool(1 + histories.size());
+    ThreadPoolExecutor writerThreads = new ThreadPoolExecutor(numWriterThreads, numWriterThreads, 0, TimeUnit.MILLISECONDS,
+                                                              new ArrayBlockingQueue<>(queueCapacity), new ThreadPoolExecutor.CallerRunsPolicy());
+    AtomicReference<IOException> writeFailure = new AtomicReference<>();
+    int numCustomers = 0;
+    long numLines = 0;
+    try {
+      streamThreads.execute(() -> customers.fill(customerConsumer -> TestudoBankRepository.streamStatementCustomers(jdbcTemplate, customerConsumer)));
+      for (int streamNum = 0; streamNum < HISTORY_STREAMS.size(); streamNum++) {
+        HistoryStream historyStream = HISTORY_STREAMS.get(streamNum);
+        StreamQueue<StatementLine> history = histories.get(streamNum);
+        streamThreads.execute(() -> history.fill(lineConsumer -> historyStream.stream(jdbcTemplate, from, to, lineConsumer)));
+      }
+
+      StatementCustomer customer;
+      while ((customer = customers.take()) != null) {
+        List<StatementLine> lines = new ArrayList<>();
+        for (StreamQueue<StatementLine> history : histories) {
+          // rows of customers that no longer exist sort before the next customer, and are skipped
+          StatementLine line;
+          while ((line = history.peek()) != null && compareSortKeys(line.getCustomerSortKey(), customer.getCustomerSortKey()) <= 0) {
+            history.take();
+            if (Arrays.equals(line.getCustomerSortKey(), customer.getCustomerSortKey())) {
+              lines.add(line);
+            }
+          }
+        }
+        // a stable sort, so rows at the same time keep the order of their sections
+        lines.sort(Comparator.comparing(StatementLine::getTimestamp));
+        if (writeFailure.get() != null) {
+          throw writeFailure.get();
+        }
+        StatementCustomer statementCustomer = customer;
+        writerThreads.execute(() -> {
+          try {
+            writeStatement(monthDir, month, statementCustomer, lines);
+          } catch (IOException e) {
+            writeFailure.compareAndSet(null, e);
+          }
+        });
+        numCustomers++;
+        numLines += lines.size();
+      }
+      // rows after the last customer are read to the end, so that every stream finishes and releases its connection
+      for (StreamQueue<StatementLine> history : histories) {
+        while (history.take() != null) {}
+      }
+
+      writerThreads.shutdown();
+      writerThreads.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      if (writeFailure.get() != null) {
+        throw writeFailure.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while writing the statements of " + month);
+    } finally {
+      // stops the streams and writers that are still running if the job failed
+      streamThreads.shutdownNow();
+      writerThreads.shutdownNow();
+    }
+
+    BatchResult result = new BatchResult(month, numCustomers, numLines, System.nanoTime() - startTimeInNanos);
+    LOGGER.info("Wrote {} statements of {} with {} lines in {} ms ({} customers/s)", result.getNumCustomers(), month, result.getNumLines(),
+                TimeUnit.NANOSECONDS.toMillis(result.getElapsedTimeInNanos()), Math.round(result.getCustomersPerSecond()));
+    return result;
+  }
+
+  private static void writeStatement(Path monthDir, YearMonth month, StatementCustomer customer, List<StatementLine> lines) throws IOException {
+    Path statementFile = monthDir.resolve(URLEncoder.encode(customer.getCustomerID(), StandardCharsets.UTF_8.name()) + ".csv");
+    try (BufferedWriter writer = Files.newBufferedWriter(statementFile, StandardCharsets.UTF_8)) {
+      writer.write("Customer," + csvField(customer.getCustomerID()) + "," + csvField(customer.getFirstName() + " " + customer.getLastName()));
+      writer.newLine();
+      writer.write("Month," + month);
+      writer.newLine();
+      writer.write(CSV_COLUMNS);
+      writer.newLine();
+      for (StatementLine line : lines) {
+        writer.write(line.getSection() + "," + TIMESTAMP_FORMATTER.format(line.getTimestamp()) + "," + csvField(line.getAction()) + ","
+                     + line.getAmount().toPlainString() + "," + csvField(line.getDetails()));
+        writer.newLine();
+      }
+    }
+  }
+
+  // Quotes a field that contains a separator, quote or line break
+  private static String csvField(String value) {
+    if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+      return value;
+    }
+    return "\"" + value.replace("\"", "\"\"") + "\"";
+  }
+
+  // Compares collation weights the way MySQL does, as unsigned bytes
+  private static int compareSortKeys(byte[] sortKey, byte[] otherSortKey) {
+    for (int i = 0; i < Math.min(sortKey.length, otherSortKey.length); i++) {
+      int byteComparison = Integer.compare(sortKey[i] & 0xFF, otherSortKey[i] & 0xFF);
+      if (byteComparison != 0) {
+        return byteComparison;
+      }
+    }
+    return Integer.compare(sortKey.length, otherSortKey.length);
+  }
+
+  // The rows of one stream, filled from the DB on a stream thread and taken by the merger
+  private static class StreamQueue<T> {
+    private final BlockingQueue<Object> rows;
+
+    // The next row the merger hasn't taken yet, once it has been peeked at
+    private Object nextRow;
+
+    StreamQueue(int capacity) {
+      this.rows = new ArrayBlockingQueue<>(capacity);
+    }
+
+    // Runs on the stream thread until `stream` has handed over its last row, or the job is stopped
+    void fill(Consumer<Consumer<T>> stream) {
+      try {
+        stream.accept(this::put);
+        put(END_OF_STREAM);
+      } catch (CancellationException e) {
+        // the job was stopped, and nothing is taking rows anymore
+      } catch (RuntimeException e) {
+        put(e);
+      }
+    }
+
+    private void put(Object row) {
+      try {
+        rows.put(row);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CancellationException("Statement job was stopped");
+      }
+    }
+
+    /**
+     * @return the next row without taking it, or null at the end of the stream
+     * @throws RuntimeException the exception that failed the stream
+     */
+    @SuppressWarnings("unchecked")
+    T peek() throws InterruptedException {
+      if (nextRow == null) {
+        nextRow = rows.take();
+      }
+      if (nextRow instanceof RuntimeException) {
+        throw (RuntimeException) nextRow;
+      }
+      return nextRow == END_OF_STREAM ? null : (T) nextRow;
+    }
+
+    /**
+     * @return the next row, or null at the end of the stream
+     */
+    T take() throws InterruptedException {
+      T row = peek();
+      if (row != null) {
+        nextRow = null;
+      }
+      return row;
+    }
+  }
+}
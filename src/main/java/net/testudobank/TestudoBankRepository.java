@@ -1,30 +1,178 @@
 package net.testudobank;
 
 import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.SqlProvider;
+
+import lombok.Value;
 
 public class TestudoBankRepository {
+  // History inserts are shared by the single-row and batch variants below, so that the driver
+  // (and the server, with useServerPrepStmts) can reuse one parsed statement for both.
+  private static final String INSERT_ROW_TO_TRANSACTION_HISTORY_SQL = "INSERT INTO TransactionHistory (CustomerID, Timestamp, Action, Amount, ReversedTransactionID) VALUES (?, ?, ?, ?, ?)";
+  private static final String INSERT_ROW_TO_OVERDRAFT_LOGS_SQL = "INSERT INTO OverdraftLogs (CustomerID, Timestamp, DepositAmt, OldOverBalance, NewOverBalance, TransactionID) VALUES (?, ?, ?, ?, ?, ?)";
+  private static final String INSERT_ROW_TO_TRANSFER_HISTORY_SQL = "INSERT INTO TransferHistory (TransferFrom, TransferTo, Timestamp, Amount) VALUES (?, ?, ?, ?)";
+  private static final String INSERT_ROW_TO_CRYPTO_HISTORY_SQL = "INSERT INTO CryptoHistory (CustomerID, Timestamp, Action, CryptoName, CryptoAmount) VALUES (?, ?, ?, ?, ?)";
+  private static final String INSERT_ROW_TO_LEDGER_EVENTS_SQL = "INSERT INTO LedgerEvents (CustomerID, Timestamp, EventType, BalanceDelta, OverdraftDelta) VALUES (?, ?, ?, ?, ?)";
+
+  // Shared by every JdbcTemplate, since there is only one Customers table per application
+  private static final AccountStateCache ACCOUNT_STATE_CACHE = new AccountStateCache();
+
+  //// BATCH INSERT ROWS ////
+
+  // A row of one of the history tables, which can be handed to a LedgerWriter
+  public interface HistoryRow {}
+
+  @Value
+  public static class TransactionHistoryRow implements HistoryRow {
+    String customerID;
+    String timestamp;
+    String action;
+    int amtInPennies;
+    // TransactionID of the row this row reverses, if it was written by a dispute
+    Long reversedTransactionID;
+
+    public TransactionHistoryRow(String customerID, String timestamp, String action, int amtInPennies, Long reversedTransactionID) {
+      this.customerID = customerID;
+      this.timestamp = timestamp;
+      this.action = action;
+      this.amtInPennies = amtInPennies;
+      this.reversedTransactionID = reversedTransactionID;
+    }
+
+    public TransactionHistoryRow(String customerID, String timestamp, String action, int amtInPennies) {
+      this(customerID, timestamp, action, amtInPennies, null);
+    }
+  }
+
+  @Value
+  public static class OverdraftLogRow implements HistoryRow {
+    String customerID;
+    String timestamp;
+    int depositAmtInPennies;
+    int oldOverdraftBalanceInPennies;
+    int newOverdraftBalanceInPennies;
+    // The deposit that made this repayment. Must be written in the same LedgerWriter write, so that its TransactionID is known.
+    TransactionHistoryRow transaction;
+  }
+
+  @Value
+  public static class TransferHistoryRow implements HistoryRow {
+    String customerID;
+    String recipientID;
+    String timestamp;
+    int transferAmountInPennies;
+  }
+
+  @Value
+  public static class CryptoHistoryRow implements HistoryRow {
+    String customerID;
+    String cryptoName;
+    String action;
+    String timestamp;
+    double cryptoAmount;
+  }
+
+  // A change to a customer's Balance and OverdraftBalance, in pennies. See LedgerProjector
+  @Value
+  public static class LedgerEventRow implements HistoryRow {
+    String customerID;
+    String timestamp;
+    String eventType;
+    int balanceDeltaInPennies;
+    int overdraftDeltaInPennies;
+  }
+
+  // A partitioned transfer that has debited the sender but not yet been settled. See TransferEngine
+  @Value
+  public static class PendingTransferRow {
+    long pendingTransferID;
+    String senderID;
+    String recipientID;
+    int amtInPennies;
+    int balanceDeltaInPennies;
+    int overdraftDeltaInPennies;
+  }
+
+  public static AccountStateCache getAccountStateCache() {
+    return ACCOUNT_STATE_CACHE;
+  }
+
   public static String getCustomerPassword(JdbcTemplate jdbcTemplate, String customerID) {
-    String getCustomerPasswordSql = String.format("SELECT Password FROM Passwords WHERE CustomerID='%s';", customerID);
-    String customerPassword = jdbcTemplate.queryForObject(getCustomerPasswordSql, String.class);
+    String getCustomerPasswordSql = "SELECT Password FROM Passwords WHERE CustomerID=?;";
+    String customerPassword = jdbcTemplate.queryForObject(getCustomerPasswordSql, String.class, customerID);
     return customerPassword;
   }
 
   public static int getCustomerNumberOfReversals(JdbcTemplate jdbcTemplate, String customerID) {
-    String getNumberOfReversalsSql = String.format("SELECT NumFraudReversals FROM Customers WHERE CustomerID='%s';", customerID);
-    int numOfReversals = jdbcTemplate.queryForObject(getNumberOfReversalsSql, Integer.class);
-    return numOfReversals;
+    return getCustomerAccountState(jdbcTemplate, customerID).getNumFraudReversals();
   }
 
   public static int getCustomerCashBalanceInPennies(JdbcTemplate jdbcTemplate, String customerID) {
-    String getUserBalanceSql =  String.format("SELECT Balance FROM Customers WHERE CustomerID='%s';", customerID);
-    int userBalanceInPennies = jdbcTemplate.queryForObject(getUserBalanceSql, Integer.class);
-    return userBalanceInPennies;
+    return getCustomerAccountState(jdbcTemplate, customerID).getBalanceInPennies();
+  }
+
+  /**
+   * Reads the balance columns of a customer through {@link #getAccountStateCache()}.
+   *
+   * @throws EmptyResultDataAccessException if the customer does not exist
+   */
+  public static AccountState getCustomerAccountState(JdbcTemplate jdbcTemplate, String customerID) {
+    return getCustomerAccountState(jdbcTemplate, customerID, false);
+  }
+
+  /**
+   * Reads the balance columns of a customer.
+   *
+   * @param bypassCache if true, always reads from the DB and leaves the cache untouched
+   * @throws EmptyResultDataAccessException if the customer does not exist
+   */
+  public static AccountState getCustomerAccountState(JdbcTemplate jdbcTemplate, String customerID, boolean bypassCache) {
+    if (bypassCache) {
+      return loadCustomerAccountState(jdbcTemplate, customerID);
+    }
+    return ACCOUNT_STATE_CACHE.get(customerID, id -> loadCustomerAccountState(jdbcTemplate, id));
+  }
+
+  private static AccountState loadCustomerAccountState(JdbcTemplate jdbcTemplate, String customerID) {
+    String getAccountStateSql = "SELECT Balance, OverdraftBalance, NumFraudReversals, Version FROM Customers WHERE CustomerID=?;";
+    return jdbcTemplate.queryForObject(getAccountStateSql,
+                                       (rs, rowNum) -> new AccountState(rs.getInt("Balance"), rs.getInt("OverdraftBalance"), rs.getInt("NumFraudReversals"), rs.getLong("Version")),
+                                       customerID);
+  }
+
+  /**
+   * Reads the balance columns of a customer and locks their Customers row until the surrounding DB transaction ends.
+   * Must be called inside a transaction, otherwise the lock is released as soon as the query completes.
+   * Never served from the cache, since the point is to read the latest committed row under a lock.
+   *
+   * @return the customer's current account state, or empty if the customer does not exist
+   */
+  public static Optional<AccountState> lockCustomerAccountState(JdbcTemplate jdbcTemplate, String customerID) {
+    String lockAccountStateSql = "SELECT Balance, OverdraftBalance, NumFraudReversals, Version FROM Customers WHERE CustomerID=? FOR UPDATE;";
+    List<AccountState> accountStates = jdbcTemplate.query(lockAccountStateSql,
+                                                          (rs, rowNum) -> new AccountState(rs.getInt("Balance"), rs.getInt("OverdraftBalance"), rs.getInt("NumFraudReversals"), rs.getLong("Version")),
+                                                          customerID);
+    return accountStates.stream().findFirst();
   }
 
   public static Optional<Double> getCustomerCryptoBalance(JdbcTemplate jdbcTemplate, String customerID, String cryptoName) {
@@ -39,88 +187,357 @@ public class TestudoBankRepository {
 
   }
 
+  /**
+   * @return the CustomerID, CryptoName, and CryptoAmount of every row of the CryptoHoldings table, in one query
+   */
+  public static List<Map<String,Object>> getAllCryptoHoldings(JdbcTemplate jdbcTemplate) {
+    String getAllCryptoHoldingsSql = "SELECT CustomerID, CryptoName, CryptoAmount FROM CryptoHoldings;";
+    return jdbcTemplate.queryForList(getAllCryptoHoldingsSql);
+  }
+
   public static int getCustomerOverdraftBalanceInPennies(JdbcTemplate jdbcTemplate, String customerID) {
-    String getUserOverdraftBalanceSql = String.format("SELECT OverdraftBalance FROM Customers WHERE CustomerID='%s';", customerID);
-    int userOverdraftBalanceInPennies = jdbcTemplate.queryForObject(getUserOverdraftBalanceSql, Integer.class);
-    return userOverdraftBalanceInPennies;
+    return getCustomerAccountState(jdbcTemplate, customerID).getOverdraftBalanceInPennies();
   }
 
   public static List<Map<String,Object>> getRecentTransactions(JdbcTemplate jdbcTemplate, String customerID, int numTransactionsToFetch) {
-    String getTransactionHistorySql = String.format("Select * from TransactionHistory WHERE CustomerId='%s' ORDER BY Timestamp DESC LIMIT %d;", customerID, numTransactionsToFetch);
-    List<Map<String,Object>> transactionLogs = jdbcTemplate.queryForList(getTransactionHistorySql);
+    // transactions in the same second are ordered by insertion, so "n transactions ago" is always the same row
+    String getTransactionHistorySql = "Select * from TransactionHistory WHERE CustomerId=? ORDER BY Timestamp DESC, TransactionID DESC LIMIT ?;";
+    List<Map<String,Object>> transactionLogs = jdbcTemplate.queryForList(getTransactionHistorySql, customerID, numTransactionsToFetch);
     return transactionLogs;
   }
 
   public static List<Map<String,Object>> getTransferLogs(JdbcTemplate jdbcTemplate, String customerID, int numTransfersToFetch) {
-    String getTransferHistorySql = String.format("Select * from TransferHistory WHERE TransferFrom='%s' OR TransferTo='%s' ORDER BY Timestamp DESC LIMIT %d;", customerID, customerID, numTransfersToFetch);
-    List<Map<String,Object>> transferLogs = jdbcTemplate.queryForList(getTransferHistorySql);
+    // A single "TransferFrom=? OR TransferTo=?" predicate can't use either index for the ORDER BY + LIMIT,
+    // so each side reads its newest rows from its own (column, Timestamp) index and only those are merged.
+    String getTransferHistorySql = "(Select * from TransferHistory WHERE TransferFrom=? ORDER BY Timestamp DESC, TransferID DESC LIMIT ?) " +
+                                   "UNION ALL " +
+                                   "(Select * from TransferHistory WHERE TransferTo=? ORDER BY Timestamp DESC, TransferID DESC LIMIT ?) " +
+                                   "ORDER BY Timestamp DESC, TransferID DESC LIMIT ?;";
+    List<Map<String,Object>> transferLogs = jdbcTemplate.queryForList(getTransferHistorySql, customerID, numTransfersToFetch, customerID, numTransfersToFetch, numTransfersToFetch);
     return transferLogs;
   }
 
-  public static List<Map<String,Object>> getOverdraftLogs(JdbcTemplate jdbcTemplate, String customerID){
-    String getOverDraftLogsSql = String.format("SELECT * FROM OverdraftLogs WHERE CustomerID='%s';", customerID);
-    List<Map<String,Object>> overdraftLogs = jdbcTemplate.queryForList(getOverDraftLogsSql);
+  public static List<Map<String,Object>> getOverdraftLogs(JdbcTemplate jdbcTemplate, String customerID, String timestamp){
+    String getOverDraftLogsSql = "SELECT * FROM OverdraftLogs WHERE CustomerID=? AND Timestamp=?;";
+    List<Map<String,Object>> overdraftLogs = jdbcTemplate.queryForList(getOverDraftLogsSql, customerID, timestamp);
     return overdraftLogs;
   }
 
-  public static List<Map<String,Object>> getOverdraftLogs(JdbcTemplate jdbcTemplate, String customerID, String timestamp){
-    String getOverDraftLogsSql = String.format("SELECT * FROM OverdraftLogs WHERE CustomerID='%s' AND Timestamp='%s';", customerID, timestamp);
-    List<Map<String,Object>> overdraftLogs = jdbcTemplate.queryForList(getOverDraftLogsSql);
-    return overdraftLogs;
+  /**
+   * Loads a TransactionHistory row of the customer, along with the overdraft repayment it made and the row that reversed it (if any).
+   *
+   * @return the transaction, or empty if the customer has no transaction with that ID
+   */
+  public static Optional<DisputedTransaction> getDisputedTransaction(JdbcTemplate jdbcTemplate, String customerID, long transactionID) {
+    String getDisputedTransactionSql = DISPUTED_TRANSACTION_SQL + "WHERE t.TransactionID=? AND t.CustomerID=?;";
+    return jdbcTemplate.query(getDisputedTransactionSql, DISPUTED_TRANSACTION_ROW_MAPPER, transactionID, customerID).stream().findFirst();
+  }
+
+  /**
+   * Like {@link #getDisputedTransaction(JdbcTemplate, String, long)}, for the customer's transaction `numTransactionsAgo` transactions ago
+   * (1 is the latest), in the order of {@link #getRecentTransactions}. Only that row's index entry is read past the skipped ones,
+   * so the cost of the lookup does not depend on how far back the dispute window goes.
+   */
+  public static Optional<DisputedTransaction> getDisputedTransactionAgo(JdbcTemplate jdbcTemplate, String customerID, int numTransactionsAgo) {
+    String getDisputedTransactionAgoSql = DISPUTED_TRANSACTION_SQL +
+                                          "WHERE t.TransactionID = (SELECT TransactionID FROM TransactionHistory WHERE CustomerID=? " +
+                                          "ORDER BY Timestamp DESC, TransactionID DESC LIMIT 1 OFFSET ?);";
+    return jdbcTemplate.query(getDisputedTransactionAgoSql, DISPUTED_TRANSACTION_ROW_MAPPER, customerID, numTransactionsAgo - 1).stream().findFirst();
   }
 
-  public static List<Map<String,Object>> getCryptoLogs(JdbcTemplate jdbcTemplate, String customerID) {
-    String getTransferHistorySql = "Select * from CryptoHistory WHERE CustomerID=? ORDER BY Timestamp DESC";
-    return jdbcTemplate.queryForList(getTransferHistorySql, customerID);
+  // A transaction is reversed at most once (unique ReversedTransactionID) and makes at most one repayment, so this joins to at most one row
+  private static final String DISPUTED_TRANSACTION_SQL = "SELECT t.TransactionID, t.CustomerID, t.Action, t.Amount, t.ReversedTransactionID, " +
+                                                         "o.OverdraftLogID, o.OldOverBalance, o.NewOverBalance, r.TransactionID AS ReversalTransactionID " +
+                                                         "FROM TransactionHistory t " +
+                                                         "LEFT JOIN OverdraftLogs o ON o.TransactionID = t.TransactionID " +
+                                                         "LEFT JOIN TransactionHistory r ON r.ReversedTransactionID = t.TransactionID ";
+
+  private static final RowMapper<DisputedTransaction> DISPUTED_TRANSACTION_ROW_MAPPER = (rs, rowNum) -> {
+    long overdraftLogID = rs.getLong("OverdraftLogID");
+    boolean madeRepayment = !rs.wasNull();
+    return new DisputedTransaction(rs.getLong("TransactionID"),
+                                   rs.getString("CustomerID"),
+                                   rs.getString("Action"),
+                                   rs.getInt("Amount"),
+                                   rs.getObject("ReversedTransactionID") != null,
+                                   rs.getObject("ReversalTransactionID") != null,
+                                   madeRepayment ? overdraftLogID : null,
+                                   madeRepayment ? rs.getInt("OldOverBalance") - rs.getInt("NewOverBalance") : 0);
+  };
+
+  //// HISTORY PAGES ////
+
+  /**
+   * @param cursor the nextCursor of the previous page, or null for the first (newest) page
+   * @throws IllegalArgumentException if the cursor is invalid
+   */
+  public static HistoryPage getTransactionHistoryPage(JdbcTemplate jdbcTemplate, String customerID, String cursor, int pageSize) {
+    return getHistoryPage(jdbcTemplate, "TransactionHistory", "CustomerID", "TransactionID", customerID, cursor, pageSize);
+  }
+
+  /**
+   * @param cursor the nextCursor of the previous page, or null for the first (newest) page
+   * @throws IllegalArgumentException if the cursor is invalid
+   */
+  public static HistoryPage getOverdraftLogsPage(JdbcTemplate jdbcTemplate, String customerID, String cursor, int pageSize) {
+    return getHistoryPage(jdbcTemplate, "OverdraftLogs", "CustomerID", "OverdraftLogID", customerID, cursor, pageSize);
+  }
+
+  /**
+   * @param cursor the nextCursor of the previous page, or null for the first (newest) page
+   * @throws IllegalArgumentException if the cursor is invalid
+   */
+  public static HistoryPage getCryptoLogsPage(JdbcTemplate jdbcTemplate, String customerID, String cursor, int pageSize) {
+    return getHistoryPage(jdbcTemplate, "CryptoHistory", "CustomerID", "CryptoLogID", customerID, cursor, pageSize);
+  }
+
+  /**
+   * Transfers sent and received by the customer, merged into one timeline.
+   * Like {@link #getTransferLogs}, each side is read from its own index and only one page from each side is merged.
+   *
+   * @param cursor the nextCursor of the previous page, or null for the first (newest) page
+   * @throws IllegalArgumentException if the cursor is invalid
+   */
+  public static HistoryPage getTransferLogsPage(JdbcTemplate jdbcTemplate, String customerID, String cursor, int pageSize) {
+    Optional<HistoryPage.Cursor> decodedCursor = Optional.ofNullable(cursor).map(HistoryPage.Cursor::decode);
+    String sentTransfersSql = historyPageSql("TransferHistory", "TransferFrom", "TransferID", decodedCursor.isPresent());
+    String receivedTransfersSql = historyPageSql("TransferHistory", "TransferTo", "TransferID", decodedCursor.isPresent());
+    String getTransferHistoryPageSql = "(" + sentTransfersSql + ") UNION ALL (" + receivedTransfersSql + ") ORDER BY Timestamp DESC, TransferID DESC LIMIT ?;";
+
+    List<Object> sideArgs = historyPageArgs(customerID, decodedCursor, pageSize + 1);
+    List<Object> args = new ArrayList<>(sideArgs);
+    args.addAll(sideArgs);
+    args.add(pageSize + 1);
+    List<Map<String,Object>> transferLogs = jdbcTemplate.queryForList(getTransferHistoryPageSql, args.toArray());
+    return toHistoryPage(transferLogs, "TransferID", pageSize);
   }
 
-  public static void insertRowToTransactionHistoryTable(JdbcTemplate jdbcTemplate, String customerID, String timestamp, String action, int amtInPennies) {
-    String insertRowToTransactionHistorySql = String.format("INSERT INTO TransactionHistory VALUES ('%s', '%s', '%s', %d);",
-                                                              customerID,
-                                                              timestamp,
-                                                              action,
-                                                              amtInPennies);
-    jdbcTemplate.update(insertRowToTransactionHistorySql);
+  // Reads one page from a history table that has a single customer column
+  private static HistoryPage getHistoryPage(JdbcTemplate jdbcTemplate, String tableName, String customerColumn, String idColumn, String customerID, String cursor, int pageSize) {
+    Optional<HistoryPage.Cursor> decodedCursor = Optional.ofNullable(cursor).map(HistoryPage.Cursor::decode);
+    String getHistoryPageSql = historyPageSql(tableName, customerColumn, idColumn, decodedCursor.isPresent()) + ";";
+    // fetch one extra row to find out whether there is a next page
+    List<Object> args = historyPageArgs(customerID, decodedCursor, pageSize + 1);
+    List<Map<String,Object>> historyRows = jdbcTemplate.queryForList(getHistoryPageSql, args.toArray());
+    return toHistoryPage(historyRows, idColumn, pageSize);
+  }
+
+  // Table and column names are constants from this class, never user input
+  private static String historyPageSql(String tableName, String customerColumn, String idColumn, boolean hasCursor) {
+    String cursorPredicate = hasCursor ? " AND (Timestamp < ? OR (Timestamp = ? AND " + idColumn + " < ?))" : "";
+    return "SELECT * FROM " + tableName + " WHERE " + customerColumn + "=?" + cursorPredicate +
+           " ORDER BY Timestamp DESC, " + idColumn + " DESC LIMIT ?";
+  }
+
+  private static List<Object> historyPageArgs(String customerID, Optional<HistoryPage.Cursor> cursor, int limit) {
+    List<Object> args = new ArrayList<>();
+    args.add(customerID);
+    if (cursor.isPresent()) {
+      args.add(cursor.get().getTimestamp());
+      args.add(cursor.get().getTimestamp());
+      args.add(cursor.get().getId());
+    }
+    args.add(limit);
+    return args;
+  }
+
+  private static HistoryPage toHistoryPage(List<Map<String,Object>> historyRows, String idColumn, int pageSize) {
+    if (historyRows.size() <= pageSize) {
+      return new HistoryPage(historyRows, null);
+    }
+    List<Map<String,Object>> pageRows = historyRows.subList(0, pageSize);
+    Map<String,Object> lastRow = pageRows.get(pageSize - 1);
+    HistoryPage.Cursor nextCursor = new HistoryPage.Cursor((LocalDateTime) lastRow.get("Timestamp"), ((Number) lastRow.get(idColumn)).longValue());
+    return new HistoryPage(new ArrayList<>(pageRows), nextCursor.encode());
+  }
+
+  /**
+   * Loads a customer's name, balances, and crypto holdings.
+   * <p>
+   * The Customers row and all CryptoHoldings rows are fetched together with a LEFT JOIN, so this is a single
+   * query no matter how many cryptocurrencies are supported. The balances loaded are also cached.
+   */
+  public static AccountSummary getAccountSummary(JdbcTemplate jdbcTemplate, String customerID) {
+    String getAccountAndCryptoHoldingsSql = "SELECT c.FirstName, c.LastName, c.Balance, c.OverdraftBalance, c.NumFraudReversals, c.Version, h.CryptoName, h.CryptoAmount " +
+                                            "FROM Customers c LEFT JOIN CryptoHoldings h ON h.CustomerID = c.CustomerID " +
+                                            "WHERE c.CustomerID = ?;";
+    List<Map<String,Object>> accountRows = jdbcTemplate.queryForList(getAccountAndCryptoHoldingsSql, customerID);
+    if (accountRows.isEmpty()) {
+      throw new EmptyResultDataAccessException(1);
+    }
+
+    Map<String, Double> cryptoHoldings = new HashMap<>();
+    for (Map<String,Object> accountRow : accountRows) {
+      String cryptoName = (String) accountRow.get("CryptoName");
+      BigDecimal cryptoAmount = (BigDecimal) accountRow.get("CryptoAmount");
+      if (cryptoName != null && cryptoAmount != null) {
+        cryptoHoldings.put(cryptoName, cryptoAmount.doubleValue());
+      }
+    }
+
+    Map<String,Object> customerData = accountRows.get(0);
+    ACCOUNT_STATE_CACHE.putIfNewer(customerID, new AccountState((int) customerData.get("Balance"),
+                                                                (int) customerData.get("OverdraftBalance"),
+                                                                (int) customerData.get("NumFraudReversals"),
+                                                                ((Number) customerData.get("Version")).longValue()));
+    return new AccountSummary((String) customerData.get("FirstName"),
+                              (String) customerData.get("LastName"),
+                              (int) customerData.get("Balance"),
+                              (int) customerData.get("OverdraftBalance"),
+                              (int) customerData.get("NumFraudReversals"),
+                              cryptoHoldings);
+  }
+
+  /**
+   * Loads everything needed to render the "account_info" page for a customer.
+   * <p>
+   * The account is loaded with {@link #getAccountSummary}, so the number of queries is fixed (one for the account
+   * + one per history table) no matter how many cryptocurrencies are supported.
+   * Only the first page of the overdraft and crypto logs is loaded. Older pages are served by the history endpoints.
+   */
+  public static AccountSnapshot getAccountSnapshot(JdbcTemplate jdbcTemplate, String customerID, int numTransactionsToFetch, int numTransfersToFetch, int numLogsToFetch) {
+    AccountSummary accountSummary = getAccountSummary(jdbcTemplate, customerID);
+    return new AccountSnapshot(accountSummary.getFirstName(),
+                               accountSummary.getLastName(),
+                               accountSummary.getBalanceInPennies(),
+                               accountSummary.getOverdraftBalanceInPennies(),
+                               accountSummary.getNumFraudReversals(),
+                               accountSummary.getCryptoHoldings(),
+                               getOverdraftLogsPage(jdbcTemplate, customerID, null, numLogsToFetch).getRows(),
+                               getRecentTransactions(jdbcTemplate, customerID, numTransactionsToFetch),
+                               getTransferLogs(jdbcTemplate, customerID, numTransfersToFetch),
+                               getCryptoLogsPage(jdbcTemplate, customerID, null, numLogsToFetch).getRows());
+  }
+
+  /**
+   * @return the TransactionID of the new row
+   */
+  public static long insertRowToTransactionHistoryTable(JdbcTemplate jdbcTemplate, String customerID, String timestamp, String action, int amtInPennies) {
+    return insertRowsToTransactionHistoryTable(jdbcTemplate, Collections.singletonList(new TransactionHistoryRow(customerID, timestamp, action, amtInPennies))).get(0);
+  }
+
+  /**
+   * @return the TransactionID of each row, in the same order as the rows
+   */
+  public static List<Long> insertRowsToTransactionHistoryTable(JdbcTemplate jdbcTemplate, List<TransactionHistoryRow> rows) {
+    List<Object[]> batchArgs = new ArrayList<>(rows.size());
+    for (TransactionHistoryRow row : rows) {
+      batchArgs.add(new Object[] {row.getCustomerID(), row.getTimestamp(), row.getAction(), row.getAmtInPennies(), row.getReversedTransactionID()});
+    }
+    return batchInsertReturningIDs(jdbcTemplate, INSERT_ROW_TO_TRANSACTION_HISTORY_SQL, batchArgs);
+  }
+
+  /**
+   * @param transactionID the TransactionHistory row of the deposit that made the repayment, or null if there is none
+   */
+  public static void insertRowToOverdraftLogsTable(JdbcTemplate jdbcTemplate, String customerID, String timestamp, int depositAmtIntPennies, int oldOverdraftBalanceInPennies, int newOverdraftBalanceInPennies, Long transactionID) {
+    jdbcTemplate.update(INSERT_ROW_TO_OVERDRAFT_LOGS_SQL, customerID, timestamp, depositAmtIntPennies, oldOverdraftBalanceInPennies, newOverdraftBalanceInPennies, transactionID);
   }
 
   public static void insertRowToOverdraftLogsTable(JdbcTemplate jdbcTemplate, String customerID, String timestamp, int depositAmtIntPennies, int oldOverdraftBalanceInPennies, int newOverdraftBalanceInPennies) {
-    String insertRowToOverdraftLogsSql = String.format("INSERT INTO OverdraftLogs VALUES ('%s', '%s', %d, %d, %d);", 
-                                                        customerID,
-                                                        timestamp,
-                                                        depositAmtIntPennies,
-                                                        oldOverdraftBalanceInPennies,
-                                                        newOverdraftBalanceInPennies);
-    jdbcTemplate.update(insertRowToOverdraftLogsSql);
+    insertRowToOverdraftLogsTable(jdbcTemplate, customerID, timestamp, depositAmtIntPennies, oldOverdraftBalanceInPennies, newOverdraftBalanceInPennies, null);
+  }
+
+  /**
+   * @param transactionIDs TransactionIDs of the rows' deposits, by row (see {@link LedgerWriter}). A row whose deposit is missing is not linked to it.
+   */
+  public static void insertRowsToOverdraftLogsTable(JdbcTemplate jdbcTemplate, List<OverdraftLogRow> rows, Map<TransactionHistoryRow, Long> transactionIDs) {
+    List<Object[]> batchArgs = new ArrayList<>(rows.size());
+    for (OverdraftLogRow row : rows) {
+      Long transactionID = (row.getTransaction() == null) ? null : transactionIDs.get(row.getTransaction());
+      batchArgs.add(new Object[] {row.getCustomerID(), row.getTimestamp(), row.getDepositAmtInPennies(), row.getOldOverdraftBalanceInPennies(), row.getNewOverdraftBalanceInPennies(), transactionID});
+    }
+    jdbcTemplate.batchUpdate(INSERT_ROW_TO_OVERDRAFT_LOGS_SQL, batchArgs);
+  }
+
+  // Sent as one JDBC batch, like JdbcTemplate#batchUpdate, but also reads back the auto-increment ID of each row
+  private static List<Long> batchInsertReturningIDs(JdbcTemplate jdbcTemplate, String sql, List<Object[]> batchArgs) {
+    return jdbcTemplate.execute(new GeneratedKeysInsert(sql), (PreparedStatement ps) -> {
+      for (Object[] args : batchArgs) {
+        for (int i = 0; i < args.length; i++) {
+          ps.setObject(i + 1, args[i]);
+        }
+        ps.addBatch();
+      }
+      ps.executeBatch();
+      List<Long> ids = new ArrayList<>(batchArgs.size());
+      try (ResultSet generatedKeys = ps.getGeneratedKeys()) {
+        while (generatedKeys.next()) {
+          ids.add(generatedKeys.getLong(1));
+        }
+      }
+      return ids;
+    });
+  }
+
+  // A SqlProvider, so that MeteredJdbcTemplate tags the statement by its SQL like every other repository statement
+  @Value
+  private static class GeneratedKeysInsert implements PreparedStatementCreator, SqlProvider {
+    String sql;
+
+    @Override
+    public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+      return connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+    }
   }
 
   public static void setCustomerNumFraudReversals(JdbcTemplate jdbcTemplate, String customerID, int newNumFraudReversals) {
-    String numOfReversalsUpdateSql = String.format("UPDATE Customers SET NumFraudReversals = %d WHERE CustomerID='%s';", newNumFraudReversals, customerID);
-    jdbcTemplate.update(numOfReversalsUpdateSql);
+    String numOfReversalsUpdateSql = "UPDATE Customers SET NumFraudReversals = ?, Version = Version + 1 WHERE CustomerID=?;";
+    jdbcTemplate.update(numOfReversalsUpdateSql, newNumFraudReversals, customerID);
+    ACCOUNT_STATE_CACHE.update(customerID, accountState -> accountState.withNumFraudReversals(newNumFraudReversals).withVersion(accountState.getVersion() + 1));
   }
 
   public static void setCustomerOverdraftBalance(JdbcTemplate jdbcTemplate, String customerID, int newOverdraftBalanceInPennies) {
-    String overdraftBalanceUpdateSql = String.format("UPDATE Customers SET OverdraftBalance = %d WHERE CustomerID='%s';", newOverdraftBalanceInPennies, customerID);
-    jdbcTemplate.update(overdraftBalanceUpdateSql);
+    String overdraftBalanceUpdateSql = "UPDATE Customers SET OverdraftBalance = ?, Version = Version + 1 WHERE CustomerID=?;";
+    jdbcTemplate.update(overdraftBalanceUpdateSql, newOverdraftBalanceInPennies, customerID);
+    ACCOUNT_STATE_CACHE.update(customerID, accountState -> accountState.withOverdraftBalanceInPennies(newOverdraftBalanceInPennies).withVersion(accountState.getVersion() + 1));
   }
 
   public static void increaseCustomerOverdraftBalance(JdbcTemplate jdbcTemplate, String customerID, int increaseAmtInPennies) {
-    String overdraftBalanceIncreaseSql = String.format("UPDATE Customers SET OverdraftBalance = OverdraftBalance + %d WHERE CustomerID='%s';", increaseAmtInPennies, customerID);
-    jdbcTemplate.update(overdraftBalanceIncreaseSql);
+    String overdraftBalanceIncreaseSql = "UPDATE Customers SET OverdraftBalance = OverdraftBalance + ?, Version = Version + 1 WHERE CustomerID=?;";
+    jdbcTemplate.update(overdraftBalanceIncreaseSql, increaseAmtInPennies, customerID);
+    ACCOUNT_STATE_CACHE.invalidate(customerID);
   }
 
   public static void setCustomerCashBalance(JdbcTemplate jdbcTemplate, String customerID, int newBalanceInPennies) {
-    String updateBalanceSql = String.format("UPDATE Customers SET Balance = %d WHERE CustomerID='%s';", newBalanceInPennies, customerID);
-    jdbcTemplate.update(updateBalanceSql);
+    String updateBalanceSql = "UPDATE Customers SET Balance = ?, Version = Version + 1 WHERE CustomerID=?;";
+    jdbcTemplate.update(updateBalanceSql, newBalanceInPennies, customerID);
+    ACCOUNT_STATE_CACHE.update(customerID, accountState -> accountState.withBalanceInPennies(newBalanceInPennies).withVersion(accountState.getVersion() + 1));
+  }
+
+  public static void setCustomerBalances(JdbcTemplate jdbcTemplate, String customerID, int newBalanceInPennies, int newOverdraftBalanceInPennies) {
+    String updateBalancesSql = "UPDATE Customers SET Balance = ?, OverdraftBalance = ?, Version = Version + 1 WHERE CustomerID=?;";
+    jdbcTemplate.update(updateBalancesSql, newBalanceInPennies, newOverdraftBalanceInPennies, customerID);
+    ACCOUNT_STATE_CACHE.update(customerID, accountState -> accountState.withBalanceInPennies(newBalanceInPennies).withOverdraftBalanceInPennies(newOverdraftBalanceInPennies).withVersion(accountState.getVersion() + 1));
+  }
+
+  /**
+   * Overwrites the balances of a customer, but only if their Customers row is still at the version `expectedState` was read at.
+   * Every UPDATE of a Customers row increments its Version, so a matching version means nothing changed the row in between.
+   *
+   * @throws OptimisticLockingFailureException if the row changed since `expectedState` was read, or no longer exists
+   */
+  public static void compareAndSetCustomerBalances(JdbcTemplate jdbcTemplate, String customerID, AccountState expectedState, int newBalanceInPennies, int newOverdraftBalanceInPennies) {
+    String compareAndSetBalancesSql = "UPDATE Customers SET Balance = ?, OverdraftBalance = ?, Version = Version + 1 WHERE CustomerID=? AND Version=?;";
+    int numRowsUpdated = jdbcTemplate.update(compareAndSetBalancesSql, newBalanceInPennies, newOverdraftBalanceInPennies, customerID, expectedState.getVersion());
+    if (numRowsUpdated == 0) {
+      // the expected state may have come from the cache, so a retry has to re-read the row from the DB
+      ACCOUNT_STATE_CACHE.invalidate(customerID);
+      throw new OptimisticLockingFailureException("Customer " + customerID + " was updated after version " + expectedState.getVersion() + " was read");
+    }
+    // the row is now exactly this state, so it is cached (once the transaction commits) unless a newer version already is
+    ACCOUNT_STATE_CACHE.putIfNewerAfterCommit(customerID, new AccountState(newBalanceInPennies, newOverdraftBalanceInPennies, expectedState.getNumFraudReversals(), expectedState.getVersion() + 1));
   }
 
   public static void increaseCustomerCashBalance(JdbcTemplate jdbcTemplate, String customerID, int increaseAmtInPennies) {
-    String balanceIncreaseSql = String.format("UPDATE Customers SET Balance = Balance + %d WHERE CustomerID='%s';", increaseAmtInPennies, customerID);
-    jdbcTemplate.update(balanceIncreaseSql);
+    String balanceIncreaseSql = "UPDATE Customers SET Balance = Balance + ?, Version = Version + 1 WHERE CustomerID=?;";
+    jdbcTemplate.update(balanceIncreaseSql, increaseAmtInPennies, customerID);
+    ACCOUNT_STATE_CACHE.invalidate(customerID);
   }
 
   public static void initCustomerCryptoBalance(JdbcTemplate jdbcTemplate, String customerID, String cryptoName) {
-    // TODO: this currently does not check if row with customerID and cryptoName already exists, and can create a duplicate row!
-    String balanceInitSql = "INSERT INTO CryptoHoldings (CryptoAmount,CustomerID,CryptoName) VALUES (0, ? , ? )";
+    // the unique key on (CustomerID, CryptoName) turns a repeated init into a no-op instead of a duplicate row
+    String balanceInitSql = "INSERT IGNORE INTO CryptoHoldings (CryptoAmount,CustomerID,CryptoName) VALUES (0, ? , ? )";
     jdbcTemplate.update(balanceInitSql, customerID, cryptoName);
   }
 
@@ -130,40 +547,332 @@ public class TestudoBankRepository {
   }
 
   public static void decreaseCustomerCashBalance(JdbcTemplate jdbcTemplate, String customerID, int decreaseAmtInPennies) {
-    String balanceDecreaseSql = String.format("UPDATE Customers SET Balance = Balance - %d WHERE CustomerID='%s';", decreaseAmtInPennies, customerID);
-    jdbcTemplate.update(balanceDecreaseSql);
+    String balanceDecreaseSql = "UPDATE Customers SET Balance = Balance - ?, Version = Version + 1 WHERE CustomerID=?;";
+    jdbcTemplate.update(balanceDecreaseSql, decreaseAmtInPennies, customerID);
+    ACCOUNT_STATE_CACHE.invalidate(customerID);
   }
 
-  public static void decreaseCustomerCryptoBalance(JdbcTemplate jdbcTemplate, String customerID, String cryptoName, double decreaseAmt) {
-    String balanceDecreaseSql = "UPDATE CryptoHoldings SET CryptoAmount = CryptoAmount - ? WHERE CustomerID= ? AND CryptoName= ?";
-    jdbcTemplate.update(balanceDecreaseSql, decreaseAmt, customerID, cryptoName);
+  // Only decreases the balance if it covers `decreaseAmt`. Returns whether it did
+  public static boolean decreaseCustomerCryptoBalance(JdbcTemplate jdbcTemplate, String customerID, String cryptoName, double decreaseAmt) {
+    String balanceDecreaseSql = "UPDATE CryptoHoldings SET CryptoAmount = CryptoAmount - ? WHERE CustomerID= ? AND CryptoName= ? AND CryptoAmount >= ?";
+    return jdbcTemplate.update(balanceDecreaseSql, decreaseAmt, customerID, cryptoName, decreaseAmt) == 1;
   }
 
-  public static void deleteRowFromOverdraftLogsTable(JdbcTemplate jdbcTemplate, String customerID, String timestamp) {
-    String deleteRowFromOverdraftLogsSql = String.format("DELETE from OverdraftLogs where CustomerID='%s' AND Timestamp='%s';", customerID, timestamp);
-    jdbcTemplate.update(deleteRowFromOverdraftLogsSql);
+  public static void deleteRowFromOverdraftLogsTable(JdbcTemplate jdbcTemplate, long overdraftLogID) {
+    String deleteRowFromOverdraftLogsSql = "DELETE from OverdraftLogs where OverdraftLogID=?;";
+    jdbcTemplate.update(deleteRowFromOverdraftLogsSql, overdraftLogID);
   }
 
   public static void insertRowToTransferLogsTable(JdbcTemplate jdbcTemplate, String customerID, String recipientID, String timestamp, int transferAmount) {
-    String transferHistoryToSql = String.format("INSERT INTO TransferHistory VALUES ('%s', '%s', '%s', %d);",
-                                                    customerID,
-                                                    recipientID,
-                                                    timestamp,
-                                                    transferAmount);
-    jdbcTemplate.update(transferHistoryToSql);
+    jdbcTemplate.update(INSERT_ROW_TO_TRANSFER_HISTORY_SQL, customerID, recipientID, timestamp, transferAmount);
+  }
+
+  public static void insertRowsToTransferLogsTable(JdbcTemplate jdbcTemplate, List<TransferHistoryRow> rows) {
+    List<Object[]> batchArgs = new ArrayList<>(rows.size());
+    for (TransferHistoryRow row : rows) {
+      batchArgs.add(new Object[] {row.getCustomerID(), row.getRecipientID(), row.getTimestamp(), row.getTransferAmountInPennies()});
+    }
+    jdbcTemplate.batchUpdate(INSERT_ROW_TO_TRANSFER_HISTORY_SQL, batchArgs);
   }
 
   public static void insertRowToCryptoLogsTable(JdbcTemplate jdbcTemplate, String customerID, String cryptoName, String action, String timestamp, double cryptoAmount) {
-    String cryptoHistorySql = "INSERT INTO CryptoHistory (CustomerID, Timestamp, Action, CryptoName, CryptoAmount) VALUES (?, ?, ?, ?, ?)";
-    jdbcTemplate.update(cryptoHistorySql, customerID, timestamp, action, cryptoName, cryptoAmount);
+    jdbcTemplate.update(INSERT_ROW_TO_CRYPTO_HISTORY_SQL, customerID, timestamp, action, cryptoName, cryptoAmount);
+  }
+
+  public static void insertRowsToCryptoLogsTable(JdbcTemplate jdbcTemplate, List<CryptoHistoryRow> rows) {
+    List<Object[]> batchArgs = new ArrayList<>(rows.size());
+    for (CryptoHistoryRow row : rows) {
+      batchArgs.add(new Object[] {row.getCustomerID(), row.getTimestamp(), row.getAction(), row.getCryptoName(), row.getCryptoAmount()});
+    }
+    jdbcTemplate.batchUpdate(INSERT_ROW_TO_CRYPTO_HISTORY_SQL, batchArgs);
   }
   
+  public static void insertRowsToLedgerEventsTable(JdbcTemplate jdbcTemplate, List<LedgerEventRow> rows) {
+    List<Object[]> batchArgs = new ArrayList<>(rows.size());
+    for (LedgerEventRow row : rows) {
+      batchArgs.add(new Object[] {row.getCustomerID(), row.getTimestamp(), row.getEventType(), row.getBalanceDeltaInPennies(), row.getOverdraftDeltaInPennies()});
+    }
+    jdbcTemplate.batchUpdate(INSERT_ROW_TO_LEDGER_EVENTS_SQL, batchArgs);
+  }
+
+  public static void applyCustomerBalanceDeltas(JdbcTemplate jdbcTemplate, String customerID, int balanceDeltaInPennies, int overdraftDeltaInPennies) {
+    String applyBalanceDeltasSql = "UPDATE Customers SET Balance = Balance + ?, OverdraftBalance = OverdraftBalance + ?, Version = Version + 1 WHERE CustomerID=?;";
+    jdbcTemplate.update(applyBalanceDeltasSql, balanceDeltaInPennies, overdraftDeltaInPennies, customerID);
+    ACCOUNT_STATE_CACHE.invalidate(customerID);
+  }
+
+  //// LEDGER SNAPSHOTS ////
+
+  /**
+   * Derives a customer's balances from their latest snapshot plus the ledger events after it,
+   * so the cost depends only on the number of events since the snapshot.
+   *
+   * @param maxEventID newest event to include
+   */
+  public static LedgerBalance getLedgerBalance(JdbcTemplate jdbcTemplate, String customerID, long maxEventID) {
+    String getSnapshotSql = "SELECT LastEventID, Balance, OverdraftBalance FROM BalanceSnapshots WHERE CustomerID=?;";
+    List<LedgerBalance> snapshots = jdbcTemplate.query(getSnapshotSql,
+                                                       (rs, rowNum) -> new LedgerBalance(rs.getInt("Balance"), rs.getInt("OverdraftBalance"), rs.getLong("LastEventID")),
+                                                       customerID);
+    LedgerBalance snapshot = snapshots.isEmpty() ? new LedgerBalance(0, 0, 0) : snapshots.get(0);
+
+    String sumEventsSinceSnapshotSql = "SELECT COALESCE(SUM(BalanceDelta), 0) AS BalanceDelta, COALESCE(SUM(OverdraftDelta), 0) AS OverdraftDelta, MAX(EventID) AS LastEventID " +
+                                       "FROM LedgerEvents WHERE CustomerID=? AND EventID > ? AND EventID <= ?;";
+    Map<String,Object> eventsSinceSnapshot = jdbcTemplate.queryForMap(sumEventsSinceSnapshotSql, customerID, snapshot.getLastEventID(), maxEventID);
+    Number lastEventID = (Number) eventsSinceSnapshot.get("LastEventID");
+    return new LedgerBalance(snapshot.getBalanceInPennies() + ((Number) eventsSinceSnapshot.get("BalanceDelta")).intValue(),
+                             snapshot.getOverdraftBalanceInPennies() + ((Number) eventsSinceSnapshot.get("OverdraftDelta")).intValue(),
+                             (lastEventID == null) ? snapshot.getLastEventID() : lastEventID.longValue());
+  }
+
+  public static LedgerBalance getLedgerBalance(JdbcTemplate jdbcTemplate, String customerID) {
+    return getLedgerBalance(jdbcTemplate, customerID, Long.MAX_VALUE);
+  }
+
+  /**
+   * @return the newest event of the customer that was appended more than `minAgeInSeconds` ago, or 0 if there is none
+   */
+  public static long getLastSettledLedgerEventID(JdbcTemplate jdbcTemplate, String customerID, int minAgeInSeconds) {
+    String getLastSettledEventIDSql = "SELECT COALESCE(MAX(EventID), 0) FROM LedgerEvents WHERE CustomerID=? AND RecordedAt < NOW(6) - INTERVAL ? SECOND;";
+    return jdbcTemplate.queryForObject(getLastSettledEventIDSql, Long.class, customerID, minAgeInSeconds);
+  }
+
+  /**
+   * @return IDs of customers with at least `minNumEvents` ledger events after their latest snapshot
+   */
+  public static List<String> getCustomersWithEventsSinceSnapshot(JdbcTemplate jdbcTemplate, int minNumEvents) {
+    String getCustomersSql = "SELECT e.CustomerID FROM LedgerEvents e LEFT JOIN BalanceSnapshots s ON s.CustomerID = e.CustomerID " +
+                             "WHERE e.EventID > COALESCE(s.LastEventID, 0) GROUP BY e.CustomerID HAVING COUNT(*) >= ?;";
+    return jdbcTemplate.queryForList(getCustomersSql, String.class, minNumEvents);
+  }
+
+  // Never replaces a snapshot with an older one. LastEventID must be assigned last, since MySQL applies the assignments in order
+  public static void saveBalanceSnapshot(JdbcTemplate jdbcTemplate, String customerID, LedgerBalance ledgerBalance) {
+    String saveSnapshotSql = "INSERT INTO BalanceSnapshots (CustomerID, LastEventID, Balance, OverdraftBalance) VALUES (?, ?, ?, ?) " +
+                             "ON DUPLICATE KEY UPDATE Balance = IF(VALUES(LastEventID) > LastEventID, VALUES(Balance), Balance), " +
+                             "OverdraftBalance = IF(VALUES(LastEventID) > LastEventID, VALUES(OverdraftBalance), OverdraftBalance), " +
+                             "LastEventID = GREATEST(VALUES(LastEventID), LastEventID);";
+    jdbcTemplate.update(saveSnapshotSql, customerID, ledgerBalance.getLastEventID(), ledgerBalance.getBalanceInPennies(), ledgerBalance.getOverdraftBalanceInPennies());
+  }
+
   public static boolean doesCustomerExist(JdbcTemplate jdbcTemplate, String customerID) { 
-    String getCustomerIDSql =  String.format("SELECT CustomerID FROM Customers WHERE CustomerID='%s';", customerID);
-    if (jdbcTemplate.queryForObject(getCustomerIDSql, String.class) != null) {
+    String getCustomerIDSql = "SELECT CustomerID FROM Customers WHERE CustomerID=?;";
+    if (jdbcTemplate.queryForObject(getCustomerIDSql, String.class, customerID) != null) {
      return true;
     } else {
       return false;
     }
   }
+
+  //// IDEMPOTENCY KEYS ////
+
+  /**
+   * Claims an idempotency key of the customer for an operation, with no outcome yet.
+   *
+   * @return true if the key was claimed, or false if it was already claimed (by any operation)
+   */
+  public static boolean claimIdempotencyKey(JdbcTemplate jdbcTemplate, String customerID, String idempotencyKey, String operationName) {
+    String claimIdempotencyKeySql = "INSERT IGNORE INTO IdempotencyKeys (CustomerID, IdempotencyKey, Operation) VALUES (?, ?, ?);";
+    return jdbcTemplate.update(claimIdempotencyKeySql, customerID, idempotencyKey, operationName) == 1;
+  }
+
+  /**
+   * @return the Operation, Outcome (null while the operation is running) and AgeInSeconds of a claimed key, or empty if the key isn't claimed
+   */
+  public static Optional<Map<String,Object>> getIdempotencyKey(JdbcTemplate jdbcTemplate, String customerID, String idempotencyKey) {
+    String getIdempotencyKeySql = "SELECT Operation, Outcome, TIMESTAMPDIFF(SECOND, CreatedAt, NOW(6)) AS AgeInSeconds FROM IdempotencyKeys WHERE CustomerID=? AND IdempotencyKey=?;";
+    return jdbcTemplate.queryForList(getIdempotencyKeySql, customerID, idempotencyKey).stream().findFirst();
+  }
+
+  public static void setIdempotencyKeyOutcome(JdbcTemplate jdbcTemplate, String customerID, String idempotencyKey, String outcome) {
+    String setIdempotencyKeyOutcomeSql = "UPDATE IdempotencyKeys SET Outcome=? WHERE CustomerID=? AND IdempotencyKey=?;";
+    jdbcTemplate.update(setIdempotencyKeyOutcomeSql, outcome, customerID, idempotencyKey);
+  }
+
+  /**
+   * Sets the outcome of a key whose operation is still running.
+   *
+   * @return false if the key already has an outcome
+   */
+  public static boolean failInProgressIdempotencyKey(JdbcTemplate jdbcTemplate, String customerID, String idempotencyKey, String outcome) {
+    String failInProgressIdempotencyKeySql = "UPDATE IdempotencyKeys SET Outcome=? WHERE CustomerID=? AND IdempotencyKey=? AND Outcome IS NULL;";
+    return jdbcTemplate.update(failInProgressIdempotencyKeySql, outcome, customerID, idempotencyKey) == 1;
+  }
+
+  public static void deleteIdempotencyKey(JdbcTemplate jdbcTemplate, String customerID, String idempotencyKey) {
+    String deleteIdempotencyKeySql = "DELETE FROM IdempotencyKeys WHERE CustomerID=? AND IdempotencyKey=?;";
+    jdbcTemplate.update(deleteIdempotencyKeySql, customerID, idempotencyKey);
+  }
+
+  /**
+   * @return the number of keys deleted for having been claimed more than `maxAgeInSeconds` ago
+   */
+  public static int deleteExpiredIdempotencyKeys(JdbcTemplate jdbcTemplate, long maxAgeInSeconds) {
+    String deleteExpiredIdempotencyKeysSql = "DELETE FROM IdempotencyKeys WHERE CreatedAt < NOW(6) - INTERVAL ? SECOND;";
+    return jdbcTemplate.update(deleteExpiredIdempotencyKeysSql, maxAgeInSeconds);
+  }
+
+  //// PENDING TRANSFERS ////
+
+  /**
+   * @param debitEvent the ledger event that debited the sender
+   * @return the PendingTransferID of the new row
+   */
+  public static long insertPendingTransfer(JdbcTemplate jdbcTemplate, String senderID, String recipientID, int amtInPennies, LedgerEventRow debitEvent) {
+    String insertPendingTransferSql = "INSERT INTO PendingTransfers (SenderID, RecipientID, AmtInPennies, BalanceDeltaInPennies, OverdraftDeltaInPennies) VALUES (?, ?, ?, ?, ?);";
+    List<Object[]> batchArgs = Collections.singletonList(new Object[] {senderID, recipientID, amtInPennies, debitEvent.getBalanceDeltaInPennies(), debitEvent.getOverdraftDeltaInPennies()});
+    return batchInsertReturningIDs(jdbcTemplate, insertPendingTransferSql, batchArgs).get(0);
+  }
+
+  /**
+   * Settles a pending transfer.
+   *
+   * @return false if the transfer was already settled
+   */
+  public static boolean deletePendingTransfer(JdbcTemplate jdbcTemplate, long pendingTransferID) {
+    String deletePendingTransferSql = "DELETE FROM PendingTransfers WHERE PendingTransferID=?;";
+    return jdbcTemplate.update(deletePendingTransferSql, pendingTransferID) == 1;
+  }
+
+  /**
+   * @return the transfers that have been pending for more than `minAgeInSeconds`, oldest first
+   */
+  public static List<PendingTransferRow> getStalePendingTransfers(JdbcTemplate jdbcTemplate, long minAgeInSeconds) {
+    String getStalePendingTransfersSql = "SELECT PendingTransferID, SenderID, RecipientID, AmtInPennies, BalanceDeltaInPennies, OverdraftDeltaInPennies FROM PendingTransfers " +
+                                         "WHERE CreatedAt < NOW(6) - INTERVAL ? SECOND ORDER BY CreatedAt;";
+    return jdbcTemplate.query(getStalePendingTransfersSql, (rs, rowNum) -> new PendingTransferRow(rs.getLong("PendingTransferID"), rs.getString("SenderID"), rs.getString("RecipientID"),
+                                                                                                  rs.getInt("AmtInPennies"), rs.getInt("BalanceDeltaInPennies"), rs.getInt("OverdraftDeltaInPennies")),
+                              minAgeInSeconds);
+  }
+
+  //// STATEMENTS ////
+
+  // Each history row of a customer's monthly statement, in the same shape for every history table.
+  // `customerSortKey` is the collation weight of the CustomerID the rows are ordered by, so that callers merging
+  // several of these streams compare customers exactly as the DB sorts (and matches) them.
+  @Value
+  public static class StatementLine {
+    byte[] customerSortKey;
+    String customerID;
+    LocalDateTime timestamp;
+    String section;
+    String action;
+    BigDecimal amount;
+    String details;
+  }
+
+  @Value
+  public static class StatementCustomer {
+    byte[] customerSortKey;
+    String customerID;
+    String firstName;
+    String lastName;
+  }
+
+  public static String STATEMENT_TRANSACTION_SECTION = "Transaction";
+  public static String STATEMENT_TRANSFER_SENT_SECTION = "TransferSent";
+  public static String STATEMENT_TRANSFER_RECEIVED_SECTION = "TransferReceived";
+  public static String STATEMENT_OVERDRAFT_SECTION = "Overdraft";
+  public static String STATEMENT_CRYPTO_SECTION = "Crypto";
+
+  /**
+   * Streams every customer to `customerConsumer`, ordered by CustomerID.
+   */
+  public static void streamStatementCustomers(JdbcTemplate jdbcTemplate, Consumer<StatementCustomer> customerConsumer) {
+    String getCustomersSql = "SELECT WEIGHT_STRING(CustomerID) AS CustomerSortKey, CustomerID, FirstName, LastName FROM Customers ORDER BY CustomerID;";
+    streamRows(jdbcTemplate, getCustomersSql, customerConsumer,
+               (rs, rowNum) -> new StatementCustomer(rs.getBytes("CustomerSortKey"), rs.getString("CustomerID"),
+                                                  rs.getString("FirstName"), rs.getString("LastName")));
+  }
+
+  /**
+   * Streams the TransactionHistory rows in [from, to) to `lineConsumer`, ordered by CustomerID and then time.
+   */
+  public static void streamStatementTransactions(JdbcTemplate jdbcTemplate, LocalDateTime from, LocalDateTime to, Consumer<StatementLine> lineConsumer) {
+    String getTransactionsSql = "SELECT WEIGHT_STRING(CustomerID) AS CustomerSortKey, CustomerID, Timestamp, Action, Amount FROM TransactionHistory " +
+                                "WHERE Timestamp >= ? AND Timestamp < ? ORDER BY CustomerID, Timestamp, TransactionID;";
+    streamRows(jdbcTemplate, getTransactionsSql, lineConsumer,
+               (rs, rowNum) -> new StatementLine(rs.getBytes("CustomerSortKey"), rs.getString("CustomerID"), rs.getObject("Timestamp", LocalDateTime.class),
+                                              STATEMENT_TRANSACTION_SECTION, rs.getString("Action"), dollarsOf(rs.getInt("Amount")), ""),
+               from, to);
+  }
+
+  /**
+   * Streams the TransferHistory rows in [from, to) to `lineConsumer`, once for the sender of each transfer, ordered by sender and then time.
+   */
+  public static void streamStatementTransfersSent(JdbcTemplate jdbcTemplate, LocalDateTime from, LocalDateTime to, Consumer<StatementLine> lineConsumer) {
+    String getTransfersSentSql = "SELECT WEIGHT_STRING(TransferFrom) AS CustomerSortKey, TransferFrom, TransferTo, Timestamp, Amount FROM TransferHistory " +
+                                 "WHERE Timestamp >= ? AND Timestamp < ? ORDER BY TransferFrom, Timestamp, TransferID;";
+    streamRows(jdbcTemplate, getTransfersSentSql, lineConsumer,
+               (rs, rowNum) -> new StatementLine(rs.getBytes("CustomerSortKey"), rs.getString("TransferFrom"), rs.getObject("Timestamp", LocalDateTime.class),
+                                              STATEMENT_TRANSFER_SENT_SECTION, "Send", dollarsOf(rs.getInt("Amount")), "To " + rs.getString("TransferTo")),
+               from, to);
+  }
+
+  /**
+   * Streams the TransferHistory rows in [from, to) to `lineConsumer`, once for the recipient of each transfer, ordered by recipient and then time.
+   */
+  public static void streamStatementTransfersReceived(JdbcTemplate jdbcTemplate, LocalDateTime from, LocalDateTime to, Consumer<StatementLine> lineConsumer) {
+    String getTransfersReceivedSql = "SELECT WEIGHT_STRING(TransferTo) AS CustomerSortKey, TransferFrom, TransferTo, Timestamp, Amount FROM TransferHistory " +
+                                     "WHERE Timestamp >= ? AND Timestamp < ? ORDER BY TransferTo, Timestamp, TransferID;";
+    streamRows(jdbcTemplate, getTransfersReceivedSql, lineConsumer,
+               (rs, rowNum) -> new StatementLine(rs.getBytes("CustomerSortKey"), rs.getString("TransferTo"), rs.getObject("Timestamp", LocalDateTime.class),
+                                              STATEMENT_TRANSFER_RECEIVED_SECTION, "Receive", dollarsOf(rs.getInt("Amount")), "From " + rs.getString("TransferFrom")),
+               from, to);
+  }
+
+  /**
+   * Streams the OverdraftLogs rows in [from, to) to `lineConsumer`, ordered by CustomerID and then time.
+   */
+  public static void streamStatementOverdraftLogs(JdbcTemplate jdbcTemplate, LocalDateTime from, LocalDateTime to, Consumer<StatementLine> lineConsumer) {
+    String getOverdraftLogsSql = "SELECT WEIGHT_STRING(CustomerID) AS CustomerSortKey, CustomerID, Timestamp, DepositAmt, OldOverBalance, NewOverBalance FROM OverdraftLogs " +
+                                 "WHERE Timestamp >= ? AND Timestamp < ? ORDER BY CustomerID, Timestamp, OverdraftLogID;";
+    streamRows(jdbcTemplate, getOverdraftLogsSql, lineConsumer,
+               (rs, rowNum) -> new StatementLine(rs.getBytes("CustomerSortKey"), rs.getString("CustomerID"), rs.getObject("Timestamp", LocalDateTime.class),
+                                              STATEMENT_OVERDRAFT_SECTION, "Repayment", dollarsOf(rs.getInt("DepositAmt")),
+                                              "Overdraft " + dollarsOf(rs.getInt("OldOverBalance")) + " -> " + dollarsOf(rs.getInt("NewOverBalance"))),
+               from, to);
+  }
+
+  /**
+   * Streams the CryptoHistory rows in [from, to) to `lineConsumer`, ordered by CustomerID and then time. Amounts are in the cryptocurrency, not dollars.
+   */
+  public static void streamStatementCryptoLogs(JdbcTemplate jdbcTemplate, LocalDateTime from, LocalDateTime to, Consumer<StatementLine> lineConsumer) {
+    String getCryptoLogsSql = "SELECT WEIGHT_STRING(CustomerID) AS CustomerSortKey, CustomerID, Timestamp, Action, CryptoName, CryptoAmount FROM CryptoHistory " +
+                              "WHERE Timestamp >= ? AND Timestamp < ? ORDER BY CustomerID, Timestamp, CryptoLogID;";
+    streamRows(jdbcTemplate, getCryptoLogsSql, lineConsumer,
+               (rs, rowNum) -> new StatementLine(rs.getBytes("CustomerSortKey"), rs.getString("CustomerID"), rs.getObject("Timestamp", LocalDateTime.class),
+                                              STATEMENT_CRYPTO_SECTION, rs.getString("Action"), rs.getBigDecimal("CryptoAmount").stripTrailingZeros(),
+                                              rs.getString("CryptoName")),
+               from, to);
+  }
+
+  private static BigDecimal dollarsOf(int amountInPennies) {
+    return BigDecimal.valueOf(amountInPennies, 2);
+  }
+
+  // Hands each row to `rowConsumer` as it is read, instead of materializing the result set like queryForList().
+  // The MySQL driver only streams rows (rather than buffering the whole result) with a fetch size of Integer.MIN_VALUE.
+  // The connection can't send other statements until the stream is read to the end.
+  private static <T> void streamRows(JdbcTemplate jdbcTemplate, String sql, Consumer<T> rowConsumer, RowMapper<T> rowMapper, Object... args) {
+    RowCallbackHandler rowHandler = rs -> rowConsumer.accept(rowMapper.mapRow(rs, rs.getRow()));
+    jdbcTemplate.query(new StreamingQuery(sql, args), rowHandler);
+  }
+
+  // A SqlProvider, so that MeteredJdbcTemplate tags the statement by its SQL like every other repository statement
+  @Value
+  private static class StreamingQuery implements PreparedStatementCreator, SqlProvider {
+    String sql;
+    Object[] args;
+
+    @Override
+    public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+      PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      statement.setFetchSize(Integer.MIN_VALUE);
+      for (int argNum = 0; argNum < args.length; argNum++) {
+        statement.setObject(argNum + 1, args[argNum]);
+      }
+      return statement;
+    }
+  }
 }
@@ -0,0 +1,282 @@
+package net.testudobank;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import lombok.Value;
+
+/**
+ * Moves money between two customers in a single DB transaction.
+ * <p>
+ * The sender's debit, the recipient's credit, their ledger events, and every history row for the transfer are
+ * committed together, so a failure part-way through can never leave money debited but not credited.
+ * <p>
+ * Both Customers rows are locked with SELECT ... FOR UPDATE before either is modified, always in
+ * ascending CustomerID order. Concurrent A->B and B->A transfers therefore queue up on the same
+ * first lock instead of each holding one row and waiting on the other (a deadlock).
+ * <p>
+ * When account mutations run on {@link AccountPartitions}, transfers instead hand off between the sender's
+ * and recipient's partitions, and no transaction ever spans both accounts (see {@link #transfer(AccountPartitions, String, String, int, String)}).
+ */
+public class TransferEngine {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TransferEngine.class);
+
+  public enum TransferResult {
+    SUCCESS,
+    SENDER_NOT_FOUND,
+    RECIPIENT_NOT_FOUND,
+    SENDER_FROZEN,
+    RECIPIENT_FROZEN,
+    OVERDRAFT_LIMIT_EXCEEDED
+  }
+
+  private final JdbcTemplate jdbcTemplate;
+
+  private final TransactionTemplate transactionTemplate;
+
+  // Result of the sender's half of a partitioned transfer, and the PendingTransfers row that settles it
+  @Value
+  private static class Debit {
+    TransferResult result;
+    TestudoBankRepository.PendingTransferRow pendingTransfer;
+  }
+
+  public TransferEngine(JdbcTemplate jdbcTemplate) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(jdbcTemplate.getDataSource()));
+  }
+
+  /**
+   * Transfers money from the sender to the recipient.
+   * <p>
+   * The sender's side follows the Withdraw rules (going into overdraft with interest if needed, up to the overdraft limit),
+   * and the recipient's side follows the Deposit rules (paying off any overdraft balance first).
+   * If any check fails, nothing is written.
+   *
+   * @param timestamp SQL DATETIME String used for every log created by this transfer
+   * @return SUCCESS if the transfer was committed, otherwise the reason it was rejected
+   */
+  public TransferResult transfer(String senderID, String recipientID, int transferAmtInPennies, String timestamp) {
+    return transactionTemplate.execute(status -> {
+      // lock both rows in a globally consistent order to avoid deadlocks between opposing transfers
+      boolean senderLocksFirst = senderID.compareTo(recipientID) < 0;
+      Optional<AccountState> firstLockedState = TestudoBankRepository.lockCustomerAccountState(jdbcTemplate, senderLocksFirst ? senderID : recipientID);
+      Optional<AccountState> secondLockedState = TestudoBankRepository.lockCustomerAccountState(jdbcTemplate, senderLocksFirst ? recipientID : senderID);
+      Optional<AccountState> senderState = senderLocksFirst ? firstLockedState : secondLockedState;
+      Optional<AccountState> recipientState = senderLocksFirst ? secondLockedState : firstLockedState;
+
+      //// Invalid Input/State Handling ////
+      TransferResult checkResult = check(senderState, recipientState, transferAmtInPennies);
+      if (checkResult != TransferResult.SUCCESS) {
+        return checkResult;
+      }
+
+      AccountState newSenderState = senderState.get().afterWithdraw(transferAmtInPennies);
+      AccountState newRecipientState = recipientState.get().afterDeposit(transferAmtInPennies);
+
+      //// Complete Transfer ////
+      // both rows are locked, so the new balances can be written directly, with one ledger event per leg recording the change
+      TestudoBankRepository.insertRowsToLedgerEventsTable(jdbcTemplate, Arrays.asList(
+        ledgerEvent(senderID, timestamp, MvcController.TRANSACTION_HISTORY_TRANSFER_SEND_ACTION, senderState.get(), newSenderState),
+        ledgerEvent(recipientID, timestamp, MvcController.TRANSACTION_HISTORY_TRANSFER_RECEIVE_ACTION, recipientState.get(), newRecipientState)));
+      TestudoBankRepository.setCustomerBalances(jdbcTemplate, senderID, newSenderState.getBalanceInPennies(), newSenderState.getOverdraftBalanceInPennies());
+      TestudoBankRepository.setCustomerBalances(jdbcTemplate, recipientID, newRecipientState.getBalanceInPennies(), newRecipientState.getOverdraftBalanceInPennies());
+
+      TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, senderID, timestamp, MvcController.TRANSACTION_HISTORY_TRANSFER_SEND_ACTION, transferAmtInPennies);
+      long receiveTransactionID = TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, recipientID, timestamp, MvcController.TRANSACTION_HISTORY_TRANSFER_RECEIVE_ACTION, transferAmtInPennies);
+
+      // log the repayment if the transfer paid off some of the recipient's overdraft balance, linked to the transfer's TransactionHistory row
+      int oldRecipientOverdraftBalanceInPennies = recipientState.get().getOverdraftBalanceInPennies();
+      if (oldRecipientOverdraftBalanceInPennies > 0) {
+        TestudoBankRepository.insertRowToOverdraftLogsTable(jdbcTemplate, recipientID, timestamp, transferAmtInPennies, oldRecipientOverdraftBalanceInPennies, newRecipientState.getOverdraftBalanceInPennies(), receiveTransactionID);
+      }
+
+      TestudoBankRepository.insertRowToTransferLogsTable(jdbcTemplate, senderID, recipientID, timestamp, transferAmtInPennies);
+
+      return TransferResult.SUCCESS;
+    });
+  }
+
+  /**
+   * Transfers money from the sender to the recipient, with the sender's and recipient's sides each running on
+   * the partition that owns their account. No DB transaction or partition ever waits on both accounts at once:
+   * <ol>
+   *   <li>The sender's partition checks both accounts (the same checks as the single-transaction transfer),
+   *       and debits the sender with a TransferSend ledger event, recording the transfer in PendingTransfers.</li>
+   *   <li>The debit is handed off to the recipient's partition, which re-checks the recipient, credits them with
+   *       a TransferReceive ledger event, and writes the overdraft repayment, transaction, and transfer history rows.</li>
+   *   <li>If the recipient was deleted or frozen between the two steps, or the credit failed, the sender's partition
+   *       refunds the debit with a Reversal ledger event, and the transfer is rejected (or the credit's exception rethrown).</li>
+   * </ol>
+   * Between steps 1 and 2, the money has left the sender but not yet reached the recipient. The credit and the refund each
+   * delete the transfer's PendingTransfers row in their DB transaction, and only go ahead if they deleted it, so a transfer
+   * is settled exactly once. One that was never settled (e.g. the app crashed in between) is refunded by
+   * {@link #refundStalePendingTransfers}.
+   *
+   * @param timestamp SQL DATETIME String used for every log created by this transfer
+   * @return SUCCESS if the transfer was completed, otherwise the reason it was rejected
+   */
+  public TransferResult transfer(AccountPartitions accountPartitions, String senderID, String recipientID, int transferAmtInPennies, String timestamp) {
+    Debit debit = accountPartitions.call(senderID, () -> debit(senderID, recipientID, transferAmtInPennies, timestamp));
+    if (debit.getResult() != TransferResult.SUCCESS) {
+      return debit.getResult();
+    }
+
+    TestudoBankRepository.PendingTransferRow pendingTransfer = debit.getPendingTransfer();
+    TransferResult creditResult;
+    try {
+      creditResult = accountPartitions.call(recipientID, () -> credit(pendingTransfer, timestamp));
+    } catch (RuntimeException e) {
+      // the credit may or may not have committed, but the refund only goes ahead if it didn't
+      try {
+        accountPartitions.call(senderID, () -> refund(pendingTransfer, timestamp));
+      } catch (RuntimeException refundException) {
+        LOGGER.error("Failed to refund pending transfer {} after its credit failed. It will be refunded once it is stale", pendingTransfer.getPendingTransferID(), refundException);
+        e.addSuppressed(refundException);
+      }
+      throw e;
+    }
+    if (creditResult != TransferResult.SUCCESS) {
+      accountPartitions.call(senderID, () -> refund(pendingTransfer, timestamp));
+    }
+    return creditResult;
+  }
+
+  /**
+   * Refunds every partitioned transfer that has been pending for more than `minAgeInSeconds`, on its sender's partition.
+   * A transfer is only pending for as long as its credit takes, unless the app stopped (or the refund failed) part way through it.
+   *
+   * @param timestamp SQL DATETIME String used for the refunds' ledger events
+   * @return the number of transfers refunded
+   */
+  public int refundStalePendingTransfers(AccountPartitions accountPartitions, long minAgeInSeconds, String timestamp) {
+    int numRefunded = 0;
+    for (TestudoBankRepository.PendingTransferRow pendingTransfer : TestudoBankRepository.getStalePendingTransfers(jdbcTemplate, minAgeInSeconds)) {
+      if (accountPartitions.call(pendingTransfer.getSenderID(), () -> refund(pendingTransfer, timestamp))) {
+        LOGGER.warn("Refunded pending transfer {} of {} pennies from {} to {}", pendingTransfer.getPendingTransferID(), pendingTransfer.getAmtInPennies(),
+                    pendingTransfer.getSenderID(), pendingTransfer.getRecipientID());
+        numRefunded++;
+      }
+    }
+    return numRefunded;
+  }
+
+  // Sender's half of a partitioned transfer. Must run on the sender's partition.
+  private Debit debit(String senderID, String recipientID, int transferAmtInPennies, String timestamp) {
+    Optional<AccountState> senderState = findAccountState(senderID);
+    Optional<AccountState> recipientState = findAccountState(recipientID);
+    TransferResult checkResult = check(senderState, recipientState, transferAmtInPennies);
+    if (checkResult != TransferResult.SUCCESS) {
+      return new Debit(checkResult, null);
+    }
+
+    AccountState newSenderState = senderState.get().afterWithdraw(transferAmtInPennies);
+    TestudoBankRepository.LedgerEventRow debitEvent = ledgerEvent(senderID, timestamp, MvcController.TRANSACTION_HISTORY_TRANSFER_SEND_ACTION, senderState.get(), newSenderState);
+    return transactionTemplate.execute(status -> {
+      applyLedgerEvent(debitEvent);
+      long pendingTransferID = TestudoBankRepository.insertPendingTransfer(jdbcTemplate, senderID, recipientID, transferAmtInPennies, debitEvent);
+      return new Debit(TransferResult.SUCCESS, new TestudoBankRepository.PendingTransferRow(pendingTransferID, senderID, recipientID, transferAmtInPennies,
+                                                                                              debitEvent.getBalanceDeltaInPennies(), debitEvent.getOverdraftDeltaInPennies()));
+    });
+  }
+
+  // Recipient's half of a partitioned transfer. Must run on the recipient's partition.
+  private TransferResult credit(TestudoBankRepository.PendingTransferRow pendingTransfer, String timestamp) {
+    String senderID = pendingTransfer.getSenderID();
+    String recipientID = pendingTransfer.getRecipientID();
+    int transferAmtInPennies = pendingTransfer.getAmtInPennies();
+    Optional<AccountState> recipientState = findAccountState(recipientID);
+    if (!recipientState.isPresent()) {
+      return TransferResult.RECIPIENT_NOT_FOUND;
+    }
+    if (recipientState.get().isFrozen()) {
+      return TransferResult.RECIPIENT_FROZEN;
+    }
+
+    AccountState newRecipientState = recipientState.get().afterDeposit(transferAmtInPennies);
+    transactionTemplate.execute(status -> {
+      if (!TestudoBankRepository.deletePendingTransfer(jdbcTemplate, pendingTransfer.getPendingTransferID())) {
+        throw new IllegalStateException("Pending transfer " + pendingTransfer.getPendingTransferID() + " was already refunded");
+      }
+      applyLedgerEvent(ledgerEvent(recipientID, timestamp, MvcController.TRANSACTION_HISTORY_TRANSFER_RECEIVE_ACTION, recipientState.get(), newRecipientState));
+
+      TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, senderID, timestamp, MvcController.TRANSACTION_HISTORY_TRANSFER_SEND_ACTION, transferAmtInPennies);
+      long receiveTransactionID = TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, recipientID, timestamp, MvcController.TRANSACTION_HISTORY_TRANSFER_RECEIVE_ACTION, transferAmtInPennies);
+
+      // log the repayment if the transfer paid off some of the recipient's overdraft balance, linked to the transfer's TransactionHistory row
+      int oldRecipientOverdraftBalanceInPennies = recipientState.get().getOverdraftBalanceInPennies();
+      if (oldRecipientOverdraftBalanceInPennies > 0) {
+        TestudoBankRepository.insertRowToOverdraftLogsTable(jdbcTemplate, recipientID, timestamp, transferAmtInPennies, oldRecipientOverdraftBalanceInPennies, newRecipientState.getOverdraftBalanceInPennies(), receiveTransactionID);
+      }
+
+      TestudoBankRepository.insertRowToTransferLogsTable(jdbcTemplate, senderID, recipientID, timestamp, transferAmtInPennies);
+      return null;
+    });
+    return TransferResult.SUCCESS;
+  }
+
+  // Undoes the sender's debit of a partitioned transfer that wasn't credited, unless it was already settled.
+  // Returns whether it did. Must run on the sender's partition.
+  private boolean refund(TestudoBankRepository.PendingTransferRow pendingTransfer, String timestamp) {
+    return transactionTemplate.execute(status -> {
+      if (!TestudoBankRepository.deletePendingTransfer(jdbcTemplate, pendingTransfer.getPendingTransferID())) {
+        return false;
+      }
+      applyLedgerEvent(new TestudoBankRepository.LedgerEventRow(pendingTransfer.getSenderID(), timestamp, MvcController.LEDGER_EVENT_REVERSAL,
+                                                                -pendingTransfer.getBalanceDeltaInPennies(), -pendingTransfer.getOverdraftDeltaInPennies()));
+      return true;
+    });
+  }
+
+  // Appends the ledger event and applies its deltas to the Customers row in one transaction
+  private void applyLedgerEvent(TestudoBankRepository.LedgerEventRow event) {
+    transactionTemplate.execute(status -> {
+      TestudoBankRepository.insertRowsToLedgerEventsTable(jdbcTemplate, Collections.singletonList(event));
+      TestudoBankRepository.applyCustomerBalanceDeltas(jdbcTemplate, event.getCustomerID(), event.getBalanceDeltaInPennies(), event.getOverdraftDeltaInPennies());
+      return null;
+    });
+  }
+
+  // Only the account's own partition mutates it, so a plain (cached) read is already up to date
+  private Optional<AccountState> findAccountState(String customerID) {
+    try {
+      return Optional.of(TestudoBankRepository.getCustomerAccountState(jdbcTemplate, customerID));
+    } catch (EmptyResultDataAccessException e) {
+      return Optional.empty();
+    }
+  }
+
+  // IMPORTANT: the overdraft limit is checked AFTER applying the interest rate
+  private static TransferResult check(Optional<AccountState> senderState, Optional<AccountState> recipientState, int transferAmtInPennies) {
+    if (!senderState.isPresent()) {
+      return TransferResult.SENDER_NOT_FOUND;
+    }
+    if (!recipientState.isPresent()) {
+      return TransferResult.RECIPIENT_NOT_FOUND;
+    }
+    if (senderState.get().isFrozen()) {
+      return TransferResult.SENDER_FROZEN;
+    }
+    if (recipientState.get().isFrozen()) {
+      return TransferResult.RECIPIENT_FROZEN;
+    }
+    if (senderState.get().afterWithdraw(transferAmtInPennies).exceedsOverdraftLimit()) {
+      return TransferResult.OVERDRAFT_LIMIT_EXCEEDED;
+    }
+    return TransferResult.SUCCESS;
+  }
+
+  private static TestudoBankRepository.LedgerEventRow ledgerEvent(String customerID, String timestamp, String eventType, AccountState oldState, AccountState newState) {
+    return new TestudoBankRepository.LedgerEventRow(customerID, timestamp, eventType,
+                                                    newState.getBalanceInPennies() - oldState.getBalanceInPennies(),
+                                                    newState.getOverdraftBalanceInPennies() - oldState.getOverdraftBalanceInPennies());
+  }
+}
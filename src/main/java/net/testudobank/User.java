@@ -17,6 +17,19 @@ public class User {
   @Setter @Getter @ToString.Include
 	private String password;
 
+  // Issued at login. Lets later requests skip the password check. HTML forms never carry it: see csrfToken
+  @Setter @Getter
+  private String sessionToken;
+
+  // The CSRF token of the session, carried by HTML forms so that the session token cookie authenticates their submission
+  @Setter @Getter
+  private String csrfToken;
+
+  // Chosen by the client for each account operation it submits. A resubmitted request with the same key
+  // gets the outcome of the first one instead of running the operation again. Optional.
+  @Setter @Getter
+  private String idempotencyKey;
+
   @Setter @Getter
   private String firstName;
 
@@ -40,6 +53,10 @@ public class User {
   @Setter @Getter
   private int numTransactionsAgo;
 
+  // TransactionID of the transaction to reverse. If set (non-zero), it is used instead of numTransactionsAgo.
+  @Setter @Getter
+  private long transactionIDToReverse;
+
   //// Deposit Fields ////
 
   @Setter @Getter @Positive
@@ -0,0 +1,74 @@
+package net.testudobank;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Opt-in execution mode that runs every HTTP request on its own virtual thread, enabled with "request.virtual-threads=true".
+ * <p>
+ * Every handler spends most of its time blocked on JDBC, so with Tomcat's pool of platform threads (200 by default)
+ * the number of requests in flight is capped by the pool, not by the DB. A blocked virtual thread gives up its
+ * carrier thread, so requests are only limited by Tomcat's max connections. To keep all of them from piling
+ * onto the connection pool at once, the DataSource is wrapped in a {@link ConcurrencyLimitedDataSource}.
+ * <p>
+ * Virtual threads need a Java 21+ runtime. The app is still compiled for Java 8 (Spring Boot 2.2 can't scan newer
+ * class files), so the virtual thread executor is created reflectively, and startup fails if the runtime has none.
+ */
+@Configuration
+@ConditionalOnProperty(name = "request.virtual-threads", havingValue = "true")
+public class VirtualThreadConfig {
+
+  @Bean
+  public TomcatProtocolHandlerCustomizer<?> virtualThreadExecutorCustomizer() {
+    ExecutorService virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+    return protocolHandler -> protocolHandler.setExecutor(virtualThreadExecutor);
+  }
+
+  // static, so the post-processor is registered before the DataSource bean is created
+  @Bean
+  public static BeanPostProcessor jdbcConcurrencyLimiter(@Value("${jdbc.max-concurrent-connections:10}") int maxConcurrentConnections) {
+    return new BeanPostProcessor() {
+      @Override
+      public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (bean instanceof DataSource && !(bean instanceof ConcurrencyLimitedDataSource)) {
+          return new ConcurrencyLimitedDataSource((DataSource) bean, maxConcurrentConnections);
+        }
+        return bean;
+      }
+    };
+  }
+
+  @Bean
+  public MeterBinder jdbcConcurrencyLimiterMetrics(DataSource dataSource) {
+    return registry -> {
+      if (dataSource instanceof ConcurrencyLimitedDataSource) {
+        Gauge.builder("jdbc.connections.waiting", (ConcurrencyLimitedDataSource) dataSource, ConcurrencyLimitedDataSource::getNumWaitingCallers)
+             .description("Requests waiting for a DB connection permit")
+             .register(registry);
+      }
+    };
+  }
+
+  private static ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (NoSuchMethodException e) {
+      throw new IllegalStateException("request.virtual-threads=true needs a Java 21+ runtime, but this is Java " + System.getProperty("java.version"), e);
+    } catch (IllegalAccessException | InvocationTargetException e) {
+      throw new IllegalStateException("Could not create the virtual thread executor", e);
+    }
+  }
+}
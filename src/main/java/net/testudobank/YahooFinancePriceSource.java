@@ -0,0 +1,38 @@
+package net.testudobank;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import yahoofinance.Stock;
+import yahoofinance.YahooFinance;
+
+/**
+ * Fetches prices with a Yahoo Finance Wrapper API (https://github.com/sstrickx/yahoofinance-api).
+ * <p>
+ * All cryptocurrencies are requested in one multi-symbol quote call.
+ */
+@Component
+@ConditionalOnProperty(name = "crypto.price-source", havingValue = "yahoo", matchIfMissing = true)
+public class YahooFinancePriceSource implements CryptoPriceSource {
+    private static final String SYMBOL_SUFFIX = "-USD";
+
+    @Override
+    public Map<String, Double> fetchPrices(Set<String> cryptoNames) throws IOException {
+        String[] symbols = cryptoNames.stream().map(cryptoName -> cryptoName + SYMBOL_SUFFIX).toArray(String[]::new);
+        Map<String, Stock> quotes = YahooFinance.get(symbols);
+
+        Map<String, Double> prices = new HashMap<>();
+        for (String cryptoName : cryptoNames) {
+            Stock quote = (quotes == null) ? null : quotes.get(cryptoName + SYMBOL_SUFFIX);
+            if (quote != null && quote.getQuote() != null && quote.getQuote().getPrice() != null) {
+                prices.put(cryptoName, quote.getQuote().getPrice().doubleValue());
+            }
+        }
+        return prices;
+    }
+}
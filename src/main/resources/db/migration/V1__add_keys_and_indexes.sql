@@ -0,0 +1,25 @@
+-- Every lookup in TestudoBankRepository is by CustomerID, and every history query is
+-- "WHERE <customer column> = ? ORDER BY Timestamp DESC LIMIT n", so each table gets a key or a
+-- (customer, Timestamp) index that serves both the filter and the sort.
+
+ALTER TABLE Customers ADD PRIMARY KEY (CustomerID);
+
+ALTER TABLE Passwords ADD PRIMARY KEY (CustomerID);
+
+-- initCustomerCryptoBalance() could create duplicate holdings rows before this key existed.
+-- Duplicates were always updated together, so keeping any one of them is safe.
+CREATE TABLE CryptoHoldingsDeduplicated LIKE CryptoHoldings;
+ALTER TABLE CryptoHoldingsDeduplicated ADD UNIQUE KEY UQ_CryptoHoldings_CustomerID_CryptoName (CustomerID, CryptoName);
+INSERT IGNORE INTO CryptoHoldingsDeduplicated SELECT * FROM CryptoHoldings;
+DROP TABLE CryptoHoldings;
+RENAME TABLE CryptoHoldingsDeduplicated TO CryptoHoldings;
+
+CREATE INDEX IX_TransactionHistory_CustomerID_Timestamp ON TransactionHistory (CustomerID, Timestamp);
+
+CREATE INDEX IX_OverdraftLogs_CustomerID_Timestamp ON OverdraftLogs (CustomerID, Timestamp);
+
+-- TransferHistory is searched from both sides, so each side gets its own index (see getTransferLogs())
+CREATE INDEX IX_TransferHistory_TransferFrom_Timestamp ON TransferHistory (TransferFrom, Timestamp);
+CREATE INDEX IX_TransferHistory_TransferTo_Timestamp ON TransferHistory (TransferTo, Timestamp);
+
+CREATE INDEX IX_CryptoHistory_CustomerID_Timestamp ON CryptoHistory (CustomerID, Timestamp);
@@ -0,0 +1,14 @@
+-- Every history table gets an auto-increment ID, so that rows with the same Timestamp have a stable order.
+-- History pages are read with a (Timestamp, ID) keyset cursor instead of an OFFSET (see TestudoBankRepository).
+--
+-- Making the ID the primary key also extends every existing (customer, Timestamp) index with the ID,
+-- because InnoDB appends the primary key to each secondary index. So those indexes already serve
+-- "WHERE <customer column> = ? AND (Timestamp, ID) < cursor ORDER BY Timestamp DESC, ID DESC".
+
+ALTER TABLE TransactionHistory ADD COLUMN TransactionID BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY FIRST;
+
+ALTER TABLE OverdraftLogs ADD COLUMN OverdraftLogID BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY FIRST;
+
+ALTER TABLE TransferHistory ADD COLUMN TransferID BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY FIRST;
+
+ALTER TABLE CryptoHistory ADD COLUMN CryptoLogID BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY FIRST;
@@ -0,0 +1,29 @@
+-- LedgerEvents is the append-only record of every change to a customer's Balance and OverdraftBalance.
+-- The Customers balance columns are a projection of it (see LedgerProjector), and can be rebuilt from it.
+--
+-- RecordedAt is set by the DB, so snapshots can skip events that were appended too recently to be sure
+-- every lower EventID has committed.
+CREATE TABLE LedgerEvents (
+  EventID BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY,
+  CustomerID varchar(255) NOT NULL,
+  Timestamp DATETIME,
+  EventType varchar(255),
+  BalanceDelta int NOT NULL,
+  OverdraftDelta int NOT NULL,
+  RecordedAt DATETIME(6) NOT NULL DEFAULT CURRENT_TIMESTAMP(6)
+);
+
+-- "events of a customer after their snapshot" is a range scan of this index, since InnoDB appends EventID to it
+CREATE INDEX IX_LedgerEvents_CustomerID ON LedgerEvents (CustomerID);
+
+-- Each customer's balances as of LastEventID. A balance is its snapshot plus the events after it.
+CREATE TABLE BalanceSnapshots (
+  CustomerID varchar(255) NOT NULL PRIMARY KEY,
+  LastEventID BIGINT NOT NULL,
+  Balance int NOT NULL,
+  OverdraftBalance int NOT NULL
+);
+
+-- Existing customers open the ledger with their current balances
+INSERT INTO LedgerEvents (CustomerID, Timestamp, EventType, BalanceDelta, OverdraftDelta)
+SELECT CustomerID, NOW(), 'Opening', COALESCE(Balance, 0), COALESCE(OverdraftBalance, 0) FROM Customers;
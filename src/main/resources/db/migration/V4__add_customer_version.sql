@@ -0,0 +1,3 @@
+-- Incremented by every UPDATE of a Customers row, so that a balance update can be made conditional on
+-- the row not having changed since it was read (see TestudoBankRepository#compareAndSetCustomerBalances).
+ALTER TABLE Customers ADD COLUMN Version BIGINT NOT NULL DEFAULT 0;
@@ -0,0 +1,17 @@
+-- Links every overdraft repayment to the TransactionHistory row of the deposit (or received transfer) that made it,
+-- and every dispute reversal to the row it reversed, so a dispute loads the disputed row and its effects by primary key
+-- instead of matching rows on Timestamp (see TestudoBankRepository#getDisputedTransaction).
+
+ALTER TABLE OverdraftLogs ADD COLUMN TransactionID BIGINT NULL;
+CREATE INDEX IX_OverdraftLogs_TransactionID ON OverdraftLogs (TransactionID);
+
+-- Existing repayments were logged in the same second as their deposit, with the deposited amount.
+-- If several deposits of that amount happened in the same second, the log is linked to the first one.
+UPDATE OverdraftLogs o
+SET o.TransactionID = (SELECT MIN(t.TransactionID) FROM TransactionHistory t
+                       WHERE t.CustomerID = o.CustomerID AND t.Timestamp = o.Timestamp
+                       AND t.Action IN ('Deposit', 'TransferReceive') AND t.Amount = o.DepositAmt);
+
+-- Unique, so a transaction can be reversed at most once even if two disputes of it race
+ALTER TABLE TransactionHistory ADD COLUMN ReversedTransactionID BIGINT NULL;
+CREATE UNIQUE INDEX UQ_TransactionHistory_ReversedTransactionID ON TransactionHistory (ReversedTransactionID);
@@ -0,0 +1,14 @@
+-- Idempotency keys submitted with account operations, and the outcome of the operation each key first ran.
+-- The primary key lets only one request claim a key, so a resubmitted request can't run its operation twice
+-- (see IdempotencyKeyStore). Outcome stays NULL while the operation is still running.
+CREATE TABLE IdempotencyKeys (
+  CustomerID varchar(255) NOT NULL,
+  IdempotencyKey varchar(64) NOT NULL,
+  Operation varchar(32) NOT NULL,
+  Outcome varchar(32),
+  CreatedAt DATETIME(6) NOT NULL DEFAULT CURRENT_TIMESTAMP(6),
+  PRIMARY KEY (CustomerID, IdempotencyKey)
+);
+
+-- Expired keys are purged by age
+CREATE INDEX IX_IdempotencyKeys_CreatedAt ON IdempotencyKeys (CreatedAt);
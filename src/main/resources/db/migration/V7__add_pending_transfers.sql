@@ -0,0 +1,18 @@
+-- Partitioned transfers that have debited the sender but not yet credited the recipient (see TransferEngine).
+-- A row is inserted in the debit's DB transaction, and deleted in the transaction that settles the transfer by either
+-- crediting the recipient or refunding the sender. Whichever deletes it settles the transfer, so it is settled exactly once,
+-- and a transfer cut short by a crash is still pending here to be refunded.
+CREATE TABLE PendingTransfers (
+  PendingTransferID bigint NOT NULL AUTO_INCREMENT,
+  SenderID varchar(255) NOT NULL,
+  RecipientID varchar(255) NOT NULL,
+  AmtInPennies int NOT NULL,
+  -- the debit's ledger event deltas, which a refund negates
+  BalanceDeltaInPennies int NOT NULL,
+  OverdraftDeltaInPennies int NOT NULL,
+  CreatedAt DATETIME(6) NOT NULL DEFAULT CURRENT_TIMESTAMP(6),
+  PRIMARY KEY (PendingTransferID)
+);
+
+-- Transfers left pending are found by age
+CREATE INDEX IX_PendingTransfers_CreatedAt ON PendingTransfers (CreatedAt);
@@ -0,0 +1,5 @@
+-- Corrects the description of LedgerEvents in V3: the ledger is an audit log, not the source of the balances.
+-- The Customers Balance and OverdraftBalance columns are the source of truth, and no request reads a balance from the ledger.
+-- Every change to them appends an event in the same DB transaction (see LedgerProjector), so the balances derived from
+-- the ledger audit the Customers row, and only rebuild it when the row is known to be wrong and the ledger right.
+ALTER TABLE LedgerEvents COMMENT = 'Audit log of every change to Customers.Balance and Customers.OverdraftBalance, which are the source of truth';
@@ -42,12 +42,17 @@
     <span>Transaction History: </span><span>${user.transactionHist}</span><br/>
     <span>Transfer History: </span><span>${user.transferHist}</span><br/>
     <span>Crypto History: </span><span>${user.cryptoHist}</span><br/>
+    <span>Full History: </span>
+    <a href='/history/transactions'>Transactions</a>
+    <a href='/history/transfers'>Transfers</a>
+    <a href='/history/overdrafts'>Re-payments</a>
+    <a href='/history/crypto'>Crypto</a><br/>
     <br/>
     <a href='/deposit'>Deposit</a>
     <a href='/withdraw'>Withdraw</a>
     <a href='/dispute'>Dispute</a>
     <a href='/transfer'>Transfer</a>
-    <a href='/'>Logout</a>
+    <a href='/logout'>Logout</a>
 	</div>
 </body>
 </html>
\ No newline at end of file
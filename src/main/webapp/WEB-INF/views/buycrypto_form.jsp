@@ -41,6 +41,8 @@
 
 			<form:label path="password">Password:</form:label>
 			<form:password path="password"/><br/>		
+			<form:hidden path="csrfToken"/>
+			<form:hidden path="idempotencyKey"/>
 
       <form:label path="whichCryptoToBuy">Which Crypto to buy (Type 'ETH' or 'SOL'):</form:label>
 			<form:input path="whichCryptoToBuy"/><br/>
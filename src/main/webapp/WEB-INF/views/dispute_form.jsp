@@ -41,8 +41,10 @@
 			
 			<form:label path="password">Password:</form:label>
 			<form:password path="password"/><br/>		
+			<form:hidden path="csrfToken"/>
+			<form:hidden path="idempotencyKey"/>
 
-      <form:label path="numTransactionsAgo">Transaction to Reverse (1=Most Recent, 2=2 Transactions Ago, Max = 3):</form:label>
+      <form:label path="numTransactionsAgo">Transaction to Reverse (1=Most Recent, 2=2 Transactions Ago, Max = ${maxReversableTransactionsAgo}):</form:label>
 			<form:input path="numTransactionsAgo"/><br/>	
 				
 			<form:button>Reverse</form:button>
@@ -15,6 +15,7 @@ import javax.sql.DataSource;
 
 import com.mysql.cj.jdbc.MysqlDataSource;
 
+import org.flywaydb.core.Flyway;
 import org.testcontainers.containers.MySQLContainer;
 import org.testcontainers.delegate.DatabaseDelegate;
 import org.testcontainers.ext.ScriptUtils;
@@ -32,13 +33,27 @@ public class MvcControllerIntegTestHelpers {
     return dataSource;
   }
 
+  // Applies the Flyway migrations in src/main/resources/db/migration on top of the tables created by createDB.sql
+  public static void migrateDB(DataSource dataSource) {
+    Flyway.configure()
+          .dataSource(dataSource)
+          .baselineOnMigrate(true)
+          .baselineVersion("0")
+          .load()
+          .migrate();
+  }
+
   // Uses given customer details to initialize the customer in the Customers and Passwords table in the MySQL DB.
   public static void addCustomerToDB(DatabaseDelegate dbDelegate, String ID, String password, String firstName, String lastName, int balance, int overdraftBalance, int numFraudReversals) throws ScriptException {
-    String insertCustomerSql = String.format("INSERT INTO Customers VALUES ('%s', '%s', '%s', %d, %d, %d)", ID, firstName, lastName, balance, overdraftBalance, numFraudReversals);
+    String insertCustomerSql = String.format("INSERT INTO Customers (CustomerID, FirstName, LastName, Balance, OverdraftBalance, NumFraudReversals) VALUES ('%s', '%s', '%s', %d, %d, %d)", ID, firstName, lastName, balance, overdraftBalance, numFraudReversals);
     ScriptUtils.executeDatabaseScript(dbDelegate, null, insertCustomerSql);
 
     String insertCustomerPasswordSql = String.format("INSERT INTO Passwords VALUES ('%s', '%s')", ID, password);
     ScriptUtils.executeDatabaseScript(dbDelegate, null, insertCustomerPasswordSql);
+
+    // open the customer's ledger with their starting balances, so the ledger and Customers table agree
+    String insertOpeningLedgerEventSql = String.format("INSERT INTO LedgerEvents (CustomerID, Timestamp, EventType, BalanceDelta, OverdraftDelta) VALUES ('%s', NOW(), 'Opening', %d, %d)", ID, balance, overdraftBalance);
+    ScriptUtils.executeDatabaseScript(dbDelegate, null, insertOpeningLedgerEventSql);
   }
 
   // Adds a customer to the MySQL DB with no overdraft balance or fraud disputes
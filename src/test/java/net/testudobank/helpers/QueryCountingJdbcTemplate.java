@@ -0,0 +1,74 @@
+package net.testudobank.helpers;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCallback;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.StatementCallback;
+
+import lombok.Value;
+
+// JdbcTemplate that counts every statement it sends to the DB, so tests can assert how many round trips a handler makes.
+// Every query/update method of JdbcTemplate funnels into one of the two execute() overloads below.
+//
+// The SQL and arguments of parameterized statements are also recorded, so tests can re-run them with EXPLAIN.
+// Every parameterized query/queryForList/queryForObject/queryForMap call funnels into the query() overload below.
+public class QueryCountingJdbcTemplate extends JdbcTemplate {
+  private final AtomicInteger numQueriesExecuted = new AtomicInteger();
+
+  private final List<RecordedQuery> recordedQueries = new CopyOnWriteArrayList<>();
+
+  @Value
+  public static class RecordedQuery {
+    String sql;
+    Object[] args;
+  }
+
+  public QueryCountingJdbcTemplate(DataSource dataSource) {
+    super(dataSource);
+  }
+
+  @Override
+  public <T> T execute(StatementCallback<T> action) throws DataAccessException {
+    numQueriesExecuted.incrementAndGet();
+    return super.execute(action);
+  }
+
+  @Override
+  public <T> T execute(PreparedStatementCreator psc, PreparedStatementCallback<T> action) throws DataAccessException {
+    numQueriesExecuted.incrementAndGet();
+    return super.execute(psc, action);
+  }
+
+  @Override
+  public <T> T query(String sql, Object[] args, ResultSetExtractor<T> rse) throws DataAccessException {
+    recordedQueries.add(new RecordedQuery(sql, args));
+    return super.query(sql, args, rse);
+  }
+
+  @Override
+  public int update(String sql, Object... args) throws DataAccessException {
+    recordedQueries.add(new RecordedQuery(sql, args));
+    return super.update(sql, args);
+  }
+
+  public List<RecordedQuery> getRecordedQueries() {
+    return recordedQueries;
+  }
+
+  public int getNumQueriesExecuted() {
+    return numQueriesExecuted.get();
+  }
+
+  public void resetNumQueriesExecuted() {
+    numQueriesExecuted.set(0);
+    recordedQueries.clear();
+  }
+}
@@ -0,0 +1,162 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import net.testudobank.AccountPartitions;
+import net.testudobank.RequestQueryStats;
+
+public class AccountPartitionsTest {
+  private static String CUSTOMER1_ID = "123456789";
+  private static int NUM_PARTITIONS = 4;
+  private static int NUM_THREADS = 8;
+  private static int NUM_MUTATIONS_PER_THREAD = 1000;
+  private static Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(10);
+
+  private final AccountPartitions accountPartitions = new AccountPartitions(NUM_PARTITIONS);
+
+  @AfterEach
+  public void shutdown() {
+    accountPartitions.shutdown();
+  }
+
+  /**
+   * Verifies that every mutation of an account runs on the same partition worker thread.
+   */
+  @Test
+  public void testAccountAlwaysRunsOnItsPartition() {
+    String workerName = accountPartitions.call(CUSTOMER1_ID, () -> Thread.currentThread().getName());
+    for (int i = 0; i < 10; i++) {
+      assertEquals(workerName, accountPartitions.call(CUSTOMER1_ID, () -> Thread.currentThread().getName()));
+    }
+    assertEquals("account-partition-" + accountPartitions.partitionOf(CUSTOMER1_ID), workerName);
+    assertNotEquals(Thread.currentThread().getName(), workerName);
+  }
+
+  /**
+   * Verifies that a mutation's statements count against the stats of the request that called it, and that the
+   * partition worker stops counting into them once the mutation is done.
+   */
+  @Test
+  public void testMutationCountsAgainstCallerStats() {
+    RequestQueryStats callerStats = RequestQueryStats.start().get();
+    try {
+      assertSame(callerStats, accountPartitions.call(CUSTOMER1_ID, () -> RequestQueryStats.current()));
+    } finally {
+      RequestQueryStats.finish();
+    }
+    assertNull(accountPartitions.call(CUSTOMER1_ID, () -> RequestQueryStats.current()));
+  }
+
+  /**
+   * Runs unsynchronized read-modify-writes of one account from many threads, and verifies that none are lost,
+   * since they all run one at a time on the account's partition.
+   */
+  @Test
+  public void testMutationsOfOneAccountNeverInterleave() throws Exception {
+    int[] balance = new int[1];
+    ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+    List<Future<?>> results = new ArrayList<>();
+    for (int threadNum = 0; threadNum < NUM_THREADS; threadNum++) {
+      results.add(executor.submit(() -> {
+        for (int mutationNum = 0; mutationNum < NUM_MUTATIONS_PER_THREAD; mutationNum++) {
+          accountPartitions.execute(CUSTOMER1_ID, () -> balance[0] = balance[0] + 1);
+        }
+      }));
+    }
+    for (Future<?> result : results) {
+      result.get();
+    }
+    executor.shutdown();
+
+    assertEquals(NUM_THREADS * NUM_MUTATIONS_PER_THREAD, accountPartitions.call(CUSTOMER1_ID, () -> balance[0]));
+  }
+
+  /**
+   * Verifies that a mutation that is already on the account's partition runs nested mutations inline instead of deadlocking.
+   */
+  @Test
+  public void testNestedMutationRunsInline() {
+    int nestedResult = accountPartitions.call(CUSTOMER1_ID, () -> accountPartitions.call(CUSTOMER1_ID, () -> 42));
+    assertEquals(42, nestedResult);
+  }
+
+  /**
+   * Verifies that an exception thrown by a mutation is rethrown to its caller, and the partition keeps running.
+   */
+  @Test
+  public void testExceptionIsRethrownToCaller() {
+    assertThrows(IllegalArgumentException.class, () -> accountPartitions.execute(CUSTOMER1_ID, () -> {
+      throw new IllegalArgumentException();
+    }));
+    assertEquals(1, (int) accountPartitions.call(CUSTOMER1_ID, () -> 1));
+  }
+
+  /**
+   * Verifies that shutting down runs the mutations that were already queued before the workers stop,
+   * and rejects mutations submitted afterwards.
+   */
+  @Test
+  public void testShutdownRunsQueuedMutations() throws Exception {
+    AtomicInteger numMutationsRun = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+    List<Future<?>> results = new ArrayList<>();
+    for (int threadNum = 0; threadNum < NUM_THREADS; threadNum++) {
+      results.add(executor.submit(() -> accountPartitions.execute(CUSTOMER1_ID, () -> {
+        try {
+          TimeUnit.MILLISECONDS.sleep(10);
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+        numMutationsRun.incrementAndGet();
+      })));
+    }
+    // wait for the first mutation to start, so the rest are queued behind it
+    while (numMutationsRun.get() == 0 && !results.get(0).isDone()) {
+      Thread.yield();
+    }
+
+    accountPartitions.shutdown();
+    assertTrue(accountPartitions.awaitTermination(SHUTDOWN_TIMEOUT));
+    int numMutationsAccepted = 0;
+    for (Future<?> result : results) {
+      try {
+        result.get();
+        numMutationsAccepted++;
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+      }
+    }
+    executor.shutdown();
+
+    assertEquals(numMutationsAccepted, numMutationsRun.get());
+    assertThrows(RejectedExecutionException.class, () -> accountPartitions.execute(CUSTOMER1_ID, () -> { }));
+  }
+
+  /**
+   * Verifies that with no partitions, mutations run on the calling thread.
+   */
+  @Test
+  public void testNoPartitionsRunsOnCallingThread() {
+    AccountPartitions noPartitions = new AccountPartitions(0);
+    assertEquals(Thread.currentThread().getName(), noPartitions.call(CUSTOMER1_ID, () -> Thread.currentThread().getName()));
+  }
+}
@@ -0,0 +1,89 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import net.testudobank.AccountState;
+import net.testudobank.AccountStateCache;
+
+public class AccountStateCacheTest {
+  private static String CUSTOMER1_ID = "123456789";
+
+  private final AccountStateCache accountStateCache = new AccountStateCache();
+
+  /**
+   * Verifies that a state read by a query that raced with a write never replaces the newer state the write cached.
+   */
+  @Test
+  public void testPutIfNewerKeepsNewerState() {
+    AccountState readState = new AccountState(1000, 0, 0, 5);
+    accountStateCache.putIfNewer(CUSTOMER1_ID, readState);
+    assertEquals(readState, cached(CUSTOMER1_ID));
+
+    // a write updates the entry to the next version, then a query that read the row before the write caches what it read
+    accountStateCache.update(CUSTOMER1_ID, accountState -> accountState.withBalanceInPennies(2000).withVersion(6));
+    accountStateCache.putIfNewer(CUSTOMER1_ID, readState);
+    assertEquals(new AccountState(2000, 0, 0, 6), cached(CUSTOMER1_ID));
+
+    AccountState newerState = new AccountState(3000, 0, 0, 7);
+    accountStateCache.putIfNewer(CUSTOMER1_ID, newerState);
+    assertEquals(newerState, cached(CUSTOMER1_ID));
+  }
+
+  /**
+   * Verifies that the state written by a version-checked update inside a DB transaction is cached once the transaction
+   * commits, and not before or if it rolls back.
+   */
+  @Test
+  public void testPutIfNewerAfterCommitOnlyCachesCommittedState() {
+    AccountState oldState = new AccountState(1000, 0, 0, 5);
+    AccountState writtenState = new AccountState(2000, 0, 0, 6);
+
+    accountStateCache.putIfNewer(CUSTOMER1_ID, oldState);
+    beginTransaction();
+    accountStateCache.putIfNewerAfterCommit(CUSTOMER1_ID, writtenState);
+    endTransaction(TransactionSynchronization.STATUS_ROLLED_BACK);
+    assertFalse(isCached(CUSTOMER1_ID));
+
+    beginTransaction();
+    accountStateCache.putIfNewerAfterCommit(CUSTOMER1_ID, writtenState);
+    endTransaction(TransactionSynchronization.STATUS_COMMITTED);
+    assertEquals(writtenState, cached(CUSTOMER1_ID));
+  }
+
+  @AfterEach
+  public void clearTransaction() {
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.clear();
+    }
+  }
+
+  // Stands in for a transaction manager beginning a transaction on this thread
+  private void beginTransaction() {
+    TransactionSynchronizationManager.initSynchronization();
+    TransactionSynchronizationManager.setActualTransactionActive(true);
+  }
+
+  // Stands in for a transaction manager completing the transaction on this thread with `status`
+  private void endTransaction(int status) {
+    for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+      synchronization.afterCompletion(status);
+    }
+    TransactionSynchronizationManager.clear();
+  }
+
+  // a loader that returns null caches nothing
+  private boolean isCached(String customerID) {
+    return accountStateCache.get(customerID, id -> null) != null;
+  }
+
+  private AccountState cached(String customerID) {
+    return accountStateCache.get(customerID, id -> fail("expected a cached state for " + id));
+  }
+}
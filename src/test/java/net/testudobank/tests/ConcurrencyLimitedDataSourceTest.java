@@ -0,0 +1,95 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import net.testudobank.ConcurrencyLimitedDataSource;
+
+public class ConcurrencyLimitedDataSourceTest {
+  private static int MAX_CONCURRENT_CONNECTIONS = 2;
+
+  private DataSource targetDataSource;
+  private ConcurrencyLimitedDataSource dataSource;
+
+  @BeforeEach
+  public void init() throws SQLException {
+    targetDataSource = Mockito.mock(DataSource.class);
+    Mockito.when(targetDataSource.getConnection()).thenAnswer(invocation -> Mockito.mock(Connection.class));
+    dataSource = new ConcurrencyLimitedDataSource(targetDataSource, MAX_CONCURRENT_CONNECTIONS);
+  }
+
+  /**
+   * Verifies that a caller waits while every permitted connection is checked out, and gets one as soon as one is closed.
+   */
+  @Test
+  public void testCallerWaitsUntilConnectionIsClosed() throws Exception {
+    Connection firstConnection = dataSource.getConnection();
+    dataSource.getConnection();
+
+    CompletableFuture<Connection> waitingCaller = CompletableFuture.supplyAsync(() -> {
+      try {
+        return dataSource.getConnection();
+      } catch (SQLException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    assertThrows(TimeoutException.class, () -> waitingCaller.get(100, TimeUnit.MILLISECONDS));
+    assertEquals(1, dataSource.getNumWaitingCallers());
+
+    firstConnection.close();
+    waitingCaller.get(5, TimeUnit.SECONDS);
+    assertEquals(0, dataSource.getNumWaitingCallers());
+  }
+
+  /**
+   * Verifies that closing a connection twice only returns one permit.
+   */
+  @Test
+  public void testDoubleCloseReleasesOnePermit() throws Exception {
+    Connection connection = dataSource.getConnection();
+    connection.close();
+    connection.close();
+
+    Connection secondConnection = dataSource.getConnection();
+    dataSource.getConnection();
+    CompletableFuture<Connection> waitingCaller = CompletableFuture.supplyAsync(() -> {
+      try {
+        return dataSource.getConnection();
+      } catch (SQLException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    assertThrows(TimeoutException.class, () -> waitingCaller.get(100, TimeUnit.MILLISECONDS));
+
+    secondConnection.close();
+    waitingCaller.get(5, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Verifies that a failed checkout returns its permit.
+   */
+  @Test
+  public void testFailedCheckoutReleasesPermit() throws Exception {
+    Mockito.when(targetDataSource.getConnection()).thenThrow(new SQLException("pool exhausted")).thenAnswer(invocation -> Mockito.mock(Connection.class));
+    assertThrows(SQLException.class, () -> dataSource.getConnection());
+
+    Connection firstConnection = dataSource.getConnection();
+    Connection secondConnection = dataSource.getConnection();
+    assertFalse(firstConnection.isClosed());
+    assertTrue(secondConnection != firstConnection);
+  }
+}
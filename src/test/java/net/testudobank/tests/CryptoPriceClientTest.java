@@ -1,19 +1,228 @@
 package net.testudobank.tests;
 
 import net.testudobank.CryptoPriceClient;
+import net.testudobank.CryptoPriceSnapshot;
+import net.testudobank.CryptoPriceSource;
+import net.testudobank.MvcController;
+import net.testudobank.SimulatedCryptoPriceSource;
+import net.testudobank.YahooFinancePriceSource;
+
 import org.junit.jupiter.api.Test;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class CryptoPriceClientTest {
-    CryptoPriceClient cryptoPriceClient = new CryptoPriceClient();
+    private static final Instant START_TIME = Instant.parse("2022-01-01T12:00:00Z");
 
     /**
      *  Ensure the client is able to get a valid price from the Yahoo Finance API
      */
     @Test
     public void testBasic() {
+        CryptoPriceClient cryptoPriceClient = new CryptoPriceClient(new YahooFinancePriceSource());
+        cryptoPriceClient.refreshPrices();
         assertTrue(cryptoPriceClient.getCurrentEthValue() > 0);
         assertTrue(cryptoPriceClient.getCurrentSolValue() > 0);
     }
+
+    /**
+     * Ensure every supported cryptocurrency is fetched in one batch per refresh, and prices are served from memory
+     * between refreshes, without calling the price source
+     */
+    @Test
+    public void testPricesServedFromMemory() {
+        AtomicInteger numFetches = new AtomicInteger();
+        CryptoPriceSource countingPriceSource = cryptoNames -> {
+            numFetches.incrementAndGet();
+            return fixedPrices(cryptoNames, 100);
+        };
+        CryptoPriceClient cryptoPriceClient = new CryptoPriceClient(countingPriceSource, Clock.fixed(START_TIME, ZoneOffset.UTC));
+
+        // no price is known before the first refresh
+        assertEquals(-1, cryptoPriceClient.getCurrentEthValue());
+
+        cryptoPriceClient.refreshPrices();
+        assertEquals(1, numFetches.get());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(100, cryptoPriceClient.getCurrentEthValue());
+            assertEquals(100, cryptoPriceClient.getCurrentSolValue());
+        }
+        assertEquals(1, numFetches.get());
+    }
+
+    /**
+     * Ensure a captured snapshot keeps the prices it was taken with, even after a refresh publishes new prices
+     */
+    @Test
+    public void testSnapshotIsUnchangedByRefresh() {
+        AtomicInteger nextPrice = new AtomicInteger(100);
+        CryptoPriceSource risingPriceSource = cryptoNames -> fixedPrices(cryptoNames, nextPrice.getAndAdd(100));
+        CryptoPriceClient cryptoPriceClient = new CryptoPriceClient(risingPriceSource, Clock.fixed(START_TIME, ZoneOffset.UTC));
+        cryptoPriceClient.refreshPrices();
+
+        CryptoPriceSnapshot snapshot = cryptoPriceClient.getPriceSnapshot();
+        cryptoPriceClient.refreshPrices();
+
+        assertEquals(100, snapshot.getPrice("ETH"));
+        assertEquals(100, snapshot.getPrice("SOL"));
+        assertEquals(200, cryptoPriceClient.getPriceSnapshot().getPrice("ETH"));
+        assertEquals(-1, snapshot.getPrice("DOGE"));
+    }
+
+    /**
+     * Ensure a failed refresh keeps serving the last known prices, until those prices are over a minute old.
+     * A batch missing any cryptocurrency counts as a failed refresh, so a snapshot never mixes old and new prices.
+     */
+    @Test
+    public void testFailedRefreshKeepsLastPriceUntilStale() {
+        AtomicBoolean priceSourceIsDown = new AtomicBoolean(false);
+        CryptoPriceSource flakyPriceSource = cryptoNames -> {
+            if (priceSourceIsDown.get()) {
+                throw new IOException("price source is down");
+            }
+            return fixedPrices(cryptoNames, 100);
+        };
+        MutableClock clock = new MutableClock(START_TIME);
+        CryptoPriceClient cryptoPriceClient = new CryptoPriceClient(flakyPriceSource, clock);
+        cryptoPriceClient.refreshPrices();
+
+        priceSourceIsDown.set(true);
+        clock.advance(Duration.ofSeconds(30));
+        cryptoPriceClient.refreshPrices();
+        assertEquals(100, cryptoPriceClient.getCurrentEthValue());
+
+        clock.advance(Duration.ofSeconds(31));
+        assertEquals(-1, cryptoPriceClient.getCurrentEthValue());
+
+        // a batch without SOL must not replace the stale snapshot with a partial one
+        CryptoPriceClient partialPriceClient = new CryptoPriceClient(cryptoNames -> Collections.singletonMap("ETH", 100.0), clock);
+        partialPriceClient.refreshPrices();
+        assertEquals(-1, partialPriceClient.getCurrentEthValue());
+    }
+
+    /**
+     * Ensure refresh listeners are called with every new snapshot, and not when a refresh fails
+     */
+    @Test
+    public void testRefreshListenersGetNewSnapshots() {
+        AtomicBoolean priceSourceIsDown = new AtomicBoolean(false);
+        CryptoPriceSource flakyPriceSource = cryptoNames -> {
+            if (priceSourceIsDown.get()) {
+                throw new IOException("price source is down");
+            }
+            return fixedPrices(cryptoNames, 100);
+        };
+        CryptoPriceClient cryptoPriceClient = new CryptoPriceClient(flakyPriceSource, Clock.fixed(START_TIME, ZoneOffset.UTC));
+        List<CryptoPriceSnapshot> publishedSnapshots = new ArrayList<>();
+        cryptoPriceClient.addRefreshListener(snapshot -> {
+            throw new IllegalStateException("listener failed");
+        });
+        cryptoPriceClient.addRefreshListener(publishedSnapshots::add);
+
+        cryptoPriceClient.refreshPrices();
+        priceSourceIsDown.set(true);
+        cryptoPriceClient.refreshPrices();
+
+        assertEquals(1, publishedSnapshots.size());
+        assertSame(cryptoPriceClient.getPriceSnapshot(), publishedSnapshots.get(0));
+    }
+
+    /**
+     * Ensure fetches are timed by outcome, and snapshot reads are counted by whether the prices were fresh enough to serve
+     */
+    @Test
+    public void testFetchAndSnapshotMetrics() {
+        AtomicBoolean priceSourceIsDown = new AtomicBoolean(false);
+        CryptoPriceSource flakyPriceSource = cryptoNames -> {
+            if (priceSourceIsDown.get()) {
+                throw new IOException("price source is down");
+            }
+            return fixedPrices(cryptoNames, 100);
+        };
+        MutableClock clock = new MutableClock(START_TIME);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        CryptoPriceClient cryptoPriceClient = new CryptoPriceClient(flakyPriceSource, clock, meterRegistry);
+
+        cryptoPriceClient.refreshPrices();
+        priceSourceIsDown.set(true);
+        cryptoPriceClient.refreshPrices();
+        assertEquals(1, meterRegistry.get("crypto.price.fetch").tag("outcome", "success").timer().count());
+        assertEquals(1, meterRegistry.get("crypto.price.fetch").tag("outcome", "failure").timer().count());
+
+        cryptoPriceClient.getPriceSnapshot();
+        cryptoPriceClient.getPriceSnapshot();
+        clock.advance(Duration.ofSeconds(61));
+        cryptoPriceClient.getPriceSnapshot();
+        assertEquals(2, meterRegistry.get("crypto.price.snapshot.reads").tag("result", "fresh").counter().count());
+        assertEquals(1, meterRegistry.get("crypto.price.snapshot.reads").tag("result", "stale").counter().count());
+    }
+
+    /**
+     * Ensure the simulated price source produces the same prices for the same seed
+     */
+    @Test
+    public void testSimulatedPriceSourceIsDeterministic() throws IOException {
+        SimulatedCryptoPriceSource priceSource = new SimulatedCryptoPriceSource(7);
+        SimulatedCryptoPriceSource samePriceSource = new SimulatedCryptoPriceSource(7);
+        for (int i = 0; i < 10; i++) {
+            Map<String, Double> prices = priceSource.fetchPrices(MvcController.SUPPORTED_CRYPTOCURRENCIES);
+            assertTrue(prices.get("ETH") > 0);
+            assertTrue(prices.get("SOL") > 0);
+            assertEquals(prices, samePriceSource.fetchPrices(MvcController.SUPPORTED_CRYPTOCURRENCIES));
+        }
+    }
+
+    private static Map<String, Double> fixedPrices(Set<String> cryptoNames, double price) {
+        Map<String, Double> prices = new HashMap<>();
+        for (String cryptoName : cryptoNames) {
+            prices.put(cryptoName, price);
+        }
+        return prices;
+    }
+
+    // Clock that only moves when advance() is called
+    private static class MutableClock extends Clock {
+        private Instant currentTime;
+
+        MutableClock(Instant startTime) {
+            this.currentTime = startTime;
+        }
+
+        void advance(Duration duration) {
+            currentTime = currentTime.plus(duration);
+        }
+
+        @Override
+        public Instant instant() {
+            return currentTime;
+        }
+
+        @Override
+        public java.time.ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(java.time.ZoneId zone) {
+            return this;
+        }
+    }
 }
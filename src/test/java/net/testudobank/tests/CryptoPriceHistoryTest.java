@@ -0,0 +1,165 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import net.testudobank.CryptoPriceHistory;
+import net.testudobank.CryptoPriceSnapshot;
+
+public class CryptoPriceHistoryTest {
+  private static List<String> CRYPTO_NAMES = Arrays.asList("ETH", "SOL");
+  private static Instant START_TIME = Instant.parse("2022-01-01T12:00:00Z");
+  // room for 10 ticks of 24 bytes, so that a few hundred ticks cross many segments
+  private static int SMALL_SEGMENT_SIZE_IN_BYTES = 250;
+  private static int NUM_TICKS = 1000;
+  private static int NUM_READER_THREADS = 4;
+
+  @TempDir
+  Path tempDir;
+
+  /**
+   * Verifies that a lookup returns the last tick at or before the requested instant, and nothing before the first tick.
+   */
+  @Test
+  public void testPricesAtTime() throws IOException {
+    try (CryptoPriceHistory priceHistory = new CryptoPriceHistory(tempDir.resolve("prices.bin"), CRYPTO_NAMES)) {
+      assertSame(CryptoPriceSnapshot.EMPTY, priceHistory.getPricesAt(START_TIME));
+
+      priceHistory.append(snapshot(START_TIME, 3000, 100));
+      priceHistory.append(snapshot(START_TIME.plusSeconds(15), 3100, 110));
+      priceHistory.append(snapshot(START_TIME.plusSeconds(30), 3200, 120));
+
+      assertSame(CryptoPriceSnapshot.EMPTY, priceHistory.getPricesAt(START_TIME.minusMillis(1)));
+      CryptoPriceSnapshot pricesAtStart = priceHistory.getPricesAt(START_TIME);
+      assertEquals(START_TIME, pricesAtStart.getFetchedAt());
+      assertEquals(3000, pricesAtStart.getPrice("ETH"));
+      assertEquals(100, pricesAtStart.getPrice("SOL"));
+      CryptoPriceSnapshot pricesBetweenTicks = priceHistory.getPricesAt(START_TIME.plusSeconds(29));
+      assertEquals(START_TIME.plusSeconds(15), pricesBetweenTicks.getFetchedAt());
+      assertEquals(3100, pricesBetweenTicks.getPrice("ETH"));
+      assertEquals(120, priceHistory.getPriceAt("SOL", START_TIME.plusSeconds(3600).toEpochMilli()));
+      assertEquals(-1, priceHistory.getPriceAt("DOGE", START_TIME.plusSeconds(3600).toEpochMilli()));
+    }
+  }
+
+  /**
+   * Verifies that ticks are kept in time order: an older tick is dropped, and the last of several ticks at the same instant wins.
+   */
+  @Test
+  public void testTicksKeptInTimeOrder() throws IOException {
+    try (CryptoPriceHistory priceHistory = new CryptoPriceHistory(tempDir.resolve("prices.bin"), CRYPTO_NAMES)) {
+      assertTrue(priceHistory.append(snapshot(START_TIME.plusSeconds(15), 3000, 100)));
+      assertFalse(priceHistory.append(snapshot(START_TIME, 2000, 50)));
+      assertTrue(priceHistory.append(snapshot(START_TIME.plusSeconds(15), 3100, 110)));
+
+      assertEquals(2, priceHistory.size());
+      assertEquals(3100, priceHistory.getPriceAt("ETH", START_TIME.plusSeconds(15).toEpochMilli()));
+      assertEquals(-1, priceHistory.getPriceAt("ETH", START_TIME.toEpochMilli()));
+    }
+  }
+
+  /**
+   * Appends ticks across many segments, then verifies that a reopened history finds every one of them, and that
+   * a range scan visits exactly the ticks in [from, to).
+   */
+  @Test
+  public void testRangeScanAndReopen() throws IOException {
+    Path file = tempDir.resolve("prices.bin");
+    try (CryptoPriceHistory priceHistory = new CryptoPriceHistory(file, CRYPTO_NAMES, SMALL_SEGMENT_SIZE_IN_BYTES)) {
+      for (int tickNum = 0; tickNum < NUM_TICKS; tickNum++) {
+        priceHistory.append(START_TIME.toEpochMilli() + tickNum * 1000L, new double[] {tickNum, -tickNum});
+      }
+    }
+
+    try (CryptoPriceHistory reopenedPriceHistory = new CryptoPriceHistory(file, CRYPTO_NAMES, SMALL_SEGMENT_SIZE_IN_BYTES)) {
+      assertEquals(NUM_TICKS, reopenedPriceHistory.size());
+      for (int tickNum = 0; tickNum < NUM_TICKS; tickNum++) {
+        assertEquals(tickNum, reopenedPriceHistory.getPriceAt("ETH", START_TIME.toEpochMilli() + tickNum * 1000L + 999));
+      }
+
+      List<Long> scannedEpochMillis = new ArrayList<>();
+      long numTicksVisited = reopenedPriceHistory.scan(START_TIME.plusMillis(100500), START_TIME.plusSeconds(200), tick -> {
+        assertEquals(-tick.getPrice(0), tick.getPrice("SOL"));
+        scannedEpochMillis.add(tick.getEpochMillis());
+      });
+      assertEquals(99, numTicksVisited);
+      assertEquals(START_TIME.plusSeconds(101).toEpochMilli(), (long) scannedEpochMillis.get(0));
+      assertEquals(START_TIME.plusSeconds(199).toEpochMilli(), (long) scannedEpochMillis.get(98));
+
+      // appending resumes after the last tick
+      reopenedPriceHistory.append(START_TIME.toEpochMilli() + NUM_TICKS * 1000L, new double[] {NUM_TICKS, -NUM_TICKS});
+      assertEquals(NUM_TICKS + 1, reopenedPriceHistory.size());
+      assertEquals(NUM_TICKS - 1, reopenedPriceHistory.getPriceAt("ETH", START_TIME.toEpochMilli() + NUM_TICKS * 1000L - 1));
+    }
+  }
+
+  /**
+   * Verifies that a file isn't reopened with different cryptocurrencies, which would misread every record.
+   */
+  @Test
+  public void testReopenWithDifferentCryptocurrencies() throws IOException {
+    Path file = tempDir.resolve("prices.bin");
+    new CryptoPriceHistory(file, CRYPTO_NAMES).close();
+    assertThrows(IOException.class, () -> new CryptoPriceHistory(file, Arrays.asList("SOL", "ETH")));
+  }
+
+  /**
+   * Looks up prices on several threads while ticks are appended across segments, and verifies that every lookup
+   * sees a whole tick: each tick's prices are derived from its timestamp.
+   */
+  @Test
+  public void testLookupsWhileAppending() throws Exception {
+    try (CryptoPriceHistory priceHistory = new CryptoPriceHistory(tempDir.resolve("prices.bin"), CRYPTO_NAMES, SMALL_SEGMENT_SIZE_IN_BYTES)) {
+      AtomicBoolean appending = new AtomicBoolean(true);
+      ExecutorService executor = Executors.newFixedThreadPool(NUM_READER_THREADS);
+      List<Future<?>> readers = new ArrayList<>();
+      for (int threadNum = 0; threadNum < NUM_READER_THREADS; threadNum++) {
+        readers.add(executor.submit(() -> {
+          while (appending.get()) {
+            CryptoPriceSnapshot prices = priceHistory.getPricesAt(START_TIME.plusSeconds(NUM_TICKS));
+            if (prices != CryptoPriceSnapshot.EMPTY) {
+              long tickNum = prices.getFetchedAt().toEpochMilli() - START_TIME.toEpochMilli();
+              assertEquals(tickNum, prices.getPrice("ETH"));
+              assertEquals(2 * tickNum, prices.getPrice("SOL"));
+            }
+          }
+          return null;
+        }));
+      }
+      for (int tickNum = 0; tickNum < NUM_TICKS * 10; tickNum++) {
+        priceHistory.append(START_TIME.toEpochMilli() + tickNum, new double[] {tickNum, 2 * tickNum});
+      }
+      appending.set(false);
+      for (Future<?> reader : readers) {
+        reader.get();
+      }
+      executor.shutdown();
+    }
+  }
+
+  private static CryptoPriceSnapshot snapshot(Instant fetchedAt, double ethPrice, double solPrice) {
+    Map<String, Double> prices = new HashMap<>();
+    prices.put("ETH", ethPrice);
+    prices.put("SOL", solPrice);
+    return new CryptoPriceSnapshot(prices, fetchedAt);
+  }
+}
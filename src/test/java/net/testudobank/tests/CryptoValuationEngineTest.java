@@ -0,0 +1,222 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import net.testudobank.CryptoPriceSnapshot;
+import net.testudobank.CryptoValuationEngine;
+import net.testudobank.CryptoValuationEngine.CryptoExposure;
+
+public class CryptoValuationEngineTest {
+  private static String CUSTOMER1_ID = "123456789";
+  private static String CUSTOMER2_ID = "987654321";
+  private static String CUSTOMER3_ID = "555555555";
+  private static List<String> CRYPTO_NAMES = Arrays.asList("ETH", "SOL");
+  private static double DELTA = 1e-6;
+  private static int NUM_CUSTOMERS = 5000;
+  private static int NUM_THREADS = 8;
+  private static int NUM_TRADES_PER_THREAD = 2000;
+  private static int NUM_PRICE_REFRESHES = 50;
+
+  private final FakeCryptoHoldingsTable cryptoHoldingsTable = new FakeCryptoHoldingsTable();
+  private final CryptoValuationEngine cryptoValuationEngine = new CryptoValuationEngine(cryptoHoldingsTable, CRYPTO_NAMES);
+
+  /**
+   * Verifies that the holdings are loaded on the first price refresh, and that every customer and the bank-wide
+   * exposure are re-priced on each refresh.
+   */
+  @Test
+  public void testRevalueOnPriceRefresh() {
+    cryptoHoldingsTable.addHolding(CUSTOMER1_ID, "ETH", 2);
+    cryptoHoldingsTable.addHolding(CUSTOMER1_ID, "SOL", 10);
+    cryptoHoldingsTable.addHolding(CUSTOMER2_ID, "SOL", 4);
+
+    CryptoPriceSnapshot firstPrices = prices(1000, 100, 1);
+    cryptoValuationEngine.revalue(firstPrices);
+    assertEquals(3000, cryptoValuationEngine.getCustomerValueInDollars(CUSTOMER1_ID, firstPrices).getAsDouble(), DELTA);
+    assertEquals(400, cryptoValuationEngine.getCustomerValueInDollars(CUSTOMER2_ID, firstPrices).getAsDouble(), DELTA);
+    assertEquals(0, cryptoValuationEngine.getCustomerValueInDollars(CUSTOMER3_ID, firstPrices).getAsDouble(), DELTA);
+
+    CryptoPriceSnapshot secondPrices = prices(2000, 50, 2);
+    cryptoValuationEngine.revalue(secondPrices);
+    assertEquals(4500, cryptoValuationEngine.getCustomerValueInDollars(CUSTOMER1_ID, secondPrices).getAsDouble(), DELTA);
+    // a request still holding the previous prices values the holdings itself
+    assertFalse(cryptoValuationEngine.getCustomerValueInDollars(CUSTOMER1_ID, firstPrices).isPresent());
+
+    CryptoExposure exposure = cryptoValuationEngine.getExposure();
+    assertEquals(secondPrices.getFetchedAt(), exposure.getPricedAt());
+    assertEquals(2, exposure.getNumCustomers());
+    assertEquals(2, exposure.getCryptoAmounts().get("ETH"), DELTA);
+    assertEquals(14, exposure.getCryptoAmounts().get("SOL"), DELTA);
+    assertEquals(4000, exposure.getValuesInDollars().get("ETH"), DELTA);
+    assertEquals(700, exposure.getValuesInDollars().get("SOL"), DELTA);
+    assertEquals(4700, exposure.getTotalValueInDollars(), DELTA);
+    assertEquals(1, cryptoHoldingsTable.getNumQueries());
+  }
+
+  /**
+   * Verifies that buys and sells update the customer's valuation and the bank-wide exposure without going to the DB.
+   */
+  @Test
+  public void testTradesUpdateValuations() {
+    cryptoHoldingsTable.addHolding(CUSTOMER1_ID, "ETH", 1);
+    CryptoPriceSnapshot prices = prices(1000, 100, 1);
+    cryptoValuationEngine.revalue(prices);
+
+    long holdingsVersion = cryptoValuationEngine.getHoldingsVersion();
+    cryptoValuationEngine.applyTrade(holdingsVersion, CUSTOMER1_ID, "SOL", 5);
+    cryptoValuationEngine.applyTrade(holdingsVersion, CUSTOMER1_ID, "ETH", -0.5);
+    cryptoValuationEngine.applyTrade(holdingsVersion, CUSTOMER2_ID, "ETH", 3);
+
+    assertEquals(1000, cryptoValuationEngine.getCustomerValueInDollars(CUSTOMER1_ID, prices).getAsDouble(), DELTA);
+    assertEquals(3000, cryptoValuationEngine.getCustomerValueInDollars(CUSTOMER2_ID, prices).getAsDouble(), DELTA);
+    CryptoExposure exposure = cryptoValuationEngine.getExposure();
+    assertEquals(3.5, exposure.getCryptoAmounts().get("ETH"), DELTA);
+    assertEquals(5, exposure.getCryptoAmounts().get("SOL"), DELTA);
+    assertEquals(4000, exposure.getTotalValueInDollars(), DELTA);
+    assertEquals(1, cryptoHoldingsTable.getNumQueries());
+  }
+
+  /**
+   * Verifies that a trade whose DB write is picked up by a reload isn't applied on top of the reloaded holdings,
+   * while a trade that started after the reload is.
+   */
+  @Test
+  public void testTradeRacingReloadIsCountedOnce() {
+    cryptoHoldingsTable.addHolding(CUSTOMER1_ID, "ETH", 1);
+    CryptoPriceSnapshot prices = prices(1000, 100, 1);
+    cryptoValuationEngine.revalue(prices);
+
+    // the trade reads the version, then writes to the DB, and a reload reads the write before the trade is applied
+    long racingHoldingsVersion = cryptoValuationEngine.getHoldingsVersion();
+    cryptoHoldingsTable.addHolding(CUSTOMER1_ID, "SOL", 5);
+    cryptoValuationEngine.reload();
+    cryptoValuationEngine.applyTrade(racingHoldingsVersion, CUSTOMER1_ID, "SOL", 5);
+    assertEquals(1500, cryptoValuationEngine.getCustomerValueInDollars(CUSTOMER1_ID, prices).getAsDouble(), DELTA);
+
+    cryptoValuationEngine.applyTrade(cryptoValuationEngine.getHoldingsVersion(), CUSTOMER1_ID, "SOL", 1);
+    assertEquals(1600, cryptoValuationEngine.getCustomerValueInDollars(CUSTOMER1_ID, prices).getAsDouble(), DELTA);
+    assertEquals(6, cryptoValuationEngine.getExposure().getCryptoAmounts().get("SOL"), DELTA);
+    assertEquals(2, cryptoHoldingsTable.getNumQueries());
+  }
+
+  /**
+   * Verifies that nothing is served before the holdings are loaded, and that exposure is unpriced before the first refresh.
+   */
+  @Test
+  public void testBeforeFirstLoadAndRefresh() {
+    cryptoHoldingsTable.addHolding(CUSTOMER1_ID, "ETH", 1);
+    assertFalse(cryptoValuationEngine.getCustomerValueInDollars(CUSTOMER1_ID, CryptoPriceSnapshot.EMPTY).isPresent());
+    assertEquals(0, cryptoHoldingsTable.getNumQueries());
+
+    CryptoExposure exposure = cryptoValuationEngine.getExposure();
+    assertEquals(1, exposure.getCryptoAmounts().get("ETH"), DELTA);
+    assertEquals(0, exposure.getTotalValueInDollars(), DELTA);
+    assertEquals(1, cryptoHoldingsTable.getNumQueries());
+  }
+
+  /**
+   * Trades on many threads while prices keep refreshing, and verifies that every customer ends up valued at the
+   * latest prices with all of their trades, and that the bank-wide exposure matches the sum of the customers.
+   */
+  @Test
+  public void testConcurrentTradesAndPriceRefreshes() throws Exception {
+    for (int customerNum = 0; customerNum < NUM_CUSTOMERS; customerNum++) {
+      cryptoHoldingsTable.addHolding(Integer.toString(customerNum), "ETH", 1);
+    }
+    cryptoValuationEngine.revalue(prices(1000, 100, 0));
+
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS + 1);
+    List<Future<?>> traders = new ArrayList<>();
+    for (int threadNum = 0; threadNum < NUM_THREADS; threadNum++) {
+      int firstCustomerNum = threadNum;
+      traders.add(executor.submit(() -> {
+        start.await();
+        for (int tradeNum = 0; tradeNum < NUM_TRADES_PER_THREAD; tradeNum++) {
+          String customerID = Integer.toString((firstCustomerNum + tradeNum * NUM_THREADS) % NUM_CUSTOMERS);
+          cryptoValuationEngine.applyTrade(cryptoValuationEngine.getHoldingsVersion(), customerID, "SOL", 1);
+        }
+        return null;
+      }));
+    }
+    CryptoPriceSnapshot[] latestPrices = new CryptoPriceSnapshot[1];
+    Future<?> priceRefresher = executor.submit(() -> {
+      start.await();
+      for (int refreshNum = 1; refreshNum <= NUM_PRICE_REFRESHES; refreshNum++) {
+        latestPrices[0] = prices(1000 + refreshNum, 100 + refreshNum, refreshNum);
+        cryptoValuationEngine.revalue(latestPrices[0]);
+      }
+      return null;
+    });
+    start.countDown();
+    for (Future<?> trader : traders) {
+      trader.get();
+    }
+    priceRefresher.get();
+    executor.shutdown();
+
+    CryptoPriceSnapshot finalPrices = latestPrices[0];
+    double totalCustomerValueInDollars = 0;
+    for (int customerNum = 0; customerNum < NUM_CUSTOMERS; customerNum++) {
+      String customerID = Integer.toString(customerNum);
+      double solAmount = (NUM_THREADS * NUM_TRADES_PER_THREAD) / NUM_CUSTOMERS + (customerNum < (NUM_THREADS * NUM_TRADES_PER_THREAD) % NUM_CUSTOMERS ? 1 : 0);
+      double expectedValueInDollars = finalPrices.getPrice("ETH") + solAmount * finalPrices.getPrice("SOL");
+      double valueInDollars = cryptoValuationEngine.getCustomerValueInDollars(customerID, finalPrices).getAsDouble();
+      assertEquals(expectedValueInDollars, valueInDollars, DELTA);
+      totalCustomerValueInDollars += valueInDollars;
+    }
+    CryptoExposure exposure = cryptoValuationEngine.getExposure();
+    assertEquals(NUM_THREADS * NUM_TRADES_PER_THREAD, exposure.getCryptoAmounts().get("SOL"), DELTA);
+    assertEquals(totalCustomerValueInDollars, exposure.getTotalValueInDollars(), DELTA);
+  }
+
+  private static CryptoPriceSnapshot prices(double ethPrice, double solPrice, long fetchedAtSeconds) {
+    Map<String, Double> prices = new HashMap<>();
+    prices.put("ETH", ethPrice);
+    prices.put("SOL", solPrice);
+    return new CryptoPriceSnapshot(prices, Instant.ofEpochSecond(fetchedAtSeconds));
+  }
+
+  // Stands in for the CryptoHoldings table, answering the query of TestudoBankRepository#getAllCryptoHoldings
+  private static class FakeCryptoHoldingsTable extends JdbcTemplate {
+    private final List<Map<String,Object>> rows = new ArrayList<>();
+    private int numQueries = 0;
+
+    void addHolding(String customerID, String cryptoName, double cryptoAmount) {
+      Map<String,Object> row = new HashMap<>();
+      row.put("CustomerID", customerID);
+      row.put("CryptoName", cryptoName);
+      row.put("CryptoAmount", BigDecimal.valueOf(cryptoAmount));
+      rows.add(row);
+    }
+
+    @Override
+    public List<Map<String,Object>> queryForList(String sql) {
+      if (!sql.startsWith("SELECT CustomerID, CryptoName, CryptoAmount FROM CryptoHoldings")) {
+        throw new UnsupportedOperationException(sql);
+      }
+      numQueries++;
+      return new ArrayList<>(rows);
+    }
+
+    int getNumQueries() {
+      return numQueries;
+    }
+  }
+}
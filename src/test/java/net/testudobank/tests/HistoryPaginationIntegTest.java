@@ -0,0 +1,201 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.script.ScriptException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.delegate.DatabaseDelegate;
+import org.testcontainers.ext.ScriptUtils;
+import org.testcontainers.jdbc.JdbcDatabaseDelegate;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import net.testudobank.CryptoPriceClient;
+import net.testudobank.CryptoPriceSnapshot;
+import net.testudobank.HistoryPage;
+import net.testudobank.MvcController;
+import net.testudobank.TestudoBankRepository;
+import net.testudobank.User;
+import net.testudobank.helpers.MvcControllerIntegTestHelpers;
+
+@Testcontainers
+public class HistoryPaginationIntegTest {
+  //// LITERAL CONSTANTS ////
+  private static String CUSTOMER1_ID = "123456789";
+  private static String CUSTOMER1_PASSWORD = "password";
+  private static String CUSTOMER1_FIRST_NAME = "Foo";
+  private static String CUSTOMER1_LAST_NAME = "Bar";
+
+  private static String CUSTOMER2_ID = "987654321";
+  private static String CUSTOMER2_PASSWORD = "password";
+  private static String CUSTOMER2_FIRST_NAME = "Foo1";
+  private static String CUSTOMER2_LAST_NAME = "Bar1";
+
+  // several rows share each timestamp, so pages must break ties by ID to avoid skipping or repeating rows
+  private static String[] TIMESTAMPS = {"2022-01-01 12:00:00", "2022-01-01 12:00:01", "2022-01-01 12:00:02"};
+  private static int NUM_HISTORY_ROWS = 25;
+  private static int PAGE_SIZE = 10;
+
+  // Spins up small MySQL DB in local Docker container
+  @Container
+  public static MySQLContainer db = new MySQLContainer<>("mysql:5.7.37")
+    .withUsername("root")
+    .withPassword("db_password")
+    .withDatabaseName("testudo_bank");
+
+  private static JdbcTemplate jdbcTemplate;
+  private static DatabaseDelegate dbDelegate;
+  private static MvcController controller;
+
+  @BeforeAll
+  public static void init() throws SQLException {
+    dbDelegate = new JdbcDatabaseDelegate(db, "");
+    ScriptUtils.runInitScript(dbDelegate, "createDB.sql");
+    jdbcTemplate = new JdbcTemplate(MvcControllerIntegTestHelpers.dataSource(db));
+    MvcControllerIntegTestHelpers.migrateDB(jdbcTemplate.getDataSource());
+    CryptoPriceClient cryptoPriceClient = Mockito.mock(CryptoPriceClient.class);
+    Mockito.when(cryptoPriceClient.getPriceSnapshot()).thenReturn(CryptoPriceSnapshot.EMPTY);
+    controller = new MvcController(jdbcTemplate, cryptoPriceClient);
+  }
+
+  @AfterEach
+  public void clearDB() throws ScriptException {
+    ScriptUtils.runInitScript(dbDelegate, "clearDB.sql");
+    // the cached account state of deleted customers would otherwise leak into the next test
+    TestudoBankRepository.getAccountStateCache().invalidateAll();
+  }
+
+  /**
+   * Walks every page of a customer's transaction history and verifies that each row is returned exactly once,
+   * newest first, and that the last page has no next cursor.
+   */
+  @Test
+  public void testTransactionHistoryPagesCoverEveryRowOnce() {
+    for (int rowNum = 0; rowNum < NUM_HISTORY_ROWS; rowNum++) {
+      TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, CUSTOMER1_ID, TIMESTAMPS[rowNum % TIMESTAMPS.length], MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, rowNum);
+    }
+
+    List<Map<String,Object>> allRows = readAllPages((cursor) -> TestudoBankRepository.getTransactionHistoryPage(jdbcTemplate, CUSTOMER1_ID, cursor, PAGE_SIZE));
+
+    assertEquals(NUM_HISTORY_ROWS, allRows.size());
+    Set<Object> transactionIDs = new HashSet<>();
+    for (int rowNum = 0; rowNum < allRows.size(); rowNum++) {
+      transactionIDs.add(allRows.get(rowNum).get("TransactionID"));
+      if (rowNum > 0) {
+        assertTrue(isNewer(allRows.get(rowNum - 1), allRows.get(rowNum), "TransactionID"));
+      }
+    }
+    assertEquals(NUM_HISTORY_ROWS, transactionIDs.size());
+  }
+
+  /**
+   * Verifies that the transfer history pages merge sent and received transfers into one timeline.
+   */
+  @Test
+  public void testTransferHistoryPagesIncludeBothDirections() {
+    for (int rowNum = 0; rowNum < NUM_HISTORY_ROWS; rowNum++) {
+      String senderID = (rowNum % 2 == 0) ? CUSTOMER1_ID : CUSTOMER2_ID;
+      String recipientID = (rowNum % 2 == 0) ? CUSTOMER2_ID : CUSTOMER1_ID;
+      TestudoBankRepository.insertRowToTransferLogsTable(jdbcTemplate, senderID, recipientID, TIMESTAMPS[rowNum % TIMESTAMPS.length], rowNum);
+    }
+
+    List<Map<String,Object>> allRows = readAllPages((cursor) -> TestudoBankRepository.getTransferLogsPage(jdbcTemplate, CUSTOMER1_ID, cursor, PAGE_SIZE));
+
+    assertEquals(NUM_HISTORY_ROWS, allRows.size());
+    Set<Object> transferIDs = new HashSet<>();
+    for (Map<String,Object> row : allRows) {
+      transferIDs.add(row.get("TransferID"));
+    }
+    assertEquals(NUM_HISTORY_ROWS, transferIDs.size());
+  }
+
+  /**
+   * Verifies that the history endpoint serves pages to a logged-in customer, caps the page size,
+   * and rejects requests without a valid session token or with an invalid cursor.
+   */
+  @Test
+  public void testHistoryEndpointRequiresSessionToken() throws ScriptException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, 0);
+    // more rows than the maximum page size
+    int NUM_CRYPTO_HISTORY_ROWS = 60;
+    for (int rowNum = 0; rowNum < NUM_CRYPTO_HISTORY_ROWS; rowNum++) {
+      TestudoBankRepository.insertRowToCryptoLogsTable(jdbcTemplate, CUSTOMER1_ID, "ETH", MvcController.CRYPTO_HISTORY_BUY_ACTION, TIMESTAMPS[rowNum % TIMESTAMPS.length], 0.1);
+    }
+
+    User customer1LoginFormInputs = new User();
+    customer1LoginFormInputs.setUsername(CUSTOMER1_ID);
+    customer1LoginFormInputs.setPassword(CUSTOMER1_PASSWORD);
+    controller.submitLoginForm(customer1LoginFormInputs);
+    String sessionToken = customer1LoginFormInputs.getSessionToken();
+
+    ResponseEntity<HistoryPage> firstPageResponse = controller.getCryptoHistory(sessionToken, null, 3);
+    assertEquals(HttpStatus.OK, firstPageResponse.getStatusCode());
+    assertEquals(3, firstPageResponse.getBody().getRows().size());
+    assertNotNull(firstPageResponse.getBody().getNextCursor());
+
+    ResponseEntity<HistoryPage> secondPageResponse = controller.getCryptoHistory(sessionToken, firstPageResponse.getBody().getNextCursor(), 3);
+    assertEquals(HttpStatus.OK, secondPageResponse.getStatusCode());
+    assertEquals(3, secondPageResponse.getBody().getRows().size());
+
+    // page size is capped, so the whole history can't be requested at once
+    ResponseEntity<HistoryPage> hugePageResponse = controller.getCryptoHistory(sessionToken, null, Integer.MAX_VALUE);
+    assertTrue(hugePageResponse.getBody().getRows().size() < NUM_CRYPTO_HISTORY_ROWS);
+
+    // customer2 has no crypto history
+    User customer2LoginFormInputs = new User();
+    customer2LoginFormInputs.setUsername(CUSTOMER2_ID);
+    customer2LoginFormInputs.setPassword(CUSTOMER2_PASSWORD);
+    controller.submitLoginForm(customer2LoginFormInputs);
+    ResponseEntity<HistoryPage> customer2Response = controller.getCryptoHistory(customer2LoginFormInputs.getSessionToken(), null, 3);
+    assertEquals(0, customer2Response.getBody().getRows().size());
+    assertNull(customer2Response.getBody().getNextCursor());
+
+    assertEquals(HttpStatus.UNAUTHORIZED, controller.getCryptoHistory(null, null, 3).getStatusCode());
+    assertEquals(HttpStatus.UNAUTHORIZED, controller.getCryptoHistory("not-a-token", null, 3).getStatusCode());
+    assertEquals(HttpStatus.BAD_REQUEST, controller.getCryptoHistory(sessionToken, "not-a-cursor", 3).getStatusCode());
+  }
+
+  private interface PageReader {
+    HistoryPage readPage(String cursor);
+  }
+
+  private static List<Map<String,Object>> readAllPages(PageReader pageReader) {
+    List<Map<String,Object>> allRows = new ArrayList<>();
+    String cursor = null;
+    do {
+      HistoryPage page = pageReader.readPage(cursor);
+      assertTrue(page.getRows().size() <= PAGE_SIZE);
+      allRows.addAll(page.getRows());
+      cursor = page.getNextCursor();
+    } while (cursor != null);
+    return allRows;
+  }
+
+  private static boolean isNewer(Map<String,Object> row, Map<String,Object> otherRow, String idColumn) {
+    int timestampComparison = ((LocalDateTime) row.get("Timestamp")).compareTo((LocalDateTime) otherRow.get("Timestamp"));
+    if (timestampComparison != 0) {
+      return timestampComparison > 0;
+    }
+    return ((Number) row.get(idColumn)).longValue() > ((Number) otherRow.get(idColumn)).longValue();
+  }
+}
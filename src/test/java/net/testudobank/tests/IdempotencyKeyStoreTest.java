@@ -0,0 +1,199 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import net.testudobank.IdempotencyKeyStore;
+import net.testudobank.MvcController.OperationResult;
+
+public class IdempotencyKeyStoreTest {
+  private static String CUSTOMER1_ID = "123456789";
+  private static String CUSTOMER2_ID = "987654321";
+  private static String IDEMPOTENCY_KEY = "2b7c4f0e-0d3a-4a53-9d3e-6a1f5f0f9c11";
+  private static Duration TTL = Duration.ofHours(24);
+  private static int NUM_THREADS = 32;
+  private static long STALE_KEY_AGE_IN_SECONDS = 3600;
+
+  private final FakeIdempotencyKeysTable idempotencyKeysTable = new FakeIdempotencyKeysTable();
+  private final IdempotencyKeyStore idempotencyKeyStore = new IdempotencyKeyStore(idempotencyKeysTable, TTL);
+
+  /**
+   * Fires the same key from many threads at once, and verifies that the operation runs exactly once
+   * and every request gets its outcome.
+   */
+  @Test
+  public void testConcurrentRequestsWithSameKeyRunOperationOnce() throws Exception {
+    AtomicInteger numRuns = new AtomicInteger();
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+    List<Future<OperationResult>> results = new ArrayList<>();
+    for (int threadNum = 0; threadNum < NUM_THREADS; threadNum++) {
+      results.add(executor.submit(() -> {
+        start.await();
+        return idempotencyKeyStore.execute(CUSTOMER1_ID, IDEMPOTENCY_KEY, "deposit", () -> {
+          numRuns.incrementAndGet();
+          sleep(50); // keep the operation running while the other requests arrive
+          return OperationResult.SUCCESS;
+        });
+      }));
+    }
+    start.countDown();
+    for (Future<OperationResult> result : results) {
+      assertEquals(OperationResult.SUCCESS, result.get());
+    }
+    executor.shutdown();
+
+    assertEquals(1, numRuns.get());
+    assertEquals(NUM_THREADS - 1, idempotencyKeyStore.getNumReplays());
+    assertEquals("SUCCESS", idempotencyKeysTable.getOutcome(CUSTOMER1_ID, IDEMPOTENCY_KEY));
+  }
+
+  /**
+   * Verifies that a key claimed before a restart (a new store over the same table) returns the stored outcome,
+   * including a rejection, without running the operation again.
+   */
+  @Test
+  public void testStoredOutcomeIsReplayedAfterRestart() {
+    assertEquals(OperationResult.OVERDRAFT_LIMIT, idempotencyKeyStore.execute(CUSTOMER1_ID, IDEMPOTENCY_KEY, "withdraw", () -> OperationResult.OVERDRAFT_LIMIT));
+
+    IdempotencyKeyStore restartedIdempotencyKeyStore = new IdempotencyKeyStore(idempotencyKeysTable, TTL);
+    AtomicInteger numRuns = new AtomicInteger();
+    OperationResult replayedResult = restartedIdempotencyKeyStore.execute(CUSTOMER1_ID, IDEMPOTENCY_KEY, "withdraw", () -> {
+      numRuns.incrementAndGet();
+      return OperationResult.SUCCESS;
+    });
+
+    assertEquals(OperationResult.OVERDRAFT_LIMIT, replayedResult);
+    assertEquals(0, numRuns.get());
+    assertEquals(1, restartedIdempotencyKeyStore.getNumReplays());
+  }
+
+  /**
+   * Verifies that keys are scoped to a customer, and that a key can't be reused for a different operation.
+   */
+  @Test
+  public void testKeysAreScopedToCustomerAndOperation() {
+    AtomicInteger numRuns = new AtomicInteger();
+    assertEquals(OperationResult.SUCCESS, idempotencyKeyStore.execute(CUSTOMER1_ID, IDEMPOTENCY_KEY, "deposit", () -> countRun(numRuns)));
+    assertEquals(OperationResult.SUCCESS, idempotencyKeyStore.execute(CUSTOMER2_ID, IDEMPOTENCY_KEY, "deposit", () -> countRun(numRuns)));
+    assertEquals(OperationResult.INVALID_INPUT, idempotencyKeyStore.execute(CUSTOMER1_ID, IDEMPOTENCY_KEY, "withdraw", () -> countRun(numRuns)));
+    assertEquals(2, numRuns.get());
+  }
+
+  /**
+   * Verifies that requests without a key always run, and that keys over the max length are rejected.
+   */
+  @Test
+  public void testMissingAndOversizedKeys() {
+    AtomicInteger numRuns = new AtomicInteger();
+    assertEquals(OperationResult.SUCCESS, idempotencyKeyStore.execute(CUSTOMER1_ID, null, "deposit", () -> countRun(numRuns)));
+    assertEquals(OperationResult.SUCCESS, idempotencyKeyStore.execute(CUSTOMER1_ID, null, "deposit", () -> countRun(numRuns)));
+    String oversizedKey = String.join("", Collections.nCopies(IdempotencyKeyStore.MAX_KEY_LENGTH + 1, "k"));
+    assertEquals(OperationResult.INVALID_INPUT, idempotencyKeyStore.execute(CUSTOMER1_ID, oversizedKey, "deposit", () -> countRun(numRuns)));
+    assertEquals(2, numRuns.get());
+  }
+
+  /**
+   * Verifies that an operation that throws keeps its key with a FAILED outcome, so that a retry with the same key
+   * can't repeat changes the operation committed before it failed.
+   */
+  @Test
+  public void testFailedOperationKeepsKey() {
+    assertThrows(IllegalStateException.class, () -> idempotencyKeyStore.execute(CUSTOMER1_ID, IDEMPOTENCY_KEY, "deposit", () -> {
+      throw new IllegalStateException("DB unavailable");
+    }));
+    assertEquals("FAILED", idempotencyKeysTable.getOutcome(CUSTOMER1_ID, IDEMPOTENCY_KEY));
+
+    AtomicInteger numRuns = new AtomicInteger();
+    assertEquals(OperationResult.FAILED, idempotencyKeyStore.execute(CUSTOMER1_ID, IDEMPOTENCY_KEY, "deposit", () -> countRun(numRuns)));
+    IdempotencyKeyStore restartedIdempotencyKeyStore = new IdempotencyKeyStore(idempotencyKeysTable, TTL);
+    assertEquals(OperationResult.FAILED, restartedIdempotencyKeyStore.execute(CUSTOMER1_ID, IDEMPOTENCY_KEY, "deposit", () -> countRun(numRuns)));
+    assertEquals(0, numRuns.get());
+  }
+
+  /**
+   * Verifies that a key claimed by a request that died before saving its outcome is answered as in progress at first,
+   * and as FAILED once it is older than any operation runs, instead of staying in progress until it expires.
+   */
+  @Test
+  public void testStaleInProgressKeyFails() {
+    idempotencyKeysTable.update("INSERT IGNORE INTO IdempotencyKeys (CustomerID, IdempotencyKey, Operation) VALUES (?, ?, ?);", CUSTOMER1_ID, IDEMPOTENCY_KEY, "deposit");
+    AtomicInteger numRuns = new AtomicInteger();
+    assertEquals(OperationResult.REQUEST_IN_PROGRESS, idempotencyKeyStore.execute(CUSTOMER1_ID, IDEMPOTENCY_KEY, "deposit", () -> countRun(numRuns)));
+
+    idempotencyKeysTable.setAgeInSeconds(CUSTOMER1_ID, IDEMPOTENCY_KEY, STALE_KEY_AGE_IN_SECONDS);
+    assertEquals(OperationResult.FAILED, idempotencyKeyStore.execute(CUSTOMER1_ID, IDEMPOTENCY_KEY, "deposit", () -> countRun(numRuns)));
+    assertEquals("FAILED", idempotencyKeysTable.getOutcome(CUSTOMER1_ID, IDEMPOTENCY_KEY));
+    assertEquals(0, numRuns.get());
+  }
+
+  private static OperationResult countRun(AtomicInteger numRuns) {
+    numRuns.incrementAndGet();
+    return OperationResult.SUCCESS;
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Stands in for the IdempotencyKeys table, answering the statements of the TestudoBankRepository idempotency key methods
+  private static class FakeIdempotencyKeysTable extends JdbcTemplate {
+    private final Map<String, Map<String,Object>> rows = new ConcurrentHashMap<>();
+
+    @Override
+    public int update(String sql, Object... args) {
+      if (sql.startsWith("INSERT IGNORE INTO IdempotencyKeys")) { // (CustomerID, IdempotencyKey, Operation)
+        Map<String,Object> row = new HashMap<>();
+        row.put("Operation", args[2]);
+        row.put("Outcome", null);
+        row.put("AgeInSeconds", 0L);
+        return rows.putIfAbsent(args[0] + "/" + args[1], row) == null ? 1 : 0;
+      } else if (sql.startsWith("UPDATE IdempotencyKeys SET Outcome")) { // (Outcome, CustomerID, IdempotencyKey)
+        Map<String,Object> row = rows.get(args[1] + "/" + args[2]);
+        if (sql.contains("Outcome IS NULL") && row.get("Outcome") != null) {
+          return 0;
+        }
+        row.put("Outcome", args[0]);
+        return 1;
+      } else if (sql.startsWith("DELETE FROM IdempotencyKeys WHERE CustomerID")) { // (CustomerID, IdempotencyKey)
+        return rows.remove(args[0] + "/" + args[1]) == null ? 0 : 1;
+      }
+      throw new UnsupportedOperationException(sql);
+    }
+
+    @Override
+    public List<Map<String,Object>> queryForList(String sql, Object... args) {
+      Map<String,Object> row = rows.get(args[0] + "/" + args[1]);
+      return row == null ? Collections.emptyList() : Collections.singletonList(row);
+    }
+
+    void setAgeInSeconds(String customerID, String idempotencyKey, long ageInSeconds) {
+      rows.get(customerID + "/" + idempotencyKey).put("AgeInSeconds", ageInSeconds);
+    }
+
+    String getOutcome(String customerID, String idempotencyKey) {
+      Map<String,Object> row = rows.get(customerID + "/" + idempotencyKey);
+      return row == null ? null : (String) row.get("Outcome");
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.script.ScriptException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.delegate.DatabaseDelegate;
+import org.testcontainers.ext.ScriptUtils;
+import org.testcontainers.jdbc.JdbcDatabaseDelegate;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import net.testudobank.AccountState;
+import net.testudobank.CryptoPriceClient;
+import net.testudobank.CryptoPriceSnapshot;
+import net.testudobank.LedgerBalance;
+import net.testudobank.LedgerProjector;
+import net.testudobank.MvcController;
+import net.testudobank.TestudoBankRepository;
+import net.testudobank.User;
+import net.testudobank.helpers.MvcControllerIntegTestHelpers;
+
+@Testcontainers
+public class LedgerProjectorIntegTest {
+  //// LITERAL CONSTANTS ////
+  private static String CUSTOMER1_ID = "123456789";
+  private static String CUSTOMER1_PASSWORD = "password";
+  private static String CUSTOMER1_FIRST_NAME = "Foo";
+  private static String CUSTOMER1_LAST_NAME = "Bar";
+
+  private static String CUSTOMER2_ID = "987654321";
+  private static String CUSTOMER2_PASSWORD = "password";
+  private static String CUSTOMER2_FIRST_NAME = "Foo1";
+  private static String CUSTOMER2_LAST_NAME = "Bar1";
+
+  private static String TIMESTAMP = "2022-01-01 12:00:00";
+  private static int NUM_THREADS = 8;
+  private static int NUM_DEPOSITS_PER_THREAD = 10;
+
+  // Spins up small MySQL DB in local Docker container
+  @Container
+  public static MySQLContainer db = new MySQLContainer<>("mysql:5.7.37")
+    .withUsername("root")
+    .withPassword("db_password")
+    .withDatabaseName("testudo_bank");
+
+  private static JdbcTemplate jdbcTemplate;
+  private static DatabaseDelegate dbDelegate;
+  private static MvcController controller;
+  private static LedgerProjector ledgerProjector;
+
+  @BeforeAll
+  public static void init() throws SQLException {
+    dbDelegate = new JdbcDatabaseDelegate(db, "");
+    ScriptUtils.runInitScript(dbDelegate, "createDB.sql");
+    jdbcTemplate = new JdbcTemplate(MvcControllerIntegTestHelpers.dataSource(db));
+    MvcControllerIntegTestHelpers.migrateDB(jdbcTemplate.getDataSource());
+    CryptoPriceClient cryptoPriceClient = Mockito.mock(CryptoPriceClient.class);
+    Mockito.when(cryptoPriceClient.getPriceSnapshot()).thenReturn(CryptoPriceSnapshot.EMPTY);
+    controller = new MvcController(jdbcTemplate, cryptoPriceClient);
+    // snapshot events as soon as they are appended
+    ledgerProjector = new LedgerProjector(jdbcTemplate, 0);
+  }
+
+  @AfterEach
+  public void clearDB() throws ScriptException {
+    ScriptUtils.runInitScript(dbDelegate, "clearDB.sql");
+    // the cached account state of deleted customers would otherwise leak into the next test
+    TestudoBankRepository.getAccountStateCache().invalidateAll();
+  }
+
+  /**
+   * Runs deposits, withdraws into and out of overdraft, a transfer, and a dispute, and verifies that
+   * the balances derived from the ledger always match the Customers table.
+   */
+  @Test
+  public void testLedgerMatchesCustomersTable() throws ScriptException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 10000);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, 500, 2000, 0);
+
+    User customer1FormInputs = formInputs(CUSTOMER1_ID, CUSTOMER1_PASSWORD);
+    customer1FormInputs.setAmountToDeposit(25.50);
+    controller.submitDeposit(customer1FormInputs);
+    customer1FormInputs.setAmountToWithdraw(150); // into overdraft, with interest
+    controller.submitWithdraw(customer1FormInputs);
+    customer1FormInputs.setAmountToDeposit(30); // pays off the overdraft, and the rest goes to the main balance
+    controller.submitDeposit(customer1FormInputs);
+
+    User customer2FormInputs = formInputs(CUSTOMER2_ID, CUSTOMER2_PASSWORD);
+    customer2FormInputs.setAmountToTransfer(40); // recipient pays off part of their overdraft
+    customer2FormInputs.setTransferRecipientID(CUSTOMER1_ID);
+    controller.submitTransfer(customer2FormInputs);
+
+    User customer1DisputeFormInputs = formInputs(CUSTOMER1_ID, CUSTOMER1_PASSWORD);
+    customer1DisputeFormInputs.setNumTransactionsAgo(1);
+    controller.submitDispute(customer1DisputeFormInputs);
+
+    assertLedgerMatchesCustomersTable(CUSTOMER1_ID);
+    assertLedgerMatchesCustomersTable(CUSTOMER2_ID);
+  }
+
+  /**
+   * Verifies that a snapshot doesn't change the derived balance, and that later events are added on top of it.
+   */
+  @Test
+  public void testSnapshotPlusLaterEvents() throws ScriptException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 10000);
+    User customer1FormInputs = formInputs(CUSTOMER1_ID, CUSTOMER1_PASSWORD);
+    customer1FormInputs.setAmountToDeposit(1);
+    for (int i = 0; i < 5; i++) {
+      controller.submitDeposit(customer1FormInputs);
+    }
+
+    LedgerBalance balanceBeforeSnapshot = ledgerProjector.getLedgerBalance(CUSTOMER1_ID);
+    assertEquals(1, ledgerProjector.snapshotCustomersWithEventsSinceSnapshot(5));
+    assertEquals(balanceBeforeSnapshot, ledgerProjector.getLedgerBalance(CUSTOMER1_ID));
+    // every event is covered by the snapshot now
+    assertEquals(0, ledgerProjector.snapshotCustomersWithEventsSinceSnapshot(1));
+
+    controller.submitDeposit(customer1FormInputs);
+    assertEquals(10600, ledgerProjector.getLedgerBalance(CUSTOMER1_ID).getBalanceInPennies());
+    assertLedgerMatchesCustomersTable(CUSTOMER1_ID);
+  }
+
+  /**
+   * Verifies that a Customers row that drifted from the ledger is rebuilt from it.
+   */
+  @Test
+  public void testRebuildCustomerBalances() throws ScriptException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 10000);
+    User customer1FormInputs = formInputs(CUSTOMER1_ID, CUSTOMER1_PASSWORD);
+    customer1FormInputs.setAmountToWithdraw(120);
+    controller.submitWithdraw(customer1FormInputs);
+    ledgerProjector.snapshot(CUSTOMER1_ID);
+
+    // change the balances without appending an event
+    TestudoBankRepository.setCustomerBalances(jdbcTemplate, CUSTOMER1_ID, 12345, 0);
+
+    ledgerProjector.rebuildCustomerBalances(CUSTOMER1_ID);
+    assertLedgerMatchesCustomersTable(CUSTOMER1_ID);
+    assertEquals(0, TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, CUSTOMER1_ID));
+    assertEquals((int) (2000 * MvcController.INTEREST_RATE), TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, CUSTOMER1_ID));
+
+    assertFalse(ledgerProjector.rebuildCustomerBalances("000000000").isPresent());
+  }
+
+  /**
+   * Verifies that events computed from a stale read of the Customers row are rejected, and change nothing.
+   */
+  @Test
+  public void testApplyIfUnchangedRejectsStaleState() throws ScriptException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 10000);
+    AccountState staleState = TestudoBankRepository.getCustomerAccountState(jdbcTemplate, CUSTOMER1_ID, true);
+    TestudoBankRepository.applyCustomerBalanceDeltas(jdbcTemplate, CUSTOMER1_ID, 100, 0);
+
+    List<TestudoBankRepository.LedgerEventRow> events = Collections.singletonList(new TestudoBankRepository.LedgerEventRow(CUSTOMER1_ID, TIMESTAMP, MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 500, 0));
+    assertThrows(OptimisticLockingFailureException.class, () -> ledgerProjector.applyIfUnchanged(CUSTOMER1_ID, staleState, events));
+    assertEquals(10100, TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, CUSTOMER1_ID));
+
+    AccountState currentState = TestudoBankRepository.getCustomerAccountState(jdbcTemplate, CUSTOMER1_ID, true);
+    ledgerProjector.applyIfUnchanged(CUSTOMER1_ID, currentState, events);
+    assertEquals(10600, TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, CUSTOMER1_ID));
+  }
+
+  /**
+   * Runs concurrent deposits into an account in overdraft on the request threads, so that their optimistic
+   * balance updates race, and verifies that every deposit is applied exactly once and matches the ledger.
+   */
+  @Test
+  public void testConcurrentDepositsAreRetriedOnConflict() throws Exception {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, 5000, 0);
+
+    ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+    List<Future<String>> results = new ArrayList<>();
+    for (int depositNum = 0; depositNum < NUM_THREADS * NUM_DEPOSITS_PER_THREAD; depositNum++) {
+      results.add(executor.submit(() -> {
+        User customer1FormInputs = formInputs(CUSTOMER1_ID, CUSTOMER1_PASSWORD);
+        customer1FormInputs.setAmountToDeposit(1);
+        return controller.submitDeposit(customer1FormInputs);
+      }));
+    }
+    for (Future<String> result : results) {
+      assertEquals("account_info", result.get());
+    }
+    executor.shutdown();
+
+    // $50 of the $80 pays off the overdraft, and the rest goes to the main balance
+    assertEquals(3000, TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, CUSTOMER1_ID));
+    assertEquals(0, TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, CUSTOMER1_ID));
+    assertLedgerMatchesCustomersTable(CUSTOMER1_ID);
+  }
+
+  private static User formInputs(String customerID, String password) {
+    User formInputs = new User();
+    formInputs.setUsername(customerID);
+    formInputs.setPassword(password);
+    return formInputs;
+  }
+
+  private static void assertLedgerMatchesCustomersTable(String customerID) {
+    Map<String,Object> customerData = jdbcTemplate.queryForMap("SELECT Balance, OverdraftBalance FROM Customers WHERE CustomerID=?;", customerID);
+    LedgerBalance ledgerBalance = ledgerProjector.getLedgerBalance(customerID);
+    assertEquals((int) customerData.get("Balance"), ledgerBalance.getBalanceInPennies());
+    assertEquals((int) customerData.get("OverdraftBalance"), ledgerBalance.getOverdraftBalanceInPennies());
+  }
+}
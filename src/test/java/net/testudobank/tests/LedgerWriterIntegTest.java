@@ -0,0 +1,193 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.script.ScriptException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.delegate.DatabaseDelegate;
+import org.testcontainers.ext.ScriptUtils;
+import org.testcontainers.jdbc.JdbcDatabaseDelegate;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import net.testudobank.LedgerWriter;
+import net.testudobank.MvcController;
+import net.testudobank.TestudoBankRepository;
+import net.testudobank.helpers.MvcControllerIntegTestHelpers;
+import net.testudobank.helpers.QueryCountingJdbcTemplate;
+
+@Testcontainers
+public class LedgerWriterIntegTest {
+  //// LITERAL CONSTANTS ////
+  private static String CUSTOMER1_ID = "123456789";
+  private static String CUSTOMER2_ID = "987654321";
+  private static String TIMESTAMP = "2022-01-01 12:00:00";
+  private static int NUM_THREADS = 8;
+  private static int NUM_WRITES_PER_THREAD = 50;
+  private static int MAX_BATCH_SIZE = 100;
+  private static Duration MAX_WAIT = Duration.ofMillis(5);
+  private static int QUEUE_CAPACITY = 100;
+  // long enough that a group is still being gathered when the writer is closed
+  private static Duration LONG_MAX_WAIT = Duration.ofMinutes(1);
+  private static Duration CLOSE_TIMEOUT = Duration.ofSeconds(10);
+
+  // Spins up small MySQL DB in local Docker container
+  @Container
+  public static MySQLContainer db = new MySQLContainer<>("mysql:5.7.37")
+    .withUsername("root")
+    .withPassword("db_password")
+    .withDatabaseName("testudo_bank");
+
+  private static QueryCountingJdbcTemplate jdbcTemplate;
+  private static DatabaseDelegate dbDelegate;
+  private static LedgerWriter ledgerWriter;
+
+  @BeforeAll
+  public static void init() throws SQLException {
+    dbDelegate = new JdbcDatabaseDelegate(db, "");
+    ScriptUtils.runInitScript(dbDelegate, "createDB.sql");
+    jdbcTemplate = new QueryCountingJdbcTemplate(MvcControllerIntegTestHelpers.dataSource(db));
+    MvcControllerIntegTestHelpers.migrateDB(jdbcTemplate.getDataSource());
+    ledgerWriter = new LedgerWriter(jdbcTemplate, MAX_BATCH_SIZE, MAX_WAIT, QUEUE_CAPACITY);
+  }
+
+  @AfterEach
+  public void clearDB() throws ScriptException {
+    ScriptUtils.runInitScript(dbDelegate, "clearDB.sql");
+    // the cached account state of deleted customers would otherwise leak into the next test
+    TestudoBankRepository.getAccountStateCache().invalidateAll();
+  }
+
+  /**
+   * Writes history rows from many threads at once, and verifies that every row is committed by the time
+   * its write returns, and that concurrent writes were grouped into fewer JDBC batches than there were writes.
+   */
+  @Test
+  public void testConcurrentWritesAreGroupCommitted() throws Exception {
+    jdbcTemplate.resetNumQueriesExecuted();
+    ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+    List<Future<?>> results = new ArrayList<>();
+    for (int threadNum = 0; threadNum < NUM_THREADS; threadNum++) {
+      results.add(executor.submit(() -> {
+        for (int writeNum = 0; writeNum < NUM_WRITES_PER_THREAD; writeNum++) {
+          ledgerWriter.write(Arrays.asList(
+            new TestudoBankRepository.TransactionHistoryRow(CUSTOMER1_ID, TIMESTAMP, MvcController.TRANSACTION_HISTORY_TRANSFER_SEND_ACTION, 1),
+            new TestudoBankRepository.TransferHistoryRow(CUSTOMER1_ID, CUSTOMER2_ID, TIMESTAMP, 1)));
+        }
+      }));
+    }
+    for (Future<?> result : results) {
+      result.get();
+    }
+    executor.shutdown();
+
+    int numWrites = NUM_THREADS * NUM_WRITES_PER_THREAD;
+    assertEquals(numWrites, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM TransactionHistory;", Integer.class));
+    assertEquals(numWrites, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM TransferHistory;", Integer.class));
+    // each group takes one batch per table, so ungrouped writes would take 2 statements each
+    assertTrue(jdbcTemplate.getNumQueriesExecuted() < 2 * numWrites);
+  }
+
+  /**
+   * Verifies that a write that can't be inserted fails only its own caller, and not the writes it was grouped with.
+   */
+  @Test
+  public void testFailedWriteOnlyFailsItsCaller() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    Future<?> validWrite = executor.submit(() -> ledgerWriter.write(new TestudoBankRepository.CryptoHistoryRow(CUSTOMER1_ID, "ETH", MvcController.CRYPTO_HISTORY_BUY_ACTION, TIMESTAMP, 0.1)));
+    Future<?> invalidWrite = executor.submit(() -> ledgerWriter.write(new TestudoBankRepository.CryptoHistoryRow(CUSTOMER2_ID, "ETH", MvcController.CRYPTO_HISTORY_BUY_ACTION, "not-a-timestamp", 0.1)));
+    validWrite.get();
+    executor.shutdown();
+
+    assertThrows(DataAccessException.class, () -> {
+      try {
+        invalidWrite.get();
+      } catch (ExecutionException e) {
+        throw e.getCause();
+      }
+    });
+    assertEquals(1, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM CryptoHistory WHERE CustomerID=?;", Integer.class, CUSTOMER1_ID));
+    assertEquals(0, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM CryptoHistory WHERE CustomerID=?;", Integer.class, CUSTOMER2_ID));
+  }
+
+  /**
+   * Verifies that a write's balance update commits together with its rows, and that a write whose update throws
+   * (like a conditional update that lost a race) rolls back its update and rows and fails only its own caller.
+   */
+  @Test
+  public void testUpdateCommitsWithItsRows() throws Exception {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, "password", "John", "Doe", 0);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, "password", "Jane", "Doe", 0);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    Future<?> validWrite = executor.submit(() -> ledgerWriter.write(
+      () -> TestudoBankRepository.setCustomerCashBalance(jdbcTemplate, CUSTOMER1_ID, 1),
+      Arrays.asList(new TestudoBankRepository.TransactionHistoryRow(CUSTOMER1_ID, TIMESTAMP, MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 1))));
+    Future<?> failedWrite = executor.submit(() -> ledgerWriter.write(
+      () -> {
+        TestudoBankRepository.setCustomerCashBalance(jdbcTemplate, CUSTOMER2_ID, 1);
+        throw new OptimisticLockingFailureException("lost a race");
+      },
+      Arrays.asList(new TestudoBankRepository.TransactionHistoryRow(CUSTOMER2_ID, TIMESTAMP, MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 1))));
+    validWrite.get();
+    executor.shutdown();
+
+    assertThrows(OptimisticLockingFailureException.class, () -> {
+      try {
+        failedWrite.get();
+      } catch (ExecutionException e) {
+        throw e.getCause();
+      }
+    });
+    assertEquals(1, (int) jdbcTemplate.queryForObject("SELECT Balance FROM Customers WHERE CustomerID=?;", Integer.class, CUSTOMER1_ID));
+    assertEquals(1, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM TransactionHistory WHERE CustomerID=?;", Integer.class, CUSTOMER1_ID));
+    assertEquals(0, (int) jdbcTemplate.queryForObject("SELECT Balance FROM Customers WHERE CustomerID=?;", Integer.class, CUSTOMER2_ID));
+    assertEquals(0, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM TransactionHistory WHERE CustomerID=?;", Integer.class, CUSTOMER2_ID));
+  }
+
+  /**
+   * Verifies that closing the writer commits the writes it is still gathering into a group, without waiting out
+   * the max wait, and that writes after closing are rejected.
+   */
+  @Test
+  public void testCloseCommitsQueuedWrites() throws Exception {
+    LedgerWriter closingLedgerWriter = new LedgerWriter(jdbcTemplate, MAX_BATCH_SIZE, LONG_MAX_WAIT, QUEUE_CAPACITY);
+    List<Thread> writerThreads = new ArrayList<>();
+    for (int threadNum = 0; threadNum < NUM_THREADS; threadNum++) {
+      Thread writerThread = new Thread(() -> closingLedgerWriter.write(new TestudoBankRepository.TransactionHistoryRow(CUSTOMER1_ID, TIMESTAMP, MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 1)));
+      writerThread.start();
+      writerThreads.add(writerThread);
+    }
+    // the queue never fills up, so a waiting writer has queued its rows and is waiting for the commit
+    for (Thread writerThread : writerThreads) {
+      while (writerThread.getState() != Thread.State.WAITING) {
+        Thread.yield();
+      }
+    }
+
+    assertTrue(closingLedgerWriter.close(CLOSE_TIMEOUT));
+    for (Thread writerThread : writerThreads) {
+      writerThread.join();
+    }
+    assertEquals(NUM_THREADS, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM TransactionHistory WHERE CustomerID=?;", Integer.class, CUSTOMER1_ID));
+    assertThrows(IllegalStateException.class, () -> closingLedgerWriter.write(new TestudoBankRepository.TransactionHistoryRow(CUSTOMER1_ID, TIMESTAMP, MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 1)));
+  }
+}
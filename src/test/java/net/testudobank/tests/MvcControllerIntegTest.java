@@ -5,23 +5,40 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.math.BigDecimal;
 import java.sql.SQLException;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 import javax.script.ScriptException;
 
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import net.testudobank.CryptoPriceClient;
+import net.testudobank.CryptoPriceSnapshot;
+import net.testudobank.CryptoValuationEngine.CryptoExposure;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.ui.ExtendedModelMap;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.testcontainers.containers.MySQLContainer;
 import org.testcontainers.delegate.DatabaseDelegate;
 import org.testcontainers.ext.ScriptUtils;
@@ -29,12 +46,23 @@ import org.testcontainers.jdbc.JdbcDatabaseDelegate;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
+import net.testudobank.AccountSnapshot;
+import net.testudobank.AccountSummary;
+import net.testudobank.ApiLoginResult;
+import net.testudobank.BalanceResult;
+import net.testudobank.MeteredJdbcTemplate;
 import net.testudobank.MvcController;
+import net.testudobank.MvcController.OperationResult;
+import net.testudobank.QueryBudgetInterceptor;
+import net.testudobank.TestudoBankRepository;
 import net.testudobank.User;
 import net.testudobank.helpers.MvcControllerIntegTestHelpers;
+import net.testudobank.helpers.QueryCountingJdbcTemplate;
 
 @Testcontainers
-@SpringBootTest
+// Flyway is pointed at the Testcontainers DB in init() instead of the DB in application.properties,
+// and the application context gets prices from the simulated feed instead of the network
+@SpringBootTest(properties = {"spring.flyway.enabled=false", "crypto.price-source=simulated"})
 public class MvcControllerIntegTest {
   //// LITERAL CONSTANTS ////
   private static String CUSTOMER1_ID = "123456789";
@@ -47,6 +75,7 @@ public class MvcControllerIntegTest {
   private static String CUSTOMER2_PASSWORD = "password";
   private static String CUSTOMER2_FIRST_NAME = "Foo1";
   private static String CUSTOMER2_LAST_NAME = "Bar1";
+  private static int MAX_REPEATED_STATEMENTS = 2;
   
   // Spins up small MySQL DB in local Docker container
   @Container
@@ -65,9 +94,14 @@ public class MvcControllerIntegTest {
   public static void init() throws SQLException {
     dbDelegate = new JdbcDatabaseDelegate(db, "");
     ScriptUtils.runInitScript(dbDelegate, "createDB.sql");
-    jdbcTemplate = new JdbcTemplate(MvcControllerIntegTestHelpers.dataSource(db));
+    jdbcTemplate = new MeteredJdbcTemplate(MvcControllerIntegTestHelpers.dataSource(db), new SimpleMeterRegistry());
     jdbcTemplate.getDataSource().getConnection().setCatalog(db.getDatabaseName());
-    controller = new MvcController(jdbcTemplate, cryptoPriceClient);
+    MvcControllerIntegTestHelpers.migrateDB(jdbcTemplate.getDataSource());
+    // test mode: a handler that sends more statements than its @QueryBudget fails the test.
+    // The HTML form handlers are called with no session token cookie, as a form authenticated by its password is posted
+    controller = new QueryBudgetInterceptor(MAX_REPEATED_STATEMENTS, true).enforce(new MvcController(jdbcTemplate, cryptoPriceClient));
+    // tests that don't trade crypto render the account info page without any prices
+    Mockito.when(cryptoPriceClient.getPriceSnapshot()).thenReturn(CryptoPriceSnapshot.EMPTY);
   }
 
   @AfterEach
@@ -76,6 +110,8 @@ public class MvcControllerIntegTest {
     // so it is OK to use runInitScript() again even though we aren't initializing the DB for the first time here.
     // runInitScript() is a poorly-named function.
     ScriptUtils.runInitScript(dbDelegate, "clearDB.sql");
+    // the cached account state of deleted customers would otherwise leak into the next test
+    TestudoBankRepository.getAccountStateCache().invalidateAll();
   }
 
   //// INTEGRATION TESTS ////
@@ -113,7 +149,7 @@ public class MvcControllerIntegTest {
     System.out.println("Timestamp when Deposit Request is sent: " + timeWhenDepositRequestSent);
 
     // send request to the Deposit Form's POST handler in MvcController
-    controller.submitDeposit(customer1DepositFormInputs);
+    controller.submitDeposit(customer1DepositFormInputs, null);
 
     // fetch updated data from the DB
     List<Map<String,Object>> customersTableData = jdbcTemplate.queryForList("SELECT * FROM Customers;");
@@ -172,7 +208,7 @@ public class MvcControllerIntegTest {
     System.out.println("Timestamp when Withdraw Request is sent: " + timeWhenWithdrawRequestSent);
 
     // send request to the Withdraw Form's POST handler in MvcController
-    controller.submitWithdraw(customer1WithdrawFormInputs);
+    controller.submitWithdraw(customer1WithdrawFormInputs, null);
 
     // fetch updated data from the DB
     List<Map<String,Object>> customersTableData = jdbcTemplate.queryForList("SELECT * FROM Customers;");
@@ -229,7 +265,7 @@ public class MvcControllerIntegTest {
     System.out.println("Timestamp when Withdraw Request is sent: " + timeWhenWithdrawRequestSent);
 
     // send request to the Withdraw Form's POST handler in MvcController
-    controller.submitWithdraw(customer1WithdrawFormInputs);
+    controller.submitWithdraw(customer1WithdrawFormInputs, null);
 
     // fetch updated customer1 data from the DB
     List<Map<String,Object>> customersTableData = jdbcTemplate.queryForList("SELECT * FROM Customers;");
@@ -284,7 +320,7 @@ public class MvcControllerIntegTest {
     System.out.println("Timestamp when withdraw request sent: " + timeWhenWithdrawRequestSent);
 
     //Check the response when the withdraw request is submitted. This should return the user back to the home screen due to an invalid request
-    String responsePage = controller.submitWithdraw(customer1WithdrawFormInputs);
+    String responsePage = controller.submitWithdraw(customer1WithdrawFormInputs, null);
     assertEquals("welcome", responsePage);
 
     //Fetch customer1's data from DB
@@ -340,7 +376,7 @@ public class MvcControllerIntegTest {
     System.out.println("Timestamp when Deposit Request is sent: " + timeWhenDepositRequestSent);
 
     // send request to the Deposit Form's POST handler in MvcController
-    controller.submitDeposit(customer1DepositFormInputs);
+    controller.submitDeposit(customer1DepositFormInputs, null);
 
     // fetch updated data from the DB
     List<Map<String,Object>> customersTableData = jdbcTemplate.queryForList("SELECT * FROM Customers;");
@@ -403,7 +439,7 @@ public class MvcControllerIntegTest {
     System.out.println("Timestamp when Deposit Request is sent: " + timeWhenDepositRequestSent);
 
     // send request to the Deposit Form's POST handler in MvcController
-    controller.submitDeposit(customer1DepositFormInputs);
+    controller.submitDeposit(customer1DepositFormInputs, null);
 
     // fetch updated data from the DB
     List<Map<String,Object>> customersTableData = jdbcTemplate.queryForList("SELECT * FROM Customers;");
@@ -468,7 +504,7 @@ public class MvcControllerIntegTest {
     System.out.println("Timestamp when Deposit Request is sent: " + timeWhenDepositRequestSent);
 
     // send request to the Deposit Form's POST handler in MvcController
-    controller.submitDeposit(customer1DepositFormInputs);
+    controller.submitDeposit(customer1DepositFormInputs, null);
 
     // verify customer1's balance after the deposit
     List<Map<String,Object>> customersTableData = jdbcTemplate.queryForList("SELECT * FROM Customers;");
@@ -489,7 +525,7 @@ public class MvcControllerIntegTest {
     System.out.println("Timestamp when Reversal Request is sent: " + timeWhenReversalRequestSent);
 
     // send Dispute request
-    controller.submitDispute(customer1ReversalFormInputs);
+    controller.submitDispute(customer1ReversalFormInputs, null);
 
     // re-fetch updated customer data from the DB
     customersTableData = jdbcTemplate.queryForList("SELECT * FROM Customers;");
@@ -555,7 +591,7 @@ public class MvcControllerIntegTest {
     System.out.println("Timestamp when Withdraw Request is sent: " + timeWhenWithdrawRequestSent);
 
     // send request to the Withdraw Form's POST handler in MvcController
-    controller.submitWithdraw(customer1WithdrawFormInputs);
+    controller.submitWithdraw(customer1WithdrawFormInputs, null);
 
     // verify customer1's balance after the withdraw
     List<Map<String,Object>> customersTableData = jdbcTemplate.queryForList("SELECT * FROM Customers;");
@@ -576,7 +612,7 @@ public class MvcControllerIntegTest {
     System.out.println("Timestamp when Reversal Request is sent: " + timeWhenReversalRequestSent);
 
     // send Dispute request
-    controller.submitDispute(customer1ReversalFormInputs);
+    controller.submitDispute(customer1ReversalFormInputs, null);
 
     // re-fetch updated customer data from the DB
     customersTableData = jdbcTemplate.queryForList("SELECT * FROM Customers;");
@@ -650,7 +686,7 @@ public class MvcControllerIntegTest {
     customer1DepositFormInputs.setAmountToDeposit(CUSTOMER1_AMOUNT_TO_DEPOSIT);
 
     // send Deposit request to the Deposit Form's POST handler in MvcController
-    controller.submitDeposit(customer1DepositFormInputs);
+    controller.submitDeposit(customer1DepositFormInputs, null);
 
     // verify customer1's balance after the deposit
     List<Map<String,Object>> customersTableData = jdbcTemplate.queryForList("SELECT * FROM Customers;");
@@ -664,7 +700,7 @@ public class MvcControllerIntegTest {
     customer1ReversalFormInputs.setNumTransactionsAgo(1); // reverse the most recent transaction
 
     // send Dispute request
-    controller.submitDispute(customer1ReversalFormInputs);
+    controller.submitDispute(customer1ReversalFormInputs, null);
 
     // re-fetch updated customer data from the DB
     customersTableData = jdbcTemplate.queryForList("SELECT * FROM Customers;");
@@ -693,17 +729,17 @@ public class MvcControllerIntegTest {
 
     // customer should not be able to Deposit
     customer1FrozenFormInputs.setAmountToDeposit(MvcControllerIntegTestHelpers.convertDollarsToPennies(50));
-    responsePage = controller.submitDeposit(customer1FrozenFormInputs);
+    responsePage = controller.submitDeposit(customer1FrozenFormInputs, null);
     assertEquals("welcome", responsePage);
 
     // customer should not be able to Withdraw
     customer1FrozenFormInputs.setAmountToWithdraw(MvcControllerIntegTestHelpers.convertDollarsToPennies(50));
-    responsePage = controller.submitWithdraw(customer1FrozenFormInputs);
+    responsePage = controller.submitWithdraw(customer1FrozenFormInputs, null);
     assertEquals("welcome", responsePage);
 
     // customer should not be able to Dispute/Reverse a Transaction
     customer1FrozenFormInputs.setNumTransactionsAgo(1);
-    responsePage = controller.submitDispute(customer1FrozenFormInputs);
+    responsePage = controller.submitDispute(customer1FrozenFormInputs, null);
     assertEquals("welcome", responsePage);
 
     // verify customer's data and # of transactions is unchanged
@@ -751,7 +787,7 @@ public class MvcControllerIntegTest {
     System.out.println("Timestamp when Deposit Request is sent: " + timeWhenDepositRequestSent);
 
     // send request to the Deposit Form's POST handler in MvcController
-    controller.submitDeposit(customer1DepositFormInputs);
+    controller.submitDeposit(customer1DepositFormInputs, null);
  
      // sleep for 1 second to ensure the timestamps of Deposit, Withdraw, and Reversal are different (and sortable) in TransactionHistory table
      Thread.sleep(1000);
@@ -768,7 +804,7 @@ public class MvcControllerIntegTest {
     System.out.println("Timestamp when Withdraw Request is sent: " + timeWhenWithdrawRequestSent);
 
     // send request to the Withdraw Form's POST handler in MvcController
-    controller.submitWithdraw(customer1WithdrawFormInputs);
+    controller.submitWithdraw(customer1WithdrawFormInputs, null);
 
     // sleep for 1 second to ensure the timestamps of Deposit, Withdraw, and Reversal are different (and sortable) in TransactionHistory table
     Thread.sleep(1000);
@@ -784,7 +820,7 @@ public class MvcControllerIntegTest {
     customer1ReversalFormInputs.setNumTransactionsAgo(2); // reverse the first transaction
 
     // send Dispute request
-    String responsePage = controller.submitDispute(customer1ReversalFormInputs);
+    String responsePage = controller.submitDispute(customer1ReversalFormInputs, null);
     assertEquals("welcome", responsePage);
 
     // re-fetch transaction data from the DB in chronological order
@@ -835,7 +871,7 @@ public class MvcControllerIntegTest {
     customer1DepositFormInputs.setAmountToDeposit(CUSTOMER1_AMOUNT_TO_DEPOSIT);
 
     // send request to the Deposit Form's POST handler in MvcController
-    controller.submitDeposit(customer1DepositFormInputs);
+    controller.submitDeposit(customer1DepositFormInputs, null);
 
     // sleep for 1 second to ensure the timestamps of Withdraw and Reversal are different (and sortable) in TransactionHistory table
     Thread.sleep(1000);
@@ -848,7 +884,7 @@ public class MvcControllerIntegTest {
     customer1WithdrawFormInputs.setAmountToWithdraw(CUSTOMER1_AMOUNT_TO_WITHDRAW);
 
     // send request to the Withdraw Form's POST handler in MvcController
-    controller.submitWithdraw(customer1WithdrawFormInputs);
+    controller.submitWithdraw(customer1WithdrawFormInputs, null);
 
     // sleep for 1 second to ensure the timestamps of Withdraw and Reversal are different (and sortable) in TransactionHistory table
     Thread.sleep(1000);
@@ -861,7 +897,7 @@ public class MvcControllerIntegTest {
     customer1ReversalFormInputs.setNumTransactionsAgo(2); // reverse the first transaction
 
     // send Dispute request
-    controller.submitDispute(customer1ReversalFormInputs);
+    controller.submitDispute(customer1ReversalFormInputs, null);
 
     // fetch updated customer1 data from the DB
     customersTableData = jdbcTemplate.queryForList("SELECT * FROM Customers;");
@@ -921,7 +957,7 @@ public class MvcControllerIntegTest {
     customer1DepositFormInputs.setAmountToDeposit(CUSTOMER1_AMOUNT_TO_DEPOSIT);
 
     // send request to the Deposit Form's POST handler in MvcController
-    controller.submitDeposit(customer1DepositFormInputs);
+    controller.submitDeposit(customer1DepositFormInputs, null);
  
     // sleep for 1 second to ensure the timestamps of Deposit, Withdraw, and Reversal are different (and sortable) in TransactionHistory table
     Thread.sleep(1000);
@@ -931,7 +967,7 @@ public class MvcControllerIntegTest {
     customer1ReversalFormInputs.setNumTransactionsAgo(1); // reverse the first transaction
 
     // send Dispute request
-    controller.submitDispute(customer1ReversalFormInputs);
+    controller.submitDispute(customer1ReversalFormInputs, null);
 
     // fetch updated customer1 data from the DB
      List<Map<String,Object>> customersTableData = jdbcTemplate.queryForList("SELECT * FROM Customers;");
@@ -942,6 +978,155 @@ public class MvcControllerIntegTest {
     assertEquals(CUSTOMER1_OVERDRAFT_BALANCE_IN_PENNIES, (int)customer1Data.get("OverdraftBalance"));
   }
 
+  /**
+   * Verifies that a transaction can be disputed by its TransactionID, beyond the
+   * max reversable transactions ago, and that the overdraft repayment it made is
+   * found through its link to the deposit instead of by timestamp.
+   * 
+   * The deposit's OverdraftLogs entry should be linked to its TransactionID,
+   * and removed once the deposit is reversed. The reversal should be linked
+   * to the reversed row through ReversedTransactionID.
+   * 
+   * @throws SQLException
+   * @throws ScriptException
+   */
+  @Test
+  public void testDisputeByTransactionID() throws SQLException, ScriptException {
+    int CUSTOMER1_OVERDRAFT_BALANCE_IN_PENNIES = 50;
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, CUSTOMER1_OVERDRAFT_BALANCE_IN_PENNIES, 0);
+
+    // deposit $100, which pays off the overdraft balance first
+    User customer1DepositFormInputs = new User();
+    customer1DepositFormInputs.setUsername(CUSTOMER1_ID);
+    customer1DepositFormInputs.setPassword(CUSTOMER1_PASSWORD);
+    customer1DepositFormInputs.setAmountToDeposit(100);
+    controller.submitDeposit(customer1DepositFormInputs, null);
+
+    long depositTransactionID = jdbcTemplate.queryForObject("SELECT TransactionID FROM TransactionHistory;", Long.class);
+    assertEquals(depositTransactionID, (long) jdbcTemplate.queryForObject("SELECT TransactionID FROM OverdraftLogs;", Long.class));
+
+    // push the deposit further back than can be disputed by numTransactionsAgo
+    User customer1WithdrawFormInputs = new User();
+    customer1WithdrawFormInputs.setUsername(CUSTOMER1_ID);
+    customer1WithdrawFormInputs.setPassword(CUSTOMER1_PASSWORD);
+    customer1WithdrawFormInputs.setAmountToWithdraw(1);
+    for (int i = 0; i < 3; i++) {
+      controller.submitWithdraw(customer1WithdrawFormInputs, null);
+    }
+
+    User customer1ReversalFormInputs = new User();
+    customer1ReversalFormInputs.setUsername(CUSTOMER1_ID);
+    customer1ReversalFormInputs.setPassword(CUSTOMER1_PASSWORD);
+    customer1ReversalFormInputs.setTransactionIDToReverse(depositTransactionID);
+    assertEquals("account_info", controller.submitDispute(customer1ReversalFormInputs, null));
+
+    // $96.50 of the $100 comes out of the main balance. Of the remaining $3.50, the $0.50 repaid by the deposit
+    // is restored without interest, and only the other $3.00 goes into overdraft with interest
+    Map<String,Object> customer1Data = jdbcTemplate.queryForMap("SELECT * FROM Customers;");
+    assertEquals(0, (int) customer1Data.get("Balance"));
+    assertEquals(CUSTOMER1_OVERDRAFT_BALANCE_IN_PENNIES + MvcControllerIntegTestHelpers.applyOverdraftInterest(300), (int) customer1Data.get("OverdraftBalance"));
+    assertEquals(1, (int) customer1Data.get("NumFraudReversals"));
+
+    assertEquals(0, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM OverdraftLogs;", Integer.class));
+    Map<String,Object> reversalTransactionLog = jdbcTemplate.queryForMap("SELECT * FROM TransactionHistory WHERE ReversedTransactionID IS NOT NULL;");
+    assertEquals(depositTransactionID, ((Number) reversalTransactionLog.get("ReversedTransactionID")).longValue());
+    assertEquals(MvcController.TRANSACTION_HISTORY_WITHDRAW_ACTION, reversalTransactionLog.get("Action"));
+    assertEquals(10000, (int) reversalTransactionLog.get("Amount"));
+  }
+
+  /**
+   * Verifies that a transaction can only be reversed once, and that a reversal
+   * can't be reversed itself. Both disputes should be rejected without changing
+   * any balances or the customer's numFraudReversals counter.
+   * 
+   * @throws SQLException
+   * @throws ScriptException
+   */
+  @Test
+  public void testReversedTransactionCannotBeDisputedAgain() throws SQLException, ScriptException {
+    int CUSTOMER1_BALANCE_IN_PENNIES = 10000;
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, CUSTOMER1_BALANCE_IN_PENNIES);
+
+    User customer1WithdrawFormInputs = new User();
+    customer1WithdrawFormInputs.setUsername(CUSTOMER1_ID);
+    customer1WithdrawFormInputs.setPassword(CUSTOMER1_PASSWORD);
+    customer1WithdrawFormInputs.setAmountToWithdraw(10);
+    controller.submitWithdraw(customer1WithdrawFormInputs, null);
+    long withdrawTransactionID = jdbcTemplate.queryForObject("SELECT TransactionID FROM TransactionHistory;", Long.class);
+
+    User customer1ReversalFormInputs = new User();
+    customer1ReversalFormInputs.setUsername(CUSTOMER1_ID);
+    customer1ReversalFormInputs.setPassword(CUSTOMER1_PASSWORD);
+    customer1ReversalFormInputs.setTransactionIDToReverse(withdrawTransactionID);
+    assertEquals("account_info", controller.submitDispute(customer1ReversalFormInputs, null));
+
+    // the withdraw was already reversed
+    assertEquals("welcome", controller.submitDispute(customer1ReversalFormInputs, null));
+
+    // the reversal is the most recent transaction, and can't be reversed either
+    customer1ReversalFormInputs.setTransactionIDToReverse(0);
+    customer1ReversalFormInputs.setNumTransactionsAgo(1);
+    assertEquals("welcome", controller.submitDispute(customer1ReversalFormInputs, null));
+
+    Map<String,Object> customer1Data = jdbcTemplate.queryForMap("SELECT * FROM Customers;");
+    assertEquals(CUSTOMER1_BALANCE_IN_PENNIES, (int) customer1Data.get("Balance"));
+    assertEquals(1, (int) customer1Data.get("NumFraudReversals"));
+    assertEquals(2, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM TransactionHistory;", Integer.class));
+  }
+
+  /**
+   * Fires the same deposit with the same idempotency key from many threads at once, like a
+   * client retrying a request that timed out. The deposit should be applied exactly once, and
+   * every request should get the first request's outcome.
+   * 
+   * A later resubmit with the same key should also be answered without touching the balances.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testConcurrentDepositsWithSameIdempotencyKey() throws Exception {
+    int CUSTOMER1_BALANCE_IN_PENNIES = 10000;
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, CUSTOMER1_BALANCE_IN_PENNIES);
+
+    int NUM_THREADS = 16;
+    double CUSTOMER1_AMOUNT_TO_DEPOSIT = 12.34;
+    String IDEMPOTENCY_KEY = "deposit-retry-1";
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+    List<Future<String>> responsePages = new ArrayList<>();
+    for (int threadNum = 0; threadNum < NUM_THREADS; threadNum++) {
+      responsePages.add(executor.submit(() -> {
+        User customer1DepositFormInputs = new User();
+        customer1DepositFormInputs.setUsername(CUSTOMER1_ID);
+        customer1DepositFormInputs.setPassword(CUSTOMER1_PASSWORD);
+        customer1DepositFormInputs.setAmountToDeposit(CUSTOMER1_AMOUNT_TO_DEPOSIT);
+        customer1DepositFormInputs.setIdempotencyKey(IDEMPOTENCY_KEY);
+        start.await();
+        return controller.submitDeposit(customer1DepositFormInputs, null);
+      }));
+    }
+    start.countDown();
+    for (Future<String> responsePage : responsePages) {
+      assertEquals("account_info", responsePage.get());
+    }
+    executor.shutdown();
+
+    int CUSTOMER1_EXPECTED_BALANCE_IN_PENNIES = CUSTOMER1_BALANCE_IN_PENNIES + MvcControllerIntegTestHelpers.convertDollarsToPennies(CUSTOMER1_AMOUNT_TO_DEPOSIT);
+    assertEquals(CUSTOMER1_EXPECTED_BALANCE_IN_PENNIES, (int) jdbcTemplate.queryForObject("SELECT Balance FROM Customers;", Integer.class));
+    assertEquals(1, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM TransactionHistory;", Integer.class));
+    assertEquals(OperationResult.SUCCESS.name(), jdbcTemplate.queryForObject("SELECT Outcome FROM IdempotencyKeys WHERE CustomerID=? AND IdempotencyKey=?;", String.class, CUSTOMER1_ID, IDEMPOTENCY_KEY));
+
+    // a browser resubmit of the same form, after the first deposit completed
+    User customer1ResubmittedFormInputs = new User();
+    customer1ResubmittedFormInputs.setUsername(CUSTOMER1_ID);
+    customer1ResubmittedFormInputs.setPassword(CUSTOMER1_PASSWORD);
+    customer1ResubmittedFormInputs.setAmountToDeposit(CUSTOMER1_AMOUNT_TO_DEPOSIT);
+    customer1ResubmittedFormInputs.setIdempotencyKey(IDEMPOTENCY_KEY);
+    assertEquals("account_info", controller.submitDeposit(customer1ResubmittedFormInputs, null));
+    assertEquals(CUSTOMER1_EXPECTED_BALANCE_IN_PENNIES, (int) jdbcTemplate.queryForObject("SELECT Balance FROM Customers;", Integer.class));
+    assertEquals(1, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM TransactionHistory;", Integer.class));
+  }
+
  /**
    * This test verifies that a simple transfer of $100 from Customer1 to Customer2 will take place. Customer1's balance will be
    * initialized to $1000, and Customer2's balance will be $500. 
@@ -975,7 +1160,7 @@ public class MvcControllerIntegTest {
     CUSTOMER1.setAmountToTransfer(TRANSFER_AMOUNT);
     
     //Send the transfer request.
-    String returnedPage = controller.submitTransfer(CUSTOMER1);
+    String returnedPage = controller.submitTransfer(CUSTOMER1, null);
     
     //Fetch customer1 & customer2's data from DB
     List<Map<String, Object>> customer1SqlResult = jdbcTemplate.queryForList(String.format("SELECT * FROM Customers WHERE CustomerID='%s';", CUSTOMER1_ID));
@@ -1031,7 +1216,7 @@ public class MvcControllerIntegTest {
     CUSTOMER1.setAmountToTransfer(TRANSFER_AMOUNT);
 
     //Send the transfer request.
-    String returnedPage = controller.submitTransfer(CUSTOMER1);
+    String returnedPage = controller.submitTransfer(CUSTOMER1, null);
 
     //fetch customer1 & customer2's data from DB
     List<Map<String,Object>> customer1SqlResult = jdbcTemplate.queryForList(String.format("SELECT * FROM Customers WHERE CustomerID='%s';", CUSTOMER1_ID));
@@ -1089,7 +1274,7 @@ public void testTransferPaysOverdraftAndDepositsRemainder() throws SQLException,
     CUSTOMER1.setAmountToTransfer(TRANSFER_AMOUNT);
 
     //Send the transfer request.
-    String returnedPage = controller.submitTransfer(CUSTOMER1);
+    String returnedPage = controller.submitTransfer(CUSTOMER1, null);
 
     //fetch customer1 & customer2's data from DB
     List<Map<String,Object>> customer1SqlResult = jdbcTemplate.queryForList(String.format("SELECT * FROM Customers WHERE CustomerID='%s';", CUSTOMER1_ID));
@@ -1112,6 +1297,369 @@ public void testTransferPaysOverdraftAndDepositsRemainder() throws SQLException,
     assertEquals("account_info", returnedPage);
   }
 
+  /**
+   * Verifies that rendering the "account_info" page costs a fixed number of queries,
+   * no matter how much history or how many cryptocurrencies the customer has.
+   *
+   * The account snapshot should take 5 queries (Customers+CryptoHoldings, and one per history table),
+   * and a login should only add the password lookup on top of that.
+   *
+   * @throws SQLException
+   * @throws ScriptException
+   */
+  @Test
+  public void testAccountInfoRenderQueryCount() throws SQLException, ScriptException {
+    // initialize customer1 with some cash and a balance in every supported cryptocurrency
+    int CUSTOMER1_BALANCE_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(1000);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, CUSTOMER1_BALANCE_IN_PENNIES);
+    for (String cryptoName : MvcController.SUPPORTED_CRYPTOCURRENCIES) {
+      MvcControllerIntegTestHelpers.setCryptoBalance(dbDelegate, CUSTOMER1_ID, cryptoName, 0.5);
+    }
+
+    QueryCountingJdbcTemplate queryCountingJdbcTemplate = new QueryCountingJdbcTemplate(jdbcTemplate.getDataSource());
+    MvcController queryCountingController = new MvcController(queryCountingJdbcTemplate, cryptoPriceClient);
+
+    // create some history so that every history table is non-empty
+    User customer1DepositFormInputs = new User();
+    customer1DepositFormInputs.setUsername(CUSTOMER1_ID);
+    customer1DepositFormInputs.setPassword(CUSTOMER1_PASSWORD);
+    customer1DepositFormInputs.setAmountToDeposit(10);
+    queryCountingController.submitDeposit(customer1DepositFormInputs);
+    queryCountingController.submitDeposit(customer1DepositFormInputs);
+
+    // loading the snapshot directly should take exactly 5 queries
+    queryCountingJdbcTemplate.resetNumQueriesExecuted();
+    AccountSnapshot accountSnapshot = TestudoBankRepository.getAccountSnapshot(queryCountingJdbcTemplate, CUSTOMER1_ID, 3, 10, 10);
+    assertEquals(5, queryCountingJdbcTemplate.getNumQueriesExecuted());
+    assertEquals(2, accountSnapshot.getTransactionLogs().size());
+    for (String cryptoName : MvcController.SUPPORTED_CRYPTOCURRENCIES) {
+      assertEquals(0.5, accountSnapshot.getCryptoBalance(cryptoName));
+    }
+
+    // a login is the password lookup + the account snapshot
+    User customer1LoginFormInputs = new User();
+    customer1LoginFormInputs.setUsername(CUSTOMER1_ID);
+    customer1LoginFormInputs.setPassword(CUSTOMER1_PASSWORD);
+    queryCountingJdbcTemplate.resetNumQueriesExecuted();
+    String responsePage = queryCountingController.submitLoginForm(customer1LoginFormInputs);
+    assertEquals("account_info", responsePage);
+    assertEquals(6, queryCountingJdbcTemplate.getNumQueriesExecuted());
+    assertEquals(0.5, customer1LoginFormInputs.getEthBalance());
+    assertEquals(0.5, customer1LoginFormInputs.getSolBalance());
+  }
+
+  /**
+   * Verifies that repeated balance reads for the same customer are served from the account state cache,
+   * and that the repository's balance writes keep the cached entry up to date.
+   *
+   * @throws ScriptException
+   */
+  @Test
+  public void testAccountStateCacheServesRepeatedReads() throws ScriptException {
+    int CUSTOMER1_BALANCE_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(1000);
+    int DEPOSIT_AMOUNT_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(50);
+    int CUSTOMER1_OVERDRAFT_BALANCE_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(10);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, CUSTOMER1_BALANCE_IN_PENNIES);
+
+    QueryCountingJdbcTemplate queryCountingJdbcTemplate = new QueryCountingJdbcTemplate(jdbcTemplate.getDataSource());
+    long numCacheHitsBefore = TestudoBankRepository.getAccountStateCache().stats().hitCount();
+
+    // only the first read of the customer's account state should reach the DB
+    assertEquals(CUSTOMER1_BALANCE_IN_PENNIES, TestudoBankRepository.getCustomerCashBalanceInPennies(queryCountingJdbcTemplate, CUSTOMER1_ID));
+    assertEquals(0, TestudoBankRepository.getCustomerOverdraftBalanceInPennies(queryCountingJdbcTemplate, CUSTOMER1_ID));
+    assertEquals(0, TestudoBankRepository.getCustomerNumberOfReversals(queryCountingJdbcTemplate, CUSTOMER1_ID));
+    assertEquals(1, queryCountingJdbcTemplate.getNumQueriesExecuted());
+    assertEquals(numCacheHitsBefore + 2, TestudoBankRepository.getAccountStateCache().stats().hitCount());
+
+    // a relative update invalidates the cached entry, so the next read reloads it
+    TestudoBankRepository.increaseCustomerCashBalance(queryCountingJdbcTemplate, CUSTOMER1_ID, DEPOSIT_AMOUNT_IN_PENNIES);
+    queryCountingJdbcTemplate.resetNumQueriesExecuted();
+    assertEquals(CUSTOMER1_BALANCE_IN_PENNIES + DEPOSIT_AMOUNT_IN_PENNIES, TestudoBankRepository.getCustomerCashBalanceInPennies(queryCountingJdbcTemplate, CUSTOMER1_ID));
+    assertEquals(1, queryCountingJdbcTemplate.getNumQueriesExecuted());
+
+    // an absolute update is written through to the cached entry, so the next read doesn't reach the DB
+    TestudoBankRepository.setCustomerOverdraftBalance(queryCountingJdbcTemplate, CUSTOMER1_ID, CUSTOMER1_OVERDRAFT_BALANCE_IN_PENNIES);
+    queryCountingJdbcTemplate.resetNumQueriesExecuted();
+    assertEquals(CUSTOMER1_OVERDRAFT_BALANCE_IN_PENNIES, TestudoBankRepository.getCustomerOverdraftBalanceInPennies(queryCountingJdbcTemplate, CUSTOMER1_ID));
+    assertEquals(0, queryCountingJdbcTemplate.getNumQueriesExecuted());
+
+    // bypassing the cache always reads from the DB
+    assertEquals(CUSTOMER1_OVERDRAFT_BALANCE_IN_PENNIES, TestudoBankRepository.getCustomerAccountState(queryCountingJdbcTemplate, CUSTOMER1_ID, true).getOverdraftBalanceInPennies());
+    assertEquals(1, queryCountingJdbcTemplate.getNumQueriesExecuted());
+  }
+
+  /**
+   * Verifies that a deposit leaves the account state it committed in the cache, so reading the account right after
+   * writing to it doesn't reach the DB, even if the account wasn't cached before the deposit.
+   *
+   * @throws ScriptException
+   */
+  @Test
+  public void testAccountStateCacheHitAfterDeposit() throws ScriptException {
+    int CUSTOMER1_BALANCE_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(1000);
+    double CUSTOMER1_AMOUNT_TO_DEPOSIT = 50;
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, CUSTOMER1_BALANCE_IN_PENNIES);
+
+    User customer1DepositFormInputs = new User();
+    customer1DepositFormInputs.setUsername(CUSTOMER1_ID);
+    customer1DepositFormInputs.setPassword(CUSTOMER1_PASSWORD);
+    customer1DepositFormInputs.setAmountToDeposit(CUSTOMER1_AMOUNT_TO_DEPOSIT);
+    controller.submitDeposit(customer1DepositFormInputs, null);
+
+    QueryCountingJdbcTemplate queryCountingJdbcTemplate = new QueryCountingJdbcTemplate(jdbcTemplate.getDataSource());
+    long numCacheHitsBefore = TestudoBankRepository.getAccountStateCache().stats().hitCount();
+    int expectedBalanceInPennies = CUSTOMER1_BALANCE_IN_PENNIES + MvcControllerIntegTestHelpers.convertDollarsToPennies(CUSTOMER1_AMOUNT_TO_DEPOSIT);
+    assertEquals(expectedBalanceInPennies, TestudoBankRepository.getCustomerCashBalanceInPennies(queryCountingJdbcTemplate, CUSTOMER1_ID));
+    assertEquals(0, queryCountingJdbcTemplate.getNumQueriesExecuted());
+    assertEquals(numCacheHitsBefore + 1, TestudoBankRepository.getAccountStateCache().stats().hitCount());
+
+    // the cached state is the committed one
+    assertEquals(expectedBalanceInPennies, TestudoBankRepository.getCustomerAccountState(queryCountingJdbcTemplate, CUSTOMER1_ID, true).getBalanceInPennies());
+  }
+
+  /**
+   * Verifies that a successful login issues a session token, and that later requests carrying the token
+   * are authenticated without querying the Passwords table.
+   * 
+   * Also verifies that a token can't be used to act on another customer's account.
+   *
+   * @throws ScriptException
+   */
+  @Test
+  public void testSessionTokenSkipsPasswordQuery() throws ScriptException {
+    int CUSTOMER1_BALANCE_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(1000);
+    int CUSTOMER2_BALANCE_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(500);
+    double DEPOSIT_AMOUNT = 10;
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, CUSTOMER1_BALANCE_IN_PENNIES);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, CUSTOMER2_BALANCE_IN_PENNIES);
+
+    QueryCountingJdbcTemplate queryCountingJdbcTemplate = new QueryCountingJdbcTemplate(jdbcTemplate.getDataSource());
+    MvcController queryCountingController = new MvcController(queryCountingJdbcTemplate, cryptoPriceClient);
+
+    // log in to get a session token
+    User customer1LoginFormInputs = new User();
+    customer1LoginFormInputs.setUsername(CUSTOMER1_ID);
+    customer1LoginFormInputs.setPassword(CUSTOMER1_PASSWORD);
+    assertEquals("account_info", queryCountingController.submitLoginForm(customer1LoginFormInputs));
+    String sessionToken = customer1LoginFormInputs.getSessionToken();
+    assertTrue(sessionToken != null && !sessionToken.isEmpty());
+
+    // deposit with the password
+    User customer1PasswordDepositFormInputs = new User();
+    customer1PasswordDepositFormInputs.setUsername(CUSTOMER1_ID);
+    customer1PasswordDepositFormInputs.setPassword(CUSTOMER1_PASSWORD);
+    customer1PasswordDepositFormInputs.setAmountToDeposit(DEPOSIT_AMOUNT);
+    queryCountingJdbcTemplate.resetNumQueriesExecuted();
+    assertEquals("account_info", queryCountingController.submitDeposit(customer1PasswordDepositFormInputs));
+    int numQueriesWithPassword = queryCountingJdbcTemplate.getNumQueriesExecuted();
+
+    // deposit with the session token and no password
+    User customer1TokenDepositFormInputs = new User();
+    customer1TokenDepositFormInputs.setUsername(CUSTOMER1_ID);
+    customer1TokenDepositFormInputs.setSessionToken(sessionToken);
+    customer1TokenDepositFormInputs.setAmountToDeposit(DEPOSIT_AMOUNT);
+    queryCountingJdbcTemplate.resetNumQueriesExecuted();
+    assertEquals("account_info", queryCountingController.submitDeposit(customer1TokenDepositFormInputs));
+    int numQueriesWithSessionToken = queryCountingJdbcTemplate.getNumQueriesExecuted();
+
+    // the only difference should be the password lookup
+    assertEquals(numQueriesWithPassword - 1, numQueriesWithSessionToken);
+    int expectedCustomer1BalanceInPennies = CUSTOMER1_BALANCE_IN_PENNIES + 2 * MvcControllerIntegTestHelpers.convertDollarsToPennies(DEPOSIT_AMOUNT);
+    assertEquals(expectedCustomer1BalanceInPennies, (int) jdbcTemplate.queryForObject("SELECT Balance FROM Customers WHERE CustomerID=?;", Integer.class, CUSTOMER1_ID));
+
+    // customer1's token should not authenticate a withdraw from customer2's account
+    User customer2WithdrawFormInputs = new User();
+    customer2WithdrawFormInputs.setUsername(CUSTOMER2_ID);
+    customer2WithdrawFormInputs.setSessionToken(sessionToken);
+    customer2WithdrawFormInputs.setAmountToWithdraw(DEPOSIT_AMOUNT);
+    assertEquals("welcome", queryCountingController.submitWithdraw(customer2WithdrawFormInputs));
+    assertEquals(CUSTOMER2_BALANCE_IN_PENNIES, (int) jdbcTemplate.queryForObject("SELECT Balance FROM Customers WHERE CustomerID=?;", Integer.class, CUSTOMER2_ID));
+  }
+
+  /**
+   * Verifies that HTML forms carry the session's CSRF token instead of the session token, that the session token cookie
+   * only authenticates a form that carries it, and that logging out revokes the session.
+   *
+   * @throws ScriptException
+   */
+  @Test
+  public void testFormsAuthenticatedByCookieWithCsrfToken() throws ScriptException {
+    int CUSTOMER1_BALANCE_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(1000);
+    double DEPOSIT_AMOUNT = 10;
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, CUSTOMER1_BALANCE_IN_PENNIES);
+
+    // log in to get the session token cookie
+    User customer1LoginFormInputs = new User();
+    customer1LoginFormInputs.setUsername(CUSTOMER1_ID);
+    customer1LoginFormInputs.setPassword(CUSTOMER1_PASSWORD);
+    MockHttpServletResponse loginResponse = new MockHttpServletResponse();
+    assertEquals("account_info", controller.submitLoginForm(customer1LoginFormInputs, loginResponse));
+    String sessionToken = loginResponse.getCookie(MvcController.SESSION_TOKEN_COOKIE_NAME).getValue();
+
+    // the deposit form carries the CSRF token, and never the session token
+    ExtendedModelMap model = new ExtendedModelMap();
+    assertEquals("deposit_form", controller.showDepositForm(model, sessionToken));
+    User customer1DepositFormInputs = (User) model.get("user");
+    assertEquals(null, customer1DepositFormInputs.getSessionToken());
+    assertTrue(customer1DepositFormInputs.getCsrfToken() != null && !customer1DepositFormInputs.getCsrfToken().equals(sessionToken));
+
+    // the cookie authenticates the submitted form, without a password
+    customer1DepositFormInputs.setUsername(CUSTOMER1_ID);
+    customer1DepositFormInputs.setAmountToDeposit(DEPOSIT_AMOUNT);
+    assertEquals("account_info", controller.submitDeposit(customer1DepositFormInputs, sessionToken));
+    int expectedCustomer1BalanceInPennies = CUSTOMER1_BALANCE_IN_PENNIES + MvcControllerIntegTestHelpers.convertDollarsToPennies(DEPOSIT_AMOUNT);
+    assertEquals(expectedCustomer1BalanceInPennies, (int) jdbcTemplate.queryForObject("SELECT Balance FROM Customers WHERE CustomerID=?;", Integer.class, CUSTOMER1_ID));
+
+    // a form posted from another site sends the cookie, but can't carry the CSRF token
+    User forgedWithdrawFormInputs = new User();
+    forgedWithdrawFormInputs.setUsername(CUSTOMER1_ID);
+    forgedWithdrawFormInputs.setAmountToWithdraw(DEPOSIT_AMOUNT);
+    assertEquals("welcome", controller.submitWithdraw(forgedWithdrawFormInputs, sessionToken));
+
+    // after logging out, neither the cookie nor the CSRF token authenticate anything
+    MockHttpServletResponse logoutResponse = new MockHttpServletResponse();
+    assertEquals("welcome", controller.logout(sessionToken, logoutResponse));
+    assertEquals(0, logoutResponse.getCookie(MvcController.SESSION_TOKEN_COOKIE_NAME).getMaxAge());
+    User customer1WithdrawFormInputs = new User();
+    customer1WithdrawFormInputs.setUsername(CUSTOMER1_ID);
+    customer1WithdrawFormInputs.setCsrfToken(customer1DepositFormInputs.getCsrfToken());
+    customer1WithdrawFormInputs.setAmountToWithdraw(DEPOSIT_AMOUNT);
+    assertEquals("welcome", controller.submitWithdraw(customer1WithdrawFormInputs, sessionToken));
+    assertEquals(expectedCustomer1BalanceInPennies, (int) jdbcTemplate.queryForObject("SELECT Balance FROM Customers WHERE CustomerID=?;", Integer.class, CUSTOMER1_ID));
+  }
+
+  /**
+   * Verifies that the JSON API logs in, deposits, and reads the account summary without rendering the "account_info" page,
+   * so a JSON deposit costs at least the 5 account snapshot queries fewer than an HTML deposit.
+   *
+   * @throws ScriptException
+   */
+  @Test
+  public void testApiDepositSkipsAccountInfoRender() throws ScriptException {
+    int CUSTOMER1_BALANCE_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(1000);
+    double DEPOSIT_AMOUNT = 10;
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, CUSTOMER1_BALANCE_IN_PENNIES);
+
+    QueryCountingJdbcTemplate queryCountingJdbcTemplate = new QueryCountingJdbcTemplate(jdbcTemplate.getDataSource());
+    MvcController queryCountingController = new MvcController(queryCountingJdbcTemplate, cryptoPriceClient);
+
+    // log in through the API, which only looks up the password
+    User customer1LoginRequest = new User();
+    customer1LoginRequest.setUsername(CUSTOMER1_ID);
+    customer1LoginRequest.setPassword(CUSTOMER1_PASSWORD);
+    MockHttpServletResponse loginResponse = new MockHttpServletResponse();
+    ResponseEntity<ApiLoginResult> loginResult = queryCountingController.submitApiLogin(customer1LoginRequest, loginResponse);
+    assertEquals(HttpStatus.OK, loginResult.getStatusCode());
+    String sessionToken = loginResult.getBody().getSessionToken();
+    assertEquals(sessionToken, loginResponse.getCookie(MvcController.SESSION_TOKEN_COOKIE_NAME).getValue());
+
+    // deposit through the HTML form handler
+    User customer1DepositFormInputs = new User();
+    customer1DepositFormInputs.setUsername(CUSTOMER1_ID);
+    customer1DepositFormInputs.setSessionToken(sessionToken);
+    customer1DepositFormInputs.setAmountToDeposit(DEPOSIT_AMOUNT);
+    queryCountingJdbcTemplate.resetNumQueriesExecuted();
+    assertEquals("account_info", queryCountingController.submitDeposit(customer1DepositFormInputs));
+    int numQueriesWithHtml = queryCountingJdbcTemplate.getNumQueriesExecuted();
+
+    // deposit through the API, with the session token cookie and no username
+    User customer1DepositRequest = new User();
+    customer1DepositRequest.setAmountToDeposit(DEPOSIT_AMOUNT);
+    queryCountingJdbcTemplate.resetNumQueriesExecuted();
+    ResponseEntity<BalanceResult> depositResult = queryCountingController.submitApiDeposit(customer1DepositRequest, sessionToken);
+    int numQueriesWithApi = queryCountingJdbcTemplate.getNumQueriesExecuted();
+
+    int expectedCustomer1BalanceInPennies = CUSTOMER1_BALANCE_IN_PENNIES + 2 * MvcControllerIntegTestHelpers.convertDollarsToPennies(DEPOSIT_AMOUNT);
+    assertEquals(HttpStatus.OK, depositResult.getStatusCode());
+    assertEquals(expectedCustomer1BalanceInPennies, depositResult.getBody().getBalanceInPennies());
+    assertEquals(0, depositResult.getBody().getOverdraftBalanceInPennies());
+    assertTrue(numQueriesWithApi <= numQueriesWithHtml - 5, "JSON deposit took " + numQueriesWithApi + " queries, HTML deposit took " + numQueriesWithHtml);
+
+    // the account summary is a single query
+    TestudoBankRepository.getAccountStateCache().invalidateAll();
+    queryCountingJdbcTemplate.resetNumQueriesExecuted();
+    ResponseEntity<AccountSummary> accountSummary = queryCountingController.getAccountSummary(sessionToken);
+    assertEquals(1, queryCountingJdbcTemplate.getNumQueriesExecuted());
+    assertEquals(CUSTOMER1_FIRST_NAME, accountSummary.getBody().getFirstName());
+    assertEquals(expectedCustomer1BalanceInPennies, accountSummary.getBody().getBalanceInPennies());
+    assertTrue(accountSummary.getBody().getCryptoHoldings().isEmpty());
+  }
+
+  /**
+   * Verifies that the JSON API answers unauthenticated requests with 401 and rejected operations with 422,
+   * without changing the customer's balance.
+   *
+   * @throws ScriptException
+   */
+  @Test
+  public void testApiRejectsUnauthenticatedAndInvalidRequests() throws ScriptException {
+    int CUSTOMER1_BALANCE_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(1000);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, CUSTOMER1_BALANCE_IN_PENNIES);
+
+    // wrong password
+    User customer1LoginRequest = new User();
+    customer1LoginRequest.setUsername(CUSTOMER1_ID);
+    customer1LoginRequest.setPassword("wrong" + CUSTOMER1_PASSWORD);
+    assertEquals(HttpStatus.UNAUTHORIZED, controller.submitApiLogin(customer1LoginRequest, new MockHttpServletResponse()).getStatusCode());
+
+    // no credentials at all
+    User customer1WithdrawRequest = new User();
+    customer1WithdrawRequest.setAmountToWithdraw(10);
+    assertEquals(HttpStatus.UNAUTHORIZED, controller.submitApiWithdraw(customer1WithdrawRequest, null).getStatusCode());
+    assertEquals(HttpStatus.UNAUTHORIZED, controller.getAccountSummary(null).getStatusCode());
+
+    // a withdraw past the overdraft limit is rejected
+    User customer1OverdraftWithdrawRequest = new User();
+    customer1OverdraftWithdrawRequest.setUsername(CUSTOMER1_ID);
+    customer1OverdraftWithdrawRequest.setPassword(CUSTOMER1_PASSWORD);
+    customer1OverdraftWithdrawRequest.setAmountToWithdraw(10000);
+    assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, controller.submitApiWithdraw(customer1OverdraftWithdrawRequest, null).getStatusCode());
+
+    // a transfer with no recipient is rejected
+    User customer1TransferRequest = new User();
+    customer1TransferRequest.setUsername(CUSTOMER1_ID);
+    customer1TransferRequest.setPassword(CUSTOMER1_PASSWORD);
+    customer1TransferRequest.setAmountToTransfer(10);
+    assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, controller.submitApiTransfer(customer1TransferRequest, null).getStatusCode());
+
+    assertEquals(CUSTOMER1_BALANCE_IN_PENNIES, (int) jdbcTemplate.queryForObject("SELECT Balance FROM Customers WHERE CustomerID=?;", Integer.class, CUSTOMER1_ID));
+  }
+
+  /**
+   * Verifies that every JDBC statement is timed under the repository method that issued it,
+   * and that operation outcomes are counted by rejection reason.
+   *
+   * @throws ScriptException
+   */
+  @Test
+  public void testMetricsTagRepositoryMethodsAndRejectionReasons() throws ScriptException {
+    int CUSTOMER1_BALANCE_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(1000);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, CUSTOMER1_BALANCE_IN_PENNIES);
+
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    MeteredJdbcTemplate meteredJdbcTemplate = new MeteredJdbcTemplate(jdbcTemplate.getDataSource(), meterRegistry);
+    MvcController meteredController = new MvcController(meteredJdbcTemplate, cryptoPriceClient, 0, meterRegistry);
+
+    // wrong password, then a withdraw past the overdraft limit, then a valid deposit
+    User customer1FormInputs = new User();
+    customer1FormInputs.setUsername(CUSTOMER1_ID);
+    customer1FormInputs.setPassword("wrong" + CUSTOMER1_PASSWORD);
+    customer1FormInputs.setAmountToWithdraw(10000);
+    customer1FormInputs.setAmountToDeposit(10);
+    assertEquals("welcome", meteredController.submitWithdraw(customer1FormInputs));
+    customer1FormInputs.setPassword(CUSTOMER1_PASSWORD);
+    assertEquals("welcome", meteredController.submitWithdraw(customer1FormInputs));
+    assertEquals("account_info", meteredController.submitDeposit(customer1FormInputs));
+
+    assertEquals(1, meterRegistry.get(MvcController.OPERATION_OUTCOMES_METRIC).tags("operation", "withdraw", "outcome", "bad_credentials").counter().count());
+    assertEquals(1, meterRegistry.get(MvcController.OPERATION_OUTCOMES_METRIC).tags("operation", "withdraw", "outcome", "overdraft_limit").counter().count());
+    assertEquals(1, meterRegistry.get(MvcController.OPERATION_OUTCOMES_METRIC).tags("operation", "deposit", "outcome", "success").counter().count());
+
+    // every password check is one query under getCustomerPassword, and the balance update is timed under its own method
+    assertEquals(3, meterRegistry.get(MeteredJdbcTemplate.METRIC_NAME).tag("method", "getCustomerPassword").timer().count());
+    assertTrue(meterRegistry.get(MeteredJdbcTemplate.METRIC_NAME).tag("method", "compareAndSetCustomerBalances").timer().count() >= 1);
+  }
+
   /**
    * Enum for {@link CryptoTransactionTester}
    */
@@ -1244,17 +1792,18 @@ public void testTransferPaysOverdraftAndDepositsRemainder() throws SQLException,
 
 
       // Mock the price of the cryptocurrency
-      Mockito.when(cryptoPriceClient.getCurrentCryptoValue(transaction.cryptoName)).thenReturn(transaction.cryptoPrice);
+      CryptoPriceSnapshot cryptoPrices = new CryptoPriceSnapshot(Collections.singletonMap(transaction.cryptoName, transaction.cryptoPrice), Instant.now());
+      Mockito.when(cryptoPriceClient.getPriceSnapshot()).thenReturn(cryptoPrices);
 
       // attempt transaction
       LocalDateTime cryptoTransactionTime = MvcControllerIntegTestHelpers.fetchCurrentTimeAsLocalDateTimeNoMilliseconds();
       String returnedPage;
       if (transaction.cryptoTransactionTestType == CryptoTransactionTestType.BUY) {
         user.setAmountToBuyCrypto(transaction.cryptoAmountToTransact);
-        returnedPage = controller.buyCrypto(user);
+        returnedPage = controller.buyCrypto(user, null);
       } else {
         user.setAmountToSellCrypto(transaction.cryptoAmountToTransact);
-        returnedPage = controller.sellCrypto(user);
+        returnedPage = controller.sellCrypto(user, null);
       }
 
       // check the crypto balance
@@ -1578,4 +2127,51 @@ public void testTransferPaysOverdraftAndDepositsRemainder() throws SQLException,
     cryptoTransactionTester.test(cryptoTransaction);
   }
 
+  /**
+   * Verifies that a price refresh loads every customer's holdings into the valuation engine, and that crypto buys and sells
+   * keep the account page's crypto balance and the bank-wide exposure up to date.
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testCryptoValuationFollowsPriceRefreshesAndTrades() throws ScriptException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 100000);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, 0);
+    MvcControllerIntegTestHelpers.setCryptoBalance(dbDelegate, CUSTOMER1_ID, "ETH", 1);
+    MvcControllerIntegTestHelpers.setCryptoBalance(dbDelegate, CUSTOMER2_ID, "SOL", 2);
+
+    // a controller of its own, so that the holdings are loaded from this test's DB
+    CryptoPriceClient refreshingPriceClient = Mockito.mock(CryptoPriceClient.class);
+    MvcController valuingController = new MvcController(jdbcTemplate, refreshingPriceClient);
+    ArgumentCaptor<Consumer<CryptoPriceSnapshot>> refreshListener = ArgumentCaptor.forClass(Consumer.class);
+    Mockito.verify(refreshingPriceClient).addRefreshListener(refreshListener.capture());
+
+    Map<String, Double> prices = new HashMap<>();
+    prices.put("ETH", 100.0);
+    prices.put("SOL", 10.0);
+    CryptoPriceSnapshot cryptoPrices = new CryptoPriceSnapshot(prices, Instant.now());
+    Mockito.when(refreshingPriceClient.getPriceSnapshot()).thenReturn(cryptoPrices);
+    refreshListener.getValue().accept(cryptoPrices);
+
+    CryptoExposure exposure = valuingController.getCryptoValuationEngine().getExposure();
+    assertEquals(2, exposure.getNumCustomers());
+    assertEquals(120, exposure.getTotalValueInDollars(), 1e-6);
+
+    User user = new User();
+    user.setUsername(CUSTOMER1_ID);
+    user.setPassword(CUSTOMER1_PASSWORD);
+    user.setWhichCryptoToBuy("ETH");
+    user.setAmountToBuyCrypto(2);
+    assertEquals("account_info", valuingController.buyCrypto(user));
+    assertEquals(300, user.getCryptoBalanceUSD(), 1e-6);
+
+    user.setAmountToSellCrypto(0.5);
+    assertEquals("account_info", valuingController.sellCrypto(user));
+    assertEquals(250, user.getCryptoBalanceUSD(), 1e-6);
+
+    exposure = valuingController.getCryptoValuationEngine().getExposure();
+    assertEquals(2.5, exposure.getCryptoAmounts().get("ETH"), 1e-6);
+    assertEquals(2, exposure.getCryptoAmounts().get("SOL"), 1e-6);
+    assertEquals(270, exposure.getTotalValueInDollars(), 1e-6);
+  }
+
 }
\ No newline at end of file
@@ -0,0 +1,70 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+import net.testudobank.OptimisticRetryPolicy;
+
+public class OptimisticRetryPolicyTest {
+  private static int MAX_ATTEMPTS = 3;
+  private static Duration BASE_BACKOFF = Duration.ofMillis(1);
+  private static Duration MAX_BACKOFF = Duration.ofMillis(5);
+
+  private final OptimisticRetryPolicy retryPolicy = new OptimisticRetryPolicy(MAX_ATTEMPTS, BASE_BACKOFF, MAX_BACKOFF);
+
+  /**
+   * Verifies that an operation is re-run after a conflict, and that the conflict and retry are counted.
+   */
+  @Test
+  public void testConflictIsRetried() {
+    AtomicInteger numAttempts = new AtomicInteger();
+    String result = retryPolicy.call(() -> {
+      if (numAttempts.incrementAndGet() == 1) {
+        throw new OptimisticLockingFailureException("conflict");
+      }
+      return "done";
+    });
+
+    assertEquals("done", result);
+    assertEquals(2, numAttempts.get());
+    assertEquals(1, retryPolicy.getNumConflicts());
+    assertEquals(1, retryPolicy.getNumRetries());
+  }
+
+  /**
+   * Verifies that the conflict is rethrown once every attempt has conflicted.
+   */
+  @Test
+  public void testConflictIsRethrownAfterMaxAttempts() {
+    AtomicInteger numAttempts = new AtomicInteger();
+    assertThrows(OptimisticLockingFailureException.class, () -> retryPolicy.execute(() -> {
+      numAttempts.incrementAndGet();
+      throw new OptimisticLockingFailureException("conflict");
+    }));
+
+    assertEquals(MAX_ATTEMPTS, numAttempts.get());
+    assertEquals(MAX_ATTEMPTS, retryPolicy.getNumConflicts());
+    assertEquals(MAX_ATTEMPTS - 1, retryPolicy.getNumRetries());
+  }
+
+  /**
+   * Verifies that any other exception is not retried.
+   */
+  @Test
+  public void testOtherExceptionsAreNotRetried() {
+    AtomicInteger numAttempts = new AtomicInteger();
+    assertThrows(IllegalStateException.class, () -> retryPolicy.execute(() -> {
+      numAttempts.incrementAndGet();
+      throw new IllegalStateException();
+    }));
+
+    assertEquals(1, numAttempts.get());
+    assertEquals(0, retryPolicy.getNumConflicts());
+  }
+}
@@ -0,0 +1,106 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.testudobank.MeteredJdbcTemplate;
+import net.testudobank.QueryBudget;
+import net.testudobank.QueryBudgetInterceptor;
+import net.testudobank.QueryBudgetInterceptor.QueryBudgetExceededException;
+import net.testudobank.RequestQueryStats;
+
+public class QueryBudgetInterceptorTest {
+  private static int QUERY_BUDGET = 2;
+  private static int MAX_REPEATED_STATEMENTS = 2;
+  private static String SQL = "UPDATE Customers SET Balance = Balance + 1 WHERE CustomerID = '123456789'";
+
+  private JdbcTemplate jdbcTemplate;
+
+  /**
+   * Handler that sends the same statement a given number of times.
+   */
+  public static class Handler {
+    private final JdbcTemplate jdbcTemplate;
+
+    public Handler(JdbcTemplate jdbcTemplate) {
+      this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @QueryBudget(2)
+    public String sendStatements(int numStatements) {
+      for (int i = 0; i < numStatements; i++) {
+        jdbcTemplate.update(SQL);
+      }
+      return "welcome";
+    }
+  }
+
+  @BeforeEach
+  public void init() throws SQLException {
+    DataSource dataSource = Mockito.mock(DataSource.class);
+    Connection connection = Mockito.mock(Connection.class);
+    Mockito.when(dataSource.getConnection()).thenReturn(connection);
+    Mockito.when(connection.createStatement()).thenAnswer(invocation -> Mockito.mock(Statement.class));
+    jdbcTemplate = new MeteredJdbcTemplate(dataSource, new SimpleMeterRegistry());
+  }
+
+  /**
+   * Verifies that a handler within its budget returns normally, and one over it fails in test mode.
+   */
+  @Test
+  public void testOverBudgetFailsInTestMode() {
+    Handler handler = new QueryBudgetInterceptor(MAX_REPEATED_STATEMENTS, true).enforce(new Handler(jdbcTemplate));
+
+    assertEquals("welcome", handler.sendStatements(QUERY_BUDGET));
+    assertThrows(QueryBudgetExceededException.class, () -> handler.sendStatements(QUERY_BUDGET + 1));
+    // the failed handler's stats don't leak into the next request on this thread
+    assertEquals("welcome", handler.sendStatements(QUERY_BUDGET));
+  }
+
+  /**
+   * Verifies that going over the budget is only logged outside of test mode.
+   */
+  @Test
+  public void testOverBudgetIsLoggedOutsideTestMode() {
+    Handler handler = new QueryBudgetInterceptor(MAX_REPEATED_STATEMENTS, false).enforce(new Handler(jdbcTemplate));
+
+    assertEquals("welcome", handler.sendStatements(QUERY_BUDGET + 1));
+  }
+
+  /**
+   * Verifies that statements are counted per SQL string, and only while stats are started on the current thread.
+   */
+  @Test
+  public void testRepeatedStatementsAreCounted() {
+    jdbcTemplate.update(SQL);
+
+    RequestQueryStats stats = RequestQueryStats.start().get();
+    try {
+      for (int i = 0; i < MAX_REPEATED_STATEMENTS + 1; i++) {
+        jdbcTemplate.update(SQL);
+      }
+      jdbcTemplate.update("DELETE FROM Customers");
+      // a nested handler counts against the stats already started
+      assertFalse(RequestQueryStats.start().isPresent());
+    } finally {
+      RequestQueryStats.finish();
+    }
+
+    assertEquals(MAX_REPEATED_STATEMENTS + 2, stats.getNumStatements());
+    assertEquals(Collections.singletonMap(SQL, MAX_REPEATED_STATEMENTS + 1), stats.getRepeatedStatements(MAX_REPEATED_STATEMENTS));
+  }
+}
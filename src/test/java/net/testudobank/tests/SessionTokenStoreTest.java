@@ -0,0 +1,102 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import net.testudobank.SessionTokenStore;
+
+public class SessionTokenStoreTest {
+  private static String CUSTOMER1_ID = "123456789";
+  private static String CUSTOMER2_ID = "987654321";
+  private static Duration TTL = Duration.ofMinutes(15);
+
+  // fake clock for the store, in nanoseconds
+  private final AtomicLong currentTimeInNanos = new AtomicLong();
+  private final SessionTokenStore sessionTokenStore = new SessionTokenStore(TTL, currentTimeInNanos::get);
+
+  /**
+   * Verifies that each issued token maps back to the customer it was issued to, and that tokens are unique.
+   */
+  @Test
+  public void testIssueAndValidate() {
+    String customer1Token = sessionTokenStore.issue(CUSTOMER1_ID);
+    String customer2Token = sessionTokenStore.issue(CUSTOMER2_ID);
+
+    assertNotEquals(customer1Token, customer2Token);
+    assertEquals(Optional.of(CUSTOMER1_ID), sessionTokenStore.validate(customer1Token));
+    assertEquals(Optional.of(CUSTOMER2_ID), sessionTokenStore.validate(customer2Token));
+    assertFalse(sessionTokenStore.validate("not-a-token").isPresent());
+    assertFalse(sessionTokenStore.validate(null).isPresent());
+  }
+
+  /**
+   * Verifies that a token expires after the TTL passes with no activity.
+   */
+  @Test
+  public void testTokenExpiresAfterTTL() {
+    String customer1Token = sessionTokenStore.issue(CUSTOMER1_ID);
+
+    advanceTime(TTL.plusSeconds(1));
+
+    assertFalse(sessionTokenStore.validate(customer1Token).isPresent());
+  }
+
+  /**
+   * Verifies that validating a token extends its expiry, so an active session outlives the TTL.
+   */
+  @Test
+  public void testValidateExtendsExpiry() {
+    String customer1Token = sessionTokenStore.issue(CUSTOMER1_ID);
+
+    // use the session every 10 minutes for 30 minutes, which is longer than the 15 minute TTL
+    for (int i = 0; i < 3; i++) {
+      advanceTime(Duration.ofMinutes(10));
+      assertEquals(Optional.of(CUSTOMER1_ID), sessionTokenStore.validate(customer1Token));
+    }
+  }
+
+  /**
+   * Verifies that a revoked token can no longer be used.
+   */
+  @Test
+  public void testRevoke() {
+    String customer1Token = sessionTokenStore.issue(CUSTOMER1_ID);
+
+    sessionTokenStore.revoke(customer1Token);
+
+    assertFalse(sessionTokenStore.validate(customer1Token).isPresent());
+  }
+
+  /**
+   * Verifies that each session has its own CSRF token, and that only that token is accepted with the session.
+   */
+  @Test
+  public void testCsrfToken() {
+    String customer1Token = sessionTokenStore.issue(CUSTOMER1_ID);
+    String customer2Token = sessionTokenStore.issue(CUSTOMER2_ID);
+    String customer1CsrfToken = sessionTokenStore.getCsrfToken(customer1Token).get();
+
+    assertNotEquals(customer1Token, customer1CsrfToken);
+    assertTrue(sessionTokenStore.isValidCsrfToken(customer1Token, customer1CsrfToken));
+    assertFalse(sessionTokenStore.isValidCsrfToken(customer2Token, customer1CsrfToken));
+    assertFalse(sessionTokenStore.isValidCsrfToken(customer1Token, null));
+    assertFalse(sessionTokenStore.isValidCsrfToken(null, customer1CsrfToken));
+
+    sessionTokenStore.revoke(customer1Token);
+    assertFalse(sessionTokenStore.getCsrfToken(customer1Token).isPresent());
+    assertFalse(sessionTokenStore.isValidCsrfToken(customer1Token, customer1CsrfToken));
+  }
+
+  private void advanceTime(Duration duration) {
+    currentTimeInNanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(duration.toMillis()));
+  }
+}
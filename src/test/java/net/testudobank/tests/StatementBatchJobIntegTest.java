@@ -0,0 +1,162 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.script.ScriptException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.delegate.DatabaseDelegate;
+import org.testcontainers.ext.ScriptUtils;
+import org.testcontainers.jdbc.JdbcDatabaseDelegate;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import net.testudobank.MvcController;
+import net.testudobank.StatementBatchJob;
+import net.testudobank.StatementBatchJob.BatchResult;
+import net.testudobank.TestudoBankRepository;
+import net.testudobank.helpers.MvcControllerIntegTestHelpers;
+
+@Testcontainers
+public class StatementBatchJobIntegTest {
+  //// LITERAL CONSTANTS ////
+  private static String CUSTOMER1_ID = "123456789";
+  private static String CUSTOMER1_PASSWORD = "password";
+  private static String CUSTOMER1_FIRST_NAME = "Foo";
+  private static String CUSTOMER1_LAST_NAME = "Bar";
+
+  private static String CUSTOMER2_ID = "987654321";
+  private static String CUSTOMER2_PASSWORD = "password";
+  private static String CUSTOMER2_FIRST_NAME = "Foo1";
+  private static String CUSTOMER2_LAST_NAME = "Bar1";
+
+  // sorts between the two customers, but has no Customers row
+  private static String DELETED_CUSTOMER_ID = "555555555";
+
+  private static YearMonth STATEMENT_MONTH = YearMonth.of(2022, 1);
+  private static int NUM_WRITER_THREADS = 2;
+  // small enough that every stream and the writer pool block on full queues
+  private static int SMALL_QUEUE_CAPACITY = 1;
+  private static int NUM_CUSTOMERS = 200;
+  private static int NUM_DEPOSITS_PER_CUSTOMER = 3;
+
+  // Spins up small MySQL DB in local Docker container
+  @Container
+  public static MySQLContainer db = new MySQLContainer<>("mysql:5.7.37")
+    .withUsername("root")
+    .withPassword("db_password")
+    .withDatabaseName("testudo_bank");
+
+  private static JdbcTemplate jdbcTemplate;
+  private static DatabaseDelegate dbDelegate;
+
+  @TempDir
+  Path outputDir;
+
+  @BeforeAll
+  public static void init() throws SQLException {
+    dbDelegate = new JdbcDatabaseDelegate(db, "");
+    ScriptUtils.runInitScript(dbDelegate, "createDB.sql");
+    jdbcTemplate = new JdbcTemplate(MvcControllerIntegTestHelpers.dataSource(db));
+    MvcControllerIntegTestHelpers.migrateDB(jdbcTemplate.getDataSource());
+  }
+
+  @AfterEach
+  public void clearDB() throws ScriptException {
+    ScriptUtils.runInitScript(dbDelegate, "clearDB.sql");
+  }
+
+  /**
+   * Verifies that each customer's statement merges their rows of every history table in the month, in time order,
+   * and leaves out rows of other months and of customers that no longer exist.
+   */
+  @Test
+  public void testStatementsMergeEveryHistoryTable() throws ScriptException, IOException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, 0);
+
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, CUSTOMER1_ID, "2021-12-31 23:59:59", MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 100);
+    TestudoBankRepository.insertRowToCryptoLogsTable(jdbcTemplate, CUSTOMER1_ID, "ETH", MvcController.CRYPTO_HISTORY_BUY_ACTION, "2022-01-20 09:30:00", 0.1);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, CUSTOMER1_ID, "2022-01-05 10:00:00", MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 10000);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, CUSTOMER1_ID, "2022-01-10 12:00:00", MvcController.TRANSACTION_HISTORY_TRANSFER_SEND_ACTION, 2500);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, CUSTOMER2_ID, "2022-01-10 12:00:00", MvcController.TRANSACTION_HISTORY_TRANSFER_RECEIVE_ACTION, 2500);
+    TestudoBankRepository.insertRowToTransferLogsTable(jdbcTemplate, CUSTOMER1_ID, CUSTOMER2_ID, "2022-01-10 12:00:00", 2500);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, CUSTOMER2_ID, "2022-01-15 08:00:00", MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 5000);
+    TestudoBankRepository.insertRowToOverdraftLogsTable(jdbcTemplate, CUSTOMER2_ID, "2022-01-15 08:00:00", 5000, 2000, 0);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, CUSTOMER2_ID, "2022-02-01 00:00:00", MvcController.TRANSACTION_HISTORY_WITHDRAW_ACTION, 100);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, DELETED_CUSTOMER_ID, "2022-01-15 08:00:00", MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 100);
+    TestudoBankRepository.insertRowToCryptoLogsTable(jdbcTemplate, DELETED_CUSTOMER_ID, "SOL", MvcController.CRYPTO_HISTORY_SELL_ACTION, "2022-01-15 08:00:00", 2);
+
+    StatementBatchJob statementBatchJob = new StatementBatchJob(jdbcTemplate, outputDir, NUM_WRITER_THREADS, SMALL_QUEUE_CAPACITY);
+    BatchResult result = statementBatchJob.run(STATEMENT_MONTH);
+
+    assertEquals(2, result.getNumCustomers());
+    assertEquals(8, result.getNumLines());
+    assertEquals(Arrays.asList("Customer,123456789,Foo Bar",
+                               "Month,2022-01",
+                               "Section,Timestamp,Action,Amount,Details",
+                               "Transaction,2022-01-05 10:00:00,Deposit,100.00,",
+                               "Transaction,2022-01-10 12:00:00,TransferSend,25.00,",
+                               "TransferSent,2022-01-10 12:00:00,Send,25.00,To 987654321",
+                               "Crypto,2022-01-20 09:30:00,Buy,0.1,ETH"),
+                 readStatement(CUSTOMER1_ID));
+    assertEquals(Arrays.asList("Customer,987654321,Foo1 Bar1",
+                               "Month,2022-01",
+                               "Section,Timestamp,Action,Amount,Details",
+                               "Transaction,2022-01-10 12:00:00,TransferReceive,25.00,",
+                               "TransferReceived,2022-01-10 12:00:00,Receive,25.00,From 123456789",
+                               "Transaction,2022-01-15 08:00:00,Deposit,50.00,",
+                               "Overdraft,2022-01-15 08:00:00,Repayment,50.00,Overdraft 20.00 -> 0.00"),
+                 readStatement(CUSTOMER2_ID));
+    assertEquals(2, Files.list(outputDir.resolve(STATEMENT_MONTH.toString())).count());
+  }
+
+  /**
+   * Writes the statements of many customers through queues of a single row, and verifies that every customer
+   * gets exactly their own rows.
+   */
+  @Test
+  public void testManyCustomersThroughSmallQueues() throws ScriptException, IOException {
+    List<String> customerIDs = new ArrayList<>();
+    for (int customerNum = 0; customerNum < NUM_CUSTOMERS; customerNum++) {
+      String customerID = String.valueOf(100000000 + customerNum);
+      customerIDs.add(customerID);
+      MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, customerID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0);
+      for (int depositNum = 0; depositNum < NUM_DEPOSITS_PER_CUSTOMER; depositNum++) {
+        TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, customerID, "2022-01-0" + (depositNum + 1) + " 12:00:00",
+                                                                 MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, customerNum);
+      }
+    }
+
+    StatementBatchJob statementBatchJob = new StatementBatchJob(jdbcTemplate, outputDir, NUM_WRITER_THREADS, SMALL_QUEUE_CAPACITY);
+    BatchResult result = statementBatchJob.run(STATEMENT_MONTH);
+
+    assertEquals(NUM_CUSTOMERS, result.getNumCustomers());
+    assertEquals(NUM_CUSTOMERS * NUM_DEPOSITS_PER_CUSTOMER, result.getNumLines());
+    for (int customerNum = 0; customerNum < NUM_CUSTOMERS; customerNum++) {
+      List<String> statement = readStatement(customerIDs.get(customerNum));
+      assertEquals(3 + NUM_DEPOSITS_PER_CUSTOMER, statement.size());
+      assertEquals("Customer," + customerIDs.get(customerNum) + ",Foo Bar", statement.get(0));
+      String amountInDollars = String.format("%d.%02d", customerNum / 100, customerNum % 100);
+      assertEquals("Transaction,2022-01-03 12:00:00,Deposit," + amountInDollars + ",", statement.get(statement.size() - 1));
+    }
+  }
+
+  private List<String> readStatement(String customerID) throws IOException {
+    return Files.readAllLines(outputDir.resolve(STATEMENT_MONTH.toString()).resolve(customerID + ".csv"));
+  }
+}
@@ -0,0 +1,186 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.script.ScriptException;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.delegate.DatabaseDelegate;
+import org.testcontainers.ext.ScriptUtils;
+import org.testcontainers.jdbc.JdbcDatabaseDelegate;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import net.testudobank.MvcController;
+import net.testudobank.MvcController.OperationResult;
+import net.testudobank.TestudoBankRepository;
+import net.testudobank.TestudoBankRepository.LedgerEventRow;
+import net.testudobank.TestudoBankRepository.TransactionHistoryRow;
+import net.testudobank.helpers.MvcControllerIntegTestHelpers;
+import net.testudobank.helpers.QueryCountingJdbcTemplate;
+import net.testudobank.helpers.QueryCountingJdbcTemplate.RecordedQuery;
+
+/**
+ * Verifies that, after the Flyway migrations are applied, every lookup issued by
+ * {@link TestudoBankRepository} is served by a key or index instead of a full table scan.
+ */
+@Testcontainers
+public class TestudoBankRepositoryIndexIntegTest {
+  //// LITERAL CONSTANTS ////
+  private static int NUM_CUSTOMERS = 20;
+  private static int NUM_HISTORY_ROWS_PER_CUSTOMER = 5;
+  private static String CUSTOMER_PASSWORD = "password";
+  private static String TIMESTAMP_FORMAT = "2022-01-01 12:00:%02d";
+  private static String CLAIMED_IDEMPOTENCY_KEY = "claimed-key";
+  private static String DELETED_IDEMPOTENCY_KEY = "deleted-key";
+
+  // Spins up small MySQL DB in local Docker container
+  @Container
+  public static MySQLContainer db = new MySQLContainer<>("mysql:5.7.37")
+    .withUsername("root")
+    .withPassword("db_password")
+    .withDatabaseName("testudo_bank");
+
+  private static JdbcTemplate jdbcTemplate;
+  private static DatabaseDelegate dbDelegate;
+
+  // deposit of the customer under test that made an overdraft repayment and was then reversed
+  private static long disputedTransactionID;
+
+  // transfer from the customer under test that is still pending
+  private static long pendingTransferID;
+
+  @BeforeAll
+  public static void init() throws SQLException, ScriptException {
+    dbDelegate = new JdbcDatabaseDelegate(db, "");
+    ScriptUtils.runInitScript(dbDelegate, "createDB.sql");
+    jdbcTemplate = new JdbcTemplate(MvcControllerIntegTestHelpers.dataSource(db));
+    MvcControllerIntegTestHelpers.migrateDB(jdbcTemplate.getDataSource());
+
+    // Seed enough customers that a single customer's rows are a small fraction of each table,
+    // otherwise the optimizer may legitimately prefer a table scan.
+    List<LedgerEventRow> ledgerEvents = new ArrayList<>();
+    for (int customerNum = 0; customerNum < NUM_CUSTOMERS; customerNum++) {
+      String customerID = customerID(customerNum);
+      MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, customerID, CUSTOMER_PASSWORD, "First" + customerNum, "Last" + customerNum, 100000);
+      for (String cryptoName : MvcController.SUPPORTED_CRYPTOCURRENCIES) {
+        MvcControllerIntegTestHelpers.setCryptoBalance(dbDelegate, customerID, cryptoName, 1.0);
+      }
+      for (int rowNum = 0; rowNum < NUM_HISTORY_ROWS_PER_CUSTOMER; rowNum++) {
+        String timestamp = String.format(TIMESTAMP_FORMAT, rowNum);
+        TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, customerID, timestamp, MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 100);
+        TestudoBankRepository.insertRowToOverdraftLogsTable(jdbcTemplate, customerID, timestamp, 100, 200, 100);
+        TestudoBankRepository.insertRowToTransferLogsTable(jdbcTemplate, customerID, customerID((customerNum + 1) % NUM_CUSTOMERS), timestamp, 100);
+        TestudoBankRepository.insertRowToCryptoLogsTable(jdbcTemplate, customerID, "ETH", MvcController.CRYPTO_HISTORY_BUY_ACTION, timestamp, 0.1);
+        ledgerEvents.add(new LedgerEventRow(customerID, timestamp, MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 100, 0));
+      }
+      TestudoBankRepository.insertRowsToLedgerEventsTable(jdbcTemplate, ledgerEvents);
+      ledgerEvents.clear();
+      // only every other customer has a snapshot (including the customer under test), so some have events since their snapshot
+      if (customerNum % 2 == 0) {
+        TestudoBankRepository.saveBalanceSnapshot(jdbcTemplate, customerID, TestudoBankRepository.getLedgerBalance(jdbcTemplate, customerID));
+      }
+      for (String idempotencyKey : Arrays.asList(CLAIMED_IDEMPOTENCY_KEY, DELETED_IDEMPOTENCY_KEY)) {
+        TestudoBankRepository.claimIdempotencyKey(jdbcTemplate, customerID, idempotencyKey, "deposit");
+      }
+      long transferID = TestudoBankRepository.insertPendingTransfer(jdbcTemplate, customerID, customerID((customerNum + 1) % NUM_CUSTOMERS), 100,
+                                                                    new LedgerEventRow(customerID, String.format(TIMESTAMP_FORMAT, 0), MvcController.TRANSACTION_HISTORY_TRANSFER_SEND_ACTION, -100, 0));
+      if (customerNum == NUM_CUSTOMERS / 2) {
+        pendingTransferID = transferID;
+      }
+    }
+
+    // The PK and unique key lookups of the dispute queries are only explained with a key when the looked-up rows exist,
+    // otherwise MySQL reports "no matching row in const table"
+    String customerID = customerID(NUM_CUSTOMERS / 2);
+    String timestamp = String.format(TIMESTAMP_FORMAT, NUM_HISTORY_ROWS_PER_CUSTOMER);
+    disputedTransactionID = TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, customerID, timestamp, MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 100);
+    TestudoBankRepository.insertRowToOverdraftLogsTable(jdbcTemplate, customerID, timestamp, 100, 100, 0, disputedTransactionID);
+    TestudoBankRepository.insertRowsToTransactionHistoryTable(jdbcTemplate, Arrays.asList(new TransactionHistoryRow(customerID, timestamp, MvcController.TRANSACTION_HISTORY_WITHDRAW_ACTION,
+                                                                                                                    100, disputedTransactionID)));
+
+    jdbcTemplate.execute("ANALYZE TABLE Customers, Passwords, OverdraftLogs, TransactionHistory, TransferHistory, CryptoHoldings, CryptoHistory, " +
+                         "LedgerEvents, BalanceSnapshots, IdempotencyKeys, PendingTransfers;");
+  }
+
+  private static String customerID(int customerNum) {
+    return String.format("%09d", customerNum);
+  }
+
+  /**
+   * Runs every read method in {@link TestudoBankRepository}, along with the updates and deletes of idempotency keys and pending transfers,
+   * then re-runs each SQL statement it issued with EXPLAIN and verifies that no table in the plan is accessed with a full scan.
+   */
+  @Test
+  public void testRepositoryQueriesUseIndexes() {
+    QueryCountingJdbcTemplate recordingJdbcTemplate = new QueryCountingJdbcTemplate(jdbcTemplate.getDataSource());
+    String customerID = customerID(NUM_CUSTOMERS / 2);
+    String existingTimestamp = String.format(TIMESTAMP_FORMAT, 0);
+
+    TestudoBankRepository.getCustomerPassword(recordingJdbcTemplate, customerID);
+    TestudoBankRepository.getCustomerNumberOfReversals(recordingJdbcTemplate, customerID);
+    TestudoBankRepository.getCustomerCashBalanceInPennies(recordingJdbcTemplate, customerID);
+    TestudoBankRepository.getCustomerOverdraftBalanceInPennies(recordingJdbcTemplate, customerID);
+    TestudoBankRepository.getCustomerCryptoBalance(recordingJdbcTemplate, customerID, "ETH");
+    TestudoBankRepository.getRecentTransactions(recordingJdbcTemplate, customerID, 3);
+    TestudoBankRepository.getTransferLogs(recordingJdbcTemplate, customerID, 10);
+    TestudoBankRepository.getOverdraftLogs(recordingJdbcTemplate, customerID, existingTimestamp);
+    TestudoBankRepository.getAccountSnapshot(recordingJdbcTemplate, customerID, 3, 10, 10);
+
+    // first and second page of every history table, so the keyset cursor predicate is explained too
+    String transactionsCursor = TestudoBankRepository.getTransactionHistoryPage(recordingJdbcTemplate, customerID, null, 2).getNextCursor();
+    TestudoBankRepository.getTransactionHistoryPage(recordingJdbcTemplate, customerID, transactionsCursor, 2);
+    String overdraftLogsCursor = TestudoBankRepository.getOverdraftLogsPage(recordingJdbcTemplate, customerID, null, 2).getNextCursor();
+    TestudoBankRepository.getOverdraftLogsPage(recordingJdbcTemplate, customerID, overdraftLogsCursor, 2);
+    String transferLogsCursor = TestudoBankRepository.getTransferLogsPage(recordingJdbcTemplate, customerID, null, 2).getNextCursor();
+    TestudoBankRepository.getTransferLogsPage(recordingJdbcTemplate, customerID, transferLogsCursor, 2);
+    String cryptoLogsCursor = TestudoBankRepository.getCryptoLogsPage(recordingJdbcTemplate, customerID, null, 2).getNextCursor();
+    TestudoBankRepository.getCryptoLogsPage(recordingJdbcTemplate, customerID, cryptoLogsCursor, 2);
+    TestudoBankRepository.doesCustomerExist(recordingJdbcTemplate, customerID);
+
+    TestudoBankRepository.getDisputedTransaction(recordingJdbcTemplate, customerID, disputedTransactionID);
+    TestudoBankRepository.getDisputedTransactionAgo(recordingJdbcTemplate, customerID, 2);
+
+    TestudoBankRepository.getLedgerBalance(recordingJdbcTemplate, customerID);
+    TestudoBankRepository.getLastSettledLedgerEventID(recordingJdbcTemplate, customerID, 0);
+    TestudoBankRepository.getCustomersWithEventsSinceSnapshot(recordingJdbcTemplate, 1);
+
+    TestudoBankRepository.getIdempotencyKey(recordingJdbcTemplate, customerID, CLAIMED_IDEMPOTENCY_KEY);
+    TestudoBankRepository.failInProgressIdempotencyKey(recordingJdbcTemplate, customerID, CLAIMED_IDEMPOTENCY_KEY, OperationResult.FAILED.name());
+    TestudoBankRepository.setIdempotencyKeyOutcome(recordingJdbcTemplate, customerID, CLAIMED_IDEMPOTENCY_KEY, OperationResult.SUCCESS.name());
+    TestudoBankRepository.deleteIdempotencyKey(recordingJdbcTemplate, customerID, DELETED_IDEMPOTENCY_KEY);
+    // no key is this old, so nothing is deleted
+    TestudoBankRepository.deleteExpiredIdempotencyKeys(recordingJdbcTemplate, Integer.MAX_VALUE);
+
+    // no transfer has been pending this long either
+    TestudoBankRepository.getStalePendingTransfers(recordingJdbcTemplate, Integer.MAX_VALUE);
+    TestudoBankRepository.deletePendingTransfer(recordingJdbcTemplate, pendingTransferID);
+
+    List<RecordedQuery> recordedQueries = recordingJdbcTemplate.getRecordedQueries();
+    assertFalse(recordedQueries.isEmpty());
+    for (RecordedQuery recordedQuery : recordedQueries) {
+      List<Map<String,Object>> queryPlan = jdbcTemplate.queryForList("EXPLAIN " + recordedQuery.getSql(), recordedQuery.getArgs());
+      System.out.println("EXPLAIN " + recordedQuery.getSql() + " -> " + queryPlan);
+      for (Map<String,Object> queryPlanRow : queryPlan) {
+        // the temporary table that merges the branches of a UNION has no index, and doesn't need one
+        if ("UNION RESULT".equals(queryPlanRow.get("select_type"))) {
+          continue;
+        }
+        String failureMessage = recordedQuery.getSql() + " does not use an index: " + queryPlanRow;
+        assertNotEquals("ALL", queryPlanRow.get("type"), failureMessage);
+        assertNotNull(queryPlanRow.get("key"), failureMessage);
+      }
+    }
+  }
+}
@@ -0,0 +1,247 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.script.ScriptException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.delegate.DatabaseDelegate;
+import org.testcontainers.ext.ScriptUtils;
+import org.testcontainers.jdbc.JdbcDatabaseDelegate;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import net.testudobank.AccountPartitions;
+import net.testudobank.MvcController;
+import net.testudobank.TestudoBankRepository;
+import net.testudobank.TransferEngine;
+import net.testudobank.TransferEngine.TransferResult;
+import net.testudobank.helpers.MvcControllerIntegTestHelpers;
+
+@Testcontainers
+public class TransferEngineIntegTest {
+  //// LITERAL CONSTANTS ////
+  private static String CUSTOMER1_ID = "123456789";
+  private static String CUSTOMER1_PASSWORD = "password";
+  private static String CUSTOMER1_FIRST_NAME = "Foo";
+  private static String CUSTOMER1_LAST_NAME = "Bar";
+
+  private static String CUSTOMER2_ID = "987654321";
+  private static String CUSTOMER2_PASSWORD = "password";
+  private static String CUSTOMER2_FIRST_NAME = "Foo1";
+  private static String CUSTOMER2_LAST_NAME = "Bar1";
+
+  private static String TIMESTAMP = "2022-01-01 12:00:00";
+  private static int NUM_THREADS = 8;
+  private static int NUM_TRANSFERS_PER_THREAD = 25;
+  private static int NUM_ACCOUNT_PARTITIONS = 4;
+  private static long STALE_PENDING_TRANSFER_AGE_IN_SECONDS = 60;
+
+  // Spins up small MySQL DB in local Docker container
+  @Container
+  public static MySQLContainer db = new MySQLContainer<>("mysql:5.7.37")
+    .withUsername("root")
+    .withPassword("db_password")
+    .withDatabaseName("testudo_bank");
+
+  private static JdbcTemplate jdbcTemplate;
+  private static DatabaseDelegate dbDelegate;
+  private static TransferEngine transferEngine;
+  private static AccountPartitions accountPartitions;
+
+  @BeforeAll
+  public static void init() throws SQLException {
+    dbDelegate = new JdbcDatabaseDelegate(db, "");
+    ScriptUtils.runInitScript(dbDelegate, "createDB.sql");
+    jdbcTemplate = new JdbcTemplate(MvcControllerIntegTestHelpers.dataSource(db));
+    MvcControllerIntegTestHelpers.migrateDB(jdbcTemplate.getDataSource());
+    transferEngine = new TransferEngine(jdbcTemplate);
+    accountPartitions = new AccountPartitions(NUM_ACCOUNT_PARTITIONS);
+  }
+
+  @AfterEach
+  public void clearDB() throws ScriptException {
+    String clearDBSql = "clearDB.sql";
+    ScriptUtils.runInitScript(dbDelegate, clearDBSql);
+    // the cached account state of deleted customers would otherwise leak into the next test
+    TestudoBankRepository.getAccountStateCache().invalidateAll();
+  }
+
+  /**
+   * Runs many concurrent transfers in both directions (customer1 -> customer2 and customer2 -> customer1).
+   *
+   * Without a consistent lock order, opposing transfers would each lock one Customers row and wait on the other,
+   * and MySQL would abort one of them with a deadlock error. Every transfer should succeed, the total amount of money
+   * across both customers should be unchanged, and every transfer should be logged exactly once.
+   */
+  @Test
+  public void testConcurrentOpposingTransfersDoNotDeadlock() throws Exception {
+    int CUSTOMER1_BALANCE_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(1000);
+    int CUSTOMER2_BALANCE_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(1000);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, CUSTOMER1_BALANCE_IN_PENNIES);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, CUSTOMER2_BALANCE_IN_PENNIES);
+
+    // small enough that neither customer can go into overdraft, so the total balance is conserved exactly
+    int TRANSFER_AMOUNT_IN_PENNIES = 100;
+
+    ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+    List<Future<TransferResult>> transferResults = new ArrayList<>();
+    try {
+      for (int threadNum = 0; threadNum < NUM_THREADS; threadNum++) {
+        String senderID = (threadNum % 2 == 0) ? CUSTOMER1_ID : CUSTOMER2_ID;
+        String recipientID = (threadNum % 2 == 0) ? CUSTOMER2_ID : CUSTOMER1_ID;
+        for (int transferNum = 0; transferNum < NUM_TRANSFERS_PER_THREAD; transferNum++) {
+          Callable<TransferResult> transfer = () -> transferEngine.transfer(senderID, recipientID, TRANSFER_AMOUNT_IN_PENNIES, TIMESTAMP);
+          transferResults.add(executor.submit(transfer));
+        }
+      }
+      for (Future<TransferResult> transferResult : transferResults) {
+        assertEquals(TransferResult.SUCCESS, transferResult.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // verify that no money was created or lost
+    int customer1BalanceInPennies = jdbcTemplate.queryForObject("SELECT Balance FROM Customers WHERE CustomerID=?;", Integer.class, CUSTOMER1_ID);
+    int customer2BalanceInPennies = jdbcTemplate.queryForObject("SELECT Balance FROM Customers WHERE CustomerID=?;", Integer.class, CUSTOMER2_ID);
+    assertEquals(CUSTOMER1_BALANCE_IN_PENNIES + CUSTOMER2_BALANCE_IN_PENNIES, customer1BalanceInPennies + customer2BalanceInPennies);
+
+    // equal numbers of threads send in each direction
+    assertEquals(CUSTOMER1_BALANCE_IN_PENNIES, customer1BalanceInPennies);
+    assertEquals(CUSTOMER2_BALANCE_IN_PENNIES, customer2BalanceInPennies);
+
+    // verify that every transfer was logged once in TransferHistory and twice in TransactionHistory
+    int numTransfers = NUM_THREADS * NUM_TRANSFERS_PER_THREAD;
+    assertEquals(numTransfers, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM TransferHistory;", Integer.class));
+    assertEquals(2 * numTransfers, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM TransactionHistory;", Integer.class));
+  }
+
+  /**
+   * Verifies that a transfer which would push the sender past the overdraft limit changes nothing for either customer.
+   */
+  @Test
+  public void testOverdraftLimitExceededTransferIsRolledBack() throws ScriptException {
+    int CUSTOMER1_BALANCE_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(100);
+    int CUSTOMER2_BALANCE_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(100);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, CUSTOMER1_BALANCE_IN_PENNIES);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, CUSTOMER2_BALANCE_IN_PENNIES);
+
+    // $1100 leaves an excess of $1000, which is over the $1000 overdraft limit once interest is applied
+    int TRANSFER_AMOUNT_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(1100);
+    TransferResult transferResult = transferEngine.transfer(CUSTOMER1_ID, CUSTOMER2_ID, TRANSFER_AMOUNT_IN_PENNIES, TIMESTAMP);
+
+    assertEquals(TransferResult.OVERDRAFT_LIMIT_EXCEEDED, transferResult);
+    List<Map<String,Object>> customersTableData = jdbcTemplate.queryForList("SELECT * FROM Customers ORDER BY CustomerID;");
+    assertEquals(CUSTOMER1_BALANCE_IN_PENNIES, (int) customersTableData.get(0).get("Balance"));
+    assertEquals(0, (int) customersTableData.get(0).get("OverdraftBalance"));
+    assertEquals(CUSTOMER2_BALANCE_IN_PENNIES, (int) customersTableData.get(1).get("Balance"));
+    assertEquals(0, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM TransferHistory;", Integer.class));
+    assertEquals(0, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM TransactionHistory;", Integer.class));
+  }
+
+  /**
+   * Verifies that a transfer to a customer who doesn't exist is rejected and the sender's balance is untouched.
+   */
+  @Test
+  public void testTransferToMissingRecipientIsRejected() throws ScriptException {
+    int CUSTOMER1_BALANCE_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(100);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, CUSTOMER1_BALANCE_IN_PENNIES);
+
+    TransferResult transferResult = transferEngine.transfer(CUSTOMER1_ID, CUSTOMER2_ID, 100, TIMESTAMP);
+
+    assertEquals(TransferResult.RECIPIENT_NOT_FOUND, transferResult);
+    assertEquals(CUSTOMER1_BALANCE_IN_PENNIES, (int) jdbcTemplate.queryForObject("SELECT Balance FROM Customers WHERE CustomerID=?;", Integer.class, CUSTOMER1_ID));
+  }
+
+  /**
+   * Runs many concurrent transfers in both directions with each customer's side on their account's partition,
+   * and verifies that no money is created or lost and every transfer is logged exactly once.
+   */
+  @Test
+  public void testConcurrentOpposingPartitionedTransfers() throws Exception {
+    int CUSTOMER1_BALANCE_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(1000);
+    int CUSTOMER2_BALANCE_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(1000);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, CUSTOMER1_BALANCE_IN_PENNIES);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, CUSTOMER2_BALANCE_IN_PENNIES);
+    int TRANSFER_AMOUNT_IN_PENNIES = 100;
+
+    ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+    List<Future<TransferResult>> transferResults = new ArrayList<>();
+    try {
+      for (int threadNum = 0; threadNum < NUM_THREADS; threadNum++) {
+        String senderID = (threadNum % 2 == 0) ? CUSTOMER1_ID : CUSTOMER2_ID;
+        String recipientID = (threadNum % 2 == 0) ? CUSTOMER2_ID : CUSTOMER1_ID;
+        for (int transferNum = 0; transferNum < NUM_TRANSFERS_PER_THREAD; transferNum++) {
+          Callable<TransferResult> transfer = () -> transferEngine.transfer(accountPartitions, senderID, recipientID, TRANSFER_AMOUNT_IN_PENNIES, TIMESTAMP);
+          transferResults.add(executor.submit(transfer));
+        }
+      }
+      for (Future<TransferResult> transferResult : transferResults) {
+        assertEquals(TransferResult.SUCCESS, transferResult.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(CUSTOMER1_BALANCE_IN_PENNIES, (int) jdbcTemplate.queryForObject("SELECT Balance FROM Customers WHERE CustomerID=?;", Integer.class, CUSTOMER1_ID));
+    assertEquals(CUSTOMER2_BALANCE_IN_PENNIES, (int) jdbcTemplate.queryForObject("SELECT Balance FROM Customers WHERE CustomerID=?;", Integer.class, CUSTOMER2_ID));
+    int numTransfers = NUM_THREADS * NUM_TRANSFERS_PER_THREAD;
+    assertEquals(numTransfers, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM TransferHistory;", Integer.class));
+    assertEquals(2 * numTransfers, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM TransactionHistory;", Integer.class));
+    assertEquals(0, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM PendingTransfers;", Integer.class));
+  }
+
+  /**
+   * Verifies that a partitioned transfer that debited the sender but was never settled (as if the app crashed before
+   * crediting the recipient) is refunded once it is stale, and only once.
+   */
+  @Test
+  public void testStalePendingTransferIsRefundedOnce() throws ScriptException {
+    int TRANSFER_AMOUNT_IN_PENNIES = 100;
+    // the sender's balance after the debit
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, 0);
+    TestudoBankRepository.LedgerEventRow debitEvent = new TestudoBankRepository.LedgerEventRow(CUSTOMER1_ID, TIMESTAMP, MvcController.TRANSACTION_HISTORY_TRANSFER_SEND_ACTION, -TRANSFER_AMOUNT_IN_PENNIES, 0);
+    TestudoBankRepository.insertPendingTransfer(jdbcTemplate, CUSTOMER1_ID, CUSTOMER2_ID, TRANSFER_AMOUNT_IN_PENNIES, debitEvent);
+
+    // not stale yet
+    assertEquals(0, transferEngine.refundStalePendingTransfers(accountPartitions, STALE_PENDING_TRANSFER_AGE_IN_SECONDS, TIMESTAMP));
+    jdbcTemplate.update("UPDATE PendingTransfers SET CreatedAt = NOW(6) - INTERVAL ? SECOND;", 2 * STALE_PENDING_TRANSFER_AGE_IN_SECONDS);
+
+    assertEquals(1, transferEngine.refundStalePendingTransfers(accountPartitions, STALE_PENDING_TRANSFER_AGE_IN_SECONDS, TIMESTAMP));
+    assertEquals(0, transferEngine.refundStalePendingTransfers(accountPartitions, STALE_PENDING_TRANSFER_AGE_IN_SECONDS, TIMESTAMP));
+    assertEquals(TRANSFER_AMOUNT_IN_PENNIES, (int) jdbcTemplate.queryForObject("SELECT Balance FROM Customers WHERE CustomerID=?;", Integer.class, CUSTOMER1_ID));
+    assertEquals(0, (int) jdbcTemplate.queryForObject("SELECT Balance FROM Customers WHERE CustomerID=?;", Integer.class, CUSTOMER2_ID));
+    assertEquals(1, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM LedgerEvents WHERE EventType=?;", Integer.class, MvcController.LEDGER_EVENT_REVERSAL));
+  }
+
+  /**
+   * Verifies that a partitioned transfer to a frozen recipient is rejected before the sender is debited.
+   */
+  @Test
+  public void testPartitionedTransferToFrozenRecipientIsRejected() throws ScriptException {
+    int CUSTOMER1_BALANCE_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(100);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, CUSTOMER1_BALANCE_IN_PENNIES);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, 0, 0, MvcController.MAX_DISPUTES);
+
+    TransferResult transferResult = transferEngine.transfer(accountPartitions, CUSTOMER1_ID, CUSTOMER2_ID, 100, TIMESTAMP);
+
+    assertEquals(TransferResult.RECIPIENT_FROZEN, transferResult);
+    assertEquals(CUSTOMER1_BALANCE_IN_PENNIES, (int) jdbcTemplate.queryForObject("SELECT Balance FROM Customers WHERE CustomerID=?;", Integer.class, CUSTOMER1_ID));
+    assertEquals(0, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM LedgerEvents WHERE EventType<>'Opening';", Integer.class));
+  }
+}
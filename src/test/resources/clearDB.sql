@@ -4,4 +4,7 @@ TRUNCATE OverdraftLogs;
 TRUNCATE TransactionHistory;
 TRUNCATE TransferHistory;
 TRUNCATE CryptoHistory;
-TRUNCATE CryptoHoldings;
\ No newline at end of file
+TRUNCATE CryptoHoldings;
+TRUNCATE LedgerEvents;
+TRUNCATE BalanceSnapshots;
+TRUNCATE IdempotencyKeys;TRUNCATE PendingTransfers;